@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary cache file for a carrier config bundle, used by {@link CarrierConfigLoader} in
+ * place of the XML files written by {@link PersistableBundle#writeToStream}.
+ *
+ * The file is memory-mapped when opened. Its header holds the version of the package the config
+ * was fetched from and the carrier id, so a reader can validate the cache without decoding any of
+ * the config values. The header is followed by a key index, and values are only decoded when they
+ * are requested.
+ *
+ * Layout, with all integers big-endian and all strings stored as a length followed by UTF-8
+ * bytes:
+ * <pre>
+ *   int    magic
+ *   int    format version
+ *   string package version
+ *   int    carrier id
+ *   int    key count
+ *   key count x { string key, int value offset }
+ *   values, each one a type byte followed by the encoded value
+ * </pre>
+ * Value offsets are relative to the start of the values section.
+ */
+final class CarrierConfigCacheFile {
+    /** File name extension used for binary cache files. */
+    static final String FILE_EXTENSION = ".bin";
+
+    // "CCFG"
+    private static final int MAGIC = 0x43434647;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BOOLEAN_ARRAY = 6;
+    private static final byte TYPE_INT_ARRAY = 7;
+    private static final byte TYPE_LONG_ARRAY = 8;
+    private static final byte TYPE_DOUBLE_ARRAY = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_PERSISTABLE_BUNDLE = 11;
+    private static final byte TYPE_NULL = 12;
+
+    @NonNull private final ByteBuffer mBuffer;
+    @NonNull private final String mPackageVersion;
+    private final int mCarrierId;
+    // Position of the key count in mBuffer.
+    private final int mIndexPosition;
+    // Key to absolute value position in mBuffer, built on first use.
+    @Nullable private Map<String, Integer> mKeyIndex;
+
+    private CarrierConfigCacheFile(@NonNull ByteBuffer buffer, @NonNull String packageVersion,
+            int carrierId, int indexPosition) {
+        mBuffer = buffer;
+        mPackageVersion = packageVersion;
+        mCarrierId = carrierId;
+        mIndexPosition = indexPosition;
+    }
+
+    /**
+     * Memory-maps a cache file and reads its header.
+     *
+     * @param file the file to open.
+     * @return the opened file, or null if it is not a cache file in the current format.
+     * @throws IOException if the file does not exist or cannot be read.
+     */
+    @Nullable
+    static CarrierConfigCacheFile open(@NonNull File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file);
+                FileChannel channel = in.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String packageVersion = readString(buffer);
+            int carrierId = buffer.getInt();
+            return new CarrierConfigCacheFile(buffer, packageVersion, carrierId,
+                    buffer.position());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a config bundle to a cache file, replacing the file atomically.
+     *
+     * @param file           the file to write.
+     * @param packageVersion the version of the package the config was fetched from.
+     * @param carrierId      the carrier id the config was fetched for.
+     * @param config         the config to write.
+     * @throws IOException if the file cannot be written or the config holds unsupported values.
+     */
+    static void write(@NonNull File file, @NonNull String packageVersion, int carrierId,
+            @NonNull PersistableBundle config) throws IOException {
+        byte[] content = encode(packageVersion, carrierId, config);
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            out.write(content);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    /** Returns the version of the package the config was fetched from. */
+    @NonNull
+    String getPackageVersion() {
+        return mPackageVersion;
+    }
+
+    /** Returns the carrier id the config was fetched for. */
+    int getCarrierId() {
+        return mCarrierId;
+    }
+
+    /** Returns the keys of the cached config. */
+    @NonNull
+    Set<String> keySet() throws IOException {
+        return Collections.unmodifiableSet(getKeyIndex().keySet());
+    }
+
+    /**
+     * Decodes a single value of the cached config.
+     *
+     * @param key the config key.
+     * @return the value, or null if the key is not in the cached config.
+     * @throws IOException if the file is corrupt.
+     */
+    @Nullable
+    Object get(@NonNull String key) throws IOException {
+        Integer position = getKeyIndex().get(key);
+        if (position == null) {
+            return null;
+        }
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(position);
+        try {
+            return readValue(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt value for " + key, e);
+        }
+    }
+
+    /**
+     * Decodes the whole cached config.
+     *
+     * @throws IOException if the file is corrupt.
+     */
+    @NonNull
+    PersistableBundle toPersistableBundle() throws IOException {
+        Map<String, Integer> index = getKeyIndex();
+        PersistableBundle config = new PersistableBundle(index.size());
+        for (String key : index.keySet()) {
+            putValue(config, key, get(key));
+        }
+        return config;
+    }
+
+    @NonNull
+    private synchronized Map<String, Integer> getKeyIndex() throws IOException {
+        if (mKeyIndex != null) {
+            return mKeyIndex;
+        }
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mIndexPosition);
+        try {
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("Corrupt key count " + count);
+            }
+            ArrayMap<String, Integer> index = new ArrayMap<>(count);
+            String[] keys = new String[count];
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = readString(buffer);
+                offsets[i] = buffer.getInt();
+            }
+            int valuesPosition = buffer.position();
+            for (int i = 0; i < count; i++) {
+                int position = valuesPosition + offsets[i];
+                if (offsets[i] < 0 || position >= buffer.limit()) {
+                    throw new IOException("Corrupt offset for " + keys[i]);
+                }
+                index.put(keys[i], position);
+            }
+            mKeyIndex = index;
+            return index;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt key index", e);
+        }
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull String packageVersion, int carrierId,
+            @NonNull PersistableBundle config) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, packageVersion);
+        out.writeInt(carrierId);
+        encodeBundle(out, config);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Writes a key count, a key index and the values it points to. */
+    private static void encodeBundle(@NonNull DataOutputStream out,
+            @NonNull PersistableBundle bundle) throws IOException {
+        Set<String> keys = bundle.keySet();
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        DataOutputStream valuesOut = new DataOutputStream(values);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            out.writeInt(valuesOut.size());
+            writeValue(valuesOut, key, bundle.get(key));
+        }
+        valuesOut.flush();
+        values.writeTo(out);
+    }
+
+    private static void writeValue(@NonNull DataOutputStream out, @NonNull String key,
+            @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean element : array) {
+                out.writeBoolean(element);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int element : array) {
+                out.writeInt(element);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long element : array) {
+                out.writeLong(element);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double element : array) {
+                out.writeDouble(element);
+            }
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String element : array) {
+                // Null elements are stored as a negative length.
+                if (element == null) {
+                    out.writeInt(-1);
+                } else {
+                    writeString(out, element);
+                }
+            }
+        } else if (value instanceof PersistableBundle) {
+            out.writeByte(TYPE_PERSISTABLE_BUNDLE);
+            encodeBundle(out, (PersistableBundle) value);
+        } else {
+            throw new IOException("Unsupported type for " + key + ": " + value.getClass());
+        }
+    }
+
+    @Nullable
+    private static Object readValue(@NonNull ByteBuffer buffer) throws IOException {
+        byte type = buffer.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_DOUBLE:
+                return buffer.getDouble();
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = buffer.get() != 0;
+                }
+                return array;
+            }
+            case TYPE_INT_ARRAY: {
+                int[] array = new int[readLength(buffer)];
+                buffer.asIntBuffer().get(array);
+                buffer.position(buffer.position() + array.length * Integer.BYTES);
+                return array;
+            }
+            case TYPE_LONG_ARRAY: {
+                long[] array = new long[readLength(buffer)];
+                buffer.asLongBuffer().get(array);
+                buffer.position(buffer.position() + array.length * Long.BYTES);
+                return array;
+            }
+            case TYPE_DOUBLE_ARRAY: {
+                double[] array = new double[readLength(buffer)];
+                buffer.asDoubleBuffer().get(array);
+                buffer.position(buffer.position() + array.length * Double.BYTES);
+                return array;
+            }
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[readLength(buffer)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readNullableString(buffer);
+                }
+                return array;
+            }
+            case TYPE_PERSISTABLE_BUNDLE:
+                return readBundle(buffer);
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    @NonNull
+    private static PersistableBundle readBundle(@NonNull ByteBuffer buffer) throws IOException {
+        int count = readLength(buffer);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = readString(buffer);
+            // Values are stored in key order, so the offsets are not needed here.
+            buffer.getInt();
+        }
+        PersistableBundle bundle = new PersistableBundle(count);
+        for (String key : keys) {
+            putValue(bundle, key, readValue(buffer));
+        }
+        return bundle;
+    }
+
+    private static void putValue(@NonNull PersistableBundle bundle, @NonNull String key,
+            @Nullable Object value) {
+        if (value == null) {
+            bundle.putString(key, null);
+        } else if (value instanceof Boolean) {
+            bundle.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            bundle.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            bundle.putLong(key, (Long) value);
+        } else if (value instanceof Double) {
+            bundle.putDouble(key, (Double) value);
+        } else if (value instanceof String) {
+            bundle.putString(key, (String) value);
+        } else if (value instanceof boolean[]) {
+            bundle.putBooleanArray(key, (boolean[]) value);
+        } else if (value instanceof int[]) {
+            bundle.putIntArray(key, (int[]) value);
+        } else if (value instanceof long[]) {
+            bundle.putLongArray(key, (long[]) value);
+        } else if (value instanceof double[]) {
+            bundle.putDoubleArray(key, (double[]) value);
+        } else if (value instanceof String[]) {
+            bundle.putStringArray(key, (String[]) value);
+        } else if (value instanceof PersistableBundle) {
+            bundle.putPersistableBundle(key, (PersistableBundle) value);
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String value)
+            throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        String value = readNullableString(buffer);
+        if (value == null) {
+            throw new IllegalArgumentException("Unexpected null string");
+        }
+        return value;
+    }
+
+    @Nullable
+    private static String readNullableString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " out of bounds");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " out of bounds");
+        }
+        return length;
+    }
+}
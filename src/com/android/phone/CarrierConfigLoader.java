@@ -36,6 +36,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerExecutor;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
@@ -81,6 +82,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -108,6 +110,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     @NonNull private PersistableBundle[] mOverrideConfigs;
     // Carrier configs to override code default when there is no SIM inserted
     @NonNull private PersistableBundle mNoSimConfig;
+    // Merged snapshots of the code defaults and all the configs above, indexed by phone ID. An
+    // entry is null when one of its sources has changed and it must be rebuilt on the next read.
+    @NonNull private PersistableBundle[] mMergedConfigs;
+    // Merged snapshot of the code defaults and mNoSimConfig, or null if it must be rebuilt.
+    @Nullable private PersistableBundle mMergedNoSimConfig;
+    // Incremented every time one of the config sources above changes.
+    private long mConfigVersion;
+    // Guards mMergedConfigs, mMergedNoSimConfig and mConfigVersion, which are read from binder
+    // threads while the config sources are updated on the handler thread.
+    @NonNull private final Object mMergedConfigLock = new Object();
     // Service connection for binding to config app.
     @NonNull private CarrierServiceConnection[] mServiceConnection;
     // Service connection for binding to carrier config app for no SIM config.
@@ -129,6 +141,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     @NonNull
     private final BroadcastReceiver mSystemBroadcastReceiver = new ConfigLoaderBroadcastReceiver();
     @NonNull private final LocalLog mCarrierConfigLoadingLog = new LocalLog(100);
+    // Runs config cache writes and config changed broadcasts in order. In pipelined mode this is a
+    // background thread, so that disk and binder work for one phone does not hold up the handler
+    // thread and with it the fetch of every other phone.
+    @NonNull private final Executor mBackgroundExecutor;
     // Number of phone instances (active modem count)
     private int mNumPhones;
 
@@ -249,10 +265,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     final String carrierPackageName = (String) msg.obj;
                     // Always clear up the cache and re-load config from scratch since the carrier
                     // service change is reliable and specific to the phoneId now.
-                    clearCachedConfigForPackage(carrierPackageName);
                     logdWithLocalLog("Package changed: " + carrierPackageName
                             + ", phone=" + phoneId);
-                    updateConfigForPhoneId(phoneId);
+                    clearCachedConfigForPackage(carrierPackageName,
+                            () -> updateConfigForPhoneId(phoneId));
                     break;
                 }
 
@@ -262,6 +278,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     if (mConfigFromCarrierApp[phoneId] != null
                             && getCarrierPackageForPhoneId(phoneId) == null) {
                         mConfigFromCarrierApp[phoneId] = null;
+                        invalidateMergedConfig(phoneId);
                     }
                     // Restore persistent override values.
                     PersistableBundle config = restoreConfigFromXml(
@@ -271,6 +288,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 + mPlatformCarrierConfigPackage
                                 + " phoneId=" + phoneId);
                         mPersistentOverrideConfigs[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                     }
 
                     config = restoreConfigFromXml(mPlatformCarrierConfigPackage, "", phoneId);
@@ -281,6 +299,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromDefaultApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_DEFAULT_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         mHandler.sendMessage(newMsg);
@@ -298,6 +317,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             notifySubscriptionInfoUpdater(phoneId);
                             // TODO: We *must* call unbindService even if bindService returns false.
@@ -339,9 +359,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     }
                                     PersistableBundle config =
                                             resultData.getParcelable(KEY_CONFIG_BUNDLE);
-                                    saveConfigToXml(mPlatformCarrierConfigPackage, "", phoneId,
-                                            carrierId, config);
+                                    saveConfigToXmlInBackground(mPlatformCarrierConfigPackage,
+                                            "", phoneId, carrierId, config, false);
                                     mConfigFromDefaultApp[phoneId] = config;
+                                    invalidateMergedConfig(phoneId);
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_DONE, phoneId, -1));
@@ -383,6 +404,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     notifySubscriptionInfoUpdater(phoneId);
                     break;
                 }
@@ -415,6 +437,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromCarrierApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_CARRIER_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         sendMessage(newMsg);
@@ -430,6 +453,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             broadcastConfigChangedIntent(phoneId);
                             loge("Bind to carrier app: " + carrierPackageName + " fails");
@@ -471,8 +495,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     }
                                     PersistableBundle config =
                                             resultData.getParcelable(KEY_CONFIG_BUNDLE);
-                                    saveConfigToXml(getCarrierPackageForPhoneId(phoneId), "",
-                                            phoneId, carrierId, config);
+                                    final String carrierPackageName =
+                                            getCarrierPackageForPhoneId(phoneId);
+                                    saveConfigToXmlInBackground(carrierPackageName, "",
+                                            phoneId, carrierId, config, false);
                                     if (config != null) {
                                         mConfigFromCarrierApp[phoneId] = config;
                                     } else {
@@ -482,6 +508,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         // continues smoothly.
                                         mConfigFromCarrierApp[phoneId] = new PersistableBundle();
                                     }
+                                    invalidateMergedConfig(phoneId);
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_CARRIER_DONE, phoneId, -1));
@@ -523,6 +550,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     notifySubscriptionInfoUpdater(phoneId);
                     break;
                 }
@@ -547,7 +575,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + lastFingerprint
                                         + " new: "
                                         + Build.FINGERPRINT);
-                        clearCachedConfigForPackage(null);
+                        clearCachedConfigForPackage(null, null);
                         sharedPrefs
                                 .edit()
                                 .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
@@ -571,6 +599,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         logd("Loaded no SIM config from XML. package="
                                 + mPlatformCarrierConfigPackage);
                         mNoSimConfig = config;
+                        invalidateMergedNoSimConfig();
                         sendMessage(
                                 obtainMessage(
                                         EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -647,8 +676,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     }
                                     PersistableBundle config =
                                             resultData.getParcelable(KEY_CONFIG_BUNDLE);
-                                    saveNoSimConfigToXml(mPlatformCarrierConfigPackage, config);
+                                    saveConfigToXmlInBackground(mPlatformCarrierConfigPackage,
+                                            "", -1, null, config, true);
                                     mNoSimConfig = config;
+                                    invalidateMergedNoSimConfig();
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -682,12 +713,28 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /**
      * Constructs a CarrierConfigLoader, registers it as a service, and registers a broadcast
-     * receiver for relevant events.
+     * receiver for relevant events. All the work is done on the handler thread.
      */
     @VisibleForTesting
     /* package */ CarrierConfigLoader(@NonNull Context context,
             @NonNull SubscriptionInfoUpdater subscriptionInfoUpdater, @NonNull Looper looper) {
+        this(context, subscriptionInfoUpdater, looper, Runnable::run);
+    }
+
+    /**
+     * Constructs a CarrierConfigLoader, registers it as a service, and registers a broadcast
+     * receiver for relevant events.
+     *
+     * @param backgroundExecutor runs config cache writes and config changed broadcasts. Pass a
+     *                           background executor to pipeline the config fetch of each phone, or
+     *                           an executor running tasks inline to keep them on the handler.
+     */
+    @VisibleForTesting
+    /* package */ CarrierConfigLoader(@NonNull Context context,
+            @NonNull SubscriptionInfoUpdater subscriptionInfoUpdater, @NonNull Looper looper,
+            @NonNull Executor backgroundExecutor) {
         mContext = context;
+        mBackgroundExecutor = backgroundExecutor;
         mPlatformCarrierConfigPackage =
                 mContext.getString(R.string.platform_carrier_config_package);
         mHandler = new ConfigHandler(looper);
@@ -703,6 +750,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mPersistentOverrideConfigs = new PersistableBundle[mNumPhones];
         mOverrideConfigs = new PersistableBundle[mNumPhones];
         mNoSimConfig = new PersistableBundle();
+        mMergedConfigs = new PersistableBundle[mNumPhones];
         mServiceConnection = new CarrierServiceConnection[mNumPhones];
         mServiceBound = new boolean[mNumPhones];
         mHasSentConfigChange = new boolean[mNumPhones];
@@ -729,8 +777,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     /* package */ static CarrierConfigLoader init(@NonNull Context context) {
         synchronized (CarrierConfigLoader.class) {
             if (sInstance == null) {
+                HandlerThread backgroundThread = new HandlerThread(LOG_TAG + "-background");
+                backgroundThread.start();
                 sInstance = new CarrierConfigLoader(context,
-                        PhoneFactory.getSubscriptionInfoUpdater(), Looper.myLooper());
+                        PhoneFactory.getSubscriptionInfoUpdater(), Looper.myLooper(),
+                        new HandlerExecutor(new Handler(backgroundThread.getLooper())));
                 // Make this service available through ServiceManager.
                 TelephonyFrameworkInitializer.getTelephonyServiceManager()
                         .getCarrierConfigServiceRegisterer().register(sInstance);
@@ -753,6 +804,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         mConfigFromDefaultApp[phoneId] = null;
         mConfigFromCarrierApp[phoneId] = null;
+        invalidateMergedConfig(phoneId);
         mServiceConnection[phoneId] = null;
         mHasSentConfigChange[phoneId] = false;
 
@@ -799,6 +851,29 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     private void broadcastConfigChangedIntent(int phoneId, boolean addSubIdExtra) {
+        final boolean rebroadcastOnUnlock = mFromSystemUnlocked[phoneId];
+        mHasSentConfigChange[phoneId] = true;
+        mFromSystemUnlocked[phoneId] = false;
+        // The subscription and carrier ids are read here, when the config is applied, so that
+        // the broadcast carries the extras of this config even if the SIM changes before it is
+        // sent.
+        final Intent intent =
+                createConfigChangedIntent(phoneId, addSubIdExtra, rebroadcastOnUnlock);
+        final int[] subIds = SubscriptionManager.getSubId(phoneId);
+        mBackgroundExecutor.execute(() -> {
+            mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+            if (subIds != null && subIds.length > 0) {
+                logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", subId="
+                        + subIds[0]);
+            } else {
+                logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId);
+            }
+        });
+    }
+
+    @NonNull
+    private Intent createConfigChangedIntent(int phoneId, boolean addSubIdExtra,
+            boolean rebroadcastOnUnlock) {
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT |
                 Intent.FLAG_RECEIVER_FOREGROUND);
@@ -810,7 +885,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         .createForSubscriptionId(subIds[0]);
                 simApplicationState = telMgr.getSimApplicationState();
             }
-            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId
+            logd("Create CARRIER_CONFIG_CHANGED for phone " + phoneId
                     + " simApplicationState " + simApplicationState);
             // Include subId/carrier id extra only if SIM records are loaded
             if (simApplicationState != TelephonyManager.SIM_STATE_UNKNOWN
@@ -822,17 +897,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             }
         }
         intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, phoneId);
-        intent.putExtra(CarrierConfigManager.EXTRA_REBROADCAST_ON_UNLOCK,
-                mFromSystemUnlocked[phoneId]);
-        mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-        int[] subIds = SubscriptionManager.getSubId(phoneId);
-        if (subIds != null && subIds.length > 0) {
-            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", subId=" + subIds[0]);
-        } else {
-            logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId);
-        }
-        mHasSentConfigChange[phoneId] = true;
-        mFromSystemUnlocked[phoneId] = false;
+        intent.putExtra(CarrierConfigManager.EXTRA_REBROADCAST_ON_UNLOCK, rebroadcastOnUnlock);
+        return intent;
     }
 
     /** Binds to the default or carrier config app. */
@@ -945,17 +1011,18 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a cache file.
      *
-     * The bundle will be written to a file named after the package name, ICCID and
+     * The bundle is written in the binary {@link CarrierConfigCacheFile} format, falling back to
+     * XML if that fails. It will be written to a file named after the package name, ICCID and
      * specific carrier id {@link TelephonyManager#getSimSpecificCarrierId()}. the same carrier
      * should have a single copy of XML file named after carrier id. However, it's still possible
      * that platform doesn't recognize the current sim carrier, we will use iccid + carrierid as
      * the canonical file name. carrierid can also handle the cases SIM OTA resolves to different
      * carrier while iccid remains the same.
      *
-     * The file can be restored later with {@link @restoreConfigFromXml}. The XML output will
-     * include the bundle and the current version of the specified package.
+     * The file can be restored later with {@link @restoreConfigFromXml}. The output will include
+     * the bundle and the current version of the specified package.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -969,27 +1036,78 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private void saveConfigToXml(@Nullable String packageName, @NonNull String extraString,
             int phoneId, @Nullable CarrierIdentifier carrierId, @NonNull PersistableBundle config,
             boolean isNoSimConfig) {
+        ConfigCacheWrite write = prepareConfigCacheWrite(packageName, extraString, phoneId,
+                carrierId, config, isNoSimConfig);
+        if (write != null) {
+            writeConfigCacheFile(write);
+        }
+    }
+
+    /**
+     * Same as {@link #saveConfigToXml}, but only the file is written on
+     * {@link #mBackgroundExecutor}. The SIM state, ICCID and package version are read on the
+     * handler, so a config is never saved under the ICCID of a SIM inserted after it was fetched.
+     */
+    private void saveConfigToXmlInBackground(@Nullable String packageName,
+            @NonNull String extraString, int phoneId, @Nullable CarrierIdentifier carrierId,
+            @NonNull PersistableBundle config, boolean isNoSimConfig) {
+        ConfigCacheWrite write = prepareConfigCacheWrite(packageName, extraString, phoneId,
+                carrierId, config, isNoSimConfig);
+        if (write != null) {
+            mBackgroundExecutor.execute(() -> writeConfigCacheFile(write));
+        }
+    }
+
+    /** A config cache file to write, with everything it is named and versioned after. */
+    private static final class ConfigCacheWrite {
+        final String mPackageName;
+        final int mPhoneId;
+        final String mFileName;
+        final String mVersion;
+        final int mCarrierId;
+        final PersistableBundle mConfig;
+
+        ConfigCacheWrite(String packageName, int phoneId, String fileName, String version,
+                int carrierId, PersistableBundle config) {
+            mPackageName = packageName;
+            mPhoneId = phoneId;
+            mFileName = fileName;
+            mVersion = version;
+            mCarrierId = carrierId;
+            mConfig = config;
+        }
+    }
+
+    /**
+     * Reads the state that the cache file of a config is named and versioned after.
+     *
+     * @return the file to write, or null if no file should be written.
+     */
+    @Nullable
+    private ConfigCacheWrite prepareConfigCacheWrite(@Nullable String packageName,
+            @NonNull String extraString, int phoneId, @Nullable CarrierIdentifier carrierId,
+            @Nullable PersistableBundle config, boolean isNoSimConfig) {
         if (packageName == null) {
             loge("Cannot save config with null packageName");
-            return;
+            return null;
         }
 
         String fileName;
+        final int cid = carrierId != null ? carrierId.getSpecificCarrierId()
+                : TelephonyManager.UNKNOWN_CARRIER_ID;
         if (isNoSimConfig) {
             fileName = getFilenameForNoSimConfig(packageName);
         } else {
             if (SubscriptionManager.getSimStateForSlotIndex(phoneId)
                     != TelephonyManager.SIM_STATE_LOADED) {
                 loge("Skip save config because SIM records are not loaded.");
-                return;
+                return null;
             }
 
             final String iccid = getIccIdForPhoneId(phoneId);
-            final int cid = carrierId != null ? carrierId.getSpecificCarrierId()
-                    : TelephonyManager.UNKNOWN_CARRIER_ID;
             if (iccid == null) {
                 loge("Cannot save config with null iccid.");
-                return;
+                return null;
             }
             fileName = getFilenameForConfig(packageName, extraString, iccid, cid);
         }
@@ -1000,23 +1118,44 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         // Downside is for genuinely empty bundle, will bind and load
         // on every power on.
         if (config == null || config.isEmpty()) {
-            return;
+            return null;
         }
 
         final String version = getPackageVersion(packageName);
         if (version == null) {
             loge("Failed to get package version for: " + packageName);
-            return;
+            return null;
         }
+        return new ConfigCacheWrite(packageName, phoneId, fileName, version, cid, config);
+    }
 
-        logdWithLocalLog(
-                "Save config to xml, packagename: " + packageName + " phoneId: " + phoneId);
+    /** Writes a config cache file prepared by {@link #prepareConfigCacheWrite}. */
+    private void writeConfigCacheFile(@NonNull ConfigCacheWrite write) {
+        logdWithLocalLog("Save config to cache, packagename: " + write.mPackageName
+                + " phoneId: " + write.mPhoneId);
+
+        final String fileName = write.mFileName;
+        final String version = write.mVersion;
+        final PersistableBundle config = write.mConfig;
+        final File xmlFile = new File(mContext.getFilesDir(), fileName);
+        try {
+            CarrierConfigCacheFile.write(
+                    new File(mContext.getFilesDir(), getBinaryFilename(fileName)), version,
+                    write.mCarrierId, config);
+            // The binary file takes precedence, so drop any XML file left from an older build.
+            xmlFile.delete();
+            return;
+        } catch (IOException e) {
+            loge("Failed to save binary config, falling back to XML: " + e.toString());
+        }
 
         FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
-            config.putString(KEY_VERSION, version);
-            config.writeToStream(outFile);
+            outFile = new FileOutputStream(xmlFile);
+            // Copy the config since it may be in use on other threads.
+            PersistableBundle versionedConfig = new PersistableBundle(config);
+            versionedConfig.putString(KEY_VERSION, version);
+            versionedConfig.writeToStream(outFile);
             outFile.flush();
             outFile.close();
         } catch (IOException e) {
@@ -1037,10 +1176,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a cache file.
      *
      * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and phone ID.
+     * config bundle for the given package and phone ID. The binary cache file is preferred; an XML
+     * file written by an older build is read instead if there is no binary file, and migrated to
+     * the binary format so that it does not have to be parsed again.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
@@ -1066,6 +1207,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         String fileName;
         String iccid = null;
+        int cid = TelephonyManager.UNKNOWN_CARRIER_ID;
         if (isNoSimConfig) {
             fileName = getFilenameForNoSimConfig(packageName);
         } else {
@@ -1076,7 +1218,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             }
 
             iccid = getIccIdForPhoneId(phoneId);
-            final int cid = getSpecificCarrierIdForPhoneId(phoneId);
+            cid = getSpecificCarrierIdForPhoneId(phoneId);
             if (iccid == null) {
                 loge("Cannot restore config with null iccid.");
                 return null;
@@ -1084,6 +1226,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             fileName = getFilenameForConfig(packageName, extraString, iccid, cid);
         }
 
+        final File binaryFile = new File(mContext.getFilesDir(), getBinaryFilename(fileName));
+        if (binaryFile.exists()) {
+            return restoreConfigFromBinary(binaryFile, version, cid);
+        }
+
         PersistableBundle restoredBundle = null;
         File file = null;
         FileInputStream inFile = null;
@@ -1117,9 +1264,57 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             loge(e.toString());
         }
 
+        if (restoredBundle != null) {
+            // Migrate to the binary format so the XML file does not have to be parsed again.
+            try {
+                CarrierConfigCacheFile.write(binaryFile, version, cid, restoredBundle);
+                file.delete();
+                logd("Migrated config to binary format. package=" + packageName);
+            } catch (IOException e) {
+                loge("Failed to migrate config to binary format: " + e.toString());
+            }
+        }
+
         return restoredBundle;
     }
 
+    /**
+     * Reads a bundle from a binary cache file written by {@link #saveConfigToXml}.
+     *
+     * Only the header of the file is read to check that the cache is still valid, so stale files
+     * are rejected without decoding the config itself.
+     *
+     * @param file    the binary cache file.
+     * @param version the current version of the package the config was fetched from.
+     * @param cid     the current specific carrier id.
+     * @return the cached bundle, or null if the cache is stale or cannot be read.
+     */
+    @Nullable
+    private PersistableBundle restoreConfigFromBinary(@NonNull File file, @NonNull String version,
+            int cid) {
+        try {
+            CarrierConfigCacheFile cacheFile = CarrierConfigCacheFile.open(file);
+            if (cacheFile == null) {
+                loge("Unrecognized config cache format, deleting " + file.getName());
+                file.delete();
+                return null;
+            }
+            if (!version.equals(cacheFile.getPackageVersion())) {
+                loge("Saved version mismatch: " + version + " vs "
+                        + cacheFile.getPackageVersion());
+                return null;
+            }
+            if (cid != cacheFile.getCarrierId()) {
+                loge("Saved carrier id mismatch: " + cid + " vs " + cacheFile.getCarrierId());
+                return null;
+            }
+            return cacheFile.toPersistableBundle();
+        } catch (IOException e) {
+            loge(e.toString());
+            return null;
+        }
+    }
+
     /**
      * This method will mask most part of iccid in the filepath for logging on userbuild
      */
@@ -1150,14 +1345,27 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /**
      * Clears cached carrier config.
-     * This deletes all saved XML files associated with the given package name. If packageName is
-     * null, then it deletes all saved XML files.
+     * This deletes all saved config files associated with the given package name. If packageName
+     * is null, then it deletes all saved config files.
+     *
+     * The files are deleted on {@link #mBackgroundExecutor}, after the cache writes already queued
+     * there, so that they cannot bring back a deleted file. This doesn't wait for the deletion.
      *
      * @param packageName the name of a carrier package, or null if all cached config should be
      *                    cleared.
-     * @return true iff one or more files were deleted.
+     * @param onCleared runs on {@link #mBackgroundExecutor} once the files are deleted, or null.
      */
-    private boolean clearCachedConfigForPackage(@Nullable final String packageName) {
+    private void clearCachedConfigForPackage(@Nullable final String packageName,
+            @Nullable Runnable onCleared) {
+        mBackgroundExecutor.execute(() -> {
+            deleteCachedConfigFilesForPackage(packageName);
+            if (onCleared != null) {
+                onCleared.run();
+            }
+        });
+    }
+
+    private boolean deleteCachedConfigFilesForPackage(@Nullable final String packageName) {
         File dir = mContext.getFilesDir();
         File[] packageFiles = dir.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String filename) {
@@ -1194,6 +1402,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return "carrierconfig-" + packageName + "-" + "nosim" + ".xml";
     }
 
+    /** Builds the binary cache file name that replaces the given XML config file name. */
+    @NonNull
+    private static String getBinaryFilename(@NonNull String xmlFileName) {
+        return xmlFileName.substring(0, xmlFileName.length() - ".xml".length())
+                + CarrierConfigCacheFile.FILE_EXTENSION;
+    }
+
     /** Return the current version code of a package, or null if the name is not found. */
     @Nullable
     private String getPackageVersion(@NonNull String packageName) {
@@ -1248,6 +1463,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromCarrierApp = Arrays.copyOf(mConfigFromCarrierApp, mNumPhones);
         mPersistentOverrideConfigs = Arrays.copyOf(mPersistentOverrideConfigs, mNumPhones);
         mOverrideConfigs = Arrays.copyOf(mOverrideConfigs, mNumPhones);
+        synchronized (mMergedConfigLock) {
+            // The phone to slot mapping may change, so drop all the snapshots.
+            mMergedConfigs = new PersistableBundle[mNumPhones];
+            mConfigVersion++;
+        }
         mServiceConnection = Arrays.copyOf(mServiceConnection, mNumPhones);
         mServiceConnectionForNoSimConfig =
                 Arrays.copyOf(mServiceConnectionForNoSimConfig, mNumPhones);
@@ -1282,40 +1502,162 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        PersistableBundle retConfig;
         if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            config = mPersistentOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            config = mOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            // Ignore the theoretical case of the default app not being present since that won't
-            // work in CarrierConfigLoader today.
-            final boolean allConfigsApplied =
-                    (mConfigFromCarrierApp[phoneId] != null
-                        || getCarrierPackageForPhoneId(phoneId) == null)
-                    && mConfigFromDefaultApp[phoneId] != null;
-            retConfig.putBoolean(
-                    CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, allConfigsApplied);
+            // Copy the snapshot since in-process callers receive the bundle without parceling.
+            retConfig = new PersistableBundle(getMergedConfig(phoneId));
+            retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    areAllConfigsApplied(phoneId));
         } else {
-            if (mNoSimConfig != null) {
-                retConfig.putAll(mNoSimConfig);
+            retConfig = new PersistableBundle(getMergedNoSimConfig());
+        }
+        return retConfig;
+    }
+
+    /**
+     * Returns only the given keys of the carrier config for the subscription, with the same values
+     * {@link #getConfigForSubIdWithFeature} would return for them. Keys that have no value in the
+     * merged config are left out.
+     *
+     * This is much cheaper than fetching the full config when only a few keys are needed, since
+     * nothing but the requested values is copied. It is not part of {@link ICarrierConfigLoader}
+     * and is only meant for callers within the phone process.
+     *
+     * @param subscriptionId the subscription to get the config for.
+     * @param keys           the carrier config keys to return.
+     * @return a bundle containing at most the requested keys.
+     */
+    @NonNull
+    public PersistableBundle getConfigSubsetForSubId(int subscriptionId, @NonNull String[] keys) {
+        int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
+        boolean isValidPhoneId = SubscriptionManager.isValidPhoneId(phoneId);
+        PersistableBundle merged = isValidPhoneId
+                ? getMergedConfig(phoneId) : getMergedNoSimConfig();
+        PersistableBundle retConfig = new PersistableBundle(keys.length);
+        for (String key : keys) {
+            if (isValidPhoneId
+                    && CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL.equals(key)) {
+                retConfig.putBoolean(key, areAllConfigsApplied(phoneId));
+            } else {
+                copyConfigValue(merged, retConfig, key);
             }
         }
         return retConfig;
     }
 
+    private boolean areAllConfigsApplied(int phoneId) {
+        // Ignore the theoretical case of the default app not being present since that won't
+        // work in CarrierConfigLoader today.
+        return (mConfigFromCarrierApp[phoneId] != null
+                || getCarrierPackageForPhoneId(phoneId) == null)
+                && mConfigFromDefaultApp[phoneId] != null;
+    }
+
+    /** Copies the value of {@code key} from {@code src} to {@code dest}, if it has one. */
+    private void copyConfigValue(@NonNull PersistableBundle src,
+            @NonNull PersistableBundle dest, @NonNull String key) {
+        Object value = src.get(key);
+        if (value instanceof Boolean) {
+            dest.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            dest.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            dest.putLong(key, (Long) value);
+        } else if (value instanceof Double) {
+            dest.putDouble(key, (Double) value);
+        } else if (value instanceof String) {
+            dest.putString(key, (String) value);
+        } else if (value instanceof boolean[]) {
+            dest.putBooleanArray(key, (boolean[]) value);
+        } else if (value instanceof int[]) {
+            dest.putIntArray(key, (int[]) value);
+        } else if (value instanceof long[]) {
+            dest.putLongArray(key, (long[]) value);
+        } else if (value instanceof double[]) {
+            dest.putDoubleArray(key, (double[]) value);
+        } else if (value instanceof String[]) {
+            dest.putStringArray(key, (String[]) value);
+        } else if (value instanceof PersistableBundle) {
+            dest.putPersistableBundle(key, (PersistableBundle) value);
+        } else if (value != null) {
+            loge("Unsupported type for carrier config key " + key + ": " + value.getClass());
+        }
+    }
+
+    /**
+     * Returns the merged config snapshot for the given phone, rebuilding it first if one of its
+     * sources has changed since it was last built. The returned bundle must not be modified.
+     */
+    @NonNull
+    private PersistableBundle getMergedConfig(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            PersistableBundle merged = mMergedConfigs[phoneId];
+            if (merged == null) {
+                merged = CarrierConfigManager.getDefaultConfig();
+                putAllIfNotNull(merged, mConfigFromDefaultApp[phoneId]);
+                putAllIfNotNull(merged, mConfigFromCarrierApp[phoneId]);
+                putAllIfNotNull(merged, mPersistentOverrideConfigs[phoneId]);
+                putAllIfNotNull(merged, mOverrideConfigs[phoneId]);
+                mMergedConfigs[phoneId] = merged;
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Returns the merged snapshot of the code defaults and the no SIM config, rebuilding it first
+     * if needed. The returned bundle must not be modified.
+     */
+    @NonNull
+    private PersistableBundle getMergedNoSimConfig() {
+        synchronized (mMergedConfigLock) {
+            if (mMergedNoSimConfig == null) {
+                PersistableBundle merged = CarrierConfigManager.getDefaultConfig();
+                putAllIfNotNull(merged, mNoSimConfig);
+                mMergedNoSimConfig = merged;
+            }
+            return mMergedNoSimConfig;
+        }
+    }
+
+    private static void putAllIfNotNull(@NonNull PersistableBundle dest,
+            @Nullable PersistableBundle src) {
+        if (src != null) {
+            dest.putAll(src);
+        }
+    }
+
+    /**
+     * Drops the merged snapshot for the given phone. Must be called after any change to
+     * {@link #mConfigFromDefaultApp}, {@link #mConfigFromCarrierApp},
+     * {@link #mPersistentOverrideConfigs} or {@link #mOverrideConfigs}.
+     */
+    private void invalidateMergedConfig(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            mMergedConfigs[phoneId] = null;
+            mConfigVersion++;
+        }
+    }
+
+    /** Drops the merged no SIM snapshot. Must be called after any change to mNoSimConfig. */
+    private void invalidateMergedNoSimConfig() {
+        synchronized (mMergedConfigLock) {
+            mMergedNoSimConfig = null;
+            mConfigVersion++;
+        }
+    }
+
+    /**
+     * Returns the carrier config version. The version is incremented every time the config
+     * returned by {@link #getConfigForSubIdWithFeature} may have changed for any phone, so
+     * callers can compare it to decide whether a previously read config is still current.
+     */
+    /* package */ long getConfigVersion() {
+        synchronized (mMergedConfigLock) {
+            return mConfigVersion;
+        }
+    }
+
     @Override
     public void overrideConfig(int subscriptionId, @Nullable PersistableBundle overrides,
             boolean persistent) {
@@ -1347,8 +1689,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             OVERRIDE_PACKAGE_ADDITION, iccid, cid);
                     File fileToDelete = new File(mContext.getFilesDir(), fileName);
                     fileToDelete.delete();
+                    new File(mContext.getFilesDir(), getBinaryFilename(fileName)).delete();
                 }
             }
+            invalidateMergedConfig(phoneId);
             notifySubscriptionInfoUpdater(phoneId);
         });
     }
@@ -1378,13 +1722,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     "Invalid phoneId " + phoneId + " for subId " + subscriptionId);
         }
 
-        // This method should block until deleting has completed, so that an error which prevents us
-        // from clearing the cache is passed back to the carrier app. With the files successfully
-        // deleted, this can return and we will eventually bind to the carrier app.
+        // The cached files are deleted in the background so that a slow disk doesn't hold up the
+        // carrier app. The config is only updated once they are gone, so that we bind to the
+        // carrier app instead of restoring the stale config.
         String callingPackageName = mContext.getPackageManager().getNameForUid(
                 Binder.getCallingUid());
-        clearCachedConfigForPackage(callingPackageName);
-        updateConfigForPhoneId(phoneId);
+        clearCachedConfigForPackage(callingPackageName, () -> updateConfigForPhoneId(phoneId));
     }
 
     @Override
@@ -1522,6 +1865,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         printConfig(mNoSimConfig, indentPW, "mNoSimConfig");
+        indentPW.println("mConfigVersion=" + getConfigVersion());
         indentPW.println("CarrierConfigLoadingLog=");
         mCarrierConfigLoadingLog.dump(fd, indentPW, args);
 
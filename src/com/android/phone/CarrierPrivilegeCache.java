@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the uids and packages without carrier privileges for {@link PhoneInterfaceManager}.
+ *
+ * <p>Most callers of the carrier privilege checks don't have privileges. Each phone has a
+ * snapshot of the uids and packages that the tracker reported as
+ * {@link TelephonyManager#CARRIER_PRIVILEGE_STATUS_NO_ACCESS}, which are answered without asking
+ * the tracker or taking its lock again. Any other uid or package is a miss and is read from the
+ * tracker, so a check never grants access from the snapshot. Privileges that are revoked take
+ * effect right away, even though the callback that reports the change is delivered
+ * asynchronously.
+ *
+ * <p>When the privileges of a phone change, {@link #onCarrierPrivilegesChanged} replaces its
+ * snapshot with an empty one. A lookup that started before the change memoizes its result in the
+ * snapshot that it read, which is then no longer used. Until the callback arrives, a uid or
+ * package that was just granted privileges is still denied, but never the other way around.
+ * Until the first callback of a phone, every check goes to the tracker.
+ *
+ * <p>Reads don't take a lock: they use the snapshot that is current when they start.
+ */
+final class CarrierPrivilegeCache {
+    /** Reads the carrier privilege status from the tracker of the phone. */
+    interface StatusSource {
+        int getCarrierPrivilegeStatusForUid(int phoneId, int uid);
+
+        int getCarrierPrivilegeStatusForPackage(int phoneId, @NonNull String packageName);
+    }
+
+    /** The uids and packages of a phone without carrier privileges, until they change. */
+    private static final class Snapshot {
+        final Set<Integer> mUidsWithoutAccess = ConcurrentHashMap.newKeySet();
+        final Set<String> mPackagesWithoutAccess = ConcurrentHashMap.newKeySet();
+    }
+
+    private final StatusSource mStatusSource;
+
+    /** Serializes the writers of {@link #mSnapshots}. */
+    private final Object mLock = new Object();
+    // Keyed by phone id, replaced as a whole whenever the snapshot of a phone is replaced.
+    private volatile Snapshot[] mSnapshots = new Snapshot[0];
+
+    CarrierPrivilegeCache(@NonNull StatusSource statusSource) {
+        mStatusSource = statusSource;
+    }
+
+    /**
+     * Drops the uids and packages without privileges of the phone, since the privileges on it
+     * changed.
+     *
+     * @param phoneId The id of the phone.
+     */
+    void onCarrierPrivilegesChanged(int phoneId) {
+        synchronized (mLock) {
+            Snapshot[] snapshots = Arrays.copyOf(mSnapshots,
+                    Math.max(mSnapshots.length, phoneId + 1));
+            snapshots[phoneId] = new Snapshot();
+            mSnapshots = snapshots;
+        }
+    }
+
+    @Nullable
+    private Snapshot getSnapshot(int phoneId) {
+        Snapshot[] snapshots = mSnapshots;
+        return phoneId >= 0 && phoneId < snapshots.length ? snapshots[phoneId] : null;
+    }
+
+    /** Returns the carrier privilege status of the uid on the phone. */
+    int getCarrierPrivilegeStatusForUid(int phoneId, int uid) {
+        Snapshot snapshot = getSnapshot(phoneId);
+        if (snapshot != null && snapshot.mUidsWithoutAccess.contains(uid)) {
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        }
+        int status = mStatusSource.getCarrierPrivilegeStatusForUid(phoneId, uid);
+        if (snapshot != null && status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+            snapshot.mUidsWithoutAccess.add(uid);
+        }
+        return status;
+    }
+
+    /** Returns the carrier privilege status of the package on the phone. */
+    int getCarrierPrivilegeStatusForPackage(int phoneId, @NonNull String packageName) {
+        Snapshot snapshot = getSnapshot(phoneId);
+        if (snapshot != null && snapshot.mPackagesWithoutAccess.contains(packageName)) {
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        }
+        int status = mStatusSource.getCarrierPrivilegeStatusForPackage(phoneId, packageName);
+        if (snapshot != null && status == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+            snapshot.mPackagesWithoutAccess.add(packageName);
+        }
+        return status;
+    }
+
+    /** Returns the number of uids and packages without privileges that are kept for the phone. */
+    @VisibleForTesting
+    int getCachedStatusCount(int phoneId) {
+        Snapshot snapshot = getSnapshot(phoneId);
+        return snapshot == null ? 0
+                : snapshot.mUidsWithoutAccess.size() + snapshot.mPackagesWithoutAccess.size();
+    }
+
+    /** Dump the size of the snapshot of each phone. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        Snapshot[] snapshots = mSnapshots;
+        pw.println("CarrierPrivilegeCache:");
+        pw.increaseIndent();
+        for (int phoneId = 0; phoneId < snapshots.length; phoneId++) {
+            Snapshot snapshot = snapshots[phoneId];
+            if (snapshot == null) {
+                continue;
+            }
+            pw.println("phone" + phoneId + ": uidsWithoutAccess="
+                    + snapshot.mUidsWithoutAccess.size()
+                    + " packagesWithoutAccess=" + snapshot.mPackagesWithoutAccess.size());
+        }
+        pw.decreaseIndent();
+    }
+}
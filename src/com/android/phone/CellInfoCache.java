@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.CellInfo;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Caches the cell info of all phones that {@link PhoneInterfaceManager#getAllCellInfo} returns,
+ * merged into one immutable list that is shared by all callers.
+ *
+ * <p>Callers targeting Q and above get the cell info that the phones last reported. Their list is
+ * reused for as long as each phone still reports the same cell info. Older callers get cell info
+ * freshly requested from the modems. Their list may be reused for up to a given time to live, so
+ * that callers polling at the same time share the requests. Both lists are dropped when a modem
+ * reports that its cell info changed.
+ *
+ * <p>The calls of each caller are counted, so that the callers that poll the most can be found in
+ * the dump.
+ */
+final class CellInfoCache {
+    private static final String TAG = "CellInfoCache";
+
+    /** Maximum number of callers whose calls are counted. */
+    @VisibleForTesting
+    static final int MAX_CALLERS = 32;
+
+    private static final int EVENT_CELL_INFO_CHANGED = 1;
+
+    /** The merged cell info together with what it was merged from. */
+    private static final class Snapshot {
+        // The cell info that each phone reported, keyed by phone id, or null if it was requested
+        // from the modems.
+        @Nullable final List<List<CellInfo>> mSources;
+        final List<CellInfo> mCellInfo;
+        final long mCreationTimeMillis;
+
+        Snapshot(@Nullable List<List<CellInfo>> sources, @NonNull List<CellInfo> cellInfo) {
+            mSources = sources;
+            mCellInfo = Collections.unmodifiableList(cellInfo);
+            mCreationTimeMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /** The calls of a single caller. */
+    private static final class CallerStats {
+        long mCalls;
+        long mRefreshes;
+        long mHits;
+        final long mFirstCallMillis;
+        long mLastCallMillis;
+        // Orders the callers by their last call, see mCallSequence.
+        long mLastCallSequence;
+
+        CallerStats(long now) {
+            mFirstCallMillis = now;
+        }
+    }
+
+    private final Object mLock = new Object();
+    /** The phones that have been registered for cell info changes, keyed by phone id. */
+    @GuardedBy("mLock")
+    private final SparseArray<Phone> mRegisteredPhones = new SparseArray<>();
+    /** Incremented on every cell info change. */
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private final ArrayMap<String, CallerStats> mCallerStats = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mCallSequence;
+    @GuardedBy("mLock")
+    private long mHits;
+    @GuardedBy("mLock")
+    private long mMisses;
+
+    // Read without the lock, published under it.
+    private volatile Snapshot mReportedSnapshot;
+    private volatile Snapshot mRefreshedSnapshot;
+
+    private final Handler mHandler;
+
+    CellInfoCache(@NonNull Looper looper) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_CELL_INFO_CHANGED:
+                        invalidate();
+                        break;
+                    default:
+                        Log.e(TAG, "Unknown message " + msg.what);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the cell info that the phones last reported, merged into one list.
+     *
+     * @param callingPackage The package of the caller, for the dump.
+     * @param phones The phones, in the order their cell info is merged.
+     */
+    @NonNull
+    List<CellInfo> getReportedCellInfo(@Nullable String callingPackage, @NonNull Phone[] phones) {
+        final long generation;
+        synchronized (mLock) {
+            for (Phone phone : phones) {
+                if (mRegisteredPhones.get(phone.getPhoneId()) != phone) {
+                    registerForCellInfoChanged(phone);
+                }
+            }
+            generation = mGeneration;
+        }
+
+        Snapshot snapshot = mReportedSnapshot;
+        if (snapshot != null && isMergedFrom(snapshot, phones)) {
+            noteCall(callingPackage, false, true);
+            return snapshot.mCellInfo;
+        }
+
+        List<List<CellInfo>> sources = new ArrayList<>(phones.length);
+        for (Phone phone : phones) {
+            sources.add(phone.getAllCellInfo());
+        }
+        List<CellInfo> cellInfo = new ArrayList<>();
+        for (List<CellInfo> source : sources) {
+            if (source != null) cellInfo.addAll(source);
+        }
+        snapshot = new Snapshot(sources, cellInfo);
+        synchronized (mLock) {
+            // Don't publish cell info that has been invalidated since.
+            if (generation == mGeneration) {
+                mReportedSnapshot = snapshot;
+            }
+        }
+        noteCall(callingPackage, false, false);
+        return snapshot.mCellInfo;
+    }
+
+    // The phones may report new cell info before the change notification is handled, so the
+    // snapshot is only reused while it was merged from the same cell info.
+    private static boolean isMergedFrom(@NonNull Snapshot snapshot, @NonNull Phone[] phones) {
+        if (snapshot.mSources.size() != phones.length) {
+            return false;
+        }
+        for (int i = 0; i < phones.length; i++) {
+            List<CellInfo> source = phones[i].getAllCellInfo();
+            List<CellInfo> cachedSource = snapshot.mSources.get(i);
+            if (cachedSource != source && !Objects.equals(cachedSource, source)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns cell info freshly requested from the modems, merged into one list, or the cell info
+     * requested by an earlier call if that is younger than the given time to live and the modems
+     * haven't reported a change since.
+     *
+     * @param callingPackage The package of the caller, for the dump.
+     * @param ttlMillis How long the cell info may be reused, or 0 not to reuse it.
+     * @param refresh Requests the cell info from all modems and merges it.
+     */
+    @NonNull
+    List<CellInfo> getRefreshedCellInfo(@Nullable String callingPackage, long ttlMillis,
+            @NonNull Supplier<List<CellInfo>> refresh) {
+        Snapshot snapshot = mRefreshedSnapshot;
+        if (ttlMillis > 0 && snapshot != null
+                && SystemClock.elapsedRealtime() - snapshot.mCreationTimeMillis < ttlMillis) {
+            noteCall(callingPackage, true, true);
+            return snapshot.mCellInfo;
+        }
+
+        final long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        snapshot = new Snapshot(null, refresh.get());
+        if (ttlMillis > 0) {
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mRefreshedSnapshot = snapshot;
+                }
+            }
+        }
+        noteCall(callingPackage, true, false);
+        return snapshot.mCellInfo;
+    }
+
+    /** Drops the cached cell info, since a modem reported that its cell info changed. */
+    @VisibleForTesting
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mReportedSnapshot = null;
+            mRefreshedSnapshot = null;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void registerForCellInfoChanged(@NonNull Phone phone) {
+        int phoneId = phone.getPhoneId();
+        Phone oldPhone = mRegisteredPhones.get(phoneId);
+        if (oldPhone != null) {
+            oldPhone.mCi.unregisterForCellInfoList(mHandler);
+        }
+        phone.mCi.registerForCellInfoList(mHandler, EVENT_CELL_INFO_CHANGED, phoneId);
+        mRegisteredPhones.put(phoneId, phone);
+        mGeneration++;
+        mReportedSnapshot = null;
+        mRefreshedSnapshot = null;
+    }
+
+    private void noteCall(@Nullable String callingPackage, boolean refresh, boolean hit) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            if (hit) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            CallerStats stats = mCallerStats.get(callingPackage);
+            if (stats == null) {
+                if (mCallerStats.size() >= MAX_CALLERS) {
+                    removeLeastRecentCallerLocked();
+                }
+                stats = new CallerStats(now);
+                mCallerStats.put(callingPackage, stats);
+            }
+            stats.mCalls++;
+            if (refresh) stats.mRefreshes++;
+            if (hit) stats.mHits++;
+            stats.mLastCallMillis = now;
+            stats.mLastCallSequence = ++mCallSequence;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeLeastRecentCallerLocked() {
+        int leastRecent = 0;
+        for (int i = 1; i < mCallerStats.size(); i++) {
+            if (mCallerStats.valueAt(i).mLastCallSequence
+                    < mCallerStats.valueAt(leastRecent).mLastCallSequence) {
+                leastRecent = i;
+            }
+        }
+        mCallerStats.removeAt(leastRecent);
+    }
+
+    /** Returns the number of calls of the caller that are counted. */
+    @VisibleForTesting
+    long getCallCount(@Nullable String callingPackage) {
+        synchronized (mLock) {
+            CallerStats stats = mCallerStats.get(callingPackage);
+            return stats == null ? 0 : stats.mCalls;
+        }
+    }
+
+    /** Dump the hit rate of the cache and the call rate of each caller. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            pw.println("CellInfoCache: hits=" + mHits + " misses=" + mMisses);
+            pw.increaseIndent();
+            for (int i = 0; i < mCallerStats.size(); i++) {
+                CallerStats stats = mCallerStats.valueAt(i);
+                long minutes = Math.max(1, (now - stats.mFirstCallMillis) / 60000);
+                pw.println(mCallerStats.keyAt(i) + ": calls=" + stats.mCalls
+                        + " refreshes=" + stats.mRefreshes + " hits=" + stats.mHits
+                        + " callsPerMinute=" + stats.mCalls / minutes
+                        + " lastCall=" + (now - stats.mLastCallMillis) + "ms ago");
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Indexes the line number overrides that {@link PhoneInterfaceManager} keeps in its shared
+ * preferences, so that {@link PhoneInterfaceManager#getMergedSubscriberIds} doesn't read and walk
+ * all of the preferences.
+ *
+ * <p>For each ICCID, the preferences hold the overriding line number under the number prefix and
+ * the subscriber ID it was set for under the subscriber prefix. The index maps the subscriber IDs
+ * and the numbers back to their ICCIDs. It is built from the preferences once and is then kept
+ * up to date by listening to their changes.
+ */
+final class MergedSubscriberIdIndex implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private final SharedPreferences mPreferences;
+    private final String mNumberPrefix;
+    private final String mSubscriberPrefix;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, String> mNumberByIccId = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, String> mSubscriberIdByIccId = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArraySet<String>> mIccIdsByNumber = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArraySet<String>> mIccIdsBySubscriberId = new ArrayMap<>();
+
+    /**
+     * @param preferences The preferences that hold the line number overrides.
+     * @param numberPrefix The prefix of the keys of the line numbers, followed by the ICCID.
+     * @param subscriberPrefix The prefix of the keys of the subscriber IDs, followed by the ICCID.
+     */
+    MergedSubscriberIdIndex(@NonNull SharedPreferences preferences, @NonNull String numberPrefix,
+            @NonNull String subscriberPrefix) {
+        mPreferences = preferences;
+        mNumberPrefix = numberPrefix;
+        mSubscriberPrefix = subscriberPrefix;
+        rebuild();
+        // The preferences only keep a weak reference to the listener.
+        mPreferences.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    private void rebuild() {
+        Map<String, ?> prefs = mPreferences.getAll();
+        synchronized (mLock) {
+            mNumberByIccId.clear();
+            mSubscriberIdByIccId.clear();
+            mIccIdsByNumber.clear();
+            mIccIdsBySubscriberId.clear();
+            for (Map.Entry<String, ?> entry : prefs.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    updateLocked(key, (String) value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, @Nullable String key) {
+        if (key == null) {
+            // The preferences were cleared.
+            rebuild();
+        } else if (key.startsWith(mNumberPrefix) || key.startsWith(mSubscriberPrefix)) {
+            String value;
+            try {
+                value = mPreferences.getString(key, null);
+            } catch (ClassCastException e) {
+                value = null;
+            }
+            synchronized (mLock) {
+                updateLocked(key, value);
+            }
+        }
+    }
+
+    /**
+     * Updates the index for the ICCID from the preferences right away, for a writer that reads
+     * the index before the change is notified.
+     */
+    void update(@NonNull String iccId) {
+        onSharedPreferenceChanged(mPreferences, mNumberPrefix + iccId);
+        onSharedPreferenceChanged(mPreferences, mSubscriberPrefix + iccId);
+    }
+
+    @GuardedBy("mLock")
+    private void updateLocked(@NonNull String key, @Nullable String value) {
+        if (key.startsWith(mNumberPrefix)) {
+            updateValue(key.substring(mNumberPrefix.length()), value, mNumberByIccId,
+                    mIccIdsByNumber);
+        } else if (key.startsWith(mSubscriberPrefix)) {
+            updateValue(key.substring(mSubscriberPrefix.length()), value, mSubscriberIdByIccId,
+                    mIccIdsBySubscriberId);
+        }
+    }
+
+    private static void updateValue(String iccId, @Nullable String value,
+            ArrayMap<String, String> valueByIccId,
+            ArrayMap<String, ArraySet<String>> iccIdsByValue) {
+        String oldValue = value == null ? valueByIccId.remove(iccId)
+                : valueByIccId.put(iccId, value);
+        if (oldValue != null) {
+            ArraySet<String> iccIds = iccIdsByValue.get(oldValue);
+            iccIds.remove(iccId);
+            if (iccIds.isEmpty()) {
+                iccIdsByValue.remove(oldValue);
+            }
+        }
+        if (value != null) {
+            ArraySet<String> iccIds = iccIdsByValue.get(value);
+            if (iccIds == null) {
+                iccIds = new ArraySet<>();
+                iccIdsByValue.put(value, iccIds);
+            }
+            iccIds.add(iccId);
+        }
+    }
+
+    /**
+     * Returns the subscriber IDs that share the line number override of the given active
+     * subscriber ID, sorted, or {@code null} if it has no line number override.
+     */
+    @Nullable String[] getMergedSubscriberIds(@Nullable String activeSubscriberId) {
+        synchronized (mLock) {
+            ArraySet<String> activeIccIds = mIccIdsBySubscriberId.get(activeSubscriberId);
+            if (activeIccIds == null) {
+                return null;
+            }
+            String mergeNumber = null;
+            for (int i = 0; i < activeIccIds.size() && TextUtils.isEmpty(mergeNumber); i++) {
+                mergeNumber = mNumberByIccId.get(activeIccIds.valueAt(i));
+            }
+            if (TextUtils.isEmpty(mergeNumber)) {
+                return null;
+            }
+
+            ArraySet<String> iccIds = mIccIdsByNumber.get(mergeNumber);
+            ArraySet<String> result = new ArraySet<>();
+            for (int i = 0; i < iccIds.size(); i++) {
+                String subscriberId = mSubscriberIdByIccId.get(iccIds.valueAt(i));
+                if (!TextUtils.isEmpty(subscriberId)) {
+                    result.add(subscriberId);
+                }
+            }
+            String[] resultArray = result.toArray(new String[result.size()]);
+            Arrays.sort(resultArray);
+            return resultArray;
+        }
+    }
+
+    /** Dump the size of the index. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("MergedSubscriberIdIndex: numbers=" + mIccIdsByNumber.size()
+                    + " subscriberIds=" + mIccIdsBySubscriberId.size()
+                    + " iccIds=" + mNumberByIccId.size());
+        }
+    }
+}
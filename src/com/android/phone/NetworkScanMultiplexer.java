@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.telephony.CellInfo;
+import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
+import android.telephony.RadioAccessSpecifier;
+import android.telephony.TelephonyScanManager;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares network scans of the modem between the callers of
+ * {@link PhoneInterfaceManager#requestNetworkScan}.
+ *
+ * <p>A modem runs one network scan at a time and a scan takes tens of seconds, so separate scans
+ * of several apps would wait for each other or fail. Instead, a request that a scan already
+ * running on the same phone covers joins that scan: the scan searches all the radio access
+ * networks, bands and channels of the request, with the same scan type, periodicity and
+ * incremental results, for at least as long. Otherwise a new scan is started through
+ * {@link ScanTracker}. The results of a scan are sent to each caller under the scan id that it
+ * got, with their location info removed unless the caller has fine location access. A caller
+ * that joins late first gets the results sent so far. The scan of the modem is stopped once the
+ * last of its callers stops or goes away.
+ *
+ * <p>All callbacks are sent from the looper, in order, and outside of the lock, so checking the
+ * location access of a caller or sending to it doesn't block the other callers.
+ */
+final class NetworkScanMultiplexer {
+    private static final String TAG = "NetworkScanMultiplexer";
+
+    // The scan ids handed out to callers, kept apart from the ids of the scans that aren't
+    // shared, which count up from 1.
+    private static final int FIRST_SCAN_ID = 0x40000000;
+    // How many result callbacks of a scan are kept for callers that join late.
+    @VisibleForTesting
+    static final int MAX_REPLAYED_RESULTS = 16;
+
+    /** Starts and stops the scans of the modem, see NetworkScanRequestTracker. */
+    interface ScanTracker {
+        /**
+         * Starts a scan that sends its callbacks to the messenger, with full location info.
+         *
+         * @return The id of the scan.
+         */
+        int startNetworkScan(@NonNull NetworkScanRequest request, @NonNull Messenger messenger,
+                @NonNull Phone phone);
+
+        void stopNetworkScan(int scanId);
+    }
+
+    /** Checks whether a caller may get the location info of the scan results. */
+    interface LocationAccessChecker {
+        boolean hasFineLocationAccess(int uid, int pid, @NonNull String callingPackage);
+    }
+
+    private final class Subscriber implements IBinder.DeathRecipient {
+        final int mScanId;
+        final Messenger mMessenger;
+        final IBinder mBinder;
+        final int mUid;
+        final int mPid;
+        final String mCallingPackage;
+        final boolean mRenounceFineLocationAccess;
+        SharedScan mScan;
+        // Whether the results sent so far are yet to be replayed to this caller, which only then
+        // gets new results.
+        @GuardedBy("mLock")
+        boolean mReplayPending = true;
+
+        Subscriber(int scanId, Messenger messenger, IBinder binder, int uid, int pid,
+                String callingPackage, boolean renounceFineLocationAccess) {
+            mScanId = scanId;
+            mMessenger = messenger;
+            mBinder = binder;
+            mUid = uid;
+            mPid = pid;
+            mCallingPackage = callingPackage;
+            mRenounceFineLocationAccess = renounceFineLocationAccess;
+        }
+
+        @Override
+        public void binderDied() {
+            Log.d(TAG, "Caller of scan " + mScanId + " died");
+            synchronized (mLock) {
+                removeSubscriberLocked(this);
+            }
+        }
+    }
+
+    /** A scan of the modem and the callers it sends its results to. */
+    private static final class SharedScan {
+        final int mPhoneId;
+        final NetworkScanRequest mRequest;
+        int mModemScanId = TelephonyScanManager.INVALID_SCAN_ID;
+        final List<Subscriber> mSubscribers = new ArrayList<>();
+        // The results sent so far, with full location info, oldest first.
+        final List<CellInfo[]> mResults = new ArrayList<>();
+
+        SharedScan(int phoneId, NetworkScanRequest request) {
+            mPhoneId = phoneId;
+            mRequest = request;
+        }
+    }
+
+    private final ScanTracker mScanTracker;
+    private final LocationAccessChecker mLocationAccessChecker;
+    private final Handler mHandler;
+    private final Messenger mMessenger;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private int mNextScanId = FIRST_SCAN_ID;
+    /** The callers, keyed by the scan id that they got. */
+    @GuardedBy("mLock")
+    private final SparseArray<Subscriber> mSubscribers = new SparseArray<>();
+    /** The running scans of the modem, keyed by their id. */
+    @GuardedBy("mLock")
+    private final SparseArray<SharedScan> mScans = new SparseArray<>();
+    @GuardedBy("mLock")
+    private long mStartedScanCount;
+    @GuardedBy("mLock")
+    private long mJoinedScanCount;
+
+    NetworkScanMultiplexer(@NonNull Looper looper, @NonNull ScanTracker scanTracker,
+            @NonNull LocationAccessChecker locationAccessChecker) {
+        mScanTracker = scanTracker;
+        mLocationAccessChecker = locationAccessChecker;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                onScanCallback(msg);
+            }
+        };
+        mMessenger = new Messenger(mHandler);
+    }
+
+    /**
+     * Joins a running scan that covers the request, or starts a new one.
+     *
+     * @param renounceFineLocationAccess Whether the caller doesn't want location info.
+     * @param request The scan that the caller requests.
+     * @param messenger Gets the callbacks of the scan.
+     * @param binder Stops the scan for the caller when it dies.
+     * @param phone The phone to scan with.
+     * @return The id of the scan for the caller, or {@link TelephonyScanManager#INVALID_SCAN_ID}
+     *         if the caller already died.
+     */
+    int requestNetworkScan(boolean renounceFineLocationAccess,
+            @NonNull NetworkScanRequest request, @NonNull Messenger messenger,
+            @NonNull IBinder binder, @NonNull Phone phone, int callingUid, int callingPid,
+            @NonNull String callingPackage) {
+        synchronized (mLock) {
+            Subscriber subscriber = new Subscriber(mNextScanId++, messenger, binder,
+                    callingUid, callingPid, callingPackage, renounceFineLocationAccess);
+            try {
+                binder.linkToDeath(subscriber, 0);
+            } catch (RemoteException e) {
+                return TelephonyScanManager.INVALID_SCAN_ID;
+            }
+
+            SharedScan scan = findCoveringScanLocked(phone.getPhoneId(), request);
+            if (scan == null) {
+                scan = new SharedScan(phone.getPhoneId(), request);
+                // The tracker answers on the handler, which waits for the lock, so the scan is
+                // known by the time its callbacks are handled.
+                scan.mModemScanId = mScanTracker.startNetworkScan(request, mMessenger, phone);
+                mScans.put(scan.mModemScanId, scan);
+                mStartedScanCount++;
+            } else {
+                mJoinedScanCount++;
+            }
+            subscriber.mScan = scan;
+            scan.mSubscribers.add(subscriber);
+            mSubscribers.put(subscriber.mScanId, subscriber);
+            // Results that are handled before the replay are part of it, so they are sent once
+            // and in order.
+            mHandler.post(() -> replayResults(subscriber));
+            return subscriber.mScanId;
+        }
+    }
+
+    /**
+     * Stops the scan for the caller that got the scan id, and stops the scan of the modem if no
+     * other caller is left.
+     *
+     * @return Whether the scan id was handed out by this multiplexer.
+     */
+    boolean stopNetworkScan(int scanId, int callingUid) {
+        synchronized (mLock) {
+            Subscriber subscriber = mSubscribers.get(scanId);
+            if (subscriber == null) {
+                return false;
+            }
+            if (subscriber.mUid != callingUid) {
+                Log.e(TAG, "stopNetworkScan: scan " + scanId + " does not belong to uid "
+                        + callingUid);
+                return true;
+            }
+            removeSubscriberLocked(subscriber);
+            // Sent from the looper, after the results that are already being sent to the caller.
+            mHandler.post(() -> send(subscriber, TelephonyScanManager.CALLBACK_SCAN_COMPLETE,
+                    NetworkScan.SUCCESS, null));
+            return true;
+        }
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private SharedScan findCoveringScanLocked(int phoneId, @NonNull NetworkScanRequest request) {
+        for (int i = 0; i < mScans.size(); i++) {
+            SharedScan scan = mScans.valueAt(i);
+            if (scan.mPhoneId == phoneId && covers(scan.mRequest, request)) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    /** Returns whether the scan of the first request also performs the second one. */
+    @VisibleForTesting
+    static boolean covers(@NonNull NetworkScanRequest scan, @NonNull NetworkScanRequest request) {
+        if (scan.getScanType() != request.getScanType()
+                || scan.getSearchPeriodicity() != request.getSearchPeriodicity()
+                || scan.getIncrementalResults() != request.getIncrementalResults()
+                || scan.getIncrementalResultsPeriodicity()
+                        != request.getIncrementalResultsPeriodicity()
+                || scan.getMaxSearchTime() < request.getMaxSearchTime()
+                || !new ArraySet<>(scan.getPlmns()).equals(new ArraySet<>(request.getPlmns()))) {
+            return false;
+        }
+        RadioAccessSpecifier[] scanSpecifiers = scan.getSpecifiers();
+        RadioAccessSpecifier[] requestSpecifiers = request.getSpecifiers();
+        // Without specifiers the modem scans all radio access networks.
+        if (ArrayUtils.isEmpty(scanSpecifiers)) {
+            return true;
+        }
+        if (ArrayUtils.isEmpty(requestSpecifiers)) {
+            return false;
+        }
+        for (RadioAccessSpecifier specifier : requestSpecifiers) {
+            if (!covers(scanSpecifiers, specifier)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean covers(@NonNull RadioAccessSpecifier[] scanSpecifiers,
+            @NonNull RadioAccessSpecifier specifier) {
+        for (RadioAccessSpecifier scanSpecifier : scanSpecifiers) {
+            if (scanSpecifier.getRadioAccessNetwork() == specifier.getRadioAccessNetwork()
+                    && containsAll(scanSpecifier.getBands(), specifier.getBands())
+                    && containsAll(scanSpecifier.getChannels(), specifier.getChannels())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Without bands or channels the modem scans all of them.
+    private static boolean containsAll(@Nullable int[] scanValues, @Nullable int[] values) {
+        if (ArrayUtils.isEmpty(scanValues)) {
+            return true;
+        }
+        if (ArrayUtils.isEmpty(values)) {
+            return false;
+        }
+        for (int value : values) {
+            if (!ArrayUtils.contains(scanValues, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onScanCallback(@NonNull Message msg) {
+        final List<Subscriber> subscribers = new ArrayList<>();
+        CellInfo[] results = null;
+        synchronized (mLock) {
+            SharedScan scan = mScans.get(msg.arg2);
+            if (scan == null) {
+                // The scan was stopped after its last caller left.
+                return;
+            }
+            switch (msg.what) {
+                case TelephonyScanManager.CALLBACK_SCAN_RESULTS:
+                case TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS:
+                    results = getResults(msg);
+                    if (scan.mResults.size() >= MAX_REPLAYED_RESULTS) {
+                        scan.mResults.remove(0);
+                    }
+                    scan.mResults.add(results);
+                    for (Subscriber subscriber : scan.mSubscribers) {
+                        if (!subscriber.mReplayPending) {
+                            subscribers.add(subscriber);
+                        }
+                    }
+                    break;
+                case TelephonyScanManager.CALLBACK_SCAN_ERROR:
+                case TelephonyScanManager.CALLBACK_SCAN_COMPLETE:
+                    mScans.remove(scan.mModemScanId);
+                    for (Subscriber subscriber : scan.mSubscribers) {
+                        subscriber.mBinder.unlinkToDeath(subscriber, 0);
+                        mSubscribers.remove(subscriber.mScanId);
+                    }
+                    subscribers.addAll(scan.mSubscribers);
+                    scan.mSubscribers.clear();
+                    break;
+                default:
+                    Log.e(TAG, "Unknown scan callback " + msg.what);
+            }
+        }
+        for (Subscriber subscriber : subscribers) {
+            if (results != null) {
+                sendResults(subscriber, results);
+            } else {
+                send(subscriber, msg.what, msg.arg1, null);
+            }
+        }
+    }
+
+    /** Sends the results so far to a caller that just joined, on the looper. */
+    private void replayResults(@NonNull Subscriber subscriber) {
+        final List<CellInfo[]> replayed;
+        synchronized (mLock) {
+            if (mSubscribers.get(subscriber.mScanId) != subscriber) {
+                return;
+            }
+            subscriber.mReplayPending = false;
+            replayed = new ArrayList<>(subscriber.mScan.mResults);
+        }
+        for (CellInfo[] results : replayed) {
+            if (!sendResults(subscriber, results)) {
+                return;
+            }
+        }
+    }
+
+    private static CellInfo[] getResults(@NonNull Message msg) {
+        Parcelable[] parcelables = msg.getData().getParcelableArray(
+                TelephonyScanManager.SCAN_RESULT_KEY);
+        CellInfo[] results = new CellInfo[parcelables == null ? 0 : parcelables.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = (CellInfo) parcelables[i];
+        }
+        return results;
+    }
+
+    /**
+     * Sends results to a caller, without their location info unless it has fine location access.
+     * Must not be called with the lock held, as checking the location access calls into other
+     * services.
+     *
+     * @return Whether the results were sent, otherwise the caller is removed.
+     */
+    private boolean sendResults(@NonNull Subscriber subscriber, @NonNull CellInfo[] results) {
+        final boolean sent;
+        if (!subscriber.mRenounceFineLocationAccess && mLocationAccessChecker.hasFineLocationAccess(
+                subscriber.mUid, subscriber.mPid, subscriber.mCallingPackage)) {
+            sent = send(subscriber, TelephonyScanManager.CALLBACK_SCAN_RESULTS,
+                    NetworkScan.SUCCESS, results);
+        } else {
+            CellInfo[] sanitized = new CellInfo[results.length];
+            for (int i = 0; i < results.length; i++) {
+                sanitized[i] = results[i].sanitizeLocationInfo();
+            }
+            sent = send(subscriber, TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS,
+                    NetworkScan.SUCCESS, sanitized);
+        }
+        if (!sent) {
+            synchronized (mLock) {
+                removeSubscriberLocked(subscriber);
+            }
+        }
+        return sent;
+    }
+
+    /** Sends a callback to the caller like NetworkScanRequestTracker, returns if it was sent. */
+    private static boolean send(@NonNull Subscriber subscriber, int what, int error,
+            @Nullable CellInfo[] results) {
+        Message message = Message.obtain();
+        message.what = what;
+        message.arg1 = error;
+        message.arg2 = subscriber.mScanId;
+        if (results != null) {
+            Bundle b = new Bundle();
+            b.putParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY, results);
+            message.setData(b);
+        }
+        try {
+            subscriber.mMessenger.send(message);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to send callback " + what + " of scan " + subscriber.mScanId, e);
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeSubscriberLocked(@NonNull Subscriber subscriber) {
+        if (mSubscribers.get(subscriber.mScanId) != subscriber) {
+            return;
+        }
+        mSubscribers.remove(subscriber.mScanId);
+        subscriber.mBinder.unlinkToDeath(subscriber, 0);
+        SharedScan scan = subscriber.mScan;
+        scan.mSubscribers.remove(subscriber);
+        if (scan.mSubscribers.isEmpty()) {
+            mScans.remove(scan.mModemScanId);
+            mScanTracker.stopNetworkScan(scan.mModemScanId);
+        }
+    }
+
+    /** Returns the number of scans of the modem that are running. */
+    @VisibleForTesting
+    int getScanCount() {
+        synchronized (mLock) {
+            return mScans.size();
+        }
+    }
+
+    /** Dump the running scans and how often a request joined one. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("NetworkScanMultiplexer: started=" + mStartedScanCount + " joined="
+                    + mJoinedScanCount);
+            pw.increaseIndent();
+            for (int i = 0; i < mScans.size(); i++) {
+                SharedScan scan = mScans.valueAt(i);
+                pw.println("scan " + scan.mModemScanId + " phone" + scan.mPhoneId
+                        + ": callers=" + scan.mSubscribers.size()
+                        + " results=" + scan.mResults.size());
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
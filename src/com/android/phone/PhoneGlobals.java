@@ -626,6 +626,21 @@ public class PhoneGlobals extends ContextWrapper {
                 getAttributionTag());
     }
 
+    /**
+     * Returns only the given keys of the carrier config for the subscription. Prefer this over
+     * {@link #getCarrierConfigForSubId} when only a few keys are needed.
+     */
+    public PersistableBundle getCarrierConfigSubsetForSubId(int subId, String... keys) {
+        return configLoader.getConfigSubsetForSubId(subId, keys);
+    }
+
+    /**
+     * Returns the boolean value of a single carrier config key for the subscription.
+     */
+    public boolean getCarrierConfigBooleanForSubId(int subId, String key) {
+        return getCarrierConfigSubsetForSubId(subId, key).getBoolean(key);
+    }
+
     private void registerSettingsObserver() {
         mSettingsObserver.unobserve();
         String dataRoamingSetting = Settings.Global.DATA_ROAMING;
@@ -1064,6 +1079,14 @@ public class PhoneGlobals extends ContextWrapper {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        pw.println("PhoneInterfaceManager:");
+        pw.increaseIndent();
+        try {
+            if (phoneMgr != null) phoneMgr.dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.decreaseIndent();
         pw.decreaseIndent();
         pw.println("------- End PhoneGlobals -------");
     }
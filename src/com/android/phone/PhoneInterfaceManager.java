@@ -49,6 +49,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.LocaleList;
 import android.os.Looper;
@@ -141,10 +142,12 @@ import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import com.android.ims.ImsManager;
 import com.android.ims.internal.IImsServiceFeatureCallback;
 import com.android.ims.rcs.uce.eab.EabUtil;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallForwardInfo;
 import com.android.internal.telephony.CallManager;
@@ -207,6 +210,7 @@ import com.android.internal.telephony.util.LocaleUtils;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.FunctionalUtils;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.callcomposer.CallComposerPictureTransfer;
 import com.android.phone.callcomposer.ImageData;
@@ -377,10 +381,36 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private AppOpsManager mAppOps;
     private PackageManager mPm;
     private MainThreadHandler mMainThreadHandler;
+    // The handlers that run the per-phone commands when per-phone dispatch is enabled, keyed by
+    // phone ID. Each one has its own thread, so the requests of a phone still run in order.
+    @GuardedBy("mPhoneRequestHandlers")
+    private final SparseArray<MainThreadHandler> mPhoneRequestHandlers = new SparseArray<>();
+    private final RequestDispatchStats mRequestDispatchStats = new RequestDispatchStats();
+    private final RequestCoalescer mRequestCoalescer =
+            new RequestCoalescer(BLOCKING_REQUEST_REPORT_TIMEOUT_MILLIS);
+    private final CarrierPrivilegeCache mCarrierPrivilegeCache =
+            new CarrierPrivilegeCache(new CarrierPrivilegeCache.StatusSource() {
+                @Override
+                public int getCarrierPrivilegeStatusForUid(int phoneId, int uid) {
+                    CarrierPrivilegesTracker cpt = getCarrierPrivilegesTracker(phoneId);
+                    return cpt == null ? TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED
+                            : cpt.getCarrierPrivilegeStatusForUid(uid);
+                }
+
+                @Override
+                public int getCarrierPrivilegeStatusForPackage(int phoneId, String packageName) {
+                    CarrierPrivilegesTracker cpt = getCarrierPrivilegesTracker(phoneId);
+                    return cpt == null ? TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED
+                            : cpt.getCarrierPrivilegeStatusForPackage(packageName);
+                }
+            });
     private SubscriptionController mSubscriptionController;
     private SharedPreferences mTelephonySharedPreferences;
+    private MergedSubscriberIdIndex mMergedSubscriberIdIndex;
     private PhoneConfigurationManager mPhoneConfigurationManager;
     private final RadioInterfaceCapabilityController mRadioInterfaceCapabilities;
+    private final ServiceStateCache mServiceStateCache;
+    private final CellInfoCache mCellInfoCache;
 
     /** User Activity */
     private AtomicBoolean mNotifyUserActivity;
@@ -400,6 +430,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final String ISDR_AID = "A0000005591010FFFFFFFF8900000100";
 
     private NetworkScanRequestTracker mNetworkScanRequestTracker;
+    private NetworkScanMultiplexer mNetworkScanMultiplexer;
 
     private static final int TYPE_ALLOCATION_CODE_LENGTH = 8;
     private static final int MANUFACTURER_CODE_LENGTH = 8;
@@ -415,6 +446,84 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private static final int SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS = 2000; // 2 seconds
 
+    // How long a blocking request is waited for before it is reported as slow.
+    private static final long BLOCKING_REQUEST_REPORT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Experiment flag to run the requests of {@link #PER_PHONE_COMMANDS} on a handler thread of
+     * the phone that they are sent for instead of the main thread, default value is false
+     */
+    public static final String PER_PHONE_REQUEST_DISPATCH_ENABLED =
+            "per_phone_request_dispatch_enabled";
+
+    /**
+     * The commands that, when per-phone dispatch is enabled, run on a handler thread of the phone
+     * that they are sent for so that a slow response doesn't hold up the requests of other phones
+     * or the main thread. All other commands keep running on the main thread.
+     *
+     * <p>Phone, UiccPort and their records expect to be called on the main thread only, so this
+     * is limited to the commands whose handlers do nothing but pass the request on to the
+     * CommandsInterface of the phone, which RIL serializes itself, and complete with its
+     * response. For instance, opening or closing a logical channel updates the channels tracked by
+     * UiccPort, reading the forbidden PLMNs goes through SIMRecords, requesting the cell info
+     * updates the pending requests of the Phone, and call forwarding and waiting may be handled
+     * by the ImsPhone, so they stay on the main thread.
+     */
+    private static final Set<Integer> PER_PHONE_COMMANDS = Set.of(
+            // UiccPort passes these on to CommandsInterface.
+            CMD_TRANSMIT_APDU_LOGICAL_CHANNEL,
+            CMD_TRANSMIT_APDU_BASIC_CHANNEL,
+            CMD_EXCHANGE_SIM_IO,
+            CMD_SEND_ENVELOPE,
+            // Phone passes these on to CommandsInterface.
+            CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK,
+            CMD_GET_NETWORK_SELECTION_MODE,
+            CMD_GET_CDMA_ROAMING_MODE,
+            CMD_IS_NR_DUAL_CONNECTIVITY_ENABLED,
+            CMD_IS_VONR_ENABLED);
+
+    /**
+     * Experiment flag for how long the results of {@link #COALESCED_COMMANDS} are cached, in
+     * milliseconds, default value is 0 which doesn't cache them
+     */
+    public static final String COALESCED_REQUEST_CACHE_TTL_MILLIS =
+            "coalesced_request_cache_ttl_millis";
+
+    /**
+     * Experiment flag for how long the cell info freshly requested from the modems for callers of
+     * {@link #getAllCellInfo} targeting below Q is reused for other such callers, in
+     * milliseconds, default value is 0 which requests it for every caller
+     */
+    public static final String CELL_INFO_CACHE_TTL_MILLIS = "cell_info_cache_ttl_millis";
+
+    /**
+     * Experiment flag to let callers of {@link #requestNetworkScan} share a network scan of the
+     * modem that covers their request, see {@link NetworkScanMultiplexer}, default value is false
+     */
+    public static final String NETWORK_SCAN_MULTIPLEXING_ENABLED =
+            "network_scan_multiplexing_enabled";
+
+    /**
+     * The commands that only read a value of a subscription. Identical requests that are in
+     * flight at the same time share a single request to the modem, see {@link RequestCoalescer}.
+     */
+    private static final Set<Integer> COALESCED_COMMANDS = Set.of(
+            CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK,
+            CMD_GET_NETWORK_SELECTION_MODE,
+            CMD_GET_FORBIDDEN_PLMNS,
+            CMD_IS_NR_DUAL_CONNECTIVITY_ENABLED);
+
+    /**
+     * The commands that change the value read by one of {@link #COALESCED_COMMANDS}, mapped to
+     * that command.
+     */
+    private static final Map<Integer, Integer> COALESCED_COMMAND_BY_SET_COMMAND = Map.of(
+            CMD_SET_ALLOWED_NETWORK_TYPES_FOR_REASON, CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK,
+            CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC, CMD_GET_NETWORK_SELECTION_MODE,
+            CMD_SET_NETWORK_SELECTION_MODE_MANUAL, CMD_GET_NETWORK_SELECTION_MODE,
+            CMD_SET_FORBIDDEN_PLMNS, CMD_GET_FORBIDDEN_PLMNS,
+            CMD_ENABLE_NR_DUAL_CONNECTIVITY, CMD_IS_NR_DUAL_CONNECTIVITY_ENABLED);
+
     /**
      * With support for MEP(multiple enabled profile) in Android T, a SIM card can have more than
      * one ICCID active at the same time.
@@ -467,14 +576,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters either wait on the
+     * {@link #future} of the request after sending it or register a callback with it. The main
+     * thread completes the future with the result when the request is complete.
      */
     private static final class MainThreadRequest {
         /** The argument to use for the request */
         public Object argument;
         /** The result of the request that is run on the main thread */
         public Object result;
+        /** Completed with the result by {@link MainThreadHandler#notifyRequester}. */
+        final RequestFuture future = new RequestFuture();
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -484,6 +596,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         public WorkSource workSource;
 
+        // The handler that the request was sent to, see RequestDispatchStats.
+        int dispatchTarget = RequestDispatchStats.TARGET_MAIN;
+        // When the request was sent and when its handler started handling it, as elapsed
+        // realtime. Only set for the requests sent by sendRequest and sendRequestAsync.
+        long enqueueTimeMillis;
+        volatile long dispatchTimeMillis;
+        // The uid of the app that made the request.
+        int callingUid;
+        // Whether the request was sent by sendRequestAsync, so that no thread waits for it.
+        boolean isAsync;
+
         public MainThreadRequest(Object argument) {
             this.argument = argument;
         }
@@ -531,6 +654,36 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * unblock.
      */
     private final class MainThreadHandler extends Handler {
+        private final int mDispatchTarget;
+
+        MainThreadHandler() {
+            mDispatchTarget = RequestDispatchStats.TARGET_MAIN;
+        }
+
+        MainThreadHandler(Looper looper, int dispatchTarget) {
+            super(looper);
+            mDispatchTarget = dispatchTarget;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            MainThreadRequest request = msg.obj instanceof MainThreadRequest
+                    ? (MainThreadRequest) msg.obj : null;
+            boolean isNewRequest = request != null && request.enqueueTimeMillis != 0
+                    && request.dispatchTimeMillis == 0;
+            if (isNewRequest) {
+                request.dispatchTimeMillis = SystemClock.elapsedRealtime();
+                mRequestDispatchStats.onRequestDispatched(mDispatchTarget);
+            }
+            super.dispatchMessage(msg);
+            if (isNewRequest && request.isAsync) {
+                // Nothing waits for an asynchronous request, so it completes once it is handled.
+                mRequestDispatchStats.onRequestCompleted(msg.what, request.callingUid,
+                        request.dispatchTimeMillis - request.enqueueTimeMillis,
+                        SystemClock.elapsedRealtime() - request.dispatchTimeMillis, false);
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             MainThreadRequest request;
@@ -1671,9 +1824,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 case CMD_REQUEST_CELL_INFO_UPDATE:
                     request = (MainThreadRequest) msg.obj;
@@ -1720,9 +1871,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
                 case CMD_MODEM_REBOOT:
@@ -2152,9 +2301,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         private void notifyRequester(MainThreadRequest request) {
-            synchronized (request) {
-                request.notifyAll();
-            }
+            request.future.complete(request.result);
         }
 
         private void handleNullReturnEvent(Message msg, String command) {
@@ -2254,40 +2401,167 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             request = new MainThreadRequest(argument, subId, workSource);
         }
 
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        return sendRequestAndWait(getRequestHandler(command, request), command, request,
+                timeoutInMs);
+    }
 
+    /**
+     * Sends the request to the given handler and waits for it like
+     * {@link #sendRequest(int, Object, Integer, Phone, WorkSource, long)}.
+     */
+    private @Nullable Object sendRequestAndWait(MainThreadHandler handler, int command,
+            MainThreadRequest request, long timeoutInMs) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            throw new RuntimeException(
+                    "This method will deadlock if called from the request handler thread.");
+        }
+        return awaitRequest(command, request, sendOrJoinRequest(handler, command, request),
+                timeoutInMs);
+    }
 
-        synchronized (request) {
-            if (timeoutInMs >= 0) {
-                // Wait for at least timeoutInMs before returning null request result
-                long now = SystemClock.elapsedRealtime();
-                long deadline = now + timeoutInMs;
-                while (request.result == null && now < deadline) {
-                    try {
-                        request.wait(deadline - now);
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and check if request is completed or timeout
-                    } finally {
-                        now = SystemClock.elapsedRealtime();
-                    }
-                }
-            } else {
-                // Wait for the request to complete
-                while (request.result == null) {
-                    try {
-                        request.wait();
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and wait until the request is complete
-                    }
-                }
+    /**
+     * Sends the command to each of the phones at once and waits for all of them to complete
+     * like {@link #sendRequest(int, Object, Phone, WorkSource)}, so that the requests of the
+     * phones run in parallel.
+     *
+     * @return The results, in the order of the phones.
+     */
+    private @NonNull Object[] sendRequestToPhonesAndWait(int command, Object argument,
+            @NonNull Phone[] phones, WorkSource workSource) {
+        MainThreadRequest[] requests = new MainThreadRequest[phones.length];
+        RequestFuture[] futures = new RequestFuture[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            requests[i] = new MainThreadRequest(argument, phones[i], workSource);
+            MainThreadHandler handler = getRequestHandler(command, requests[i]);
+            if (Looper.myLooper() == handler.getLooper()) {
+                throw new RuntimeException(
+                        "This method will deadlock if called from the request handler thread.");
+            }
+            futures[i] = sendOrJoinRequest(handler, command, requests[i]);
+        }
+        Object[] results = new Object[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            results[i] = awaitRequest(command, requests[i], futures[i], -1 /*timeoutInMs*/);
+        }
+        return results;
+    }
+
+    /** Waits for a request sent by {@link #sendOrJoinRequest} like {@link #sendRequestAndWait}. */
+    private @Nullable Object awaitRequest(int command, MainThreadRequest request,
+            RequestFuture future, long timeoutInMs) {
+        Object result;
+        if (timeoutInMs >= 0) {
+            // Wait for at least timeoutInMs before returning null request result
+            result = future.await(timeoutInMs);
+            if (result == null) {
+                Log.wtf(LOG_TAG, "sendRequest: Blocking command timed out. Something has gone"
+                        + " terribly wrong.");
+            }
+        } else {
+            // Wait for the request to complete, holding the binder thread of the caller as long
+            // as that takes, and report it if that takes unusually long.
+            result = future.await(BLOCKING_REQUEST_REPORT_TIMEOUT_MILLIS);
+            if (result == null) {
+                Log.w(LOG_TAG, "sendRequest: still waiting for command " + command + " after "
+                        + BLOCKING_REQUEST_REPORT_TIMEOUT_MILLIS + "ms");
+                result = future.await(-1);
             }
         }
-        if (request.result == null) {
-            Log.wtf(LOG_TAG,
-                    "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
+        onRequestCompleted(command, request, result == null);
+        return result;
+    }
+
+    /**
+     * Sends the request to the handler and returns the future of its result. A request of
+     * {@link #COALESCED_COMMANDS} may instead join an identical request that is in flight or get
+     * a cached result, in which case it is not sent. Sending a command that changes the value
+     * read by one of them drops the requests that read the old value.
+     */
+    private RequestFuture sendOrJoinRequest(MainThreadHandler handler, int command,
+            MainThreadRequest request) {
+        Integer coalescedCommand = COALESCED_COMMAND_BY_SET_COMMAND.get(command);
+        if (coalescedCommand != null) {
+            // Invalidate when the value starts changing and again once it changed, so that
+            // nothing read in between is cached.
+            int subId = request.subId;
+            mRequestCoalescer.invalidate(coalescedCommand, subId);
+            request.future.onComplete(
+                    result -> mRequestCoalescer.invalidate(coalescedCommand, subId));
+        } else if (COALESCED_COMMANDS.contains(command) && request.phone == null) {
+            long cacheTtlMillis = DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+                    COALESCED_REQUEST_CACHE_TTL_MILLIS, 0);
+            return mRequestCoalescer.getOrSend(command, request.subId, request.argument,
+                    cacheTtlMillis, () -> {
+                        enqueueRequest(handler, command, request);
+                        return request.future;
+                    });
+        }
+        enqueueRequest(handler, command, request);
+        return request.future;
+    }
+
+    /** Records the latency of a request that a sender waited for or registered a callback for. */
+    private void onRequestCompleted(int command, MainThreadRequest request, boolean timedOut) {
+        if (request.enqueueTimeMillis == 0) {
+            // The request joined another one or got a cached result, see RequestCoalescer.
+            return;
+        }
+        long completionTimeMillis = SystemClock.elapsedRealtime();
+        long dispatchTimeMillis = request.dispatchTimeMillis;
+        if (dispatchTimeMillis == 0) {
+            // The request timed out before it was handled.
+            dispatchTimeMillis = completionTimeMillis;
+        }
+        mRequestDispatchStats.onRequestCompleted(command, request.callingUid,
+                dispatchTimeMillis - request.enqueueTimeMillis,
+                completionTimeMillis - dispatchTimeMillis, timedOut);
+    }
+
+    /**
+     * Returns the handler that should run the request: the handler of the phone that the request
+     * is sent for if it is a per-phone command and per-phone dispatch is enabled, or the main
+     * thread handler otherwise.
+     */
+    private MainThreadHandler getRequestHandler(int command, MainThreadRequest request) {
+        if (!PER_PHONE_COMMANDS.contains(command)
+                || !DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                        PER_PHONE_REQUEST_DISPATCH_ENABLED, false)) {
+            return mMainThreadHandler;
         }
-        return request.result;
+        return getPhoneRequestHandler(getPhoneFromRequest(request));
+    }
+
+    /**
+     * Returns the request handler of the phone, which runs on a thread of its own, or the main
+     * thread handler if there is no phone.
+     */
+    private MainThreadHandler getPhoneRequestHandler(@Nullable Phone phone) {
+        if (phone == null) {
+            // Let the main thread handler report the missing phone like before.
+            return mMainThreadHandler;
+        }
+        int phoneId = phone.getPhoneId();
+        synchronized (mPhoneRequestHandlers) {
+            MainThreadHandler handler = mPhoneRequestHandlers.get(phoneId);
+            if (handler == null) {
+                HandlerThread thread = new HandlerThread(LOG_TAG + "-phone" + phoneId);
+                thread.start();
+                handler = new MainThreadHandler(thread.getLooper(), phoneId);
+                mPhoneRequestHandlers.put(phoneId, handler);
+            }
+            return handler;
+        }
+    }
+
+    /** Sends the request to the handler and records it in the dispatch stats. */
+    private void enqueueRequest(MainThreadHandler handler, int command,
+            MainThreadRequest request) {
+        request.dispatchTarget = handler.mDispatchTarget;
+        request.callingUid = Binder.getCallingUid();
+        request.enqueueTimeMillis = SystemClock.elapsedRealtime();
+        mRequestDispatchStats.onRequestQueued(request.dispatchTarget);
+        Message msg = handler.obtainMessage(command, request);
+        msg.sendToTarget();
     }
 
     /**
@@ -2315,8 +2589,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private void sendRequestAsync(
             int command, Object argument, Phone phone, WorkSource workSource) {
         MainThreadRequest request = new MainThreadRequest(argument, phone, workSource);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        request.isAsync = true;
+        enqueueRequest(getRequestHandler(command, request), command, request);
     }
 
     /**
@@ -2346,14 +2620,45 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mSubscriptionController = SubscriptionController.getInstance();
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(mApp);
+        mMergedSubscriberIdIndex = new MergedSubscriberIdIndex(mTelephonySharedPreferences,
+                PREF_CARRIERS_NUMBER_PREFIX, PREF_CARRIERS_SUBSCRIBER_PREFIX);
         mNetworkScanRequestTracker = new NetworkScanRequestTracker();
+        mNetworkScanMultiplexer = createNetworkScanMultiplexer();
         mPhoneConfigurationManager = PhoneConfigurationManager.getInstance();
         mRadioInterfaceCapabilities = RadioInterfaceCapabilityController.getInstance();
         mNotifyUserActivity = new AtomicBoolean(false);
+        mServiceStateCache = new ServiceStateCache(app, mMainThreadHandler.getLooper());
+        mCellInfoCache = new CellInfoCache(mMainThreadHandler.getLooper());
+        registerCarrierPrivilegesCallbacks();
         PropertyInvalidatedCache.invalidateCache(TelephonyManager.CACHE_KEY_PHONE_ACCOUNT_TO_SUBID);
         publish();
     }
 
+    /** Drops the uids and packages without carrier privileges of a phone when they change. */
+    private void registerCarrierPrivilegesCallbacks() {
+        TelephonyManager tm = mApp.getSystemService(TelephonyManager.class);
+        for (int phoneId = 0; phoneId < tm.getActiveModemCount(); phoneId++) {
+            final int id = phoneId;
+            // Delivered by a oneway binder call from TelephonyRegistry, after the tracker has
+            // changed. Dropping the snapshot is cheap, so it's done on the binder thread.
+            tm.registerCarrierPrivilegesCallback(phoneId, Runnable::run,
+                    new TelephonyManager.CarrierPrivilegesCallback() {
+                        @Override
+                        public void onCarrierPrivilegesChanged(
+                                @NonNull Set<String> privilegedPackageNames,
+                                @NonNull Set<Integer> privilegedUids) {
+                            mCarrierPrivilegeCache.onCarrierPrivilegesChanged(id);
+                        }
+                    });
+        }
+    }
+
+    @Nullable
+    private CarrierPrivilegesTracker getCarrierPrivilegesTracker(int phoneId) {
+        Phone phone = PhoneFactory.getPhone(phoneId);
+        return phone == null ? null : phone.getCarrierPrivilegesTracker();
+    }
+
     private Phone getDefaultPhone() {
         Phone thePhone = getPhone(getDefaultSubscription());
         return (thePhone != null) ? thePhone : PhoneFactory.getDefaultPhone();
@@ -3169,13 +3474,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return (neighbors.size()) > 0 ? neighbors : null;
     }
 
-    private List<CellInfo> getCachedCellInfo() {
-        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-        for (Phone phone : PhoneFactory.getPhones()) {
-            List<CellInfo> info = phone.getAllCellInfo();
-            if (info != null) cellInfos.addAll(info);
-        }
-        return cellInfos;
+    private List<CellInfo> getCachedCellInfo(String callingPackage) {
+        return mCellInfoCache.getReportedCellInfo(callingPackage, PhoneFactory.getPhones());
     }
 
     @Override
@@ -3203,20 +3503,23 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         final int targetSdk = TelephonyPermissions.getTargetSdk(mApp, callingPackage);
         if (targetSdk >= android.os.Build.VERSION_CODES.Q) {
-            return getCachedCellInfo();
+            return getCachedCellInfo(callingPackage);
         }
 
         if (DBG_LOC) log("getAllCellInfo: is active user");
         WorkSource workSource = getWorkSource(Binder.getCallingUid());
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-            for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = (List<CellInfo>) sendRequest(
-                        CMD_GET_ALL_CELL_INFO, null, phone, workSource);
-                if (info != null) cellInfos.addAll(info);
-            }
-            return cellInfos;
+            long cacheTtlMillis = DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+                    CELL_INFO_CACHE_TTL_MILLIS, 0);
+            return mCellInfoCache.getRefreshedCellInfo(callingPackage, cacheTtlMillis, () -> {
+                List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+                for (Object info : sendRequestToPhonesAndWait(CMD_GET_ALL_CELL_INFO, null,
+                        PhoneFactory.getPhones(), workSource)) {
+                    if (info != null) cellInfos.addAll((List<CellInfo>) info);
+                }
+                return cellInfos;
+            });
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -6331,6 +6634,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         int callingPid = Binder.getCallingPid();
         final long identity = Binder.clearCallingIdentity();
         try {
+            Phone phone = getPhone(subId);
+            if (phone != null && DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                    NETWORK_SCAN_MULTIPLEXING_ENABLED, false)) {
+                return mNetworkScanMultiplexer.requestNetworkScan(renounceFineLocationAccess,
+                        request, messenger, binder, phone, callingUid, callingPid,
+                        callingPackage);
+            }
             return mNetworkScanRequestTracker.startNetworkScan(
                     renounceFineLocationAccess, request, messenger, binder, getPhone(subId),
                     callingUid, callingPid, callingPackage);
@@ -6339,6 +6649,44 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /**
+     * Creates the multiplexer that runs the shared network scans through
+     * {@link #mNetworkScanRequestTracker} as the phone process, and checks the location access of
+     * each caller when it gets results. It runs on a thread of its own, so the location access
+     * checks of its callers don't hold up the main thread.
+     */
+    private NetworkScanMultiplexer createNetworkScanMultiplexer() {
+        final IBinder token = new Binder();
+        HandlerThread thread = new HandlerThread(LOG_TAG + "-networkScan");
+        thread.start();
+        return new NetworkScanMultiplexer(thread.getLooper(),
+                new NetworkScanMultiplexer.ScanTracker() {
+                    @Override
+                    public int startNetworkScan(NetworkScanRequest request, Messenger messenger,
+                            Phone phone) {
+                        return mNetworkScanRequestTracker.startNetworkScan(
+                                false /* renounceFineLocationAccess */, request, messenger, token,
+                                phone, Process.myUid(), Process.myPid(), mApp.getOpPackageName());
+                    }
+
+                    @Override
+                    public void stopNetworkScan(int scanId) {
+                        mNetworkScanRequestTracker.stopNetworkScan(scanId, Process.myUid());
+                    }
+                },
+                (uid, pid, callingPackage) -> LocationAccessPolicy.checkLocationPermission(mApp,
+                        new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                                .setCallingPackage(callingPackage)
+                                .setCallingPid(pid)
+                                .setCallingUid(uid)
+                                .setMethod("requestNetworkScan")
+                                .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
+                                .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
+                                .setMinSdkVersionForEnforcement(Build.VERSION_CODES.Q)
+                                .build())
+                        == LocationAccessPolicy.LocationPermissionResult.ALLOWED);
+    }
+
     private SecurityException checkNetworkRequestForSanitizedLocationAccess(
             NetworkScanRequest request, int subId, String callingPackage) {
         boolean hasCarrierPriv;
@@ -6384,7 +6732,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         int callingUid = Binder.getCallingUid();
         final long identity = Binder.clearCallingIdentity();
         try {
-            mNetworkScanRequestTracker.stopNetworkScan(scanId, callingUid);
+            if (!mNetworkScanMultiplexer.stopNetworkScan(scanId, callingUid)) {
+                mNetworkScanRequestTracker.stopNetworkScan(scanId, callingUid);
+            }
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -6760,7 +7110,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("getCarrierPrivilegeStatusForUid: No CarrierPrivilegesTracker");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
         }
-        return cpt.getCarrierPrivilegeStatusForUid(uid);
+        return mCarrierPrivilegeCache.getCarrierPrivilegeStatusForUid(phone.getPhoneId(), uid);
     }
 
     @Override
@@ -6779,7 +7129,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("checkCarrierPrivilegesForPackage: No CarrierPrivilegesTracker");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
         }
-        return cpt.getCarrierPrivilegeStatusForPackage(pkgName);
+        return mCarrierPrivilegeCache.getCarrierPrivilegeStatusForPackage(phone.getPhoneId(),
+                pkgName);
     }
 
     @Override
@@ -6802,7 +7153,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             if (cpt == null) {
                 continue;
             }
-            result = cpt.getCarrierPrivilegeStatusForPackage(pkgName);
+            result = mCarrierPrivilegeCache.getCarrierPrivilegeStatusForPackage(phoneId, pkgName);
             if (result == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
                 break;
             }
@@ -6970,6 +7321,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             }
 
             editor.commit();
+            // Don't wait for the change to be notified on the main thread.
+            mMergedSubscriberIdIndex.update(iccId);
             return true;
         } finally {
             Binder.restoreCallingIdentity(identity);
@@ -7045,60 +7398,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             final TelephonyManager tele = TelephonyManager.from(context);
             final SubscriptionManager sub = SubscriptionManager.from(context);
 
-            // Figure out what subscribers are currently active
-            final ArraySet<String> activeSubscriberIds = new ArraySet<>();
-
             // Only consider subs which match the current subId
             // This logic can be simplified. See b/131189269 for progress.
-            if (isActiveSubscription(subId)) {
-                activeSubscriberIds.add(tele.getSubscriberId(subId));
-            }
-
-            // First pass, find a number override for an active subscriber
-            String mergeNumber = null;
-            final Map<String, ?> prefs = mTelephonySharedPreferences.getAll();
-            for (String key : prefs.keySet()) {
-                if (key.startsWith(PREF_CARRIERS_SUBSCRIBER_PREFIX)) {
-                    final String subscriberId = (String) prefs.get(key);
-                    if (activeSubscriberIds.contains(subscriberId)) {
-                        final String iccId = key.substring(
-                                PREF_CARRIERS_SUBSCRIBER_PREFIX.length());
-                        final String numberKey = PREF_CARRIERS_NUMBER_PREFIX + iccId;
-                        mergeNumber = (String) prefs.get(numberKey);
-                        if (DBG_MERGE) {
-                            Rlog.d(LOG_TAG, "Found line number " + mergeNumber
-                                    + " for active subscriber " + subscriberId);
-                        }
-                        if (!TextUtils.isEmpty(mergeNumber)) {
-                            break;
-                        }
-                    }
-                }
-            }
-
-            // Shortcut when no active merged subscribers
-            if (TextUtils.isEmpty(mergeNumber)) {
+            if (!isActiveSubscription(subId)) {
                 return null;
             }
 
-            // Second pass, find all subscribers under that line override
-            final ArraySet<String> result = new ArraySet<>();
-            for (String key : prefs.keySet()) {
-                if (key.startsWith(PREF_CARRIERS_NUMBER_PREFIX)) {
-                    final String number = (String) prefs.get(key);
-                    if (mergeNumber.equals(number)) {
-                        final String iccId = key.substring(PREF_CARRIERS_NUMBER_PREFIX.length());
-                        final String subscriberKey = PREF_CARRIERS_SUBSCRIBER_PREFIX + iccId;
-                        final String subscriberId = (String) prefs.get(subscriberKey);
-                        if (!TextUtils.isEmpty(subscriberId)) {
-                            result.add(subscriberId);
-                        }
-                    }
-                }
+            // Find the subscribers under the number override of the active subscriber
+            final String[] resultArray = mMergedSubscriberIdIndex.getMergedSubscriberIds(
+                    tele.getSubscriberId(subId));
+            if (resultArray == null) {
+                return null;
             }
-
-            final String[] resultArray = result.toArray(new String[result.size()]);
-            Arrays.sort(resultArray);
             if (DBG_MERGE) {
                 Rlog.d(LOG_TAG,
                         "Found subscribers " + Arrays.toString(resultArray) + " after merge");
@@ -7922,40 +8233,48 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return null;
         }
 
+        final int callingUid = Binder.getCallingUid();
+        final int callingPid = Binder.getCallingPid();
         boolean hasFinePermission = false;
         boolean hasCoarsePermission = false;
         if (!renounceFineLocationAccess) {
             LocationAccessPolicy.LocationPermissionResult fineLocationResult =
-                    LocationAccessPolicy.checkLocationPermission(mApp,
-                            new LocationAccessPolicy.LocationPermissionQuery.Builder()
-                                    .setCallingPackage(callingPackage)
-                                    .setCallingFeatureId(callingFeatureId)
-                                    .setCallingPid(Binder.getCallingPid())
-                                    .setCallingUid(Binder.getCallingUid())
-                                    .setMethod("getServiceStateForSubscriber")
-                                    .setLogAsInfo(true)
-                                    .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
-                                    .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
-                                    .setMinSdkVersionForEnforcement(Build.VERSION_CODES.Q)
-                                    .build());
+                    mServiceStateCache.getLocationPermissionResult(callingUid, callingPid,
+                            callingPackage, callingFeatureId, true /* fine */,
+                            () -> LocationAccessPolicy.checkLocationPermission(
+                                    mApp, new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                                            .setCallingPackage(callingPackage)
+                                            .setCallingFeatureId(callingFeatureId)
+                                            .setCallingPid(callingPid)
+                                            .setCallingUid(callingUid)
+                                            .setMethod("getServiceStateForSubscriber")
+                                            .setLogAsInfo(true)
+                                            .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
+                                            .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
+                                            .setMinSdkVersionForEnforcement(
+                                                    Build.VERSION_CODES.Q)
+                                            .build()));
             hasFinePermission =
                     fineLocationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
         }
 
         if (!renounceCoarseLocationAccess) {
             LocationAccessPolicy.LocationPermissionResult coarseLocationResult =
-                    LocationAccessPolicy.checkLocationPermission(mApp,
-                            new LocationAccessPolicy.LocationPermissionQuery.Builder()
-                                    .setCallingPackage(callingPackage)
-                                    .setCallingFeatureId(callingFeatureId)
-                                    .setCallingPid(Binder.getCallingPid())
-                                    .setCallingUid(Binder.getCallingUid())
-                                    .setMethod("getServiceStateForSubscriber")
-                                    .setLogAsInfo(true)
-                                    .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
-                                    .setMinSdkVersionForFine(Integer.MAX_VALUE)
-                                    .setMinSdkVersionForEnforcement(Build.VERSION_CODES.Q)
-                                    .build());
+                    mServiceStateCache.getLocationPermissionResult(callingUid, callingPid,
+                            callingPackage, callingFeatureId, false /* fine */,
+                            () -> LocationAccessPolicy.checkLocationPermission(
+                                    mApp, new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                                            .setCallingPackage(callingPackage)
+                                            .setCallingFeatureId(callingFeatureId)
+                                            .setCallingPid(callingPid)
+                                            .setCallingUid(callingUid)
+                                            .setMethod("getServiceStateForSubscriber")
+                                            .setLogAsInfo(true)
+                                            .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
+                                            .setMinSdkVersionForFine(Integer.MAX_VALUE)
+                                            .setMinSdkVersionForEnforcement(
+                                                    Build.VERSION_CODES.Q)
+                                            .build()));
             hasCoarsePermission =
                     coarseLocationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
         }
@@ -7977,13 +8296,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return null;
             }
 
-            ServiceState ss = phone.getServiceState();
-
             // Scrub out the location info in ServiceState depending on what level of access
-            // the caller has.
-            if (hasFinePermission || isCallingPackageDataService) return ss;
-            if (hasCoarsePermission) return ss.createLocationInfoSanitizedCopy(false);
-            return ss.createLocationInfoSanitizedCopy(true);
+            // the caller has. The sanitized copies are cached until the service state changes.
+            final int locationAccess;
+            if (hasFinePermission || isCallingPackageDataService) {
+                locationAccess = ServiceStateCache.LOCATION_ACCESS_FINE;
+            } else if (hasCoarsePermission) {
+                locationAccess = ServiceStateCache.LOCATION_ACCESS_COARSE;
+            } else {
+                locationAccess = ServiceStateCache.LOCATION_ACCESS_NONE;
+            }
+            return mServiceStateCache.getServiceState(phone, locationAccess);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -8456,6 +8779,39 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         DumpsysHandler.dump(mApp, fd, writer, args);
     }
 
+    /**
+     * Dump the state of the caches used to serve binder calls.
+     *
+     * @param pw The writer to dump to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        mServiceStateCache.dump(pw);
+        mCellInfoCache.dump(pw);
+        mNetworkScanMultiplexer.dump(pw);
+        mRequestDispatchStats.dump(pw);
+        mRequestCoalescer.dump(pw);
+        mMergedSubscriberIdIndex.dump(pw);
+        mCarrierPrivilegeCache.dump(pw);
+    }
+
+    /**
+     * Dump the queue depths, latency histograms, slowest requests and coalescing counters of the
+     * commands run by sendRequest and sendRequestAsync, for the "request-stats" shell command.
+     */
+    void dumpRequestStats(IndentingPrintWriter pw) {
+        mRequestDispatchStats.dump(pw);
+        mRequestCoalescer.dump(pw);
+    }
+
+    /**
+     * Clears the recorded latencies and coalescing counters of the commands, for the
+     * "request-stats" shell command.
+     */
+    void resetRequestStats() {
+        mRequestDispatchStats.reset();
+        mRequestCoalescer.reset();
+    }
+
     @Override
     public int handleShellCommand(@NonNull ParcelFileDescriptor in,
             @NonNull ParcelFileDescriptor out, @NonNull ParcelFileDescriptor err,
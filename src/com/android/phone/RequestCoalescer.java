@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Shares the requests of {@link PhoneInterfaceManager} that read the same value from the modem.
+ *
+ * <p>A request is identified by its command, subId and argument. While a request is in flight,
+ * the callers that make an identical request join it instead of sending their own, and all of
+ * them get its result. A request that is still in flight after a while is no longer joined, so
+ * that a request which never completes only holds up the callers that joined it early, and the
+ * next caller sends a new one. The result can also be cached for a short time, until the command
+ * that changes the value is sent for the subId.
+ */
+final class RequestCoalescer {
+    private static final class Key {
+        final int mCommand;
+        final int mSubId;
+        @Nullable final Object mArgument;
+
+        Key(int command, int subId, @Nullable Object argument) {
+            mCommand = command;
+            mSubId = subId;
+            mArgument = argument;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mCommand == other.mCommand && mSubId == other.mSubId
+                    && Objects.equals(mArgument, other.mArgument);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCommand, mSubId, mArgument);
+        }
+    }
+
+    private static final class InFlightRequest {
+        final RequestFuture mFuture;
+        final long mSendTimeMillis;
+
+        InFlightRequest(RequestFuture future, long sendTimeMillis) {
+            mFuture = future;
+            mSendTimeMillis = sendTimeMillis;
+        }
+    }
+
+    private static final class CachedResult {
+        final Object mResult;
+        final long mExpiryTimeMillis;
+
+        CachedResult(Object result, long expiryTimeMillis) {
+            mResult = result;
+            mExpiryTimeMillis = expiryTimeMillis;
+        }
+    }
+
+    private static final class Counters {
+        long mSent;
+        long mJoined;
+        long mCacheHits;
+        long mInvalidations;
+        long mAbandoned;
+    }
+
+    private final long mMaxJoinAgeMillis;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<Key, InFlightRequest> mInFlight = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<Key, CachedResult> mCache = new ArrayMap<>();
+    /** The counters of each command, keyed by command. */
+    @GuardedBy("mLock")
+    private final SparseArray<Counters> mCounters = new SparseArray<>();
+
+    /**
+     * @param maxJoinAgeMillis How long after it was sent a request in flight may be joined.
+     */
+    RequestCoalescer(long maxJoinAgeMillis) {
+        mMaxJoinAgeMillis = maxJoinAgeMillis;
+    }
+
+    /**
+     * Returns the future of a request. It is completed with the cached result if there is one,
+     * or is the future of the identical request that was sent less than the max join age ago and
+     * is still in flight, or else the future of a new request sent by {@code sender}.
+     *
+     * @param command The command of the request.
+     * @param subId The subId that the request is for.
+     * @param argument The argument of the request, compared with {@link Object#equals}.
+     * @param cacheTtlMillis How long the result of a new request is cached, or 0 to not cache it.
+     *         Results that are exceptions are never cached.
+     * @param sender Sends a new request and returns its future. It is called with a lock held
+     *         and must not block.
+     */
+    @NonNull RequestFuture getOrSend(int command, int subId, @Nullable Object argument,
+            long cacheTtlMillis, @NonNull Supplier<RequestFuture> sender) {
+        Key key = new Key(command, subId, argument);
+        synchronized (mLock) {
+            Counters counters = getCounters(command);
+            long now = SystemClock.elapsedRealtime();
+            CachedResult cached = mCache.get(key);
+            if (cached != null) {
+                if (now < cached.mExpiryTimeMillis) {
+                    counters.mCacheHits++;
+                    RequestFuture future = new RequestFuture();
+                    future.complete(cached.mResult);
+                    return future;
+                }
+                mCache.remove(key);
+            }
+            InFlightRequest inFlight = mInFlight.get(key);
+            if (inFlight != null) {
+                if (now - inFlight.mSendTimeMillis < mMaxJoinAgeMillis) {
+                    counters.mJoined++;
+                    return inFlight.mFuture;
+                }
+                // The request may never complete. Its result is ignored if it still does, since
+                // a newer request replaces it.
+                counters.mAbandoned++;
+            }
+            counters.mSent++;
+            RequestFuture newFuture = sender.get();
+            mInFlight.put(key, new InFlightRequest(newFuture, now));
+            newFuture.onComplete(result -> onRequestCompleted(key, newFuture, result,
+                    cacheTtlMillis));
+            return newFuture;
+        }
+    }
+
+    private void onRequestCompleted(Key key, RequestFuture future, Object result,
+            long cacheTtlMillis) {
+        synchronized (mLock) {
+            // A request that was invalidated while in flight may have read the old value.
+            InFlightRequest inFlight = mInFlight.get(key);
+            if (inFlight == null || inFlight.mFuture != future) {
+                return;
+            }
+            mInFlight.remove(key);
+            if (cacheTtlMillis > 0 && !(result instanceof Throwable)) {
+                mCache.put(key, new CachedResult(result,
+                        SystemClock.elapsedRealtime() + cacheTtlMillis));
+            }
+        }
+    }
+
+    /**
+     * Drops the cached results of the command for the subId, and stops new callers from joining
+     * the requests of the command that are in flight for it. Called when the value that the
+     * command reads is changed.
+     */
+    void invalidate(int command, int subId) {
+        synchronized (mLock) {
+            getCounters(command).mInvalidations++;
+            for (int i = mCache.size() - 1; i >= 0; i--) {
+                Key key = mCache.keyAt(i);
+                if (key.mCommand == command && key.mSubId == subId) {
+                    mCache.removeAt(i);
+                }
+            }
+            for (int i = mInFlight.size() - 1; i >= 0; i--) {
+                Key key = mInFlight.keyAt(i);
+                if (key.mCommand == command && key.mSubId == subId) {
+                    mInFlight.removeAt(i);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Counters getCounters(int command) {
+        Counters counters = mCounters.get(command);
+        if (counters == null) {
+            counters = new Counters();
+            mCounters.put(command, counters);
+        }
+        return counters;
+    }
+
+    /** Returns the number of requests of the command that were sent to the modem. */
+    @VisibleForTesting
+    long getSentCount(int command) {
+        synchronized (mLock) {
+            return getCounters(command).mSent;
+        }
+    }
+
+    /** Returns the number of callers of the command that joined a request in flight. */
+    @VisibleForTesting
+    long getJoinedCount(int command) {
+        synchronized (mLock) {
+            return getCounters(command).mJoined;
+        }
+    }
+
+    /** Returns the number of requests of the command that were too old to be joined. */
+    @VisibleForTesting
+    long getAbandonedCount(int command) {
+        synchronized (mLock) {
+            return getCounters(command).mAbandoned;
+        }
+    }
+
+    /** Returns the number of callers of the command that got a cached result. */
+    @VisibleForTesting
+    long getCacheHitCount(int command) {
+        synchronized (mLock) {
+            return getCounters(command).mCacheHits;
+        }
+    }
+
+    /** Clears the counters. */
+    void reset() {
+        synchronized (mLock) {
+            mCounters.clear();
+        }
+    }
+
+    /** Dump the counters of each command. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("RequestCoalescer: inFlight=" + mInFlight.size()
+                    + " cached=" + mCache.size());
+            pw.increaseIndent();
+            for (int i = 0; i < mCounters.size(); i++) {
+                Counters counters = mCounters.valueAt(i);
+                pw.println("cmd=" + mCounters.keyAt(i) + ": sent=" + counters.mSent
+                        + " joined=" + counters.mJoined + " cacheHits=" + counters.mCacheHits
+                        + " invalidations=" + counters.mInvalidations
+                        + " abandoned=" + counters.mAbandoned);
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Records how many requests of {@link PhoneInterfaceManager} are queued on each of the handlers
+ * that run them and how long each command takes.
+ *
+ * <p>A dispatch target is either {@link #TARGET_MAIN} for the main thread handler or the phone ID
+ * of a per-phone request handler.
+ *
+ * <p>The latency of each command is split into the time from sending the request to the start of
+ * its handling, and the time from the start of its handling to its completion. Both are counted
+ * in fixed-bucket histograms, and the slowest requests are kept with the uid of their caller.
+ * All of the storage is allocated up front so that recording a request doesn't allocate.
+ */
+final class RequestDispatchStats {
+    /** The dispatch target of the requests that run on the main thread. */
+    static final int TARGET_MAIN = -1;
+
+    /** The commands are recorded in arrays indexed by the command, which must be below this. */
+    @VisibleForTesting
+    static final int MAX_COMMAND = 128;
+
+    /** The number of slowest requests that are kept. */
+    @VisibleForTesting
+    static final int SLOWEST_REQUEST_COUNT = 20;
+
+    /**
+     * The inclusive upper bounds of the histogram buckets in milliseconds. The last bucket
+     * counts everything above the last bound.
+     */
+    private static final long[] BUCKET_UPPER_BOUNDS_MILLIS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+    private static final int BUCKET_COUNT = BUCKET_UPPER_BOUNDS_MILLIS.length + 1;
+
+    private static final SimpleDateFormat TIME_FORMAT =
+            new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+
+    private static final class SlowRequest {
+        int mCommand;
+        int mCallingUid;
+        long mQueueMillis;
+        long mServiceMillis;
+        long mTimestampMillis;
+        boolean mTimedOut;
+
+        long getTotalMillis() {
+            return mQueueMillis + mServiceMillis;
+        }
+    }
+
+    private final Object mLock = new Object();
+    /** The number of requests that were sent but not yet handled, keyed by dispatch target. */
+    @GuardedBy("mLock")
+    private final SparseIntArray mQueueDepth = new SparseIntArray();
+    /** The largest queue depth seen, keyed by dispatch target. */
+    @GuardedBy("mLock")
+    private final SparseIntArray mMaxQueueDepth = new SparseIntArray();
+
+    // The following are indexed by command.
+    @GuardedBy("mLock")
+    private final long[] mCount = new long[MAX_COMMAND];
+    @GuardedBy("mLock")
+    private final long[] mTimeoutCount = new long[MAX_COMMAND];
+    @GuardedBy("mLock")
+    private final long[] mMaxQueueMillis = new long[MAX_COMMAND];
+    @GuardedBy("mLock")
+    private final long[] mMaxServiceMillis = new long[MAX_COMMAND];
+    @GuardedBy("mLock")
+    private final long[][] mQueueHistograms = new long[MAX_COMMAND][BUCKET_COUNT];
+    @GuardedBy("mLock")
+    private final long[][] mServiceHistograms = new long[MAX_COMMAND][BUCKET_COUNT];
+
+    @GuardedBy("mLock")
+    private final SlowRequest[] mSlowestRequests = new SlowRequest[SLOWEST_REQUEST_COUNT];
+    @GuardedBy("mLock")
+    private int mSlowestRequestCount;
+
+    RequestDispatchStats() {
+        for (int i = 0; i < SLOWEST_REQUEST_COUNT; i++) {
+            mSlowestRequests[i] = new SlowRequest();
+        }
+    }
+
+    /** Called when a request is sent to the handler of the given dispatch target. */
+    void onRequestQueued(int target) {
+        synchronized (mLock) {
+            int depth = mQueueDepth.get(target) + 1;
+            mQueueDepth.put(target, depth);
+            if (depth > mMaxQueueDepth.get(target)) {
+                mMaxQueueDepth.put(target, depth);
+            }
+        }
+    }
+
+    /** Called when the handler of the given dispatch target starts handling a request. */
+    void onRequestDispatched(int target) {
+        synchronized (mLock) {
+            mQueueDepth.put(target, Math.max(0, mQueueDepth.get(target) - 1));
+        }
+    }
+
+    /**
+     * Called when a request completes. A synchronous request completes when the binder thread
+     * that sent it stops waiting for it, and an asynchronous one when its handler returns.
+     *
+     * @param command The command of the request.
+     * @param callingUid The uid of the app that made the request.
+     * @param queueMillis The time between sending the request and the start of its handling.
+     * @param serviceMillis The time between the start of its handling and its completion.
+     * @param timedOut Whether the wait for the request ended without a result.
+     */
+    void onRequestCompleted(int command, int callingUid, long queueMillis, long serviceMillis,
+            boolean timedOut) {
+        if (command < 0 || command >= MAX_COMMAND) {
+            return;
+        }
+        synchronized (mLock) {
+            mCount[command]++;
+            if (timedOut) {
+                mTimeoutCount[command]++;
+            }
+            mMaxQueueMillis[command] = Math.max(mMaxQueueMillis[command], queueMillis);
+            mMaxServiceMillis[command] = Math.max(mMaxServiceMillis[command], serviceMillis);
+            mQueueHistograms[command][getBucket(queueMillis)]++;
+            mServiceHistograms[command][getBucket(serviceMillis)]++;
+            recordIfSlowest(command, callingUid, queueMillis, serviceMillis, timedOut);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void recordIfSlowest(int command, int callingUid, long queueMillis,
+            long serviceMillis, boolean timedOut) {
+        SlowRequest slot;
+        if (mSlowestRequestCount < SLOWEST_REQUEST_COUNT) {
+            slot = mSlowestRequests[mSlowestRequestCount++];
+        } else {
+            // Replace the fastest of the kept requests if this one was slower.
+            slot = mSlowestRequests[0];
+            for (int i = 1; i < SLOWEST_REQUEST_COUNT; i++) {
+                if (mSlowestRequests[i].getTotalMillis() < slot.getTotalMillis()) {
+                    slot = mSlowestRequests[i];
+                }
+            }
+            if (slot.getTotalMillis() >= queueMillis + serviceMillis) {
+                return;
+            }
+        }
+        slot.mCommand = command;
+        slot.mCallingUid = callingUid;
+        slot.mQueueMillis = queueMillis;
+        slot.mServiceMillis = serviceMillis;
+        slot.mTimestampMillis = System.currentTimeMillis();
+        slot.mTimedOut = timedOut;
+    }
+
+    private static int getBucket(long millis) {
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MILLIS.length; i++) {
+            if (millis <= BUCKET_UPPER_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_COUNT - 1;
+    }
+
+    /** Clears the recorded latencies and the largest queue depths. */
+    void reset() {
+        synchronized (mLock) {
+            mMaxQueueDepth.clear();
+            for (int i = 0; i < mQueueDepth.size(); i++) {
+                mMaxQueueDepth.put(mQueueDepth.keyAt(i), mQueueDepth.valueAt(i));
+            }
+            Arrays.fill(mCount, 0);
+            Arrays.fill(mTimeoutCount, 0);
+            Arrays.fill(mMaxQueueMillis, 0);
+            Arrays.fill(mMaxServiceMillis, 0);
+            for (int i = 0; i < MAX_COMMAND; i++) {
+                Arrays.fill(mQueueHistograms[i], 0);
+                Arrays.fill(mServiceHistograms[i], 0);
+            }
+            mSlowestRequestCount = 0;
+        }
+    }
+
+    /** Returns the number of requests queued on the given dispatch target. */
+    @VisibleForTesting
+    int getQueueDepth(int target) {
+        synchronized (mLock) {
+            return mQueueDepth.get(target);
+        }
+    }
+
+    /** Returns the largest number of requests that were queued on the given dispatch target. */
+    @VisibleForTesting
+    int getMaxQueueDepth(int target) {
+        synchronized (mLock) {
+            return mMaxQueueDepth.get(target);
+        }
+    }
+
+    /** Returns the number of completed requests of the given command. */
+    @VisibleForTesting
+    long getCompletedCount(int command) {
+        synchronized (mLock) {
+            return mCount[command];
+        }
+    }
+
+    /** Returns the longest time that a request of the given command took to complete. */
+    @VisibleForTesting
+    long getMaxServiceMillis(int command) {
+        synchronized (mLock) {
+            return mMaxServiceMillis[command];
+        }
+    }
+
+    /** Returns the number of service latencies of the command in each histogram bucket. */
+    @VisibleForTesting
+    long[] getServiceHistogram(int command) {
+        synchronized (mLock) {
+            return mServiceHistograms[command].clone();
+        }
+    }
+
+    /** Returns the commands of the slowest requests, slowest first. */
+    @VisibleForTesting
+    int[] getSlowestCommands() {
+        synchronized (mLock) {
+            SlowRequest[] sorted = getSortedSlowestRequests();
+            int[] commands = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                commands[i] = sorted[i].mCommand;
+            }
+            return commands;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private SlowRequest[] getSortedSlowestRequests() {
+        SlowRequest[] sorted = Arrays.copyOf(mSlowestRequests, mSlowestRequestCount);
+        Arrays.sort(sorted, (a, b) -> Long.compare(b.getTotalMillis(), a.getTotalMillis()));
+        return sorted;
+    }
+
+    /** Dump the queue depths, the latency histograms and the slowest requests. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("RequestDispatchStats:");
+            pw.increaseIndent();
+            for (int i = 0; i < mMaxQueueDepth.size(); i++) {
+                int target = mMaxQueueDepth.keyAt(i);
+                pw.println((target == TARGET_MAIN ? "main" : "phone" + target)
+                        + ": queueDepth=" + mQueueDepth.get(target)
+                        + " maxQueueDepth=" + mMaxQueueDepth.valueAt(i));
+            }
+            StringBuilder buckets = new StringBuilder("buckets(ms)=");
+            for (long bound : BUCKET_UPPER_BOUNDS_MILLIS) {
+                buckets.append("<=").append(bound).append(',');
+            }
+            buckets.append('>').append(BUCKET_UPPER_BOUNDS_MILLIS[BUCKET_COUNT - 2]);
+            pw.println(buckets);
+            for (int command = 0; command < MAX_COMMAND; command++) {
+                if (mCount[command] == 0) {
+                    continue;
+                }
+                pw.println("cmd=" + command + ": count=" + mCount[command]
+                        + " timeouts=" + mTimeoutCount[command]
+                        + " maxQueueMs=" + mMaxQueueMillis[command]
+                        + " maxServiceMs=" + mMaxServiceMillis[command]);
+                pw.increaseIndent();
+                pw.println("queue=" + Arrays.toString(mQueueHistograms[command]));
+                pw.println("service=" + Arrays.toString(mServiceHistograms[command]));
+                pw.decreaseIndent();
+            }
+            pw.println("Slowest requests:");
+            pw.increaseIndent();
+            for (SlowRequest request : getSortedSlowestRequests()) {
+                pw.println(TIME_FORMAT.format(new Date(request.mTimestampMillis))
+                        + " cmd=" + request.mCommand + " uid=" + request.mCallingUid
+                        + " queueMs=" + request.mQueueMillis
+                        + " serviceMs=" + request.mServiceMillis
+                        + (request.mTimedOut ? " timedOut" : ""));
+            }
+            pw.decreaseIndent();
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * The result of a request that is run on a handler thread of {@link PhoneInterfaceManager}.
+ *
+ * <p>The handler completes the future with a non-null result, which the thread that sent the
+ * request waits for with {@link #await}.
+ */
+final class RequestFuture {
+    private final CompletableFuture<Object> mFuture = new CompletableFuture<>();
+
+    /**
+     * Completes the request with the given result. A {@code null} result is ignored, since the
+     * handler may still have work to do for the request.
+     *
+     * @return {@code true} if this call completed the request.
+     */
+    boolean complete(@Nullable Object result) {
+        return result != null && mFuture.complete(result);
+    }
+
+    /** Returns whether the request completed with a result. */
+    boolean isDone() {
+        return mFuture.isDone();
+    }
+
+    /**
+     * Waits for the result of the request.
+     *
+     * @param timeoutMillis The longest time to wait, or a negative value to wait until the
+     *         request completes.
+     * @return The result, or {@code null} if the request did not complete in time.
+     */
+    @Nullable Object await(long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (true) {
+            try {
+                if (timeoutMillis < 0) {
+                    return mFuture.get();
+                }
+                return mFuture.get(Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Do nothing, go back and wait until the request is complete or timed out.
+            } catch (TimeoutException | ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Runs the action with the result once the request completes. The action runs on the thread
+     * that completes the request, or right away if it already completed.
+     */
+    void onComplete(@NonNull Consumer<Object> action) {
+        mFuture.thenAccept(action);
+    }
+}
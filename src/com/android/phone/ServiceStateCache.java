@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.Manifest;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.telephony.LocationAccessPolicy;
+import android.telephony.ServiceState;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Caches the results of {@link PhoneInterfaceManager#getServiceStateForSubscriber}.
+ *
+ * <p>For each phone, the full {@link ServiceState} and its coarse- and fully-sanitized copies are
+ * kept until the phone reports a service state change, so that repeated calls do not allocate a
+ * new sanitized copy every time. Whether each calling (uid, package, attribution tag) holds the
+ * location permission and passed the location check is kept for
+ * {@link #PERMISSION_RESULT_TTL_MILLIS}, or until the permissions or location app ops of the
+ * caller change, the location mode changes, or the current user or its profiles change, as the
+ * location check denies the apps of background users.
+ *
+ * <p>Only that permission state is cached: the location app op is still noted on every call, so
+ * each access is attributed to the caller and an op that is no longer allowed is seen at once.
+ */
+final class ServiceStateCache {
+    private static final String TAG = "ServiceStateCache";
+
+    /** The caller has fine location access and receives the full service state. */
+    static final int LOCATION_ACCESS_FINE = 0;
+    /** The caller has coarse location access only. */
+    static final int LOCATION_ACCESS_COARSE = 1;
+    /** The caller has no location access. */
+    static final int LOCATION_ACCESS_NONE = 2;
+
+    /** How long a location permission result may be reused for the same caller. */
+    @VisibleForTesting
+    static final long PERMISSION_RESULT_TTL_MILLIS = 1000;
+    /** Maximum number of callers whose location permission results are kept. */
+    private static final int MAX_PERMISSION_RESULTS = 64;
+
+    private static final int EVENT_SERVICE_STATE_CHANGED = 1;
+
+    private final Object mLock = new Object();
+
+    /** The cached service state variants, keyed by phone id. */
+    @GuardedBy("mLock")
+    private final SparseArray<ServiceStateVariants> mServiceStates = new SparseArray<>();
+    /** The phones that have been registered for service state changes, keyed by phone id. */
+    @GuardedBy("mLock")
+    private final SparseArray<Phone> mRegisteredPhones = new SparseArray<>();
+    /** Incremented on every service state change, keyed by phone id. */
+    @GuardedBy("mLock")
+    private final SparseLongArray mServiceStateGenerations = new SparseLongArray();
+    /**
+     * The expiry time of the callers that hold the location permission and passed the location
+     * check, keyed by caller.
+     */
+    @GuardedBy("mLock")
+    private final ArrayMap<PermissionKey, Long> mPermissionResults = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mServiceStateHits;
+    @GuardedBy("mLock")
+    private long mServiceStateMisses;
+    @GuardedBy("mLock")
+    private long mPermissionHits;
+    @GuardedBy("mLock")
+    private long mPermissionMisses;
+
+    private final Context mContext;
+    @Nullable
+    private final AppOpsManager mAppOps;
+    private final Handler mHandler;
+
+    /** The service state of a phone together with its location-sanitized copies. */
+    private static final class ServiceStateVariants {
+        final ServiceState mSource;
+        final ServiceState[] mVariants = new ServiceState[3];
+
+        ServiceStateVariants(ServiceState source) {
+            mSource = source;
+            mVariants[LOCATION_ACCESS_FINE] = source;
+        }
+    }
+
+    /** Identifies a single location permission check of a caller. */
+    private static final class PermissionKey {
+        final int mUid;
+        final String mPackageName;
+        final String mFeatureId;
+        final boolean mFine;
+
+        PermissionKey(int uid, String packageName, String featureId, boolean fine) {
+            mUid = uid;
+            mPackageName = packageName;
+            mFeatureId = featureId;
+            mFine = fine;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PermissionKey)) return false;
+            PermissionKey other = (PermissionKey) o;
+            return mUid == other.mUid && mFine == other.mFine
+                    && Objects.equals(mPackageName, other.mPackageName)
+                    && Objects.equals(mFeatureId, other.mFeatureId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUid, mPackageName, mFeatureId, mFine);
+        }
+    }
+
+    ServiceStateCache(@NonNull Context context, @NonNull Looper looper) {
+        mContext = context;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_SERVICE_STATE_CHANGED:
+                        invalidateServiceState((int) ((AsyncResult) msg.obj).userObj);
+                        break;
+                    default:
+                        Log.e(TAG, "Unknown message " + msg.what);
+                }
+            }
+        };
+
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            pm.addOnPermissionsChangeListener(this::invalidatePermissionResults);
+        }
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        if (mAppOps != null) {
+            AppOpsManager.OnOpChangedListener listener =
+                    (op, packageName) -> invalidatePermissionResults(packageName);
+            mAppOps.startWatchingMode(AppOpsManager.OPSTR_FINE_LOCATION, null, listener);
+            mAppOps.startWatchingMode(AppOpsManager.OPSTR_COARSE_LOCATION, null, listener);
+        }
+        IntentFilter filter = new IntentFilter(LocationManager.MODE_CHANGED_ACTION);
+        filter.addAction(Intent.ACTION_USER_SWITCHED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateAllPermissionResults();
+            }
+        }, filter, null, mHandler);
+    }
+
+    /**
+     * Returns the service state of the given phone, with its location info sanitized according
+     * to the given level of location access.
+     *
+     * @param phone The phone whose service state is returned.
+     * @param locationAccess One of {@link #LOCATION_ACCESS_FINE}, {@link #LOCATION_ACCESS_COARSE}
+     *         or {@link #LOCATION_ACCESS_NONE}.
+     */
+    @NonNull
+    ServiceState getServiceState(@NonNull Phone phone, int locationAccess) {
+        final int phoneId = phone.getPhoneId();
+        final long generation;
+        ServiceStateVariants variants;
+        ServiceState result;
+        synchronized (mLock) {
+            if (mRegisteredPhones.get(phoneId) != phone) {
+                registerForServiceStateChanged(phoneId, phone);
+            }
+            generation = getGenerationLocked(phoneId);
+            variants = mServiceStates.get(phoneId);
+        }
+
+        // The phone may hand out a new instance before the change notification is handled, so
+        // the cached variants are only reused while they were derived from an equal source.
+        ServiceState ss = phone.getServiceState();
+        if (variants != null && (variants.mSource == ss || variants.mSource.equals(ss))) {
+            synchronized (mLock) {
+                result = variants.mVariants[locationAccess];
+                if (result != null) {
+                    mServiceStateHits++;
+                    return result;
+                }
+            }
+        } else {
+            variants = new ServiceStateVariants(ss);
+        }
+
+        result = locationAccess == LOCATION_ACCESS_FINE ? ss
+                : ss.createLocationInfoSanitizedCopy(locationAccess == LOCATION_ACCESS_NONE);
+        synchronized (mLock) {
+            mServiceStateMisses++;
+            variants.mVariants[locationAccess] = result;
+            // Don't publish variants derived from a state that has been invalidated since.
+            if (generation == getGenerationLocked(phoneId)) {
+                mServiceStates.put(phoneId, variants);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the location permission result of the given caller. If the caller held the
+     * location permission and passed the check within {@link #PERMISSION_RESULT_TTL_MILLIS}, only
+     * the location app op is noted; otherwise the check is evaluated with the given supplier,
+     * which notes the app op itself.
+     *
+     * @param uid The uid of the caller.
+     * @param pid The pid of the caller.
+     * @param packageName The package name of the caller.
+     * @param featureId The attribution tag of the caller.
+     * @param fine Whether this is the fine location check, as opposed to the coarse one.
+     * @param check Evaluates the location permission of the caller.
+     */
+    @NonNull
+    LocationAccessPolicy.LocationPermissionResult getLocationPermissionResult(int uid, int pid,
+            @Nullable String packageName, @Nullable String featureId, boolean fine,
+            @NonNull Supplier<LocationAccessPolicy.LocationPermissionResult> check) {
+        // The location check always allows the core uids without noting an app op.
+        if (mAppOps == null || UserHandle.getAppId(uid) < Process.FIRST_APPLICATION_UID) {
+            return check.get();
+        }
+        PermissionKey key = new PermissionKey(uid, packageName, featureId, fine);
+        long now = SystemClock.elapsedRealtime();
+        boolean isCached;
+        synchronized (mLock) {
+            Long expiryMillis = mPermissionResults.get(key);
+            isCached = expiryMillis != null && expiryMillis > now;
+        }
+        if (isCached) {
+            int mode = mAppOps.noteOpNoThrow(fine ? AppOpsManager.OPSTR_FINE_LOCATION
+                    : AppOpsManager.OPSTR_COARSE_LOCATION, uid, packageName, featureId, null);
+            synchronized (mLock) {
+                if (mode == AppOpsManager.MODE_ALLOWED) {
+                    mPermissionHits++;
+                    return LocationAccessPolicy.LocationPermissionResult.ALLOWED;
+                }
+                // Let the full check work out how the caller is denied.
+                mPermissionResults.remove(key);
+            }
+        }
+        synchronized (mLock) {
+            mPermissionMisses++;
+        }
+
+        LocationAccessPolicy.LocationPermissionResult result = check.get();
+        // An older app may be allowed without holding the permission, in which case no app op
+        // is noted and the result is not cached.
+        if (result != LocationAccessPolicy.LocationPermissionResult.ALLOWED
+                || mContext.checkPermission(fine ? Manifest.permission.ACCESS_FINE_LOCATION
+                        : Manifest.permission.ACCESS_COARSE_LOCATION, pid, uid)
+                        != PackageManager.PERMISSION_GRANTED) {
+            return result;
+        }
+        synchronized (mLock) {
+            if (mPermissionResults.size() >= MAX_PERMISSION_RESULTS) {
+                removeExpiredPermissionResultsLocked(now);
+                if (mPermissionResults.size() >= MAX_PERMISSION_RESULTS) {
+                    mPermissionResults.clear();
+                }
+            }
+            mPermissionResults.put(key, now + PERMISSION_RESULT_TTL_MILLIS);
+        }
+        return result;
+    }
+
+    /** Drops the cached service state variants of the given phone. */
+    @VisibleForTesting
+    void invalidateServiceState(int phoneId) {
+        synchronized (mLock) {
+            mServiceStateGenerations.put(phoneId, getGenerationLocked(phoneId) + 1);
+            mServiceStates.remove(phoneId);
+        }
+    }
+
+    /** Drops the cached location permission results of the given uid. */
+    @VisibleForTesting
+    void invalidatePermissionResults(int uid) {
+        synchronized (mLock) {
+            mPermissionResults.keySet().removeIf(key -> key.mUid == uid);
+        }
+    }
+
+    /** Drops the cached location permission results of the given package. */
+    @VisibleForTesting
+    void invalidatePermissionResults(@Nullable String packageName) {
+        if (packageName == null) {
+            invalidateAllPermissionResults();
+            return;
+        }
+        synchronized (mLock) {
+            mPermissionResults.keySet().removeIf(
+                    key -> packageName.equals(key.mPackageName));
+        }
+    }
+
+    private void invalidateAllPermissionResults() {
+        synchronized (mLock) {
+            mPermissionResults.clear();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void registerForServiceStateChanged(int phoneId, @NonNull Phone phone) {
+        Phone oldPhone = mRegisteredPhones.get(phoneId);
+        if (oldPhone != null) {
+            oldPhone.unregisterForServiceStateChanged(mHandler);
+        }
+        phone.registerForServiceStateChanged(mHandler, EVENT_SERVICE_STATE_CHANGED, phoneId);
+        mRegisteredPhones.put(phoneId, phone);
+        mServiceStateGenerations.put(phoneId, getGenerationLocked(phoneId) + 1);
+        mServiceStates.remove(phoneId);
+    }
+
+    @GuardedBy("mLock")
+    private long getGenerationLocked(int phoneId) {
+        return mServiceStateGenerations.get(phoneId);
+    }
+
+    @GuardedBy("mLock")
+    private void removeExpiredPermissionResultsLocked(long now) {
+        Iterator<Long> it = mPermissionResults.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Dump the hit rates of the caches. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ServiceStateCache:");
+            pw.increaseIndent();
+            pw.println("serviceState: hits=" + mServiceStateHits + " misses="
+                    + mServiceStateMisses + " hitRate="
+                    + hitRate(mServiceStateHits, mServiceStateMisses));
+            pw.println("locationPermission: hits=" + mPermissionHits + " misses="
+                    + mPermissionMisses + " hitRate="
+                    + hitRate(mPermissionHits, mPermissionMisses) + " cachedCallers="
+                    + mPermissionResults.size());
+            pw.decreaseIndent();
+        }
+    }
+
+    private static String hitRate(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits / total);
+    }
+}
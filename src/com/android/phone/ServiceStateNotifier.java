@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.telephony.ServiceState;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces the content change notifications of {@link ServiceStateProvider}.
+ *
+ * <p>The URIs of the fields that change in a ServiceState update are collected per subId for
+ * the notification window that starts with the first change, and are then sent to the content
+ * service with a single multi-URI {@link android.content.ContentResolver#notifyChange} call. A
+ * URI that changes several times within the window, for example while the coverage is flapping,
+ * is notified only once.
+ */
+final class ServiceStateNotifier {
+    /** The default time that the changes of a subId are collected before they are notified. */
+    static final long DEFAULT_NOTIFICATION_WINDOW_MILLIS = 100;
+
+    private static final int EVENT_FLUSH = 1;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+
+    private final Object mLock = new Object();
+    /** The URIs to notify, keyed by subId. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArraySet<Uri>> mPendingUris = new SparseArray<>();
+    /** The number of URI notifications merged into one that was already pending. */
+    @GuardedBy("mLock")
+    private long mSuppressedCount;
+    /** The number of URI notifications sent to the content service. */
+    @GuardedBy("mLock")
+    private long mDeliveredCount;
+    /** The number of notifyChange calls made to the content service. */
+    @GuardedBy("mLock")
+    private long mBatchCount;
+
+    /**
+     * @param context The context whose content resolver is notified.
+     * @param looper The looper on which the pending notifications are sent.
+     * @param windowMillis The time that the changes of a subId are collected before they are
+     *         notified, or 0 to notify each update with a single call as soon as it happens.
+     */
+    ServiceStateNotifier(@NonNull Context context, @NonNull Looper looper, long windowMillis) {
+        mContext = context;
+        mWindowMillis = windowMillis;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_FLUSH) {
+                    flush(msg.arg1);
+                }
+            }
+        };
+    }
+
+    /**
+     * Schedules the notifications for the fields that differ between the old and new
+     * ServiceState of the given subId.
+     *
+     * @param oldSS The previous ServiceState, or {@code null} if this is the first update, in
+     *         which case all fields are notified.
+     * @param newSS The new ServiceState.
+     * @param subId The subId that the ServiceState belongs to.
+     */
+    void onServiceStateChanged(@Nullable ServiceState oldSS, @NonNull ServiceState newSS,
+            int subId) {
+        List<Uri> uris = ServiceStateProvider.getUrisToNotify(oldSS, newSS, subId);
+        if (uris.isEmpty()) {
+            return;
+        }
+        synchronized (mLock) {
+            ArraySet<Uri> pending = mPendingUris.get(subId);
+            if (pending == null) {
+                pending = new ArraySet<>();
+                mPendingUris.put(subId, pending);
+                if (mWindowMillis > 0) {
+                    mHandler.sendMessageDelayed(mHandler.obtainMessage(EVENT_FLUSH, subId, 0),
+                            mWindowMillis);
+                }
+            }
+            for (Uri uri : uris) {
+                if (!pending.add(uri)) {
+                    mSuppressedCount++;
+                }
+            }
+        }
+        if (mWindowMillis <= 0) {
+            flush(subId);
+        }
+    }
+
+    /** Sends the pending notifications of the given subId. */
+    @VisibleForTesting
+    void flush(int subId) {
+        final ArrayList<Uri> uris;
+        synchronized (mLock) {
+            ArraySet<Uri> pending = mPendingUris.get(subId);
+            if (pending == null) {
+                return;
+            }
+            mPendingUris.remove(subId);
+            uris = new ArrayList<>(pending);
+            mDeliveredCount += uris.size();
+            mBatchCount++;
+        }
+        mContext.getContentResolver().notifyChange(uris, /* observer= */ null, /* flags= */ 0);
+    }
+
+    /** Returns the number of URI notifications merged into one that was already pending. */
+    @VisibleForTesting
+    long getSuppressedCount() {
+        synchronized (mLock) {
+            return mSuppressedCount;
+        }
+    }
+
+    /** Returns the number of URI notifications sent to the content service. */
+    @VisibleForTesting
+    long getDeliveredCount() {
+        synchronized (mLock) {
+            return mDeliveredCount;
+        }
+    }
+
+    /** Returns the number of notifyChange calls made to the content service. */
+    @VisibleForTesting
+    long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /** Dump the notification counters. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("ServiceStateNotifier: windowMillis=" + mWindowMillis
+                    + " delivered=" + mDeliveredCount + " suppressed=" + mSuppressedCount
+                    + " batches=" + mBatchCount + " pendingSubIds=" + mPendingUris.size());
+        }
+    }
+}
@@ -34,12 +34,13 @@ import android.compat.annotation.EnabledAfter;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.AbstractCursor;
 import android.database.Cursor;
-import android.database.MatrixCursor;
-import android.database.MatrixCursor.RowBuilder;
+import android.database.CursorIndexOutOfBoundsException;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Looper;
 import android.os.Parcel;
 import android.telephony.LocationAccessPolicy;
 import android.telephony.ServiceState;
@@ -49,7 +50,12 @@ import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
+import com.android.internal.util.IndentingPrintWriter;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
@@ -243,6 +249,37 @@ public class ServiceStateProvider extends ContentProvider {
     /* package */ static final long ENFORCE_LOCATION_PERMISSION_CHECK = 191911306;
 
     private final HashMap<Integer, ServiceState> mServiceStates = new HashMap<>();
+    // The lazily populated query results of each subId, with and without location info.
+    private final HashMap<Integer, ServiceStateRow> mRows = new HashMap<>();
+    private final HashMap<Integer, ServiceStateRow> mRedactedRows = new HashMap<>();
+
+    // Indices of the columns in ALL_COLUMNS.
+    private static final int COLUMN_VOICE_REG_STATE = 0;
+    private static final int COLUMN_DATA_REG_STATE = 1;
+    private static final int COLUMN_VOICE_ROAMING_TYPE = 2;
+    private static final int COLUMN_DATA_ROAMING_TYPE = 3;
+    private static final int COLUMN_VOICE_OPERATOR_ALPHA_LONG = 4;
+    private static final int COLUMN_VOICE_OPERATOR_ALPHA_SHORT = 5;
+    private static final int COLUMN_VOICE_OPERATOR_NUMERIC = 6;
+    private static final int COLUMN_DATA_OPERATOR_ALPHA_LONG = 7;
+    private static final int COLUMN_DATA_OPERATOR_ALPHA_SHORT = 8;
+    private static final int COLUMN_DATA_OPERATOR_NUMERIC = 9;
+    private static final int COLUMN_IS_MANUAL_NETWORK_SELECTION = 10;
+    private static final int COLUMN_RIL_VOICE_RADIO_TECHNOLOGY = 11;
+    private static final int COLUMN_RIL_DATA_RADIO_TECHNOLOGY = 12;
+    private static final int COLUMN_CSS_INDICATOR = 13;
+    private static final int COLUMN_NETWORK_ID = 14;
+    private static final int COLUMN_SYSTEM_ID = 15;
+    private static final int COLUMN_CDMA_ROAMING_INDICATOR = 16;
+    private static final int COLUMN_CDMA_DEFAULT_ROAMING_INDICATOR = 17;
+    private static final int COLUMN_CDMA_ERI_ICON_INDEX = 18;
+    private static final int COLUMN_CDMA_ERI_ICON_MODE = 19;
+    private static final int COLUMN_IS_EMERGENCY_ONLY = 20;
+    private static final int COLUMN_IS_USING_CARRIER_AGGREGATION = 21;
+    private static final int COLUMN_OPERATOR_ALPHA_LONG_RAW = 22;
+    private static final int COLUMN_OPERATOR_ALPHA_SHORT_RAW = 23;
+    private static final int COLUMN_DATA_NETWORK_TYPE = 24;
+    private static final int COLUMN_DUPLEX_MODE = 25;
 
     @VisibleForTesting
     /* package */ static final String[] ALL_COLUMNS = {
@@ -289,6 +326,22 @@ public class ServiceStateProvider extends ContentProvider {
             DUPLEX_MODE
     };
 
+    /** Maps the name of each column to its index in {@link #ALL_COLUMNS}. */
+    private static final HashMap<String, Integer> COLUMN_INDEX_MAP = new HashMap<>();
+    private static final Set<String> PUBLIC_COLUMN_SET = Set.of(PUBLIC_COLUMNS);
+    private static final int[] ALL_COLUMN_INDICES = new int[ALL_COLUMNS.length];
+    private static final int[] PUBLIC_COLUMN_INDICES = new int[PUBLIC_COLUMNS.length];
+
+    static {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            COLUMN_INDEX_MAP.put(ALL_COLUMNS[i], i);
+            ALL_COLUMN_INDICES[i] = i;
+        }
+        for (int i = 0; i < PUBLIC_COLUMNS.length; i++) {
+            PUBLIC_COLUMN_INDICES[i] = COLUMN_INDEX_MAP.get(PUBLIC_COLUMNS[i]);
+        }
+    }
+
     /**
      * Columns protected by location permissions (either FINE or COARSE).
      * SecurityException will throw if applications without location permissions try to put those
@@ -302,8 +355,12 @@ public class ServiceStateProvider extends ContentProvider {
             SYSTEM_ID
     );
 
+    private ServiceStateNotifier mNotifier;
+
     @Override
     public boolean onCreate() {
+        mNotifier = new ServiceStateNotifier(getContext(), Looper.getMainLooper(),
+                ServiceStateNotifier.DEFAULT_NOTIFICATION_WINDOW_MILLIS);
         return true;
     }
 
@@ -355,13 +412,14 @@ public class ServiceStateProvider extends ContentProvider {
             final ServiceState newSS = ServiceState.CREATOR.createFromParcel(p);
 
             // notify listeners
-            // if ss is null (e.g. first service state update) we will notify for all fields
+            // if ss is null (e.g. first service state update) we will notify for all fields.
+            // The notifications of updates within a short window are coalesced into one call.
             ServiceState ss = getServiceState(subId);
-            notifyChangeForSubIdAndField(getContext(), ss, newSS, subId);
-            notifyChangeForSubId(getContext(), ss, newSS, subId);
+            mNotifier.onServiceStateChanged(ss, newSS, subId);
 
             // store the new service state
             mServiceStates.put(subId, newSS);
+            invalidateRows(subId);
             return uri;
         }
         return null;
@@ -417,19 +475,19 @@ public class ServiceStateProvider extends ContentProvider {
             final boolean canReadPrivilegedPhoneState = getContext().checkCallingOrSelfPermission(
                     Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED;
 
-            final String[] availableColumns;
-            final ServiceState ss;
+            final int[] availableColumns;
+            final boolean redact;
             if (enforceLocationPermission && targetingAtLeastS && !canReadPrivilegedPhoneState) {
                 // targetSdkVersion S+ without read privileged phone state permission can only
                 // access public columns which have no location sensitive info.
-                availableColumns = PUBLIC_COLUMNS;
-                ss = unredactedServiceState;
+                availableColumns = PUBLIC_COLUMN_INDICES;
+                redact = false;
             } else {
-                availableColumns = ALL_COLUMNS;
+                availableColumns = ALL_COLUMN_INDICES;
                 if (!enforceLocationPermission) {
                     // No matter the targetSdkVersion, return unredacted ServiceState if location
                     // permission enforcement is not introduced
-                    ss = unredactedServiceState;
+                    redact = false;
                 } else {
                     boolean implicitlyQueryLocation = projection == null;
                     boolean explicitlyQueryLocation = false;
@@ -447,7 +505,7 @@ public class ServiceStateProvider extends ContentProvider {
                     // permission when query non sensitive info.
                     if (implicitlyQueryLocation || explicitlyQueryLocation) {
                         if (hasLocationPermission()) {
-                            ss = unredactedServiceState;
+                            redact = false;
                         } else {
                             if (targetingAtLeastS) {
                                 // Throw SecurityException to fail loudly if caller is targetSDK S+
@@ -456,109 +514,235 @@ public class ServiceStateProvider extends ContentProvider {
                                                 + "permissions");
                             } else {
                                 // For backward compatibility, return redacted value for old SDK
-                                ss = getLocationRedactedServiceState(unredactedServiceState);
+                                redact = true;
                             }
                         }
                     } else {
                         // The caller is not interested in location sensitive info, return result
                         // that scrub out all sensitive info. And no permission check is needed.
-                        ss = getLocationRedactedServiceState(unredactedServiceState);
+                        redact = true;
                     }
                 }
             }
 
-            // Build the result
-            final int voice_reg_state = ss.getState();
-            final int data_reg_state = ss.getDataRegistrationState();
-            final int voice_roaming_type = ss.getVoiceRoamingType();
-            final int data_roaming_type = ss.getDataRoamingType();
-            final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String voice_operator_numeric = ss.getOperatorNumeric();
-            final String data_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String data_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String data_operator_numeric = ss.getOperatorNumeric();
-            final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
-            final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
-            final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
-            final int css_indicator = ss.getCssIndicator();
-            final int network_id = ss.getCdmaNetworkId();
-            final int system_id = ss.getCdmaSystemId();
-            final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
-            final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
-            final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
-            final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
-            final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
-            final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
-            final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
-            final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
-            final int data_network_type = ss.getDataNetworkType();
-            final int duplex_mode = ss.getDuplexMode();
-
-            Object[] data = availableColumns == ALL_COLUMNS ? new Object[]{
-                    // data for all columns
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_roaming_type,
-                    data_roaming_type,
-                    voice_operator_alpha_long,
-                    voice_operator_alpha_short,
-                    voice_operator_numeric,
-                    data_operator_alpha_long,
-                    data_operator_alpha_short,
-                    data_operator_numeric,
-                    is_manual_network_selection,
-                    ril_voice_radio_technology,
-                    ril_data_radio_technology,
-                    css_indicator,
-                    network_id,
-                    system_id,
-                    cdma_roaming_indicator,
-                    cdma_default_roaming_indicator,
-                    cdma_eri_icon_index,
-                    cdma_eri_icon_mode,
-                    is_emergency_only,
-                    is_using_carrier_aggregation,
-                    operator_alpha_long_raw,
-                    operator_alpha_short_raw,
-                    data_network_type,
-                    duplex_mode,
-            } : new Object[]{
-                    // data for public columns only
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_operator_numeric,
-                    is_manual_network_selection,
-                    data_network_type,
-                    duplex_mode,
-            };
-
-            return buildSingleRowResult(projection, availableColumns, data);
+            // Build the result. Only the columns in the projection are read from the
+            // ServiceState, and only once per ServiceState for all queries of the subId.
+            final ServiceStateRow row = getRow(subId, unredactedServiceState, redact);
+            return new ServiceStateCursor(projection,
+                    getColumnIndices(projection, availableColumns), row);
         }
     }
 
-    private static Cursor buildSingleRowResult(String[] projection, String[] availableColumns,
-            Object[] data) {
+    /**
+     * Maps the columns of the projection to their index in {@link #ALL_COLUMNS}.
+     *
+     * @param projection The requested columns, or {@code null} for all available columns.
+     * @param availableColumns The indices of the columns that the caller may access.
+     * @throws IllegalArgumentException if a requested column is unknown or not available.
+     */
+    private static int[] getColumnIndices(String[] projection, int[] availableColumns) {
         if (projection == null) {
-            projection = availableColumns;
-        }
-        final MatrixCursor c = new MatrixCursor(projection, 1);
-        final RowBuilder row = c.newRow();
-        for (int i = 0; i < c.getColumnCount(); i++) {
-            final String columnName = c.getColumnName(i);
-            boolean found = false;
-            for (int j = 0; j < availableColumns.length; j++) {
-                if (availableColumns[j].equals(columnName)) {
-                    row.add(data[j]);
-                    found = true;
-                    break;
+            return availableColumns;
+        }
+        final int[] indices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            final Integer index = COLUMN_INDEX_MAP.get(projection[i]);
+            if (index == null || (availableColumns != ALL_COLUMN_INDICES
+                    && !PUBLIC_COLUMN_SET.contains(projection[i]))) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+            indices[i] = index;
+        }
+        return indices;
+    }
+
+    private ServiceStateRow getRow(int subId, ServiceState serviceState, boolean redact) {
+        final HashMap<Integer, ServiceStateRow> rows = redact ? mRedactedRows : mRows;
+        synchronized (mRows) {
+            ServiceStateRow row = rows.get(subId);
+            if (row != null && row.mSource == serviceState) {
+                return row;
+            }
+        }
+        final ServiceStateRow row = new ServiceStateRow(serviceState,
+                redact ? getLocationRedactedServiceState(serviceState) : serviceState);
+        synchronized (mRows) {
+            rows.put(subId, row);
+        }
+        return row;
+    }
+
+    private void invalidateRows(int subId) {
+        synchronized (mRows) {
+            mRows.remove(subId);
+            mRedactedRows.remove(subId);
+        }
+    }
+
+    /**
+     * The column values of a {@link ServiceState}, read from it on first access and shared by all
+     * queries until the ServiceState of the subscription changes.
+     */
+    private static final class ServiceStateRow {
+        private static final Object NOT_READ = new Object();
+
+        /** The stored ServiceState that this row was created for. */
+        final ServiceState mSource;
+        /** The ServiceState that the values are read from, possibly location redacted. */
+        private final ServiceState mServiceState;
+        // Racing readers may both read the same column, but always store an equal immutable value.
+        private final Object[] mValues = new Object[ALL_COLUMNS.length];
+
+        ServiceStateRow(ServiceState source, ServiceState serviceState) {
+            mSource = source;
+            mServiceState = serviceState;
+            Arrays.fill(mValues, NOT_READ);
+        }
+
+        Object get(int columnIndex) {
+            Object value = mValues[columnIndex];
+            if (value == NOT_READ) {
+                value = readColumn(mServiceState, columnIndex);
+                mValues[columnIndex] = value;
+            }
+            return value;
+        }
+    }
+
+    /** Reads the value of the column at the given index of {@link #ALL_COLUMNS}. */
+    private static Object readColumn(ServiceState ss, int columnIndex) {
+        switch (columnIndex) {
+            case COLUMN_VOICE_REG_STATE: return ss.getState();
+            case COLUMN_DATA_REG_STATE: return ss.getDataRegistrationState();
+            case COLUMN_VOICE_ROAMING_TYPE: return ss.getVoiceRoamingType();
+            case COLUMN_DATA_ROAMING_TYPE: return ss.getDataRoamingType();
+            case COLUMN_VOICE_OPERATOR_ALPHA_LONG: return ss.getOperatorAlphaLong();
+            case COLUMN_VOICE_OPERATOR_ALPHA_SHORT: return ss.getOperatorAlphaShort();
+            case COLUMN_VOICE_OPERATOR_NUMERIC: return ss.getOperatorNumeric();
+            case COLUMN_DATA_OPERATOR_ALPHA_LONG: return ss.getOperatorAlphaLong();
+            case COLUMN_DATA_OPERATOR_ALPHA_SHORT: return ss.getOperatorAlphaShort();
+            case COLUMN_DATA_OPERATOR_NUMERIC: return ss.getOperatorNumeric();
+            case COLUMN_IS_MANUAL_NETWORK_SELECTION: return ss.getIsManualSelection() ? 1 : 0;
+            case COLUMN_RIL_VOICE_RADIO_TECHNOLOGY: return ss.getRilVoiceRadioTechnology();
+            case COLUMN_RIL_DATA_RADIO_TECHNOLOGY: return ss.getRilDataRadioTechnology();
+            case COLUMN_CSS_INDICATOR: return ss.getCssIndicator();
+            case COLUMN_NETWORK_ID: return ss.getCdmaNetworkId();
+            case COLUMN_SYSTEM_ID: return ss.getCdmaSystemId();
+            case COLUMN_CDMA_ROAMING_INDICATOR: return ss.getCdmaRoamingIndicator();
+            case COLUMN_CDMA_DEFAULT_ROAMING_INDICATOR: return ss.getCdmaDefaultRoamingIndicator();
+            case COLUMN_CDMA_ERI_ICON_INDEX: return ss.getCdmaEriIconIndex();
+            case COLUMN_CDMA_ERI_ICON_MODE: return ss.getCdmaEriIconMode();
+            case COLUMN_IS_EMERGENCY_ONLY: return ss.isEmergencyOnly() ? 1 : 0;
+            case COLUMN_IS_USING_CARRIER_AGGREGATION: return ss.isUsingCarrierAggregation() ? 1 : 0;
+            case COLUMN_OPERATOR_ALPHA_LONG_RAW: return ss.getOperatorAlphaLongRaw();
+            case COLUMN_OPERATOR_ALPHA_SHORT_RAW: return ss.getOperatorAlphaShortRaw();
+            case COLUMN_DATA_NETWORK_TYPE: return ss.getDataNetworkType();
+            case COLUMN_DUPLEX_MODE: return ss.getDuplexMode();
+            default:
+                throw new IllegalArgumentException("Invalid column index " + columnIndex);
+        }
+    }
+
+    /**
+     * A single row cursor over a {@link ServiceStateRow}, which reads the requested columns from
+     * the row only when they are accessed.
+     */
+    private static final class ServiceStateCursor extends AbstractCursor {
+        private final String[] mColumnNames;
+        private final int[] mColumnIndices;
+        private final ServiceStateRow mRow;
+
+        ServiceStateCursor(String[] projection, int[] columnIndices, ServiceStateRow row) {
+            if (projection == null) {
+                projection = new String[columnIndices.length];
+                for (int i = 0; i < columnIndices.length; i++) {
+                    projection[i] = ALL_COLUMNS[columnIndices[i]];
                 }
             }
-            if (!found) {
-                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            mColumnNames = projection;
+            mColumnIndices = columnIndices;
+            mRow = row;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumnIndices.length) {
+                throw new CursorIndexOutOfBoundsException("Requested column: " + column
+                        + ", # of columns: " + mColumnIndices.length);
+            }
+            if (mPos != 0) {
+                throw new CursorIndexOutOfBoundsException(mPos, 1);
             }
+            return mRow.get(mColumnIndices[column]);
+        }
+
+        @Override
+        public int getCount() {
+            return 1;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).shortValue();
+            return Short.parseShort(value.toString());
+        }
+
+        @Override
+        public int getInt(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).intValue();
+            return Integer.parseInt(value.toString());
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).longValue();
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            Object value = get(column);
+            if (value == null) return 0.0f;
+            if (value instanceof Number) return ((Number) value).floatValue();
+            return Float.parseFloat(value.toString());
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) return 0.0d;
+            if (value instanceof Number) return ((Number) value).doubleValue();
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) return Cursor.FIELD_TYPE_NULL;
+            if (value instanceof Integer) return Cursor.FIELD_TYPE_INTEGER;
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
         }
-        return c;
     }
 
     /**
@@ -601,6 +785,36 @@ public class ServiceStateProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the URIs that {@link #notifyChangeForSubIdAndField} and
+     * {@link #notifyChangeForSubId} would notify for the given ServiceState update, so that they
+     * can be sent with a single call.
+     */
+    /* package */ static List<Uri> getUrisToNotify(ServiceState oldSS, ServiceState newSS,
+            int subId) {
+        final boolean firstUpdate = oldSS == null;
+        final List<Uri> uris = new ArrayList<>(6);
+        if (firstUpdate || voiceRegStateChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE));
+        }
+        if (firstUpdate || dataRegStateChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_REG_STATE));
+        }
+        if (firstUpdate || voiceRoamingTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE));
+        }
+        if (firstUpdate || dataRoamingTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE));
+        }
+        if (firstUpdate || dataNetworkTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE));
+        }
+        if (!uris.isEmpty()) {
+            uris.add(getUriForSubscriptionId(subId));
+        }
+        return uris;
+    }
+
     private static boolean voiceRegStateChanged(ServiceState oldSS, ServiceState newSS) {
         return oldSS.getState() != newSS.getState();
     }
@@ -646,6 +860,12 @@ public class ServiceStateProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        if (mNotifier != null) mNotifier.dump(pw);
+    }
+
     /**
      * Test if this is a path prefix match against the given Uri. Verifies that
      * scheme, authority, and atomic path segments match.
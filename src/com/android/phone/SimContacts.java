@@ -55,7 +55,10 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
 
 /**
  * SIM Address Book UI for the Phone app.
@@ -65,6 +68,9 @@ public class SimContacts extends ADNList {
 
     static final ContentValues sEmptyContentValues = new ContentValues();
 
+    /** The number of SIM contacts that are imported with each contacts provider transaction. */
+    private static final int IMPORT_BATCH_SIZE = 50;
+
     private static final int MENU_IMPORT_ONE = 1;
     private static final int MENU_IMPORT_ALL = 2;
     private ProgressDialog mProgressDialog;
@@ -99,7 +105,7 @@ public class SimContacts extends ADNList {
     private class ImportAllSimContactsThread extends Thread
             implements OnCancelListener, OnClickListener {
 
-        boolean mCanceled = false;
+        volatile boolean mCanceled = false;
 
         public ImportAllSimContactsThread() {
             super("ImportAllSimContactsThread");
@@ -107,14 +113,10 @@ public class SimContacts extends ADNList {
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
             final ContentResolver resolver = getContentResolver();
 
-            mCursor.moveToPosition(-1);
-            while (!mCanceled && mCursor.moveToNext()) {
-                actuallyImportOneSimContact(mCursor, resolver, mAccount);
-                mProgressDialog.incrementProgressBy(1);
-            }
+            importSimContacts(mCursor, resolver, mAccount, IMPORT_BATCH_SIZE, () -> mCanceled,
+                    contactCount -> mProgressDialog.incrementProgressBy(contactCount));
 
             mProgressDialog.dismiss();
             finish();
@@ -134,8 +136,73 @@ public class SimContacts extends ADNList {
         }
     }
 
-    private static boolean actuallyImportOneSimContact(
+    /** Receives the progress of {@link #importSimContacts}. */
+    @VisibleForTesting
+    interface ImportProgressListener {
+        /** Called after each batch with the number of contacts that it contained. */
+        void onBatchProcessed(int contactCount);
+    }
+
+    /**
+     * Imports the SIM contacts of the cursor, inserting {@code batchSize} of them with each
+     * applyBatch call so that a full SIM doesn't take a contacts provider transaction per
+     * contact. Each batch is a single transaction, so if it fails, none of its contacts were
+     * inserted and they are imported one at a time instead, as a contact that the provider
+     * rejects would otherwise fail the whole batch. Cancellation is checked between batches.
+     *
+     * @return the number of contacts that were imported.
+     */
+    @VisibleForTesting
+    static int importSimContacts(final Cursor cursor, final ContentResolver resolver,
+            Account account, int batchSize, BooleanSupplier isCanceled,
+            ImportProgressListener listener) {
+        final ArrayList<ContentProviderOperation> operationList =
+            new ArrayList<ContentProviderOperation>();
+        int importedCount = 0;
+
+        cursor.moveToPosition(-1);
+        while (!isCanceled.getAsBoolean()) {
+            operationList.clear();
+            final int batchStart = cursor.getPosition() + 1;
+            int contactCount = 0;
+            while (contactCount < batchSize && cursor.moveToNext()) {
+                addSimContactOperations(cursor, account, operationList);
+                contactCount++;
+            }
+            if (contactCount == 0) {
+                break;
+            }
+            if (applyContactOperations(resolver, operationList)) {
+                importedCount += contactCount;
+            } else {
+                for (int i = 0; i < contactCount; i++) {
+                    cursor.moveToPosition(batchStart + i);
+                    if (actuallyImportOneSimContact(cursor, resolver, account)) {
+                        importedCount++;
+                    }
+                }
+            }
+            listener.onBatchProcessed(contactCount);
+        }
+        return importedCount;
+    }
+
+    @VisibleForTesting
+    static boolean actuallyImportOneSimContact(
             final Cursor cursor, final ContentResolver resolver, Account account) {
+        final ArrayList<ContentProviderOperation> operationList =
+            new ArrayList<ContentProviderOperation>();
+        addSimContactOperations(cursor, account, operationList);
+        return applyContactOperations(resolver, operationList);
+    }
+
+    /**
+     * Appends the operations that insert the SIM contact at the current position of the cursor
+     * to the list. The data rows refer back to the raw contact inserted by the first of these
+     * operations, so the operations of several contacts can be applied in a single batch.
+     */
+    private static void addSimContactOperations(final Cursor cursor, Account account,
+            final ArrayList<ContentProviderOperation> operationList) {
         final NamePhoneTypePair namePhoneTypePair =
             new NamePhoneTypePair(cursor.getString(NAME_COLUMN));
         final String name = namePhoneTypePair.name;
@@ -149,8 +216,7 @@ public class SimContacts extends ADNList {
             emailAddressArray = null;
         }
 
-        final ArrayList<ContentProviderOperation> operationList =
-            new ArrayList<ContentProviderOperation>();
+        final int rawContactIndex = operationList.size();
         ContentProviderOperation.Builder builder =
             ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
         String myGroupsId = null;
@@ -163,13 +229,13 @@ public class SimContacts extends ADNList {
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
         builder.withValue(StructuredName.DISPLAY_NAME, name);
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
         builder.withValue(Phone.TYPE, phoneType);
         builder.withValue(Phone.NUMBER, phoneNumber);
@@ -179,7 +245,7 @@ public class SimContacts extends ADNList {
         if (emailAddresses != null) {
             for (String emailAddress : emailAddressArray) {
                 builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, rawContactIndex);
                 builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
                 builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
                 builder.withValue(Email.DATA, emailAddress);
@@ -189,12 +255,15 @@ public class SimContacts extends ADNList {
 
         if (myGroupsId != null) {
             builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, 0);
+            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, rawContactIndex);
             builder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
             builder.withValue(GroupMembership.GROUP_SOURCE_ID, myGroupsId);
             operationList.add(builder.build());
         }
+    }
 
+    private static boolean applyContactOperations(final ContentResolver resolver,
+            final ArrayList<ContentProviderOperation> operationList) {
         try {
             final ContentProviderResult[] results = resolver.applyBatch(ContactsContract.AUTHORITY,
                     operationList);
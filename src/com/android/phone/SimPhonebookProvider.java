@@ -22,8 +22,11 @@ import static com.android.internal.telephony.IccProvider.STR_NEW_TAG;
 import android.Manifest;
 import android.annotation.TestApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
@@ -43,11 +46,13 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyFrameworkInitializer;
 import android.telephony.TelephonyManager;
 import android.util.ArraySet;
+import android.util.Pair;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IIccPhoneBook;
 import com.android.internal.telephony.uicc.AdnRecord;
@@ -59,9 +64,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -72,6 +81,10 @@ import java.util.function.Supplier;
 /**
  * Provider for contact records stored on the SIM card.
  *
+ * <p>The records read from the SIM are cached until the subscriptions change or IccProvider
+ * reports a change to content://icc, and are updated in place by the writes of this provider. A write made directly through {@link IIccPhoneBook} by another client doesn't send
+ * either notification, so it is only seen once the cache is next cleared.
+ *
  * @see SimPhonebookContract
  */
 public class SimPhonebookProvider extends ContentProvider {
@@ -104,6 +117,8 @@ public class SimPhonebookProvider extends ContentProvider {
     );
 
     private static final int WRITE_TIMEOUT_SECONDS = 30;
+    // The records of IccProvider, which writes to the same elementary files as this provider.
+    private static final Uri ICC_PROVIDER_URI = Uri.parse("content://icc");
 
     static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -129,10 +144,28 @@ public class SimPhonebookProvider extends ContentProvider {
     // Only allow 1 write at a time to prevent races; the mutations are based on reads of the
     // existing list of records which means concurrent writes would be problematic.
     private final Lock mWriteLock = new ReentrantLock(true);
+    // Guarded by mWriteLock. Set while applyBatch applies its operations so that the writes
+    // they make send a single change notification once the whole batch has been applied.
+    private boolean mIsApplyingBatch;
+    private boolean mBatchChanged;
     private SubscriptionManager mSubscriptionManager;
     private Supplier<IIccPhoneBook> mIccPhoneBookSupplier;
     private ContentNotifier mContentNotifier;
 
+    // The records and the records size of each elementary file, keyed by (subscription ID, efid).
+    // Loading the records is a round trip to the SIM so they are loaded once and then kept in
+    // sync with the writes made by this provider until the subscriptions change or IccProvider
+    // reports a write.
+    private final Object mCacheLock = new Object();
+    @GuardedBy("mCacheLock")
+    private final Map<Pair<Integer, Integer>, List<AdnRecord>> mRecordsCache = new HashMap<>();
+    @GuardedBy("mCacheLock")
+    private final Map<Pair<Integer, Integer>, int[]> mRecordsSizeCache = new HashMap<>();
+    // Incremented whenever the cached records change so that a load which raced with the change
+    // doesn't overwrite it.
+    @GuardedBy("mCacheLock")
+    private int mCacheGeneration;
+
     static int efIdForEfType(@ElementaryFiles.EfType int efType) {
         switch (efType) {
             case ElementaryFiles.EF_ADN:
@@ -173,9 +206,24 @@ public class SimPhonebookProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         ContentResolver resolver = getContext().getContentResolver();
-        return onCreate(getContext().getSystemService(SubscriptionManager.class),
+        if (!onCreate(getContext().getSystemService(SubscriptionManager.class),
                 SimPhonebookProvider::getIccPhoneBook,
-                uri -> resolver.notifyChange(uri, null));
+                uri -> resolver.notifyChange(uri, null))) {
+            return false;
+        }
+        resolver.registerContentObserver(ICC_PROVIDER_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onIccRecordsChanged();
+            }
+        });
+        return true;
+    }
+
+    /** Drops the cached records after they were written outside of this provider. */
+    @VisibleForTesting
+    void onIccRecordsChanged() {
+        invalidateCache();
     }
 
     @TestApi
@@ -187,6 +235,7 @@ public class SimPhonebookProvider extends ContentProvider {
         mSubscriptionManager = subscriptionManager;
         mIccPhoneBookSupplier = iccPhoneBookSupplier;
         mContentNotifier = notifier;
+        invalidateCache();
 
         mSubscriptionManager.addOnSubscriptionsChangedListener(MoreExecutors.directExecutor(),
                 new SubscriptionManager.OnSubscriptionsChangedListener() {
@@ -195,6 +244,8 @@ public class SimPhonebookProvider extends ContentProvider {
 
                     @Override
                     public void onSubscriptionsChanged() {
+                        // The SIM may have been swapped or its records reloaded.
+                        invalidateCache();
                         if (mFirstCallback) {
                             mFirstCallback = false;
                             return;
@@ -321,8 +372,8 @@ public class SimPhonebookProvider extends ContentProvider {
 
     private void addEfToCursor(MatrixCursor result, SubscriptionInfo subscriptionInfo,
             int efType) throws RemoteException {
-        int[] recordsSize = mIccPhoneBookSupplier.get().getAdnRecordsSizeForSubscriber(
-                subscriptionInfo.getSubscriptionId(), efIdForEfType(efType));
+        int[] recordsSize = getRecordsSizeForEf(subscriptionInfo.getSubscriptionId(),
+                efIdForEfType(efType));
         addEfToCursor(result, subscriptionInfo, efType, recordsSize);
     }
 
@@ -337,8 +388,8 @@ public class SimPhonebookProvider extends ContentProvider {
         // Have to load the existing records to get the size because there may be more than one
         // phonebook set in which case the total capacity is the sum of the capacity of EF_ADN for
         // all the phonebook sets whereas the recordsSize is just the size for a single EF.
-        List<AdnRecord> existingRecords = mIccPhoneBookSupplier.get()
-                .getAdnRecordsInEfForSubscriber(subscriptionInfo.getSubscriptionId(), efid);
+        List<AdnRecord> existingRecords = loadRecordsForEf(
+                subscriptionInfo.getSubscriptionId(), efid);
         if (existingRecords == null) {
             existingRecords = ImmutableList.of();
         }
@@ -484,48 +535,121 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private Uri insertSimRecord(PhonebookArgs args, ContentValues values) {
-        validateWritableEf(args, "insert");
-        validateSubscriptionAndEf(args);
-
-        if (values == null || values.isEmpty()) {
+        RecordWrite write = validateWrite(RecordWrite.INSERT, args, values);
+        if (write.isEmpty()) {
             return null;
         }
-        validateValues(args, values);
-        String newName = Strings.nullToEmpty(values.getAsString(SimRecords.NAME));
-        String newPhoneNumber = Strings.nullToEmpty(values.getAsString(SimRecords.PHONE_NUMBER));
+        return applyWrites(Collections.singletonList(write))[0].uri;
+    }
 
-        acquireWriteLockOrThrow();
-        try {
-            List<AdnRecord> records = loadRecordsForEf(args);
-            if (records == null) {
-                Rlog.e(TAG, "Failed to load existing records for " + args.uri);
-                return null;
+    /**
+     * Inserts all of the values into the SIM records of the Uri.
+     *
+     * <p>All of the values are validated and the elementary file is checked for enough empty
+     * records before any of them is written. The records are then written while holding the
+     * write lock once and a single change notification is sent for the whole batch.
+     *
+     * @return the number of records that were inserted.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (URI_MATCHER.match(uri) != SIM_RECORDS) {
+            // Fails the same way as inserting the first of the values would.
+            return super.bulkInsert(uri, values);
+        }
+        PhonebookArgs args = PhonebookArgs.forSimRecords(uri, null);
+        List<RecordWrite> writes = new ArrayList<>(values.length);
+        for (ContentValues value : values) {
+            writes.add(validateWrite(RecordWrite.INSERT, args, value));
+        }
+        int inserted = 0;
+        for (ContentProviderResult result : applyWrites(writes)) {
+            if (result.uri != null) {
+                inserted++;
             }
-            AdnRecord emptyRecord = null;
-            for (AdnRecord record : records) {
-                if (record.isEmpty()) {
-                    emptyRecord = record;
-                    break;
-                }
+        }
+        return inserted;
+    }
+
+    /**
+     * Applies a batch of inserts, updates and deletes of SIM records.
+     *
+     * <p>Like {@link #bulkInsert(Uri, ContentValues[])} the whole batch, apart from the operations
+     * that allow exceptions, is validated before any record is written, the write lock is held
+     * once and a single change notification is sent.
+     * Each operation is then applied with {@link ContentProviderOperation#apply} so that back
+     * references, expected counts and allowed exceptions behave as they do for any other
+     * provider. An insert reports the Uri of the new record and an update or delete reports the
+     * number of records that were changed; a write that fails on the SIM is reported with a
+     * count of 0 and doesn't stop the rest of the batch.
+     *
+     * <p>Batches that contain other operations are applied one operation at a time by the
+     * default implementation.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull String authority,
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        for (ContentProviderOperation operation : operations) {
+            if (getBatchWriteOperation(operation) == RecordWrite.NONE) {
+                return super.applyBatch(authority, operations);
             }
-            if (emptyRecord == null) {
-                // When there are no empty records that means the EF is full.
-                throw new IllegalStateException(
-                        args.uri + " is full. Please delete records to add new ones.");
+        }
+        // The values of operations that reference an earlier result are validated using a
+        // placeholder result, the actual results are resolved when the operations are applied.
+        ContentProviderResult[] placeholders = new ContentProviderResult[operations.size()];
+        Arrays.fill(placeholders, new ContentProviderResult(0));
+        List<RecordWrite> writes = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            ContentProviderOperation operation = operations.get(i);
+            if (operation.isExceptionAllowed()) {
+                // Its failure is reported in its result when it is applied.
+                continue;
             }
-            boolean success = updateRecord(args, emptyRecord, args.pin2, newName, newPhoneNumber);
-            if (!success) {
-                Rlog.e(TAG, "Insert failed for " + args.uri);
-                // Something didn't work but since we don't have any more specific
-                // information to provide to the caller it's better to just return null
-                // rather than throwing and possibly crashing their process.
-                return null;
+            int writeOperation = getBatchWriteOperation(operation);
+            Bundle extras = operation.resolveExtrasBackReferences(placeholders, i);
+            PhonebookArgs args = writeOperation == RecordWrite.INSERT
+                    ? PhonebookArgs.forSimRecords(operation.getUri(), extras)
+                    : PhonebookArgs.forSimRecordsItem(operation.getUri(), extras);
+            ContentValues values = writeOperation == RecordWrite.DELETE
+                    ? null : operation.resolveValueBackReferences(placeholders, i);
+            writes.add(validateWrite(writeOperation, args, values));
+        }
+
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        acquireWriteLockOrThrow();
+        try {
+            checkCapacityForInserts(writes);
+            mIsApplyingBatch = true;
+            for (int i = 0; i < operations.size(); i++) {
+                results[i] = operations.get(i).apply(this, results, i);
             }
-            notifyChange();
-            return SimRecords.getItemUri(args.subscriptionId, args.efType, emptyRecord.getRecId());
         } finally {
+            mIsApplyingBatch = false;
+            if (mBatchChanged) {
+                mBatchChanged = false;
+                notifyChange();
+            }
             releaseWriteLock();
         }
+        return results;
+    }
+
+    /**
+     * @return the write that the operation makes or {@link RecordWrite#NONE} if it must be
+     *         applied by the default implementation.
+     */
+    private static int getBatchWriteOperation(ContentProviderOperation operation) {
+        int match = URI_MATCHER.match(operation.getUri());
+        if (operation.isInsert() && match == SIM_RECORDS) {
+            return RecordWrite.INSERT;
+        } else if (operation.isUpdate() && match == SIM_RECORDS_ITEM) {
+            return RecordWrite.UPDATE;
+        } else if (operation.isDelete() && match == SIM_RECORDS_ITEM) {
+            return RecordWrite.DELETE;
+        }
+        return RecordWrite.NONE;
     }
 
     @Override
@@ -549,23 +673,8 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private int deleteSimRecordsItem(PhonebookArgs args) {
-        validateWritableEf(args, "delete");
-        validateSubscriptionAndEf(args);
-
-        acquireWriteLockOrThrow();
-        try {
-            AdnRecord record = loadRecord(args);
-            if (record == null || record.isEmpty()) {
-                return 0;
-            }
-            if (!updateRecord(args, record, args.pin2, "", "")) {
-                Rlog.e(TAG, "Failed to delete " + args.uri);
-            }
-            notifyChange();
-        } finally {
-            releaseWriteLock();
-        }
-        return 1;
+        RecordWrite write = validateWrite(RecordWrite.DELETE, args, null);
+        return applyWrites(Collections.singletonList(write))[0].count;
     }
 
 
@@ -590,36 +699,192 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private int updateSimRecordsItem(PhonebookArgs args, ContentValues values) {
-        validateWritableEf(args, "update");
+        RecordWrite write = validateWrite(RecordWrite.UPDATE, args, values);
+        if (write.isEmpty()) {
+            return 0;
+        }
+        return applyWrites(Collections.singletonList(write))[0].count;
+    }
+
+    /**
+     * Checks that the write is allowed and that its values can be stored on the SIM, throwing
+     * the same exceptions as the single record insert, update and delete methods.
+     */
+    private RecordWrite validateWrite(int operation, PhonebookArgs args,
+            @Nullable ContentValues values) {
+        switch (operation) {
+            case RecordWrite.INSERT:
+                validateWritableEf(args, "insert");
+                break;
+            case RecordWrite.UPDATE:
+                validateWritableEf(args, "update");
+                break;
+            default:
+                validateWritableEf(args, "delete");
+                break;
+        }
         validateSubscriptionAndEf(args);
 
+        if (operation == RecordWrite.DELETE) {
+            return new RecordWrite(operation, args, "", "");
+        }
         if (values == null || values.isEmpty()) {
-            return 0;
+            return new RecordWrite(operation, args, null, null);
         }
         validateValues(args, values);
-        String newName = Strings.nullToEmpty(values.getAsString(SimRecords.NAME));
-        String newPhoneNumber = Strings.nullToEmpty(values.getAsString(SimRecords.PHONE_NUMBER));
+        return new RecordWrite(operation, args,
+                Strings.nullToEmpty(values.getAsString(SimRecords.NAME)),
+                Strings.nullToEmpty(values.getAsString(SimRecords.PHONE_NUMBER)));
+    }
 
+    /**
+     * Writes the validated records in order while holding the write lock and sends a single
+     * change notification if any of them changed.
+     *
+     * @throws IllegalStateException if an elementary file doesn't have enough empty records for
+     *         the inserts, in which case nothing is written.
+     */
+    private ContentProviderResult[] applyWrites(List<RecordWrite> writes) {
+        ContentProviderResult[] results = new ContentProviderResult[writes.size()];
+        boolean changed = false;
         acquireWriteLockOrThrow();
-
         try {
-            AdnRecord record = loadRecord(args);
-
-            // Note we allow empty records to be updated. This is a bit weird because they are
-            // not returned by query methods but this allows a client application assign a name
-            // to a specific record number. This may be desirable in some phone app use cases since
-            // the record number is often used as a quick dial index.
-            if (record == null) {
-                return 0;
-            }
-            if (!updateRecord(args, record, args.pin2, newName, newPhoneNumber)) {
-                Rlog.e(TAG, "Failed to update " + args.uri);
-                return 0;
+            checkCapacityForInserts(writes);
+            for (int i = 0; i < writes.size(); i++) {
+                RecordWrite write = writes.get(i);
+                int count;
+                Uri uri = null;
+                if (write.isEmpty()) {
+                    count = 0;
+                } else if (write.operation == RecordWrite.INSERT) {
+                    uri = insertRecordLocked(write);
+                    count = uri != null ? 1 : 0;
+                } else if (write.operation == RecordWrite.UPDATE) {
+                    count = updateRecordLocked(write);
+                } else {
+                    count = deleteRecordLocked(write);
+                }
+                changed |= count > 0;
+                results[i] = uri != null ? new ContentProviderResult(uri)
+                        : new ContentProviderResult(count);
             }
-            notifyChange();
         } finally {
+            if (changed && mIsApplyingBatch) {
+                mBatchChanged = true;
+            } else if (changed) {
+                notifyChange();
+            }
             releaseWriteLock();
         }
+        return results;
+    }
+
+    /**
+     * Throws if the inserts would need more empty records than an elementary file has, counting
+     * the records that are deleted by the same batch. Must be called while holding the write
+     * lock.
+     */
+    private void checkCapacityForInserts(List<RecordWrite> writes) {
+        Map<Pair<Integer, Integer>, Integer> available = new HashMap<>();
+        for (RecordWrite write : writes) {
+            if (write.isEmpty() || write.operation == RecordWrite.UPDATE) {
+                continue;
+            }
+            Pair<Integer, Integer> key = Pair.create(write.args.subscriptionId, write.args.efid);
+            if (!available.containsKey(key)) {
+                List<AdnRecord> records = loadRecordsForEf(write.args);
+                if (records == null) {
+                    // The failure is reported by the write itself.
+                    continue;
+                }
+                int empty = 0;
+                for (AdnRecord record : records) {
+                    if (record.isEmpty()) {
+                        empty++;
+                    }
+                }
+                available.put(key, empty);
+            }
+            if (write.operation == RecordWrite.DELETE) {
+                AdnRecord record = loadRecord(write.args);
+                if (record != null && !record.isEmpty()) {
+                    available.put(key, available.get(key) + 1);
+                }
+            } else if (available.get(key) > 0) {
+                available.put(key, available.get(key) - 1);
+            } else {
+                // When there are no empty records that means the EF is full.
+                throw new IllegalStateException(
+                        write.args.uri + " is full. Please delete records to add new ones.");
+            }
+        }
+    }
+
+    /** Must be called while holding the write lock. */
+    private Uri insertRecordLocked(RecordWrite write) {
+        PhonebookArgs args = write.args;
+        List<AdnRecord> records = loadRecordsForEf(args);
+        if (records == null) {
+            Rlog.e(TAG, "Failed to load existing records for " + args.uri);
+            return null;
+        }
+        AdnRecord emptyRecord = null;
+        int emptyRecordIndex = -1;
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i).isEmpty()) {
+                emptyRecord = records.get(i);
+                emptyRecordIndex = i;
+                break;
+            }
+        }
+        if (emptyRecord == null) {
+            // When there are no empty records that means the EF is full.
+            throw new IllegalStateException(
+                    args.uri + " is full. Please delete records to add new ones.");
+        }
+        boolean success = updateRecord(args, emptyRecordIndex, emptyRecord, args.pin2,
+                write.newName, write.newPhoneNumber);
+        if (!success) {
+            Rlog.e(TAG, "Insert failed for " + args.uri);
+            // Something didn't work but since we don't have any more specific
+            // information to provide to the caller it's better to just return null
+            // rather than throwing and possibly crashing their process.
+            return null;
+        }
+        return SimRecords.getItemUri(args.subscriptionId, args.efType, emptyRecord.getRecId());
+    }
+
+    /** Must be called while holding the write lock. */
+    private int updateRecordLocked(RecordWrite write) {
+        PhonebookArgs args = write.args;
+        AdnRecord record = loadRecord(args);
+
+        // Note we allow empty records to be updated. This is a bit weird because they are
+        // not returned by query methods but this allows a client application assign a name
+        // to a specific record number. This may be desirable in some phone app use cases since
+        // the record number is often used as a quick dial index.
+        if (record == null) {
+            return 0;
+        }
+        if (!updateRecord(args, args.recordNumber - 1, record, args.pin2, write.newName,
+                write.newPhoneNumber)) {
+            Rlog.e(TAG, "Failed to update " + args.uri);
+            return 0;
+        }
+        return 1;
+    }
+
+    /** Must be called while holding the write lock. */
+    private int deleteRecordLocked(RecordWrite write) {
+        PhonebookArgs args = write.args;
+        AdnRecord record = loadRecord(args);
+        if (record == null || record.isEmpty()) {
+            return 0;
+        }
+        if (!updateRecord(args, args.recordNumber - 1, record, args.pin2, "", "")) {
+            Rlog.e(TAG, "Failed to delete " + args.uri);
+            return 0;
+        }
         return 1;
     }
 
@@ -681,19 +946,39 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
 
-    private boolean updateRecord(PhonebookArgs args, AdnRecord existingRecord, String pin2,
-            String newName, String newPhone) {
+    /**
+     * Writes the record at the given index of the elementary file and updates the cached records
+     * to match. Must be called while holding the write lock.
+     */
+    private boolean updateRecord(PhonebookArgs args, int index, AdnRecord existingRecord,
+            String pin2, String newName, String newPhone) {
+        boolean success;
         try {
             ContentValues values = new ContentValues();
             values.put(STR_NEW_TAG, newName);
             values.put(STR_NEW_NUMBER, newPhone);
-            return mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
+            success = mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
                     args.subscriptionId, existingRecord.getEfid(), values,
                     existingRecord.getRecId(),
                     pin2);
         } catch (RemoteException e) {
-            return false;
+            success = false;
+        }
+        Pair<Integer, Integer> key = Pair.create(args.subscriptionId, args.efid);
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            List<AdnRecord> records = mRecordsCache.get(key);
+            if (!success || records == null || index < 0 || index >= records.size()) {
+                // The state of the record on the SIM is unknown so reload it on the next read.
+                mRecordsCache.remove(key);
+            } else {
+                List<AdnRecord> updated = new ArrayList<>(records);
+                updated.set(index, new AdnRecord(existingRecord.getEfid(),
+                        existingRecord.getRecId(), newName, newPhone));
+                mRecordsCache.put(key, Collections.unmodifiableList(updated));
+            }
         }
+        return success;
     }
 
     private void validatePhoneNumber(@Nullable String phoneNumber) {
@@ -765,12 +1050,38 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private List<AdnRecord> loadRecordsForEf(PhonebookArgs args) {
+        return loadRecordsForEf(args.subscriptionId, args.efid);
+    }
+
+    /** Returns the cached records of the elementary file, loading them from the SIM if needed. */
+    @Nullable
+    private List<AdnRecord> loadRecordsForEf(int subscriptionId, int efid) {
+        Pair<Integer, Integer> key = Pair.create(subscriptionId, efid);
+        int generation;
+        synchronized (mCacheLock) {
+            List<AdnRecord> cached = mRecordsCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mCacheGeneration;
+        }
+        List<AdnRecord> records;
         try {
-            return mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
-                    args.subscriptionId, args.efid);
+            records = mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
+                    subscriptionId, efid);
         } catch (RemoteException e) {
             return null;
         }
+        if (records == null) {
+            return null;
+        }
+        records = Collections.unmodifiableList(new ArrayList<>(records));
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration) {
+                mRecordsCache.put(key, records);
+            }
+        }
+        return records;
     }
 
     private AdnRecord loadRecord(PhonebookArgs args) {
@@ -782,12 +1093,44 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private int[] getRecordsSizeForEf(PhonebookArgs args) {
+        return getRecordsSizeForEf(args.subscriptionId, args.efid);
+    }
+
+    @Nullable
+    private int[] getRecordsSizeForEf(int subscriptionId, int efid) {
+        Pair<Integer, Integer> key = Pair.create(subscriptionId, efid);
+        int generation;
+        synchronized (mCacheLock) {
+            int[] cached = mRecordsSizeCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mCacheGeneration;
+        }
+        int[] recordsSize;
         try {
-            return mIccPhoneBookSupplier.get().getAdnRecordsSizeForSubscriber(
-                    args.subscriptionId, args.efid);
+            recordsSize = mIccPhoneBookSupplier.get().getAdnRecordsSizeForSubscriber(
+                    subscriptionId, efid);
         } catch (RemoteException e) {
             return null;
         }
+        if (recordsSize == null) {
+            return null;
+        }
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration) {
+                mRecordsSizeCache.put(key, recordsSize);
+            }
+        }
+        return recordsSize;
+    }
+
+    private void invalidateCache() {
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            mRecordsCache.clear();
+            mRecordsSizeCache.clear();
+        }
     }
 
     void notifyChange() {
@@ -800,6 +1143,32 @@ public class SimPhonebookProvider extends ContentProvider {
         void notifyChange(Uri uri);
     }
 
+    /** A validated insert, update or delete of a single SIM record. */
+    private static final class RecordWrite {
+        static final int NONE = -1;
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int DELETE = 2;
+
+        final int operation;
+        final PhonebookArgs args;
+        // Both are null when the values were empty, in which case nothing is written.
+        @Nullable final String newName;
+        @Nullable final String newPhoneNumber;
+
+        RecordWrite(int operation, PhonebookArgs args, @Nullable String newName,
+                @Nullable String newPhoneNumber) {
+            this.operation = operation;
+            this.args = args;
+            this.newName = newName;
+            this.newPhoneNumber = newPhoneNumber;
+        }
+
+        boolean isEmpty() {
+            return newName == null;
+        }
+    }
+
     /**
      * Holds the arguments extracted from the Uri and query args for accessing the referenced
      * phonebook data on a SIM.
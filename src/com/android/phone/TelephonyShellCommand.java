@@ -53,6 +53,7 @@ import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.d2d.Communicator;
 import com.android.internal.telephony.emergency.EmergencyNumberTracker;
 import com.android.internal.telephony.util.TelephonyUtils;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.modules.utils.BasicShellCommandHandler;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 
@@ -175,6 +176,9 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
     private static final String GET_DATA_MODE = "get-data-mode";
     private static final String GET_IMEI = "get-imei";
     private static final String GET_SIM_SLOTS_MAPPING = "get-sim-slots-mapping";
+
+    private static final String REQUEST_STATS_COMMAND = "request-stats";
+    private static final String REQUEST_STATS_RESET = "reset";
     // Take advantage of existing methods that already contain permissions checks when possible.
     private final ITelephony mInterface;
 
@@ -337,6 +341,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
                 return handleGetSimSlotsMapping();
             case RADIO_SUBCOMMAND:
                 return handleRadioCommand();
+            case REQUEST_STATS_COMMAND:
+                return handleRequestStatsCommand();
             default: {
                 return handleDefaultCommands(cmd);
             }
@@ -377,6 +383,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Set the Allowed Network Types.");
         pw.println("  radio");
         pw.println("    Radio Commands.");
+        pw.println("  request-stats");
+        pw.println("    Request latency Commands.");
         onHelpIms();
         onHelpUce();
         onHelpEmergencyNumber();
@@ -390,6 +398,7 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         onHelpAllowedNetworkTypes();
         onHelpRadio();
         onHelpImei();
+        onHelpRequestStats();
     }
 
     private void onHelpD2D() {
@@ -701,6 +710,17 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    the result would be 'unknown'.");
     }
 
+    private void onHelpRequestStats() {
+        PrintWriter pw = getOutPrintWriter();
+        pw.println("Request latency Commands:");
+        pw.println("  request-stats [reset]");
+        pw.println("    Prints the queue depths, the latency histograms of each command and the");
+        pw.println("    slowest requests that were sent to the phone process main thread or to");
+        pw.println("    the per-phone request threads, and how many requests shared a request");
+        pw.println("    in flight or a cached result. Options are:");
+        pw.println("      reset: clear the recorded latencies and counters instead.");
+    }
+
     private void onHelpImei() {
         PrintWriter pw = getOutPrintWriter();
         pw.println("IMEI Commands:");
@@ -2995,4 +3015,29 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
 
         return -1;
     }
+
+    private int handleRequestStatsCommand() {
+        if (!checkShellUid()) {
+            getErrPrintWriter().println("request-stats: Permission denied.");
+            return -1;
+        }
+        if (!(mInterface instanceof PhoneInterfaceManager)) {
+            getErrPrintWriter().println("request-stats: Not supported.");
+            return -1;
+        }
+        PhoneInterfaceManager phoneInterfaceManager = (PhoneInterfaceManager) mInterface;
+        String arg = getNextArg();
+        if (arg == null) {
+            IndentingPrintWriter pw = new IndentingPrintWriter(getOutPrintWriter(), "  ");
+            phoneInterfaceManager.dumpRequestStats(pw);
+            pw.flush();
+            return 0;
+        }
+        if (REQUEST_STATS_RESET.equals(arg)) {
+            phoneInterfaceManager.resetRequestStats();
+            return 0;
+        }
+        onHelpRequestStats();
+        return -1;
+    }
 }
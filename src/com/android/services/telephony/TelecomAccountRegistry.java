@@ -574,10 +574,8 @@ public class TelecomAccountRegistry {
          */
         private boolean isCarrierVideoPauseSupported() {
             // Check if IMS video pause is supported.
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
         }
 
         /**
@@ -587,8 +585,10 @@ public class TelecomAccountRegistry {
          * @return {@code true} if RCS presence indication for video calls is supported.
          */
         private boolean isCarrierVideoPresenceSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
+            PersistableBundle b = PhoneGlobals.getInstance().getCarrierConfigSubsetForSubId(
+                    mPhone.getSubId(),
+                    CarrierConfigManager.Ims.KEY_ENABLE_PRESENCE_CAPABILITY_EXCHANGE_BOOL,
+                    CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL);
             if (b == null) return false;
 
             // If using the new RcsUceAdapter API, this should be true if
@@ -620,10 +620,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if instant lettering is supported, {@code false} otherwise.
          */
         private boolean isCarrierInstantLetteringSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
         }
 
         /**
@@ -632,10 +630,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if adhoc conference calling is supported, {@code false} otherwise.
          */
         private boolean isCarrierAdhocConferenceCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_ADHOC_CONFERENCE_CALLS_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_ADHOC_CONFERENCE_CALLS_BOOL);
         }
 
 
@@ -645,10 +641,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if merging calls is supported, {@code false} otherwise.
          */
         private boolean isCarrierMergeCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
         }
 
         /**
@@ -657,9 +651,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if merging IMS calls is supported, {@code false} otherwise.
          */
         private boolean isCarrierMergeImsCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_IMS_CONFERENCE_CALL_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_IMS_CONFERENCE_CALL_BOOL);
         }
 
         /**
@@ -668,10 +661,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if emergency video calls are allowed, {@code false} otherwise.
          */
         private boolean isCarrierEmergencyVideoCallsAllowed() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
         }
 
         /**
@@ -680,10 +671,8 @@ public class TelecomAccountRegistry {
          * @return {@code true} if video conferencing is supported, {@code false} otherwise.
          */
         private boolean isCarrierVideoConferencingSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
         }
 
         /**
@@ -694,9 +683,7 @@ public class TelecomAccountRegistry {
          *      {@code false} otherwise.
          */
         private boolean isCarrierMergeOfWifiCallsAllowedWhenVoWifiOff() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null && b.getBoolean(
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
                     CarrierConfigManager.KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL);
         }
 
@@ -707,9 +694,8 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierManageImsConferenceCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_MANAGE_IMS_CONFERENCE_CALL_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SUPPORT_MANAGE_IMS_CONFERENCE_CALL_BOOL);
         }
 
         /**
@@ -719,8 +705,8 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierUsingSimCallManager() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
+            PersistableBundle b = PhoneGlobals.getInstance().getCarrierConfigSubsetForSubId(
+                    mPhone.getSubId(), CarrierConfigManager.KEY_DEFAULT_SIM_CALL_MANAGER_STRING);
             return !TextUtils.isEmpty(
                     b.getString(CarrierConfigManager.KEY_DEFAULT_SIM_CALL_MANAGER_STRING));
         }
@@ -733,9 +719,8 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierShowPreciseFailedCause() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b.getBoolean(CarrierConfigManager.KEY_SHOW_PRECISE_FAILED_CAUSE_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_SHOW_PRECISE_FAILED_CAUSE_BOOL);
         }
 
         /**
@@ -745,18 +730,16 @@ public class TelecomAccountRegistry {
          * @return {@code true} if a call recording tone should be used, {@code false} otherwise.
          */
         private boolean isCarrierUseCallRecordingTone() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b.getBoolean(CarrierConfigManager.KEY_PLAY_CALL_RECORDING_TONE_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_PLAY_CALL_RECORDING_TONE_BOOL);
         }
 
         /**
          * Determines from carrier config whether to always allow RTT while roaming.
          */
         private boolean isCarrierAllowRttWhenRoaming() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b.getBoolean(CarrierConfigManager.KEY_RTT_SUPPORTED_WHILE_ROAMING_BOOL);
+            return PhoneGlobals.getInstance().getCarrierConfigBooleanForSubId(mPhone.getSubId(),
+                    CarrierConfigManager.KEY_RTT_SUPPORTED_WHILE_ROAMING_BOOL);
         }
 
         /**
@@ -766,8 +749,10 @@ public class TelecomAccountRegistry {
          * @return The {@link PhoneAccount} extras associated with the current subscription.
          */
         private Bundle getPhoneAccountExtras() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
+            PersistableBundle b = PhoneGlobals.getInstance().getCarrierConfigSubsetForSubId(
+                    mPhone.getSubId(),
+                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT,
+                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING);
 
             int instantLetteringMaxLength = b.getInt(
                     CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT);
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ScheduledExecutorService} that runs its tasks one at a time and in the order that they
+ * were submitted, using the threads of a pool that may be shared with other instances.
+ * <p>
+ * Each {@link SipDelegateController} uses its own instance, so a SipDelegate or IMS application
+ * that is slow to handle a call only delays the other tasks of that SipDelegate, not the tasks of
+ * every SipDelegate on the slot.
+ * <p>
+ * Delayed tasks wait on the pool and are queued on this executor once their delay has elapsed.
+ * A periodic task waits for its next run only once its previous run has completed, so its runs
+ * never overlap, and it is cancelled when this executor is shut down, like the default policy of
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}. Shutting down this executor does not
+ * shut down the pool.
+ */
+final class OrderedScheduledExecutor extends AbstractExecutorService
+        implements ScheduledExecutorService {
+
+    private static final String LOG_TAG = "OrderedExecutor";
+    // The number of tasks that are run before the pool thread is released so that the other
+    // executors sharing the pool are not starved.
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    /**
+     * A task that is queued on this executor after a delay, and again after each period if it is
+     * periodic.
+     */
+    private final class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        // 0 for a one-shot task. Otherwise the period in nanoseconds, positive for a fixed rate and
+        // negative for a fixed delay, like ScheduledThreadPoolExecutor.
+        private final long mPeriodNanos;
+        // The System#nanoTime at which the task is next queued on this executor.
+        private long mTriggerTimeNanos;
+        private volatile ScheduledFuture<?> mTrigger;
+
+        DelayedTask(Callable<V> callable, long delayNanos) {
+            super(callable);
+            mPeriodNanos = 0;
+            mTriggerTimeNanos = System.nanoTime() + delayNanos;
+        }
+
+        DelayedTask(Runnable runnable, long delayNanos, long periodNanos) {
+            super(runnable, null);
+            mPeriodNanos = periodNanos;
+            mTriggerTimeNanos = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        public void run() {
+            if (mPeriodNanos == 0) {
+                super.run();
+                return;
+            }
+            // A run that threw or was cancelled ends the task.
+            if (!runAndReset()) return;
+            if (isShutdown()) {
+                cancel(false /*interrupt*/);
+                return;
+            }
+            mTriggerTimeNanos = mPeriodNanos > 0 ? mTriggerTimeNanos + mPeriodNanos
+                    : System.nanoTime() - mPeriodNanos;
+            try {
+                trigger(this);
+            } catch (RejectedExecutionException e) {
+                // The pool has been shut down.
+                cancel(false /*interrupt*/);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return mTrigger.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean isCancelled = super.cancel(mayInterruptIfRunning);
+            ScheduledFuture<?> trigger = mTrigger;
+            if (isCancelled && trigger != null) {
+                trigger.cancel(false /*interrupt*/);
+            }
+            return isCancelled;
+        }
+    }
+
+    private final ScheduledExecutorService mPool;
+    private final Runnable mDrainTask = this::drain;
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    // Guarded by mLock. True while a drain of mTasks is queued or running on the pool.
+    private boolean mIsDraining = false;
+    // Guarded by mLock.
+    private boolean mIsShutdown = false;
+
+    /**
+     * @param pool The pool that tasks are run on.
+     */
+    OrderedScheduledExecutor(ScheduledExecutorService pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Objects.requireNonNull(command);
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+            mTasks.add(command);
+            if (mIsDraining) return;
+            mIsDraining = true;
+        }
+        try {
+            mPool.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // The pool has been shut down, so none of the queued tasks will ever run.
+            synchronized (mLock) {
+                mTasks.clear();
+                mIsDraining = false;
+                mLock.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        DelayedTask<V> task = new DelayedTask<>(Objects.requireNonNull(callable),
+                unit.toNanos(delay));
+        return scheduleTask(task);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+            long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        return scheduleTask(new DelayedTask<>(Objects.requireNonNull(command),
+                unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+            long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive: " + delay);
+        }
+        return scheduleTask(new DelayedTask<>(Objects.requireNonNull(command),
+                unit.toNanos(initialDelay), -unit.toNanos(delay)));
+    }
+
+    private <V> ScheduledFuture<V> scheduleTask(DelayedTask<V> task) {
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+        }
+        trigger(task);
+        return task;
+    }
+
+    /**
+     * Waits on the pool until the trigger time of the task, then queues it on this executor.
+     */
+    private void trigger(DelayedTask<?> task) {
+        task.mTrigger = mPool.schedule(() -> {
+            try {
+                execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel(false /*interrupt*/);
+            }
+        }, task.mTriggerTimeNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        // The task may have been cancelled before the new trigger was set.
+        if (task.isCancelled()) {
+            task.mTrigger.cancel(false /*interrupt*/);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            List<Runnable> pending = new ArrayList<>(mTasks);
+            mTasks.clear();
+            mLock.notifyAll();
+            return pending;
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (mLock) {
+            return mIsShutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (mLock) {
+            return mIsShutdown && !mIsDraining;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (!(mIsShutdown && !mIsDraining)) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) return false;
+                mLock.wait(remainingMs);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of tasks that are waiting to run.
+     */
+    int getQueuedTaskCount() {
+        synchronized (mLock) {
+            return mTasks.size();
+        }
+    }
+
+    private void drain() {
+        int tasksRun = 0;
+        while (true) {
+            Runnable task;
+            synchronized (mLock) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mIsDraining = false;
+                    mLock.notifyAll();
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Match ScheduledThreadPoolExecutor, which does not let a failed task stop the
+                // tasks after it.
+                Log.w(LOG_TAG, "drain: task threw exception: " + e);
+            }
+            if (++tasksRun < MAX_TASKS_PER_TURN) continue;
+            // Let the other executors sharing the pool run, continuing on this thread if the
+            // pool is shutting down and no longer accepts tasks.
+            try {
+                mPool.execute(mDrainTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                tasksRun = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedScheduledExecutor{queued=" + getQueuedTaskCount() + "}";
+    }
+}
@@ -38,12 +38,19 @@ import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -52,6 +59,8 @@ import java.util.stream.Collectors;
  */
 public class SipDelegateController {
     static final String LOG_TAG = "SipDelegateC";
+    // How long dumpsys waits for the executor of this controller to dump its state.
+    private static final long DUMP_TIMEOUT_MS = 1000;
 
     private class BinderConnectionFactory implements DelegateBinderStateManager.Factory {
 
@@ -228,6 +237,15 @@ public class SipDelegateController {
      */
     public CompletableFuture<Boolean> changeSupportedFeatureTags(Set<String> newSupportedSet,
             Set<FeatureTagState> deniedSet) {
+        // Called from the executor of the SipTransportController, move to the executor of this
+        // controller.
+        return CompletableFuture.supplyAsync(
+                () -> changeSupportedFeatureTagsInternal(newSupportedSet, deniedSet),
+                mExecutorService).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<Boolean> changeSupportedFeatureTagsInternal(
+            Set<String> newSupportedSet, Set<FeatureTagState> deniedSet) {
         logi("Received feature tag set change, old: [" + mTrackedFeatureTags + "], new: "
                 + newSupportedSet + ",denied: [" + deniedSet + "]");
         if (mTrackedFeatureTags != null && mTrackedFeatureTags.equals(newSupportedSet)) {
@@ -266,6 +284,13 @@ public class SipDelegateController {
      * @return A CompletableFuture that will complete once the SipDelegate has been destroyed.
      */
     public CompletableFuture<Integer> destroy(boolean force, int destroyReason) {
+        // Called from the executor of the SipTransportController, move to the executor of this
+        // controller.
+        return CompletableFuture.supplyAsync(() -> destroyInternal(force, destroyReason),
+                mExecutorService).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<Integer> destroyInternal(boolean force, int destroyReason) {
         logi("destroy, forced " + force + ", destroyReason: " + destroyReason);
 
         CompletableFuture<Integer> pendingOperationComplete =
@@ -287,6 +312,10 @@ public class SipDelegateController {
      * See {@link SipDelegateManager#triggerFullNetworkRegistration} for more information.
      */
     public void triggerFullNetworkRegistration(int sipCode, String sipReason) {
+        mExecutorService.execute(() -> triggerFullNetworkRegistrationInternal(sipCode, sipReason));
+    }
+
+    private void triggerFullNetworkRegistrationInternal(int sipCode, String sipReason) {
         logi("triggerFullNetworkRegistration, code=" + sipCode + ", reason=" + sipReason);
         if (mBinderConnection != null) {
             mBinderConnection.triggerFullNetworkRegistration(sipCode, sipReason);
@@ -393,8 +422,32 @@ public class SipDelegateController {
     /**
      * Write the current state of this controller in String format using the PrintWriter provided
      * for dumpsys.
+     * <p>
+     * The state is read on the executor of this controller, which owns it, waiting at most
+     * {@link #DUMP_TIMEOUT_MS} for a busy SipDelegate.
      */
     public void dump(PrintWriter printWriter) {
+        StringWriter state = new StringWriter();
+        Future<?> f;
+        try {
+            f = mExecutorService.submit(() -> dumpInternal(new PrintWriter(state)));
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, so nothing else changes the state anymore.
+            dumpInternal(printWriter);
+            return;
+        }
+        try {
+            f.get(DUMP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            f.cancel(false /*interrupt*/);
+            printWriter.println("SipDelegateController" + "[" + mSubId + "]: dump failed: " + e);
+            return;
+        }
+        printWriter.print(state);
+        printWriter.flush();
+    }
+
+    private void dumpInternal(PrintWriter printWriter) {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
         pw.println("SipDelegateController" + "[" + mSubId + "]:");
         pw.increaseIndent();
@@ -416,6 +469,7 @@ public class SipDelegateController {
         pw.decreaseIndent();
 
         pw.decreaseIndent();
+        pw.flush();
     }
 
     private void logi(String log) {
@@ -19,8 +19,6 @@ package com.android.services.telephony.rcs;
 import android.telephony.ims.SipMessage;
 import android.text.TextUtils;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
-
 import java.time.Instant;
 import java.util.Objects;
 import java.util.Set;
@@ -71,12 +69,16 @@ public class SipDialog {
      * @return A SipDialog instance representing the SIP request.
      */
     public static SipDialog fromSipMessage(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) return null;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        Set<String> acceptContactTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
-                m.getHeaderSection());
-        return new SipDialog(m.getViaBranchParameter(), m.getCallIdParameter(), fromTag,
-                acceptContactTags);
+        return fromSipMessage(new SipMessageEnvelope(m));
+    }
+
+    /**
+     * @return A SipDialog instance representing the SIP request in the envelope.
+     */
+    public static SipDialog fromSipMessage(SipMessageEnvelope m) {
+        if (!m.isRequest()) return null;
+        return new SipDialog(m.getViaBranch(), m.getCallId(), m.getFromTag(),
+                m.getAcceptContactFeatureTags());
     }
 
     /**
@@ -180,10 +182,16 @@ public class SipDialog {
      * forking.
      */
     public boolean isResponseAssociatedWithDialog(SipMessage m) {
-        if (!mBranchId.equals(m.getViaBranchParameter())) return false;
-        if (!mCallId.equals(m.getCallIdParameter())) return false;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        return mFromTag.equals(fromTag);
+        return isResponseAssociatedWithDialog(new SipMessageEnvelope(m));
+    }
+
+    /**
+     * @see #isResponseAssociatedWithDialog(SipMessage)
+     */
+    public boolean isResponseAssociatedWithDialog(SipMessageEnvelope m) {
+        if (!mBranchId.equals(m.getViaBranch())) return false;
+        if (!mCallId.equals(m.getCallId())) return false;
+        return mFromTag.equals(m.getFromTag());
     }
 
     /**
@@ -191,9 +199,16 @@ public class SipDialog {
      * not.
      */
     public boolean isRequestAssociatedWithDialog(SipMessage m) {
-        if (!mCallId.equals(m.getCallIdParameter())) return false;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+        return isRequestAssociatedWithDialog(new SipMessageEnvelope(m));
+    }
+
+    /**
+     * @see #isRequestAssociatedWithDialog(SipMessage)
+     */
+    public boolean isRequestAssociatedWithDialog(SipMessageEnvelope m) {
+        if (!mCallId.equals(m.getCallId())) return false;
+        String fromTag = m.getFromTag();
+        String toTag = m.getToTag();
         // Requests can only be associated if both to and from tag of message are populated. The
         // dialog's to tag must also be non-null meaning we got a response from the remote.
         if (fromTag == null || toTag == null || mToTag == null) return false;
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.net.Uri;
+import android.telephony.ims.SipMessage;
+import android.util.ArrayMap;
+import android.util.Pair;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Wraps a {@link SipMessage} that is being verified and tracked and caches the parts of it that
+ * are parsed, so that the validators, the {@link SipSessionTracker} and the metrics each parse
+ * the start line and headers of the message at most once.
+ * <p>
+ * Each part is parsed the first time that it is requested. The message itself is immutable, so
+ * the parsed values never change, however this class is not thread safe and should only be used
+ * on the thread that is verifying the message.
+ */
+public final class SipMessageEnvelope {
+
+    private static final int NOT_PARSED = 0;
+    private static final int INVALID = 1;
+    private static final int REQUEST = 2;
+    private static final int RESPONSE = 3;
+
+    private static final String SIP_VERSION_2 = "SIP/2.0";
+    // The request methods that SipMessageParsingUtils accepts in a request line.
+    private static final String[] SIP_REQUEST_METHODS = new String[] {"INVITE", "ACK", "OPTIONS",
+            "BYE", "CANCEL", "REGISTER", "PRACK", "SUBSCRIBE", "NOTIFY", "PUBLISH", "INFO", "REFER",
+            "MESSAGE", "UPDATE"};
+
+    /** The status code of a message that is not a response or has an invalid status code. */
+    public static final int STATUS_CODE_NONE = -1;
+
+    private final SipMessage mMessage;
+
+    private int mType = NOT_PARSED;
+    private String[] mStartLineSegments;
+    private boolean mStartLineSplit;
+    private int mStatusCode = STATUS_CODE_NONE;
+    private boolean mStatusCodeParsed;
+    private String mFromTag;
+    private boolean mFromTagParsed;
+    private String mToTag;
+    private boolean mToTagParsed;
+    private Set<String> mAcceptContactFeatureTags;
+    // Header values, keyed by lower case header name.
+    private ArrayMap<String, List<String>> mHeaderValues;
+
+    public SipMessageEnvelope(SipMessage message) {
+        mMessage = message;
+    }
+
+    /**
+     * @return The SIP message that this envelope wraps.
+     */
+    public SipMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @return {@code true} if the start line of the message is a valid SIP request line.
+     */
+    public boolean isRequest() {
+        return getType() == REQUEST;
+    }
+
+    /**
+     * @return {@code true} if the start line of the message is a valid SIP status line.
+     */
+    public boolean isResponse() {
+        return getType() == RESPONSE;
+    }
+
+    /**
+     * @return The method of a SIP request as it appears in the start line, or {@code null} if the
+     * message is not a request or its start line could not be split.
+     */
+    public String getMethod() {
+        if (!isRequest()) return null;
+        String[] segments = getStartLineSegments();
+        return segments != null ? segments[0] : null;
+    }
+
+    /**
+     * @return {@code true} if the message is a SIP request with the given method, ignoring case.
+     */
+    public boolean isRequestMethod(String method) {
+        String m = getMethod();
+        return m != null && m.equalsIgnoreCase(method);
+    }
+
+    /**
+     * @return The status code of a SIP response or {@link #STATUS_CODE_NONE} if the message is not
+     * a response or its status code could not be parsed.
+     */
+    public int getStatusCode() {
+        if (!mStatusCodeParsed) {
+            mStatusCodeParsed = true;
+            String[] segments = isResponse() ? getStartLineSegments() : null;
+            if (segments != null) {
+                try {
+                    mStatusCode = Integer.parseInt(segments[1]);
+                } catch (NumberFormatException e) {
+                    mStatusCode = STATUS_CODE_NONE;
+                }
+            }
+        }
+        return mStatusCode;
+    }
+
+    /**
+     * @return The start line split into its three segments or {@code null} if it could not be
+     * split. The returned array must not be modified.
+     */
+    public String[] getStartLineSegments() {
+        if (!mStartLineSplit) {
+            mStartLineSplit = true;
+            mStartLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
+                    mMessage.getStartLine());
+        }
+        return mStartLineSegments;
+    }
+
+    /**
+     * @return The value of the Call-ID header.
+     */
+    public String getCallId() {
+        return mMessage.getCallIdParameter();
+    }
+
+    /**
+     * @return The branch parameter of the top Via header, which identifies the transaction.
+     */
+    public String getViaBranch() {
+        return mMessage.getViaBranchParameter();
+    }
+
+    /**
+     * @return The tag parameter of the From header or {@code null} if there is none.
+     */
+    public String getFromTag() {
+        if (!mFromTagParsed) {
+            mFromTagParsed = true;
+            mFromTag = SipMessageParsingUtils.getFromTag(mMessage.getHeaderSection());
+        }
+        return mFromTag;
+    }
+
+    /**
+     * @return The tag parameter of the To header or {@code null} if there is none.
+     */
+    public String getToTag() {
+        if (!mToTagParsed) {
+            mToTagParsed = true;
+            mToTag = SipMessageParsingUtils.getToTag(mMessage.getHeaderSection());
+        }
+        return mToTag;
+    }
+
+    /**
+     * @return The feature tags contained in the "Accept-Contact" headers.
+     */
+    public Set<String> getAcceptContactFeatureTags() {
+        if (mAcceptContactFeatureTags == null) {
+            mAcceptContactFeatureTags = Collections.unmodifiableSet(
+                    SipMessageParsingUtils.getAcceptContactFeatureTags(
+                            mMessage.getHeaderSection()));
+        }
+        return mAcceptContactFeatureTags;
+    }
+
+    /**
+     * @param headerName The name of the header, which is matched ignoring case.
+     * @return The values of all headers with the given name, in the order they appear in the
+     * message, or an empty list if there are none.
+     */
+    public List<String> getHeaderValues(String headerName) {
+        String key = headerName.toLowerCase();
+        if (mHeaderValues == null) {
+            mHeaderValues = new ArrayMap<>(2);
+        }
+        List<String> values = mHeaderValues.get(key);
+        if (values == null) {
+            List<Pair<String, String>> headers = SipMessageParsingUtils.parseHeaders(
+                    mMessage.getHeaderSection(), false /*stopAtFirstMatch*/, key);
+            if (headers.isEmpty()) {
+                values = Collections.emptyList();
+            } else {
+                values = new ArrayList<>(headers.size());
+                for (Pair<String, String> header : headers) {
+                    values.add(header.second);
+                }
+                values = Collections.unmodifiableList(values);
+            }
+            mHeaderValues.put(key, values);
+        }
+        return values;
+    }
+
+    /**
+     * Classifies the start line from its segments, with the same checks as
+     * {@link SipMessageParsingUtils#isSipRequest} and {@link SipMessageParsingUtils#isSipResponse},
+     * which would each split the start line again.
+     */
+    private int getType() {
+        if (mType == NOT_PARSED) {
+            String[] segments = getStartLineSegments();
+            if (segments == null) {
+                mType = INVALID;
+            } else if (isRequestLine(segments)) {
+                mType = REQUEST;
+            } else if (isStatusLine(segments)) {
+                mType = RESPONSE;
+            } else {
+                mType = INVALID;
+            }
+        }
+        return mType;
+    }
+
+    private static boolean isRequestLine(String[] segments) {
+        if (!segments[2].contains(SIP_VERSION_2)) return false;
+        String scheme = Uri.parse(segments[1]).getScheme();
+        if (scheme == null || scheme.isEmpty()) return false;
+        for (String method : SIP_REQUEST_METHODS) {
+            if (segments[0].contains(method)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isStatusLine(String[] segments) {
+        if (!segments[0].contains(SIP_VERSION_2)) return false;
+        try {
+            int statusCode = Integer.parseInt(segments[1]);
+            return statusCode >= 100 && statusCode < 700;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mMessage.toString();
+    }
+}
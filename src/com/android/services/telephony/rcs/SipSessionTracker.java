@@ -16,6 +16,7 @@
 
 package com.android.services.telephony.rcs;
 
+import android.os.SystemClock;
 import android.telephony.ims.SipMessage;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -23,16 +24,22 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -60,19 +67,79 @@ public class SipSessionTracker {
      */
     private static final String SIP_CLOSE_DIALOG_REQUEST_METHOD = "bye";
 
+    /**
+     * The time in milliseconds that an event may wait for the ack of its message before it is
+     * evicted. This is the SIP transaction timeout of 64*T1, after which the transaction has
+     * failed anyway.
+     */
+    public static final int PENDING_EVENT_TIMEOUT_MS = 64 * 500;
+
+    /** The maximum number of events that may be pending an ack, across all branches. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_EVENTS = 256;
+
+    /** The maximum number of events that may be pending an ack for a single branch. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_EVENTS_PER_BRANCH = 8;
+
+    private static final int EVENT_CREATE_DIALOG = 0;
+    private static final int EVENT_CLOSE_DIALOG = 1;
+    private static final int EVENT_DIALOG_STATE_CHANGE = 2;
+
+    /**
+     * An operation that is pending an ack of the message that caused it.
+     */
+    private static final class PendingEvent {
+        public final int type;
+        public final int direction;
+        public final SipMessageEnvelope message;
+        public final long createdMillis;
+
+        PendingEvent(int type, int direction, SipMessageEnvelope message, long createdMillis) {
+            this.type = type;
+            this.direction = direction;
+            this.message = message;
+            this.createdMillis = createdMillis;
+        }
+    }
+
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
-    private final ArrayList<SipDialog> mTrackedDialogs = new ArrayList<>();
+    // All tracked dialogs, including forks, keyed by their call ID.
+    private final HashMap<String, List<SipDialog>> mDialogsByCallId = new HashMap<>();
+    // The call IDs of the tracked dialogs, keyed by the lower case feature tags in their
+    // Accept-Contact header.
+    private final ArrayMap<String, ArraySet<String>> mCallIdsByFeatureTag = new ArrayMap<>();
+    // The tracked dialogs, indexed by their state. SipDialog#equals changes when a dialog receives
+    // a to tag, so the dialogs are compared by identity.
+    private final Set<SipDialog> mTrackedDialogs = newDialogSet();
+    private final Set<SipDialog> mEarlyDialogs = newDialogSet();
+    private final Set<SipDialog> mConfirmedDialogs = newDialogSet();
+    private final Set<SipDialog> mClosedDialogs = newDialogSet();
     // Operations that are pending an ack from the remote application processing the message before
     // they can be applied here. Maps the via header branch parameter of the message to the
-    // associated pending operation.
-    private final ArrayMap<String, Runnable> mPendingAck = new ArrayMap<>();
+    // associated pending operations, in the order they need to be applied. The branches are kept
+    // in the order of their oldest pending operation, which holds as long as events are only
+    // ever removed from a branch by removing the whole branch.
+    private final LinkedHashMap<String, ArrayDeque<PendingEvent>> mPendingAck =
+            new LinkedHashMap<>();
+    private int mPendingEventCount;
+    private int mMaxPendingEventCount;
+    private long mCapacityEvictionCount;
+    private long mTimeoutEvictionCount;
 
     private final RcsStats mRcsStats;
+    private final LongSupplier mClock;
     int mSubId;
 
     public SipSessionTracker(int subId, RcsStats rcsStats) {
+        this(subId, rcsStats, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public SipSessionTracker(int subId, RcsStats rcsStats, LongSupplier clock) {
         mSubId = subId;
         mRcsStats = rcsStats;
+        mClock = clock;
     }
 
     /**
@@ -83,32 +150,52 @@ public class SipSessionTracker {
      * @param message The Incoming SIP message.
      */
     public void filterSipMessage(int direction, SipMessage message) {
-        final Runnable r;
+        filterSipMessage(direction, new SipMessageEnvelope(message));
+    }
+
+    /**
+     * Filter a SIP message using the parts of it that have already been parsed into the envelope.
+     * @see #filterSipMessage(int, SipMessage)
+     */
+    public void filterSipMessage(int direction, SipMessageEnvelope message) {
+        final int type;
         if (startsEarlyDialog(message)) {
-            r = getCreateDialogRunnable(direction, message);
+            type = EVENT_CREATE_DIALOG;
         } else if (closesDialog(message)) {
-            r = getCloseDialogRunnable(message);
-        } else if (SipMessageParsingUtils.isSipResponse(message.getStartLine())) {
-            r = getDialogStateChangeRunnable(message);
+            type = EVENT_CLOSE_DIALOG;
+        } else if (message.isResponse()) {
+            type = EVENT_DIALOG_STATE_CHANGE;
         } else {
-            r = null;
+            return;
         }
 
-        if (r != null) {
-            if (mPendingAck.containsKey(message.getViaBranchParameter())) {
-                Runnable lastEvent = mPendingAck.get(message.getViaBranchParameter());
-                logw("Adding new message when there was already a pending event for branch: "
-                        + message.getViaBranchParameter());
-                Runnable concatRunnable = () -> {
-                    // No choice but to concatenate the Runnables together.
-                    if (lastEvent != null) lastEvent.run();
-                    r.run();
-                };
-                mPendingAck.put(message.getViaBranchParameter(), concatRunnable);
-            } else {
-                mPendingAck.put(message.getViaBranchParameter(), r);
+        String branch = message.getViaBranch();
+        ArrayDeque<PendingEvent> events = mPendingAck.get(branch);
+        if (events == null) {
+            if (mPendingEventCount >= MAX_PENDING_EVENTS) {
+                // Make room by dropping the branch that has waited for an ack the longest.
+                Map.Entry<String, ArrayDeque<PendingEvent>> oldest =
+                        mPendingAck.entrySet().iterator().next();
+                logw("Too many pending events, evicting branch: " + oldest.getKey());
+                mCapacityEvictionCount += oldest.getValue().size();
+                removePendingEvents(oldest.getKey());
+            }
+            events = new ArrayDeque<>(1);
+            mPendingAck.put(branch, events);
+        } else {
+            logw("Adding new message when there was already a pending event for branch: "
+                    + branch);
+            if (events.size() >= MAX_PENDING_EVENTS_PER_BRANCH) {
+                // Keep the oldest events, the first of which usually creates the dialog that the
+                // later ones apply to.
+                logw("Too many pending events for branch, dropping the new event: " + branch);
+                mCapacityEvictionCount++;
+                return;
             }
         }
+        events.addLast(new PendingEvent(type, direction, message, mClock.getAsLong()));
+        mPendingEventCount++;
+        mMaxPendingEventCount = Math.max(mMaxPendingEventCount, mPendingEventCount);
     }
 
     /**
@@ -119,10 +206,10 @@ public class SipSessionTracker {
      *                    unique token.
      */
     public void acknowledgePendingMessage(String viaBranchId) {
-        Runnable r = mPendingAck.get(viaBranchId);
-        if (r != null) {
-            mPendingAck.remove(viaBranchId);
-            r.run();
+        ArrayDeque<PendingEvent> events = removePendingEvents(viaBranchId);
+        if (events == null) return;
+        for (PendingEvent e : events) {
+            applyPendingEvent(e);
         }
     }
 
@@ -131,7 +218,45 @@ public class SipSessionTracker {
      * @param viaBranchId The failed message's Via header's branch parameter.
      */
     public void pendingMessageFailed(String viaBranchId) {
-        mPendingAck.remove(viaBranchId);
+        removePendingEvents(viaBranchId);
+    }
+
+    /**
+     * Evict the events that have been waiting for the ack of their message for longer than
+     * {@link #PENDING_EVENT_TIMEOUT_MS}, as the remote application will not ack them anymore.
+     * @return The number of events that are still pending.
+     */
+    public int evictStalePendingEvents() {
+        long cutoff = mClock.getAsLong() - PENDING_EVENT_TIMEOUT_MS;
+        Iterator<Map.Entry<String, ArrayDeque<PendingEvent>>> it =
+                mPendingAck.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<PendingEvent>> entry = it.next();
+            // Branches are ordered by their oldest event, which is never removed on its own, so
+            // the rest are younger.
+            if (entry.getValue().peekFirst().createdMillis >= cutoff) break;
+            logw("Evicting pending events that were never acked for branch: " + entry.getKey());
+            mPendingEventCount -= entry.getValue().size();
+            mTimeoutEvictionCount += entry.getValue().size();
+            it.remove();
+        }
+        return mPendingEventCount;
+    }
+
+    /**
+     * @return The number of events that are pending the ack of their message.
+     */
+    public int getPendingEventCount() {
+        return mPendingEventCount;
+    }
+
+    /**
+     * @return The number of pending events that were evicted, either because there were too many
+     * pending events or because their message was never acked.
+     */
+    @VisibleForTesting
+    public long getEvictedEventCount() {
+        return mCapacityEvictionCount + mTimeoutEvictionCount;
     }
 
     /**
@@ -140,18 +265,19 @@ public class SipSessionTracker {
      * @param callId The callId of the SIP session that has been closed.
      */
     public void cleanupSession(String callId) {
-        List<SipDialog> dialogsToCleanup = mTrackedDialogs.stream()
-                .filter(d -> d.getCallId().equals(callId))
-                .collect(Collectors.toList());
-        if (dialogsToCleanup.isEmpty()) return;
+        List<SipDialog> dialogsToCleanup = mDialogsByCallId.remove(callId);
+        if (dialogsToCleanup == null) return;
         logi("Cleanup dialogs associated with call id: " + callId);
         for (SipDialog d : dialogsToCleanup) {
             mRcsStats.onSipTransportSessionClosed(mSubId, callId, 0,
                     d.getState() == d.STATE_CLOSED);
+            getDialogsInState(d.getState()).remove(d);
+            mTrackedDialogs.remove(d);
             d.close();
             logi("Dialog closed: " + d);
         }
-        mTrackedDialogs.removeAll(dialogsToCleanup);
+        // All forks share the feature tags of the dialog that was forked.
+        removeFeatureTags(callId, dialogsToCleanup.get(0).getAcceptContactFeatureTags());
     }
 
     /**
@@ -161,47 +287,54 @@ public class SipSessionTracker {
         if (featureTags.isEmpty()) return Collections.emptySet();
         Set<String> associatedIds = new ArraySet<>();
         for (String featureTag : featureTags) {
-            for (SipDialog dialog : mTrackedDialogs) {
-                boolean isAssociated = dialog.getAcceptContactFeatureTags().stream().anyMatch(
-                        d -> d.equalsIgnoreCase(featureTag));
-                if (isAssociated) associatedIds.add(dialog.getCallId());
-            }
+            ArraySet<String> callIds = mCallIdsByFeatureTag.get(featureTag.toLowerCase());
+            if (callIds != null) associatedIds.addAll(callIds);
         }
         return associatedIds;
     }
 
     /**
-     * @return All dialogs that have not received a final response yet 2XX or 3XX+.
+     * @return All dialogs that have not received a final response yet 2XX or 3XX+. The returned
+     * Set is an unmodifiable view that changes as the dialogs change state.
      */
     public Set<SipDialog> getEarlyDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_EARLY)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(mEarlyDialogs);
     }
 
     /**
-     * @return All confirmed dialogs that have received a 2XX response and are active.
+     * @return All confirmed dialogs that have received a 2XX response and are active. The
+     * returned Set is an unmodifiable view that changes as the dialogs change state.
      */
     public Set<SipDialog> getConfirmedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CONFIRMED)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(mConfirmedDialogs);
     }
 
     /**
      * @return Dialogs that have been closed via a BYE or 3XX+ response and
-     * {@link #cleanupSession(String)} has not been called yet.
+     * {@link #cleanupSession(String)} has not been called yet. The returned Set is an
+     * unmodifiable view that changes as the dialogs change state.
      */
     @VisibleForTesting
     public Set<SipDialog> getClosedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CLOSED)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(mClosedDialogs);
     }
 
     /**
      * @return All of the tracked dialogs, even the ones that have been closed but
-     * {@link #cleanupSession(String)} has not been called.
+     * {@link #cleanupSession(String)} has not been called. The returned Set is an unmodifiable
+     * view that changes as dialogs are tracked and cleaned up.
      */
     public Set<SipDialog> getTrackedDialogs() {
-        return new ArraySet<>(mTrackedDialogs);
+        return Collections.unmodifiableSet(mTrackedDialogs);
+    }
+
+    /**
+     * @return The number of tracked dialogs in the given state, either
+     * {@link SipDialog#STATE_EARLY}, {@link SipDialog#STATE_CONFIRMED} or
+     * {@link SipDialog#STATE_CLOSED}.
+     */
+    public int getDialogCount(int state) {
+        return getDialogsInState(state).size();
     }
 
     /**
@@ -211,8 +344,14 @@ public class SipSessionTracker {
         for (SipDialog d : mTrackedDialogs) {
             mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
         }
+        mDialogsByCallId.clear();
+        mCallIdsByFeatureTag.clear();
         mTrackedDialogs.clear();
+        mEarlyDialogs.clear();
+        mConfirmedDialogs.clear();
+        mClosedDialogs.clear();
         mPendingAck.clear();
+        mPendingEventCount = 0;
     }
 
     /**
@@ -222,6 +361,11 @@ public class SipSessionTracker {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
         pw.println("SipSessionTracker:");
         pw.increaseIndent();
+        pw.println("Dialogs: early=" + mEarlyDialogs.size() + ", confirmed="
+                + mConfirmedDialogs.size() + ", closed=" + mClosedDialogs.size());
+        pw.println("Pending events: " + mPendingEventCount + " in " + mPendingAck.size()
+                + " branches, max=" + mMaxPendingEventCount + ", evicted (capacity)="
+                + mCapacityEvictionCount + ", evicted (timeout)=" + mTimeoutEvictionCount);
         pw.print("Early Call IDs: ");
         pw.println(getEarlyDialogs().stream().map(SipDialog::getCallId)
                 .collect(Collectors.toSet()));
@@ -247,136 +391,209 @@ public class SipSessionTracker {
      * @return {@code true}, if the SipMessage passed in should start a new SIP dialog,
      * {@code false} if it should not.
      */
-    private boolean startsEarlyDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
+    private boolean startsEarlyDialog(SipMessageEnvelope m) {
+        String method = m.getMethod();
+        if (method == null) {
             return false;
         }
         return Arrays.stream(SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(r -> r.equalsIgnoreCase(startLineSegments[0]));
+                .anyMatch(r -> r.equalsIgnoreCase(method));
     }
 
     /**
      * @return {@code true}, if the SipMessage passed in should close a confirmed dialog,
      * {@code false} if it should not.
      */
-    private boolean closesDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
+    private boolean closesDialog(SipMessageEnvelope m) {
+        return m.isRequestMethod(SIP_CLOSE_DIALOG_REQUEST_METHOD);
+    }
+
+    private ArrayDeque<PendingEvent> removePendingEvents(String viaBranchId) {
+        ArrayDeque<PendingEvent> events = mPendingAck.remove(viaBranchId);
+        if (events != null) mPendingEventCount -= events.size();
+        return events;
+    }
+
+    private void applyPendingEvent(PendingEvent e) {
+        switch (e.type) {
+            case EVENT_CREATE_DIALOG:
+                createDialog(e.direction, e.message);
+                break;
+            case EVENT_CLOSE_DIALOG:
+                closeDialogs(e.message);
+                break;
+            case EVENT_DIALOG_STATE_CHANGE:
+                changeDialogState(e.message);
+                break;
+            default:
+                logw("applyPendingEvent: unknown event " + e.type);
         }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            return false;
+    }
+
+    private void createDialog(int direction, SipMessageEnvelope m) {
+        List<SipDialog> duplicateDialogs = mDialogsByCallId.get(m.getCallId());
+        if (duplicateDialogs != null) {
+            logi("trying to create a dialog for a call ID that already exists, skip: "
+                    + duplicateDialogs);
+            return;
         }
-        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(startLineSegments[0]);
+        SipDialog dialog = SipDialog.fromSipMessage(m);
+        mRcsStats.earlySipTransportSession(m.getMethod(), dialog.getCallId(), direction);
+        logi("Starting new SipDialog: " + dialog);
+        addDialog(dialog);
     }
 
-    private Runnable getCreateDialogRunnable(int direction, SipMessage m) {
-        return () -> {
-            List<SipDialog> duplicateDialogs = mTrackedDialogs.stream()
-                    .filter(d -> d.getCallId().equals(m.getCallIdParameter()))
-                    .collect(Collectors.toList());
-            if (duplicateDialogs.size() > 0) {
-                logi("trying to create a dialog for a call ID that already exists, skip: "
-                        + duplicateDialogs);
-                return;
-            }
-            SipDialog dialog = SipDialog.fromSipMessage(m);
-            String[] startLineSegments =
-                    SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-            mRcsStats.earlySipTransportSession(startLineSegments[0], dialog.getCallId(),
-                    direction);
-            logi("Starting new SipDialog: " + dialog);
-            mTrackedDialogs.add(dialog);
-        };
-    }
-
-    private Runnable getCloseDialogRunnable(SipMessage m) {
-        return () -> {
-            List<SipDialog> dialogsToClose = mTrackedDialogs.stream()
-                    .filter(d -> d.isRequestAssociatedWithDialog(m))
-                    .collect(Collectors.toList());
-            if (dialogsToClose.isEmpty()) return;
-            logi("Closing dialogs associated with: " + m);
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), 0, true);
-            for (SipDialog d : dialogsToClose) {
-                d.close();
-                logi("Dialog closed: " + d);
-            }
-        };
-    }
-
-    private Runnable getDialogStateChangeRunnable(SipMessage m) {
-        return () -> {
-            // This will return a dialog and all of its potential forks
-            List<SipDialog> associatedDialogs = mTrackedDialogs.stream()
-                    .filter(d -> d.isResponseAssociatedWithDialog(m))
-                    .collect(Collectors.toList());
-            if (associatedDialogs.isEmpty()) return;
-            String messageToTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
-            // If the to tag matches (or message to tag doesn't exist in dialog yet because this is
-            // the first response), then we are done.
-            SipDialog match = associatedDialogs.stream()
-                    .filter(d -> d.getToTag() == null || d.getToTag().equals(messageToTag))
-                    .findFirst().orElse(null);
-            if (match == null) {
-                // If it doesn't then we have a situation where we need to fork the existing dialog.
-                // The dialog used to fork doesn't matter, since the required params are the same,
-                // so simply use the first one in the returned list.
-                logi("Dialog forked");
-                match = associatedDialogs.get(0).forkDialog();
-                mTrackedDialogs.add(match);
-            }
-            if (match != null) {
-                logi("Dialog: " + match + " is associated with: " + m);
-                updateSipDialogState(match, m);
-                logi("Dialog state updated to " + match);
-            } else {
-                logi("No Dialogs are associated with: " + m);
-            }
-        };
+    private void closeDialogs(SipMessageEnvelope m) {
+        List<SipDialog> dialogsToClose = getForks(m.getCallId()).stream()
+                .filter(d -> d.isRequestAssociatedWithDialog(m))
+                .collect(Collectors.toList());
+        if (dialogsToClose.isEmpty()) return;
+        logi("Closing dialogs associated with: " + toLogString(m));
+        mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), 0, true);
+        for (SipDialog d : dialogsToClose) {
+            closeDialog(d);
+            logi("Dialog closed: " + d);
+        }
+    }
+
+    private void changeDialogState(SipMessageEnvelope m) {
+        // This will return a dialog and all of its potential forks
+        List<SipDialog> associatedDialogs = getForks(m.getCallId()).stream()
+                .filter(d -> d.isResponseAssociatedWithDialog(m))
+                .collect(Collectors.toList());
+        if (associatedDialogs.isEmpty()) return;
+        String messageToTag = m.getToTag();
+        // If the to tag matches (or message to tag doesn't exist in dialog yet because this is
+        // the first response), then we are done.
+        SipDialog match = associatedDialogs.stream()
+                .filter(d -> d.getToTag() == null || d.getToTag().equals(messageToTag))
+                .findFirst().orElse(null);
+        if (match == null) {
+            // If it doesn't then we have a situation where we need to fork the existing dialog.
+            // The dialog used to fork doesn't matter, since the required params are the same,
+            // so simply use the first one in the returned list.
+            logi("Dialog forked");
+            match = associatedDialogs.get(0).forkDialog();
+            addDialog(match);
+        }
+        if (match != null) {
+            logi("Dialog: " + match + " is associated with: " + toLogString(m));
+            updateSipDialogState(match, m);
+            logi("Dialog state updated to " + match);
+        } else {
+            logi("No Dialogs are associated with: " + toLogString(m));
+        }
     }
 
-    private void updateSipDialogState(SipDialog d, SipMessage m) {
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            logw("Could not parse start line for SIP message: " + m.getStartLine());
+    private void updateSipDialogState(SipDialog d, SipMessageEnvelope m) {
+        if (m.getStartLineSegments() == null) {
+            logw("Could not parse start line for SIP message: " + toLogString(m));
             return;
         }
-        int statusCode = 0;
-        try {
-            statusCode = Integer.parseInt(startLineSegments[1]);
-        } catch (NumberFormatException e) {
-            logw("Could not parse status code for SIP message: " + m.getStartLine());
+        int statusCode = m.getStatusCode();
+        if (statusCode == SipMessageEnvelope.STATUS_CODE_NONE) {
+            logw("Could not parse status code for SIP message: " + toLogString(m));
             return;
         }
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+        String toTag = m.getToTag();
         logi("updateSipDialogState: message has statusCode: " + statusCode + ", and to tag: "
                 + toTag);
         // If specifically 100 Trying, then do not do anything.
         if (statusCode <= 100) return;
         // If 300+, then this dialog has received an error response and should move to closed state.
         if (statusCode >= 300) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), statusCode, true);
-            d.close();
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), statusCode, true);
+            closeDialog(d);
             return;
         }
-        if (toTag == null) logw("updateSipDialogState: No to tag for message: " + m);
+        if (toTag == null) {
+            logw("updateSipDialogState: No to tag for message: " + toLogString(m));
+        }
         if (statusCode >= 200) {
-            mRcsStats.confirmedSipTransportSession(m.getCallIdParameter(), statusCode);
+            mRcsStats.confirmedSipTransportSession(m.getCallId(), statusCode);
+            int oldState = d.getState();
             d.confirm(toTag);
+            onDialogStateChanged(d, oldState);
             return;
         }
         // 1XX responses still require updates to dialogs.
         d.earlyResponse(toTag);
     }
 
+    /**
+     * Describes the message for the logs by its method or status code and the hash of its
+     * Call-ID, leaving out the rest of the message, which may identify the user.
+     */
+    private static String toLogString(SipMessageEnvelope m) {
+        String callId = m.getCallId();
+        return "[" + (m.isResponse() ? m.getStatusCode() : m.getMethod()) + ", callId hash="
+                + (callId != null ? callId.hashCode() : 0) + "]";
+    }
+
+    private List<SipDialog> getForks(String callId) {
+        List<SipDialog> forks = mDialogsByCallId.get(callId);
+        return forks != null ? forks : Collections.emptyList();
+    }
+
+    private void addDialog(SipDialog d) {
+        List<SipDialog> forks = mDialogsByCallId.get(d.getCallId());
+        if (forks == null) {
+            forks = new ArrayList<>(1);
+            mDialogsByCallId.put(d.getCallId(), forks);
+            for (String featureTag : d.getAcceptContactFeatureTags()) {
+                String key = featureTag.toLowerCase();
+                ArraySet<String> callIds = mCallIdsByFeatureTag.get(key);
+                if (callIds == null) {
+                    callIds = new ArraySet<>();
+                    mCallIdsByFeatureTag.put(key, callIds);
+                }
+                callIds.add(d.getCallId());
+            }
+        }
+        forks.add(d);
+        mTrackedDialogs.add(d);
+        getDialogsInState(d.getState()).add(d);
+    }
+
+    private void removeFeatureTags(String callId, Set<String> featureTags) {
+        for (String featureTag : featureTags) {
+            String key = featureTag.toLowerCase();
+            ArraySet<String> callIds = mCallIdsByFeatureTag.get(key);
+            if (callIds == null) continue;
+            callIds.remove(callId);
+            if (callIds.isEmpty()) mCallIdsByFeatureTag.remove(key);
+        }
+    }
+
+    private void closeDialog(SipDialog d) {
+        int oldState = d.getState();
+        d.close();
+        onDialogStateChanged(d, oldState);
+    }
+
+    private void onDialogStateChanged(SipDialog d, int oldState) {
+        if (d.getState() == oldState) return;
+        getDialogsInState(oldState).remove(d);
+        getDialogsInState(d.getState()).add(d);
+    }
+
+    private Set<SipDialog> getDialogsInState(int state) {
+        switch (state) {
+            case SipDialog.STATE_EARLY:
+                return mEarlyDialogs;
+            case SipDialog.STATE_CONFIRMED:
+                return mConfirmedDialogs;
+            case SipDialog.STATE_CLOSED:
+                return mClosedDialogs;
+            default:
+                throw new IllegalArgumentException("Unknown dialog state: " + state);
+        }
+    }
+
+    private static Set<SipDialog> newDialogSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
     private void logi(String log) {
         Log.i(SipTransportController.LOG_TAG, TAG + ": " + log);
         mLocalLog.log("[I] " + log);
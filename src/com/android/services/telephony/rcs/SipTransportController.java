@@ -92,6 +92,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private static final int REEVALUATE_THROTTLE_DEFAULT_MS = 1000;
     /**See {@link TimerAdapter#getUpdateRegistrationDelayMilliseconds()}.*/
     private static final int TRIGGER_UPDATE_REGISTRATION_DELAY_DEFAULT_MS = 1000;
+    // The number of threads shared by the executors of the SipDelegateControllers on this slot.
+    private static final int DELEGATE_EXECUTOR_POOL_SIZE = 4;
 
     /**
      * {@link RoleManager} is final so we have to wrap the implementation for testing.
@@ -252,7 +254,12 @@ public class SipTransportController implements RcsFeatureController.Feature,
 
     private SipDelegateControllerFactory mDelegateControllerFactory = SipDelegateController::new;
     private final int mSlotId;
+    // Used for the state of this controller, such as reevaluating the feature tags of every
+    // SipDelegateController on this slot.
     private final ScheduledExecutorService mExecutorService;
+    // Shared by the executors of the SipDelegateControllers on this slot, which each run the tasks
+    // of one SipDelegateController in order.
+    private final ScheduledExecutorService mDelegateExecutorPool;
     private final RoleManagerAdapter mRoleManagerAdapter;
     private final TimerAdapter mTimerAdapter;
     private final LocalLog mLocalLog = new LocalLog(LOG_SIZE);
@@ -303,6 +310,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mRoleManagerAdapter = new RoleManagerAdapterImpl(context);
         mTimerAdapter = new TimerAdapterImpl();
         mExecutorService = Executors.newSingleThreadScheduledExecutor();
+        mDelegateExecutorPool = Executors.newScheduledThreadPool(DELEGATE_EXECUTOR_POOL_SIZE);
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
     }
 
@@ -313,6 +321,19 @@ public class SipTransportController implements RcsFeatureController.Feature,
     public SipTransportController(Context context, int slotId, int subId,
             SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
             TimerAdapter timerAdapter, ScheduledExecutorService executor) {
+        this(context, slotId, subId, delegateFactory, roleManagerAdapter, timerAdapter, executor,
+                executor);
+    }
+
+    /**
+     * Constructor to inject dependencies for testing, including the pool that the executors of
+     * the SipDelegateControllers run on.
+     */
+    @VisibleForTesting
+    public SipTransportController(Context context, int slotId, int subId,
+            SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
+            TimerAdapter timerAdapter, ScheduledExecutorService executor,
+            ScheduledExecutorService delegateExecutorPool) {
         mSlotId = slotId;
         mSubId = subId;
 
@@ -320,6 +341,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mTimerAdapter = timerAdapter;
         mDelegateControllerFactory = delegateFactory;
         mExecutorService = executor;
+        mDelegateExecutorPool = delegateExecutorPool;
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
         logi("created");
     }
@@ -352,7 +374,10 @@ public class SipTransportController implements RcsFeatureController.Feature,
             triggerDeregistrationEvent();
             scheduleDestroyDelegates(
                     SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN)
-                    .thenRun(mExecutorService::shutdown);
+                    .thenRun(() -> {
+                        mDelegateExecutorPool.shutdown();
+                        mExecutorService.shutdown();
+                    });
         });
     }
 
@@ -451,8 +476,11 @@ public class SipTransportController implements RcsFeatureController.Feature,
             return;
         }
 
+        // Each SipDelegateController gets its own ordered executor so that a slow SipDelegate or
+        // IMS application does not delay the others on this slot.
         SipDelegateController c = mDelegateControllerFactory.create(subId, uid, request,
-                packageName, transport, registration, mExecutorService, delegateState,
+                packageName, transport, registration,
+                new OrderedScheduledExecutor(mDelegateExecutorPool), delegateState,
                 delegateMessage);
         logi("createSipDelegateInternal: request= " + request + ", packageName= " + packageName
                 + ", controller created: " + c);
@@ -744,17 +772,18 @@ public class SipTransportController implements RcsFeatureController.Feature,
             }, mExecutorService);
         }
 
-        // Executor doesn't matter here, schedule an event to update the IMS registration.
+        // The last stage may complete on the executor of a SipDelegateController, so move back to
+        // this controller's executor to schedule an event to update the IMS registration.
         mEvaluateCompleteFuture = pendingChange
                 .whenComplete((f, ex) -> {
                     if (ex != null) {
                         logw("reevaluateDelegates: Exception caught: " + ex);
                     }
-                }).thenAccept((associatedFeatures) -> {
+                }).thenAcceptAsync((associatedFeatures) -> {
                     logi("reevaluateDelegates: reevaluate complete, feature tags associated: "
                             + associatedFeatures);
                     scheduleUpdateRegistration();
-                });
+                }, mExecutorService);
         logi("reevaluateDelegates: future created.");
     }
 
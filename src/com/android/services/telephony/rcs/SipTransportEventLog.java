@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.telephony.ims.SipDelegateManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import java.time.Instant;
+
+/**
+ * A fixed size ring of the SIP messages that passed through the transport, recorded without
+ * allocating so that it can be used for every message.
+ * <p>
+ * Each entry records the time, the direction, the request method or response status code, the
+ * hash of the Call-ID and the result of validating the message. The entries are only formatted
+ * when they are dumped.
+ * <p>
+ * This class is not thread safe and should only be used on the transport executor.
+ */
+final class SipTransportEventLog {
+
+    /** The method of a request that is not in {@link #METHODS}. */
+    private static final int METHOD_OTHER = -1;
+    /** A message that was neither a valid request nor a valid response. */
+    private static final int KIND_INVALID = 0;
+    private static final int KIND_REQUEST = 1;
+    private static final int KIND_RESPONSE = 2;
+
+    // The request methods that are recorded by their index.
+    private static final String[] METHODS = new String[] {
+            "INVITE", "ACK", "BYE", "CANCEL", "MESSAGE", "SUBSCRIBE", "NOTIFY", "REFER", "UPDATE",
+            "PRACK", "INFO", "OPTIONS", "PUBLISH", "REGISTER"};
+
+    private final long[] mTimestampMillis;
+    private final int[] mDirections;
+    private final int[] mKinds;
+    // The index of the method for requests, the status code for responses.
+    private final int[] mMethodOrStatus;
+    private final int[] mCallIdHashes;
+    // -1 if the message was validated, the restricted reason if it was not.
+    private final int[] mResults;
+    private int mNext;
+    private long mCount;
+
+    SipTransportEventLog(int size) {
+        mTimestampMillis = new long[size];
+        mDirections = new int[size];
+        mKinds = new int[size];
+        mMethodOrStatus = new int[size];
+        mCallIdHashes = new int[size];
+        mResults = new int[size];
+    }
+
+    /**
+     * Record a SIP message that has been verified.
+     * @param direction The direction of the message, as reported to RcsStats.
+     * @param message The message.
+     * @param result The result of validating the message.
+     */
+    void record(int direction, SipMessageEnvelope message, ValidationResult result) {
+        int i = mNext;
+        mTimestampMillis[i] = System.currentTimeMillis();
+        mDirections[i] = direction;
+        if (message.isRequest()) {
+            mKinds[i] = KIND_REQUEST;
+            mMethodOrStatus[i] = indexOfMethod(message.getMethod());
+        } else if (message.isResponse()) {
+            mKinds[i] = KIND_RESPONSE;
+            mMethodOrStatus[i] = message.getStatusCode();
+        } else {
+            mKinds[i] = KIND_INVALID;
+            mMethodOrStatus[i] = 0;
+        }
+        String callId = message.getCallId();
+        mCallIdHashes[i] = callId != null ? callId.hashCode() : 0;
+        mResults[i] = result.isValidated ? -1 : result.restrictedReason;
+        mNext = (i + 1) % mTimestampMillis.length;
+        mCount++;
+    }
+
+    /**
+     * @return The number of messages recorded since this log was created, including the ones that
+     * have been overwritten.
+     */
+    @VisibleForTesting
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Dump the recorded messages, oldest first.
+     */
+    void dump(IndentingPrintWriter pw) {
+        int size = mTimestampMillis.length;
+        int recorded = (int) Math.min(mCount, size);
+        pw.println("Recent SIP messages (" + recorded + " of " + mCount + "):");
+        pw.increaseIndent();
+        for (int n = 0; n < recorded; n++) {
+            int i = (mNext - recorded + n + size) % size;
+            pw.println(formatEntry(i));
+        }
+        pw.decreaseIndent();
+    }
+
+    @VisibleForTesting
+    String formatEntry(int i) {
+        StringBuilder b = new StringBuilder();
+        b.append(Instant.ofEpochMilli(mTimestampMillis[i]));
+        b.append(" dir=");
+        b.append(mDirections[i]);
+        b.append(' ');
+        switch (mKinds[i]) {
+            case KIND_REQUEST:
+                int method = mMethodOrStatus[i];
+                b.append(method == METHOD_OTHER ? "OTHER" : METHODS[method]);
+                break;
+            case KIND_RESPONSE:
+                b.append(mMethodOrStatus[i]);
+                break;
+            default:
+                b.append("INVALID");
+        }
+        b.append(" callId#=");
+        b.append(Integer.toHexString(mCallIdHashes[i]));
+        if (mResults[i] == -1) {
+            b.append(" validated");
+        } else {
+            b.append(" denied=");
+            b.append(SipDelegateManager.MESSAGE_FAILURE_REASON_STRING_MAP.getOrDefault(
+                    mResults[i], String.valueOf(mResults[i])));
+        }
+        return b.toString();
+    }
+
+    private static int indexOfMethod(String method) {
+        if (method == null) return METHOD_OTHER;
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equalsIgnoreCase(method)) return i;
+        }
+        return METHOD_OTHER;
+    }
+}
@@ -19,6 +19,7 @@ package com.android.services.telephony.rcs;
 import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING;
 import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
 
+import android.os.SystemProperties;
 import android.telephony.ims.DelegateRegistrationState;
 import android.telephony.ims.FeatureTagState;
 import android.telephony.ims.SipDelegateConfiguration;
@@ -29,7 +30,6 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
@@ -80,6 +80,15 @@ public class TransportSipMessageValidator {
      */
     private static final int PENDING_REGISTRATION_CHANGE_TIMEOUT_MS = 1000;
 
+    /**
+     * When set to true, the full contents of each SIP message that is verified are logged. Only
+     * for debugging, as this stringifies every message on the transport executor.
+     */
+    private static final String LOG_SIP_MESSAGES_PROPERTY = "persist.dbg.rcs_log_sip_messages";
+
+    /** The number of SIP messages that are kept in the event log. */
+    private static final int EVENT_LOG_SIZE = 256;
+
     /**
      * Timeouts used in this class that are visible for testing.
      */
@@ -136,6 +145,7 @@ public class TransportSipMessageValidator {
     private final int mSubId;
     private final ScheduledExecutorService mExecutor;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
+    private final SipTransportEventLog mEventLog = new SipTransportEventLog(EVENT_LOG_SIZE);
     private final SipSessionTracker mSipSessionTracker;
     // Validators
     private final IncomingTransportStateValidator mIncomingTransportStateValidator;
@@ -149,6 +159,7 @@ public class TransportSipMessageValidator {
     private Consumer<Set<String>> mClosingCompleteConsumer;
     private PendingTask mPendingClose;
     private PendingRegCleanupTask mPendingRegCleanup;
+    private PendingTask mPendingEventSweep;
     private Consumer<Set<String>> mRegistrationAppliedConsumer;
     private final RcsStats mRcsStats;
 
@@ -371,13 +382,22 @@ public class TransportSipMessageValidator {
                     "stale IMS configuration: "  + configVersion + ", expected: "
                             + mConfigVersion);
         }
-        ValidationResult result = mOutgoingMessageValidator.validate(message);
-        logi("verifyOutgoingMessage: " + result + ", message=" + message);
+        // Parsed once and shared by the validators, the session tracker and the metrics.
+        SipMessageEnvelope envelope = new SipMessageEnvelope(message);
+        ValidationResult result = mOutgoingMessageValidator.validate(envelope);
+        mEventLog.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope, result);
+        if (isSipMessageLoggingEnabled()) {
+            logi("verifyOutgoingMessage: " + result + ", message=" + message);
+        } else if (!result.isValidated) {
+            logw("verifyOutgoingMessage: " + result);
+        }
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope);
+            schedulePendingEventSweep();
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope,
+                result);
         return result;
     }
 
@@ -388,13 +408,21 @@ public class TransportSipMessageValidator {
      * @return The result of verifying the incoming message.
      */
     public ValidationResult verifyIncomingMessage(SipMessage message) {
-        ValidationResult result = mIncomingMessageValidator.validate(message);
-        logi("verifyIncomingMessage: " + result + ", message=" + message);
+        SipMessageEnvelope envelope = new SipMessageEnvelope(message);
+        ValidationResult result = mIncomingMessageValidator.validate(envelope);
+        mEventLog.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope, result);
+        if (isSipMessageLoggingEnabled()) {
+            logi("verifyIncomingMessage: " + result + ", message=" + message);
+        } else if (!result.isValidated) {
+            logw("verifyIncomingMessage: " + result);
+        }
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope);
+            schedulePendingEventSweep();
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope,
+                result);
         return result;
     }
 
@@ -430,6 +458,8 @@ public class TransportSipMessageValidator {
         pw.println();
         mSipSessionTracker.dump(pw);
         pw.println();
+        mEventLog.dump(pw);
+        pw.println();
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
     }
@@ -453,6 +483,26 @@ public class TransportSipMessageValidator {
         }
     }
 
+    /**
+     * Schedule a sweep of the events that were never acked by the remote application, if there
+     * are pending events and a sweep is not already scheduled. The sweep reschedules itself for as
+     * long as there are pending events.
+     */
+    private void schedulePendingEventSweep() {
+        if (mPendingEventSweep != null && !mPendingEventSweep.isDone()) return;
+        if (mSipSessionTracker.getPendingEventCount() == 0) return;
+        mPendingEventSweep = new PendingTask() {
+            @Override
+            public void run() {
+                mPendingEventSweep = null;
+                if (mSipSessionTracker.evictStalePendingEvents() > 0) {
+                    schedulePendingEventSweep();
+                }
+            }
+        };
+        mPendingEventSweep.scheduleDelayed(mExecutor, SipSessionTracker.PENDING_EVENT_TIMEOUT_MS);
+    }
+
     /**
      * If there are any pending registration clean up tasks, cancel them and clean up consumers.
      */
@@ -548,6 +598,10 @@ public class TransportSipMessageValidator {
         mOutgoingTransportStateValidator.close(closedReason);
         mIncomingTransportStateValidator.close(closedReason);
         mSipSessionTracker.clearAllSessions();
+        if (mPendingEventSweep != null) {
+            mPendingEventSweep.cancel();
+            mPendingEventSweep = null;
+        }
     }
 
     private Set<String> getTrackedSipSessionCallIds() {
@@ -555,28 +609,28 @@ public class TransportSipMessageValidator {
                 .collect(Collectors.toSet());
     }
 
-    private void updateForMetrics(int direction, SipMessage m, ValidationResult result) {
-        String[] startLineSegments = SipMessageParsingUtils
-                .splitStartLineAndVerify(m.getStartLine());
-        if (SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+    private void updateForMetrics(int direction, SipMessageEnvelope m, ValidationResult result) {
+        if (m.isRequest()) {
             if (result.isValidated) {
                 // SipMessage add to list for Metrics stats
-                mRcsStats.onSipMessageRequest(m.getCallIdParameter(), startLineSegments[0],
-                        direction);
+                mRcsStats.onSipMessageRequest(m.getCallId(), m.getMethod(), direction);
             } else {
                 //Message sending fail and there is no response.
-                mRcsStats.invalidatedMessageResult(mSubId, startLineSegments[0], direction,
+                mRcsStats.invalidatedMessageResult(mSubId, m.getMethod(), direction,
                         result.restrictedReason);
             }
-        } else if (SipMessageParsingUtils.isSipResponse(m.getStartLine())) {
-            int statusCode = Integer.parseInt(startLineSegments[1]);
-            mRcsStats.onSipMessageResponse(mSubId, m.getCallIdParameter(), statusCode,
+        } else if (m.isResponse()) {
+            mRcsStats.onSipMessageResponse(mSubId, m.getCallId(), m.getStatusCode(),
                     result.restrictedReason);
         } else {
             logw("Message is Restricted");
         }
     }
 
+    private static boolean isSipMessageLoggingEnabled() {
+        return SystemProperties.getBoolean(LOG_SIP_MESSAGES_PROPERTY, false);
+    }
+
     private void logi(String log) {
         Log.i(SipTransportController.LOG_TAG, LOG_TAG + "[" + mSubId + "] " + log);
         mLocalLog.log("[I] " + log);
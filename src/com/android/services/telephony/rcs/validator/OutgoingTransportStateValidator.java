@@ -17,13 +17,12 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.services.telephony.rcs.SipDialog;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 import com.android.services.telephony.rcs.SipSessionTracker;
 import com.android.services.telephony.rcs.SipTransportController;
 
@@ -120,14 +119,14 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
     }
 
     @Override
-    public ValidationResult validate(SipMessage message) {
+    public ValidationResult validate(SipMessageEnvelope envelope) {
         switch (mState) {
             case STATE_CLOSED:
                 return new ValidationResult(mReason, "outgoing transport closed.");
             case STATE_RESTRICTED:
-                return verifyRestrictedMessage(message);
+                return verifyRestrictedMessage(envelope);
             case STATE_OPEN:
-                return verifyOpenMessage(message);
+                return verifyOpenMessage(envelope);
             default:
                 Log.w(SipTransportController.LOG_TAG, "OutgoingTSV - warning, unexpected state");
                 return ValidationResult.SUCCESS;
@@ -149,27 +148,27 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
                 + mRestrictedFeatureTags + ", denied tags: " + mDeniedTags;
     }
 
-    private ValidationResult verifyOpenMessage(SipMessage m) {
+    private ValidationResult verifyOpenMessage(SipMessageEnvelope m) {
         // No need to validate responses to requests.
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+        if (!m.isRequest()) {
             return ValidationResult.SUCCESS;
         }
         if (mRestrictedFeatureTags == null) {
             return new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_NOT_REGISTERED,
                     "no reg state from vendor");
         }
-        String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-        if (segments == null) {
+        String method = m.getMethod();
+        if (method == null) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "couldn't parse start line: " + m.getStartLine());
+                    "couldn't parse start line: " + m.getMessage().getStartLine());
         }
         // Only need to validate requests that start dialogs.
         boolean startsDialog = Arrays.stream(SipSessionTracker.SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(req -> req.equals(segments[0].trim().toLowerCase()));
+                .anyMatch(req -> req.equals(method.trim().toLowerCase()));
         // If part of an existing dialog, then no need to validate.
         boolean needsFeatureValidation = startsDialog && !getAllowedCallIds()
-                .contains(m.getCallIdParameter());
+                .contains(m.getCallId());
         if (needsFeatureValidation) {
             return validateMessageFeatureTag(m);
         }
@@ -180,12 +179,10 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
      * Compares the "Accept-Contact" header against the supported/denied feature tags and ensures
      * that there are no restricted or denied tags included.
      */
-    private ValidationResult validateMessageFeatureTag(SipMessage m) {
-        Set<String> featureTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
-                m.getHeaderSection());
+    private ValidationResult validateMessageFeatureTag(SipMessageEnvelope m) {
         // Get rid of potential formatting issues first.
-        featureTags = featureTags.stream().map(String::toLowerCase).map(String::trim)
-                .collect(Collectors.toSet());
+        Set<String> featureTags = m.getAcceptContactFeatureTags().stream()
+                .map(String::toLowerCase).map(String::trim).collect(Collectors.toSet());
         long acceptedFeatureTagCount = featureTags.stream()
                 .filter(f -> mAllowedTags.contains(f)).count();
         long deniedFeatureTagCount = featureTags.stream()
@@ -215,13 +212,13 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         return ValidationResult.SUCCESS;
     }
 
-    private ValidationResult verifyRestrictedMessage(SipMessage m) {
+    private ValidationResult verifyRestrictedMessage(SipMessageEnvelope m) {
         // The validator is in the restricted state, so only in dialog requests and all responses
         // are allowed.
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+        if (!m.isRequest()) {
             return ValidationResult.SUCCESS;
         }
-        String callId = m.getCallIdParameter();
+        String callId = m.getCallId();
         if (TextUtils.isEmpty(callId)) {
             return new ValidationResult(mReason, "empty call id");
         }
@@ -17,9 +17,8 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 
 import java.util.Arrays;
 
@@ -37,20 +36,19 @@ public class RestrictedOutgoingSipRequestValidator implements SipMessageValidato
             "register", "options", "publish"};
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        String startLine = message.getStartLine();
-        if (SipMessageParsingUtils.isSipRequest(startLine)) {
-            String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
-            if (segments == null) {
+    public ValidationResult validate(SipMessageEnvelope envelope) {
+        if (envelope.isRequest()) {
+            String method = envelope.getMethod();
+            if (method == null) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "malformed start line: " + message.getStartLine());
+                        "malformed start line: " + envelope.getMessage().getStartLine());
             }
             if (Arrays.stream(IMS_SERVICE_HANDLED_REQUEST_METHODS).anyMatch(
-                    s -> segments[0].toLowerCase().contains(s))) {
+                    s -> method.toLowerCase().contains(s))) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "restricted method: " + segments[0]);
+                        "restricted method: " + method);
             }
         }
         return ValidationResult.SUCCESS;
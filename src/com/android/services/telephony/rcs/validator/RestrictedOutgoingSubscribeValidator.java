@@ -17,14 +17,11 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
-import android.util.Pair;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Ensure that if there is an outgoing SUBSCRIBE request, that it does not contain the "Event"
@@ -38,34 +35,32 @@ public class RestrictedOutgoingSubscribeValidator implements SipMessageValidator
 
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        if (!SipMessageParsingUtils.isSipRequest(message.getStartLine())) {
+    public ValidationResult validate(SipMessageEnvelope envelope) {
+        if (!envelope.isRequest()) {
             return ValidationResult.SUCCESS;
         }
-        String[] requestSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                message.getStartLine());
-        if (requestSegments == null) {
+        if (envelope.getMethod() == null) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "malformed start line: " + message.getStartLine());
+                    "malformed start line: " + envelope.getMessage().getStartLine());
         }
         // Request-Line  =  Method SP Request-URI SP SIP-Version CRLF, verify Method
-        if (!requestSegments[0].equalsIgnoreCase(SUBSCRIBE_REQUEST)) {
+        if (!envelope.isRequestMethod(SUBSCRIBE_REQUEST)) {
             return ValidationResult.SUCCESS;
         }
 
-        List<Pair<String, String>> eventHeaders = SipMessageParsingUtils.parseHeaders(
-                message.getHeaderSection(), true /*stopAtFirstMatch*/, SUBSCRIBE_EVENT_HEADER);
+        List<String> eventHeaders = envelope.getHeaderValues(SUBSCRIBE_EVENT_HEADER);
         if (eventHeaders.size() == 0) {
             return ValidationResult.SUCCESS;
         }
-        boolean isRestricted = eventHeaders.stream().map(e -> e.second)
-                .anyMatch(e -> Arrays.asList(RESTRICTED_EVENTS).contains(e.trim().toLowerCase()));
+        // Only the first Event header is checked, a SUBSCRIBE request contains exactly one.
+        String event = eventHeaders.get(0);
+        boolean isRestricted = Arrays.asList(RESTRICTED_EVENTS).contains(
+                event.trim().toLowerCase());
 
         return isRestricted ? new ValidationResult(
                 SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_HEADER_FIELDS,
-                "matched a restricted header field: " + eventHeaders.stream().map(e -> e.second)
-                        .collect(Collectors.toSet())) :
+                "matched a restricted header field: " + event) :
                 ValidationResult.SUCCESS;
     }
 }
@@ -18,6 +18,8 @@ package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipMessage;
 
+import com.android.services.telephony.rcs.SipMessageEnvelope;
+
 /**
  * Validates a SipMessage and returns the result via an instance of {@link ValidationResult}.
  */
@@ -28,7 +30,18 @@ public interface SipMessageValidator {
      * @return A {@link ValidationResult} that represents whether or not the message was validated.
      * If not validated, it also returns a reason why the SIP message was not validated.
      */
-    ValidationResult validate(SipMessage message);
+    default ValidationResult validate(SipMessage message) {
+        return validate(new SipMessageEnvelope(message));
+    }
+
+    /**
+     * Validate that the SipMessage is allowed to be sent to the remote, using the parts of the
+     * message that have already been parsed into the envelope.
+     * @param envelope The envelope of the SipMessage being validated.
+     * @return A {@link ValidationResult} that represents whether or not the message was validated.
+     * If not validated, it also returns a reason why the SIP message was not validated.
+     */
+    ValidationResult validate(SipMessageEnvelope envelope);
 
     /**
      * Compose a SipMessageValidator out of two validators, this validator running before the next
@@ -38,7 +51,7 @@ public interface SipMessageValidator {
      * @return A new SipMessageValidator composed of this validator and the next one.
      */
     default SipMessageValidator andThen(SipMessageValidator next) {
-        return (SipMessage m) -> {
+        return (SipMessageEnvelope m) -> {
             ValidationResult result = validate(m);
             if (!result.isValidated) return result;
             return next.validate(m);
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.telephony.CarrierConfigManager;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * Unit Test for CarrierConfigCacheFile.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigCacheFileTest {
+    private static final String TAG = "CarrierConfigCacheFileTest";
+    private static final String PACKAGE_VERSION = "42";
+    private static final int CARRIER_ID = 1839;
+
+    private File mFile;
+    private File mXmlFile;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mFile = new File(dir, "carrierconfig-test" + CarrierConfigCacheFile.FILE_EXTENSION);
+        mXmlFile = new File(dir, "carrierconfig-test.xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+        mXmlFile.delete();
+    }
+
+    @Test
+    public void testWriteAndOpen_roundTripsAllValueTypes() throws Exception {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putInt("nested_int", 7);
+        nested.putStringArray("nested_string_array", new String[] {"x", null});
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean("bool", true);
+        config.putInt("int", -3);
+        config.putLong("long", Long.MAX_VALUE);
+        config.putDouble("double", 2.5);
+        config.putString("string", "café");
+        config.putString("null_string", null);
+        config.putBooleanArray("bool_array", new boolean[] {true, false});
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putLongArray("long_array", new long[] {4L, 5L});
+        config.putDoubleArray("double_array", new double[] {0.5, 1.5});
+        config.putStringArray("string_array", new String[] {"a", "b"});
+        config.putPersistableBundle("bundle", nested);
+
+        CarrierConfigCacheFile.write(mFile, PACKAGE_VERSION, CARRIER_ID, config);
+        CarrierConfigCacheFile cacheFile = CarrierConfigCacheFile.open(mFile);
+        PersistableBundle restored = cacheFile.toPersistableBundle();
+
+        assertThat(cacheFile.getPackageVersion()).isEqualTo(PACKAGE_VERSION);
+        assertThat(cacheFile.getCarrierId()).isEqualTo(CARRIER_ID);
+        assertThat(restored.keySet()).isEqualTo(config.keySet());
+        assertThat(restored.getBoolean("bool")).isTrue();
+        assertThat(restored.getInt("int")).isEqualTo(-3);
+        assertThat(restored.getLong("long")).isEqualTo(Long.MAX_VALUE);
+        assertThat(restored.getDouble("double")).isEqualTo(2.5);
+        assertThat(restored.getString("string")).isEqualTo("café");
+        assertThat(restored.containsKey("null_string")).isTrue();
+        assertThat(restored.getString("null_string")).isNull();
+        assertArrayEquals(new boolean[] {true, false}, restored.getBooleanArray("bool_array"));
+        assertArrayEquals(new int[] {1, 2, 3}, restored.getIntArray("int_array"));
+        assertArrayEquals(new long[] {4L, 5L}, restored.getLongArray("long_array"));
+        assertArrayEquals(new double[] {0.5, 1.5}, restored.getDoubleArray("double_array"), 0);
+        assertArrayEquals(new String[] {"a", "b"}, restored.getStringArray("string_array"));
+        PersistableBundle restoredNested = restored.getPersistableBundle("bundle");
+        assertThat(restoredNested.getInt("nested_int")).isEqualTo(7);
+        assertArrayEquals(new String[] {"x", null},
+                restoredNested.getStringArray("nested_string_array"));
+    }
+
+    @Test
+    public void testGet_decodesSingleValues() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("first", 1);
+        config.putIntArray("second", new int[] {2, 2});
+        config.putString("third", "three");
+
+        CarrierConfigCacheFile.write(mFile, PACKAGE_VERSION, CARRIER_ID, config);
+        CarrierConfigCacheFile cacheFile = CarrierConfigCacheFile.open(mFile);
+
+        assertThat(cacheFile.keySet()).containsExactly("first", "second", "third");
+        assertThat(cacheFile.get("third")).isEqualTo("three");
+        assertArrayEquals(new int[] {2, 2}, (int[]) cacheFile.get("second"));
+        assertThat(cacheFile.get("first")).isEqualTo(1);
+        assertThat(cacheFile.get("missing")).isNull();
+    }
+
+    @Test
+    public void testOpen_notACacheFile() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            config.writeToStream(out);
+        }
+
+        assertThat(CarrierConfigCacheFile.open(mFile)).isNull();
+    }
+
+    @Test
+    public void testWrite_replacesExistingFile() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        CarrierConfigCacheFile.write(mFile, PACKAGE_VERSION, CARRIER_ID, config);
+        config.putInt("int", 2);
+        CarrierConfigCacheFile.write(mFile, "43", CARRIER_ID + 1, config);
+
+        CarrierConfigCacheFile cacheFile = CarrierConfigCacheFile.open(mFile);
+
+        assertThat(cacheFile.getPackageVersion()).isEqualTo("43");
+        assertThat(cacheFile.getCarrierId()).isEqualTo(CARRIER_ID + 1);
+        assertThat(cacheFile.get("int")).isEqualTo(2);
+    }
+
+    /**
+     * Compares the time it takes to restore the full default carrier config at boot from the XML
+     * format and from the binary format, including the package version check.
+     */
+    @Test
+    public void testRestoreTime_xmlVersusBinary() throws Exception {
+        final int iterations = 20;
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+        CarrierConfigCacheFile.write(mFile, PACKAGE_VERSION, CARRIER_ID, config);
+        PersistableBundle xmlConfig = new PersistableBundle(config);
+        xmlConfig.putString("__carrier_config_package_version__", PACKAGE_VERSION);
+        try (FileOutputStream out = new FileOutputStream(mXmlFile)) {
+            xmlConfig.writeToStream(out);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            try (FileInputStream in = new FileInputStream(mXmlFile)) {
+                PersistableBundle restored = PersistableBundle.readFromStream(in);
+                assertThat(restored.getString("__carrier_config_package_version__"))
+                        .isEqualTo(PACKAGE_VERSION);
+            }
+        }
+        long xmlNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        PersistableBundle restored = null;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            CarrierConfigCacheFile cacheFile = CarrierConfigCacheFile.open(mFile);
+            assertThat(cacheFile.getPackageVersion()).isEqualTo(PACKAGE_VERSION);
+            restored = cacheFile.toPersistableBundle();
+        }
+        long binaryNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        Log.i(TAG, config.size() + " keys: xml " + mXmlFile.length() + " bytes, " + xmlNanos
+                + " ns/restore; binary " + mFile.length() + " bytes, " + binaryNanos
+                + " ns/restore");
+        assertThat(restored.keySet()).isEqualTo(config.keySet());
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.android.phone;
 
+import static android.service.carrier.CarrierService.ICarrierServiceWrapper.KEY_CONFIG_BUNDLE;
+import static android.service.carrier.CarrierService.ICarrierServiceWrapper.RESULT_OK;
+
 import static com.android.TestContext.STUB_PERMISSION_ENABLE_ALL;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -25,26 +28,39 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.PersistableBundle;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.service.carrier.CarrierIdentifier;
+import android.service.carrier.ICarrierService;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.testing.TestableLooper;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -58,18 +74,24 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Unit Test for CarrierConfigLoader.
  */
 @RunWith(AndroidJUnit4.class)
 public class CarrierConfigLoaderTest extends TelephonyTestBase {
+    private static final String TAG = "CarrierConfigLoaderTest";
 
     private static final int DEFAULT_PHONE_ID = 0;
     private static final int DEFAULT_SUB_ID = SubscriptionManager.getDefaultSubscriptionId();
@@ -79,6 +101,12 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
             CarrierConfigManager.KEY_CARRIER_USSD_METHOD_INT;
     private static final int CARRIER_CONFIG_EXAMPLE_VALUE =
             CarrierConfigManager.USSD_OVER_CS_PREFERRED;
+    private static final int CARRIER_CONFIG_OTHER_VALUE =
+            CarrierConfigManager.USSD_OVER_IMS_ONLY;
+    private static final String CARRIER_APP_PACKAGE = "com.example.carrierapp";
+    private static final long FAKE_BIND_LATENCY_MILLIS = 1500;
+    private static final long FAKE_FETCH_LATENCY_MILLIS = 2500;
+    private static final long LATENCY_STEP_MILLIS = 100;
 
     @Mock Resources mResources;
     @Mock PackageManager mPackageManager;
@@ -218,6 +246,41 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
 
     }
 
+    /**
+     * Verifies that a config cached in XML by an older build is still restored, and is migrated to
+     * the binary cache format on first read.
+     */
+    @Test
+    public void testUpdateConfigForPhoneId_simAbsent_migratesXmlCache() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        File filesDir = InstrumentationRegistry.getTargetContext().getFilesDir();
+        File xmlFile = new File(filesDir,
+                "carrierconfig-" + PLATFORM_CARRIER_CONFIG_PACKAGE + "-nosim.xml");
+        File binaryFile = new File(filesDir,
+                "carrierconfig-" + PLATFORM_CARRIER_CONFIG_PACKAGE + "-nosim.bin");
+        binaryFile.delete();
+        PersistableBundle config = getTestConfig();
+        config.putString("__carrier_config_package_version__",
+                Long.toString(PLATFORM_CARRIER_CONFIG_PACKAGE_VERSION_CODE));
+        try (FileOutputStream out = new FileOutputStream(xmlFile)) {
+            config.writeToStream(out);
+        }
+
+        mCarrierConfigLoader.updateConfigForPhoneId(DEFAULT_PHONE_ID,
+                IccCardConstants.INTENT_VALUE_ICC_ABSENT);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getNoSimConfig().getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+        assertThat(xmlFile.exists()).isFalse();
+        assertThat(binaryFile.exists()).isTrue();
+    }
+
     /**
      * Verifies that SecurityException should throw if call #overrideConfig() without
      * MODIFY_PHONE_STATE permission.
@@ -382,6 +445,436 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
         assertThat(dumpContent).doesNotContain("Permission Denial:");
     }
 
+    /**
+     * Verifies that #getConfigForSubId sees the config loaded from the default app and the carrier
+     * app, with the carrier app config taking precedence, and that the config version changes.
+     */
+    @Test
+    public void testGetConfigForSubId_afterDefaultAndCarrierAppLoaded() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doReturn(mPackageInfo).when(mPackageManager).getPackageInfo(
+                eq(CARRIER_APP_PACKAGE), eq(0) /*flags*/);
+        doReturn(CARRIER_APP_PACKAGE).when(mTelephonyManager)
+                .getCarrierServicePackageNameForLogicalSlot(anyInt());
+        CarrierIdentifier carrierId = mCarrierConfigLoader.getCarrierIdentifierForPhoneId(
+                DEFAULT_PHONE_ID);
+        mCarrierConfigLoader.saveConfigToXml(PLATFORM_CARRIER_CONFIG_PACKAGE, "",
+                DEFAULT_PHONE_ID, carrierId, getTestConfig());
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_OTHER_VALUE);
+        mCarrierConfigLoader.saveConfigToXml(CARRIER_APP_PACKAGE, "", DEFAULT_PHONE_ID,
+                carrierId, carrierConfig);
+        long version = mCarrierConfigLoader.getConfigVersion();
+
+        mCarrierConfigLoader.updateConfigForPhoneId(DEFAULT_PHONE_ID,
+                IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigVersion()).isGreaterThan(version);
+        PersistableBundle config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        assertThat(config.getInt(CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(
+                CARRIER_CONFIG_OTHER_VALUE);
+        assertThat(config.getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL))
+                .isTrue();
+    }
+
+    /**
+     * Verifies that #getConfigForSubId sees test and persistent overrides as soon as they are
+     * applied.
+     */
+    @Test
+    public void testGetConfigForSubId_afterOverrideConfig() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        // Read once so that a merged snapshot exists before the overrides are applied.
+        mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID, PLATFORM_CARRIER_CONFIG_PACKAGE);
+        long version = mCarrierConfigLoader.getConfigVersion();
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig(),
+                false /*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigVersion()).isGreaterThan(version);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+
+        version = mCarrierConfigLoader.getConfigVersion();
+        PersistableBundle persistentOverride = new PersistableBundle();
+        persistentOverride.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_OTHER_VALUE);
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, persistentOverride,
+                true /*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigVersion()).isGreaterThan(version);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_OTHER_VALUE);
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, null /*overrides*/,
+                true /*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CarrierConfigManager.getDefaultConfig().getInt(
+                        CARRIER_CONFIG_EXAMPLE_KEY));
+    }
+
+    /**
+     * Verifies that #getConfigForSubId sees the no SIM config once it is loaded for an invalid
+     * subscription.
+     */
+    @Test
+    public void testGetConfigForSubId_afterNoSimConfigLoaded() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        mCarrierConfigLoader.getConfigForSubId(SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        long version = mCarrierConfigLoader.getConfigVersion();
+
+        PersistableBundle noSimConfig = new PersistableBundle();
+        noSimConfig.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_OTHER_VALUE);
+        mCarrierConfigLoader.saveNoSimConfigToXml(PLATFORM_CARRIER_CONFIG_PACKAGE, noSimConfig);
+        mCarrierConfigLoader.updateConfigForPhoneId(DEFAULT_PHONE_ID,
+                IccCardConstants.INTENT_VALUE_ICC_ABSENT);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigVersion()).isGreaterThan(version);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, PLATFORM_CARRIER_CONFIG_PACKAGE)
+                .getInt(CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(CARRIER_CONFIG_OTHER_VALUE);
+    }
+
+    /**
+     * Verifies that clearing the config drops the loaded values from #getConfigForSubId and that
+     * changes to a returned bundle do not leak into later reads.
+     */
+    @Test
+    public void testGetConfigForSubId_afterClearConfig() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doReturn(PLATFORM_CARRIER_CONFIG_PACKAGE).when(mTelephonyManager)
+                .getCarrierServicePackageNameForLogicalSlot(anyInt());
+        CarrierIdentifier carrierId = mCarrierConfigLoader.getCarrierIdentifierForPhoneId(
+                DEFAULT_PHONE_ID);
+        PersistableBundle savedConfig = new PersistableBundle();
+        savedConfig.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_OTHER_VALUE);
+        mCarrierConfigLoader.saveConfigToXml(PLATFORM_CARRIER_CONFIG_PACKAGE, "",
+                DEFAULT_PHONE_ID, carrierId, savedConfig);
+        mCarrierConfigLoader.updateConfigForPhoneId(DEFAULT_PHONE_ID,
+                IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        mTestableLooper.processAllMessages();
+        PersistableBundle config = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        assertThat(config.getInt(CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(
+                CARRIER_CONFIG_OTHER_VALUE);
+        config.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_EXAMPLE_VALUE);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_OTHER_VALUE);
+        long version = mCarrierConfigLoader.getConfigVersion();
+
+        mCarrierConfigLoader.clearConfigForPhone(DEFAULT_PHONE_ID, false);
+
+        assertThat(mCarrierConfigLoader.getConfigVersion()).isGreaterThan(version);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CarrierConfigManager.getDefaultConfig().getInt(
+                        CARRIER_CONFIG_EXAMPLE_KEY));
+    }
+
+    /**
+     * Verifies that #getConfigSubsetForSubId returns exactly the requested keys, with the same
+     * values as the full config.
+     */
+    @Test
+    public void testGetConfigSubsetForSubId_matchesFullConfig() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        PersistableBundle override = new PersistableBundle();
+        override.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_OTHER_VALUE);
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, override, false /*persistent*/);
+        mTestableLooper.processAllMessages();
+        String[] keys = new String[] {
+                CARRIER_CONFIG_EXAMPLE_KEY,
+                CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL,
+                CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING,
+                CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                "not_a_carrier_config_key"};
+
+        PersistableBundle full = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        PersistableBundle subset = mCarrierConfigLoader.getConfigSubsetForSubId(DEFAULT_SUB_ID,
+                keys);
+
+        assertThat(subset.keySet()).containsExactly(CARRIER_CONFIG_EXAMPLE_KEY,
+                CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL,
+                CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING,
+                CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL);
+        for (String key : subset.keySet()) {
+            assertThat(subset.get(key)).isEqualTo(full.get(key));
+        }
+        assertThat(subset.getInt(CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(
+                CARRIER_CONFIG_OTHER_VALUE);
+    }
+
+    /**
+     * Compares the parceled size and fetch latency of the full config and a two key subset. The
+     * subset must parcel to fewer bytes.
+     */
+    @Test
+    public void testGetConfigSubsetForSubId_parcelSizeAndLatencyVsFullConfig() throws Exception {
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        final int iterations = 200;
+        String[] keys = new String[] {
+                CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL,
+                CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL};
+
+        long fullBytes = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            fullBytes = getParceledSize(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                    PLATFORM_CARRIER_CONFIG_PACKAGE));
+        }
+        long fullNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        long subsetBytes = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            subsetBytes = getParceledSize(
+                    mCarrierConfigLoader.getConfigSubsetForSubId(DEFAULT_SUB_ID, keys));
+        }
+        long subsetNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        Log.i(TAG, "full config: " + fullBytes + " bytes, " + fullNanos + " ns/fetch; subset: "
+                + subsetBytes + " bytes, " + subsetNanos + " ns/fetch");
+        assertThat(subsetBytes).isLessThan(fullBytes);
+    }
+
+    /**
+     * Drives the default and carrier app fetch against fake carrier services with injected bind
+     * and fetch latencies, with cache writes going to a background executor. Verifies that each
+     * config is applied as soon as its fetch completes, without waiting for the cache writes, and
+     * reports the time until both configs are applied.
+     */
+    @Test
+    public void testPipelinedFetch_withFakeCarrierServices() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        deleteCachedConfigFiles();
+        doReturn(mPackageInfo).when(mPackageManager).getPackageInfo(
+                eq(CARRIER_APP_PACKAGE), eq(0) /*flags*/);
+        doReturn(CARRIER_APP_PACKAGE).when(mTelephonyManager)
+                .getCarrierServicePackageNameForLogicalSlot(anyInt());
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        doNothing().when(mContext).unbindService(any(ServiceConnection.class));
+        Handler fakeServiceHandler = new Handler(mTestableLooper.getLooper());
+        doAnswer(invocation -> {
+            String packageName = ((Intent) invocation.getArgument(0)).getPackage();
+            ServiceConnection connection = invocation.getArgument(1);
+            IBinder service = createFakeCarrierService(fakeServiceHandler,
+                    PLATFORM_CARRIER_CONFIG_PACKAGE.equals(packageName)
+                            ? CARRIER_CONFIG_EXAMPLE_VALUE : CARRIER_CONFIG_OTHER_VALUE);
+            fakeServiceHandler.postDelayed(() -> connection.onServiceConnected(
+                    new ComponentName(packageName, "FakeCarrierService"), service),
+                    FAKE_BIND_LATENCY_MILLIS);
+            return true;
+        }).when(mContext).bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+        List<Runnable> backgroundTasks = new ArrayList<>();
+        CarrierConfigLoader loader = new CarrierConfigLoader(mContext, mSubscriptionInfoUpdater,
+                mTestableLooper.getLooper(), backgroundTasks::add);
+        mTestableLooper.processAllMessages();
+        loader.clearConfigForPhone(DEFAULT_PHONE_ID, false);
+
+        loader.updateConfigForPhoneId(DEFAULT_PHONE_ID, IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        long defaultAppliedMillis = -1;
+        long elapsedMillis = 0;
+        while (loader.getConfigFromCarrierApp(DEFAULT_PHONE_ID) == null
+                && elapsedMillis <= 4 * (FAKE_BIND_LATENCY_MILLIS + FAKE_FETCH_LATENCY_MILLIS)) {
+            mTestableLooper.processAllMessages();
+            if (defaultAppliedMillis < 0
+                    && loader.getConfigFromDefaultApp(DEFAULT_PHONE_ID) != null) {
+                defaultAppliedMillis = elapsedMillis;
+            }
+            if (loader.getConfigFromCarrierApp(DEFAULT_PHONE_ID) == null) {
+                mTestableLooper.moveTimeForward(LATENCY_STEP_MILLIS);
+                elapsedMillis += LATENCY_STEP_MILLIS;
+            }
+        }
+        mTestableLooper.processAllMessages();
+
+        Log.i(TAG, "default config applied after " + defaultAppliedMillis
+                + " ms, both configs applied after " + elapsedMillis + " ms");
+        assertThat(defaultAppliedMillis).isEqualTo(
+                FAKE_BIND_LATENCY_MILLIS + FAKE_FETCH_LATENCY_MILLIS);
+        assertThat(elapsedMillis).isEqualTo(
+                2 * (FAKE_BIND_LATENCY_MILLIS + FAKE_FETCH_LATENCY_MILLIS));
+        assertThat(loader.getConfigFromDefaultApp(DEFAULT_PHONE_ID).getInt(
+                CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+        assertThat(loader.getConfigFromCarrierApp(DEFAULT_PHONE_ID).getInt(
+                CARRIER_CONFIG_EXAMPLE_KEY)).isEqualTo(CARRIER_CONFIG_OTHER_VALUE);
+        verify(mSubscriptionInfoUpdater).updateSubscriptionByCarrierConfigAndNotifyComplete(
+                eq(DEFAULT_PHONE_ID), eq(CARRIER_APP_PACKAGE), any(PersistableBundle.class),
+                any(Message.class));
+        // Both cache writes were handed to the background executor instead of being run inline.
+        assertThat(backgroundTasks.size()).isAtLeast(2);
+        for (Runnable task : backgroundTasks) {
+            task.run();
+        }
+    }
+
+    /**
+     * Drives the fetch of two phones against fake carrier services, with a background executor
+     * that does not run the cache writes and broadcasts it is given. Verifies that phone 1 applies
+     * both of its configs at the same time as phone 0, without waiting for the disk writes or the
+     * config changed broadcasts of phone 0, and that each broadcast carries its own slot.
+     */
+    @Test
+    public void testPipelinedFetch_twoPhonesDoNotWaitForEachOther() throws Exception {
+        final int otherPhoneId = DEFAULT_PHONE_ID + 1;
+        // Bypass case if the device does not support two phones to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(otherPhoneId)) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        deleteCachedConfigFiles();
+        doReturn(2).when(mTelephonyManager).getActiveModemCount();
+        doReturn(mPackageInfo).when(mPackageManager).getPackageInfo(
+                eq(CARRIER_APP_PACKAGE), eq(0) /*flags*/);
+        doReturn(CARRIER_APP_PACKAGE).when(mTelephonyManager)
+                .getCarrierServicePackageNameForLogicalSlot(anyInt());
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        doNothing().when(mContext).unbindService(any(ServiceConnection.class));
+        // Complete the subscription update right away, so that the config changed broadcast is
+        // handed to the background executor.
+        doAnswer(invocation -> {
+            ((Message) invocation.getArgument(3)).sendToTarget();
+            return null;
+        }).when(mSubscriptionInfoUpdater).updateSubscriptionByCarrierConfigAndNotifyComplete(
+                anyInt(), anyString(), any(PersistableBundle.class), any(Message.class));
+        Handler fakeServiceHandler = new Handler(mTestableLooper.getLooper());
+        doAnswer(invocation -> {
+            String packageName = ((Intent) invocation.getArgument(0)).getPackage();
+            ServiceConnection connection = invocation.getArgument(1);
+            IBinder service = createFakeCarrierService(fakeServiceHandler,
+                    PLATFORM_CARRIER_CONFIG_PACKAGE.equals(packageName)
+                            ? CARRIER_CONFIG_EXAMPLE_VALUE : CARRIER_CONFIG_OTHER_VALUE);
+            fakeServiceHandler.postDelayed(() -> connection.onServiceConnected(
+                    new ComponentName(packageName, "FakeCarrierService"), service),
+                    FAKE_BIND_LATENCY_MILLIS);
+            return true;
+        }).when(mContext).bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+        List<Runnable> backgroundTasks = new ArrayList<>();
+        CarrierConfigLoader loader = new CarrierConfigLoader(mContext, mSubscriptionInfoUpdater,
+                mTestableLooper.getLooper(), backgroundTasks::add);
+        mTestableLooper.processAllMessages();
+        loader.clearConfigForPhone(DEFAULT_PHONE_ID, false);
+        loader.clearConfigForPhone(otherPhoneId, false);
+        backgroundTasks.clear();
+
+        loader.updateConfigForPhoneId(DEFAULT_PHONE_ID, IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        loader.updateConfigForPhoneId(otherPhoneId, IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        long[] appliedMillis = new long[] {-1, -1};
+        long elapsedMillis = 0;
+        while ((appliedMillis[0] < 0 || appliedMillis[1] < 0)
+                && elapsedMillis <= 4 * (FAKE_BIND_LATENCY_MILLIS + FAKE_FETCH_LATENCY_MILLIS)) {
+            mTestableLooper.processAllMessages();
+            for (int phoneId = DEFAULT_PHONE_ID; phoneId <= otherPhoneId; phoneId++) {
+                if (appliedMillis[phoneId] < 0
+                        && loader.getConfigFromCarrierApp(phoneId) != null) {
+                    appliedMillis[phoneId] = elapsedMillis;
+                }
+            }
+            mTestableLooper.moveTimeForward(LATENCY_STEP_MILLIS);
+            elapsedMillis += LATENCY_STEP_MILLIS;
+        }
+        mTestableLooper.processAllMessages();
+
+        Log.i(TAG, "phone 0 applied after " + appliedMillis[0] + " ms, phone 1 applied after "
+                + appliedMillis[1] + " ms, with " + backgroundTasks.size()
+                + " background tasks pending");
+        // Neither phone waited for the other, nor for any write or broadcast.
+        assertThat(appliedMillis[0]).isEqualTo(
+                2 * (FAKE_BIND_LATENCY_MILLIS + FAKE_FETCH_LATENCY_MILLIS));
+        assertThat(appliedMillis[1]).isEqualTo(appliedMillis[0]);
+        verify(mSubscriptionInfoUpdater).updateSubscriptionByCarrierConfigAndNotifyComplete(
+                eq(otherPhoneId), eq(CARRIER_APP_PACKAGE), any(PersistableBundle.class),
+                any(Message.class));
+        verify(mContext, never()).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        assertThat(backgroundTasks).isNotEmpty();
+
+        for (Runnable task : backgroundTasks) {
+            task.run();
+        }
+        ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
+        verify(mContext, times(2)).sendBroadcastAsUser(intentCaptor.capture(),
+                any(UserHandle.class));
+        List<Integer> slots = new ArrayList<>();
+        for (Intent intent : intentCaptor.getAllValues()) {
+            slots.add(intent.getIntExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, -1));
+        }
+        assertThat(slots).containsExactly(DEFAULT_PHONE_ID, otherPhoneId);
+    }
+
+    private IBinder createFakeCarrierService(Handler handler, int configValue)
+            throws RemoteException {
+        ICarrierService carrierService = Mockito.mock(ICarrierService.class);
+        IBinder binder = Mockito.mock(IBinder.class);
+        doReturn(carrierService).when(binder).queryLocalInterface(anyString());
+        doAnswer(invocation -> {
+            ResultReceiver resultReceiver = invocation.getArgument(2);
+            PersistableBundle config = new PersistableBundle();
+            config.putInt(CARRIER_CONFIG_EXAMPLE_KEY, configValue);
+            Bundle result = new Bundle();
+            result.putParcelable(KEY_CONFIG_BUNDLE, config);
+            handler.postDelayed(() -> resultReceiver.send(RESULT_OK, result),
+                    FAKE_FETCH_LATENCY_MILLIS);
+            return null;
+        }).when(carrierService).getCarrierConfig(anyInt(), any(), any(ResultReceiver.class));
+        return binder;
+    }
+
+    private static void deleteCachedConfigFiles() {
+        File[] files = InstrumentationRegistry.getTargetContext().getFilesDir().listFiles(
+                (dir, name) -> name.startsWith("carrierconfig-"));
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private static long getParceledSize(PersistableBundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            bundle.writeToParcel(parcel, 0 /*flags*/);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private static PersistableBundle getTestConfig() {
         PersistableBundle config = new PersistableBundle();
         config.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_EXAMPLE_VALUE);
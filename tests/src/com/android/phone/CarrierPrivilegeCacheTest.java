@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit Test for CarrierPrivilegeCache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarrierPrivilegeCacheTest {
+    private static final String TAG = "CarrierPrivilegeCacheTest";
+    private static final long TIMEOUT_MS = 5000;
+    private static final int PHONE_ID = 0;
+    private static final int OTHER_PHONE_ID = 1;
+    private static final String CARRIER_PACKAGE = "com.example.carrier";
+    private static final int CARRIER_UID = 10100;
+    private static final String OTHER_PACKAGE = "com.example.other";
+    private static final int OTHER_UID = 10200;
+    private static final int PACKAGE_COUNT = 500;
+
+    /**
+     * Answers like a CarrierPrivilegesTracker. Like the tracker, it changes before the callback
+     * that reports the change is delivered to the cache.
+     */
+    private static class FakeStatusSource implements CarrierPrivilegeCache.StatusSource {
+        final AtomicInteger mQueryCount = new AtomicInteger();
+        final Set<Integer> mPrivilegedUids = ConcurrentHashMap.newKeySet();
+        final Set<String> mPrivilegedPackages = ConcurrentHashMap.newKeySet();
+        volatile int mStatusForOthers = CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        // If set, a lookup waits for it after reading the status, before returning it.
+        volatile CountDownLatch mLookupGate;
+        final CountDownLatch mLookupStarted = new CountDownLatch(1);
+
+        FakeStatusSource() {
+            mPrivilegedUids.add(CARRIER_UID);
+            mPrivilegedPackages.add(CARRIER_PACKAGE);
+        }
+
+        @Override
+        public int getCarrierPrivilegeStatusForUid(int phoneId, int uid) {
+            mQueryCount.incrementAndGet();
+            int status = mPrivilegedUids.contains(uid) ? CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                    : mStatusForOthers;
+            waitForGate();
+            return status;
+        }
+
+        @Override
+        public int getCarrierPrivilegeStatusForPackage(int phoneId, String packageName) {
+            mQueryCount.incrementAndGet();
+            int status = mPrivilegedPackages.contains(packageName)
+                    ? CARRIER_PRIVILEGE_STATUS_HAS_ACCESS : mStatusForOthers;
+            waitForGate();
+            return status;
+        }
+
+        private void waitForGate() {
+            CountDownLatch gate = mLookupGate;
+            if (gate == null) {
+                return;
+            }
+            mLookupStarted.countDown();
+            try {
+                gate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final FakeStatusSource mStatusSource = new FakeStatusSource();
+    private final CarrierPrivilegeCache mCache = new CarrierPrivilegeCache(mStatusSource);
+
+    @Test
+    public void testNoCallbackYet_asksTrackerEveryTime() {
+        for (int i = 0; i < 3; i++) {
+            assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, OTHER_UID))
+                    .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        }
+
+        assertThat(mStatusSource.mQueryCount.get()).isEqualTo(3);
+        assertThat(mCache.getCachedStatusCount(PHONE_ID)).isEqualTo(0);
+    }
+
+    @Test
+    public void testNoAccess_isCachedPerPhoneUntilPrivilegesChange() {
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, OTHER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, OTHER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, OTHER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, OTHER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mStatusSource.mQueryCount.get()).isEqualTo(2);
+        assertThat(mCache.getCachedStatusCount(PHONE_ID)).isEqualTo(2);
+        assertThat(mCache.getCachedStatusCount(OTHER_PHONE_ID)).isEqualTo(0);
+
+        // The uid is granted privileges, which are served once the callback is delivered.
+        mStatusSource.mPrivilegedUids.add(OTHER_UID);
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, OTHER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+        assertThat(mCache.getCachedStatusCount(PHONE_ID)).isEqualTo(0);
+    }
+
+    @Test
+    public void testOtherStatuses_areNotCached() {
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        mStatusSource.mStatusForOthers = CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, OTHER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED);
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+
+        assertThat(mCache.getCachedStatusCount(PHONE_ID)).isEqualTo(0);
+    }
+
+    @Test
+    public void testRevokeBeforeCallback_isServedRightAway() {
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, CARRIER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+
+        // The tracker revokes the privileges, but the callback hasn't been delivered yet.
+        mStatusSource.mPrivilegedUids.remove(CARRIER_UID);
+        mStatusSource.mPrivilegedPackages.remove(CARRIER_PACKAGE);
+
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, CARRIER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+    }
+
+    @Test
+    public void testRevokeRacingCheck_isServedOnceTrackerChanged() throws Exception {
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        CountDownLatch gate = new CountDownLatch(1);
+        mStatusSource.mLookupGate = gate;
+        AtomicInteger racingStatus = new AtomicInteger();
+        Thread check = new Thread(() -> racingStatus.set(
+                mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID)));
+        check.start();
+        assertThat(mStatusSource.mLookupStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                .isTrue();
+
+        // The revoke lands while the check is in the tracker, and the callback comes later.
+        mStatusSource.mPrivilegedUids.remove(CARRIER_UID);
+        mStatusSource.mLookupGate = null;
+        gate.countDown();
+        check.join(TIMEOUT_MS);
+
+        // The racing check read the tracker before the revoke, but nothing after it is granted.
+        assertThat(racingStatus.get()).isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        assertThat(mCache.getCarrierPrivilegeStatusForUid(PHONE_ID, CARRIER_UID))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+    }
+
+    @Test
+    public void testGrantRacingCheck_doesNotCacheOldNoAccess() throws Exception {
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        CountDownLatch gate = new CountDownLatch(1);
+        mStatusSource.mLookupGate = gate;
+        AtomicInteger racingStatus = new AtomicInteger();
+        Thread check = new Thread(() -> racingStatus.set(
+                mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, OTHER_PACKAGE)));
+        check.start();
+        assertThat(mStatusSource.mLookupStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                .isTrue();
+
+        // The grant and its callback both land while the check is in the tracker.
+        mStatusSource.mPrivilegedPackages.add(OTHER_PACKAGE);
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        mStatusSource.mLookupGate = null;
+        gate.countDown();
+        check.join(TIMEOUT_MS);
+
+        assertThat(racingStatus.get()).isEqualTo(CARRIER_PRIVILEGE_STATUS_NO_ACCESS);
+        assertThat(mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, OTHER_PACKAGE))
+                .isEqualTo(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS);
+    }
+
+    /**
+     * Microbenchmark of the checks of 500 installed packages without privileges. The fake tracker
+     * answers from a hash set, so this only shows the overhead of the cache on a miss and the
+     * cost of a hit, not the cost of a real tracker lookup. The checks per second are logged.
+     */
+    @Test
+    public void testLookupThroughput_500Packages() {
+        final int rounds = 20;
+        String[] packages = new String[PACKAGE_COUNT];
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            packages[i] = "com.example.app" + i;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            for (String packageName : packages) {
+                mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, packageName);
+            }
+        }
+        long uncachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+        mCache.onCarrierPrivilegesChanged(PHONE_ID);
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            for (String packageName : packages) {
+                mCache.getCarrierPrivilegeStatusForPackage(PHONE_ID, packageName);
+            }
+        }
+        long cachedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        int checks = rounds * PACKAGE_COUNT;
+        Log.i(TAG, "Carrier privilege checks per second for " + PACKAGE_COUNT + " packages:"
+                + " no snapshot " + perSecond(checks, uncachedNanos)
+                + ", snapshot " + perSecond(checks, cachedNanos));
+        assertThat(mStatusSource.mQueryCount.get()).isEqualTo(checks + PACKAGE_COUNT);
+        assertThat(mCache.getCachedStatusCount(PHONE_ID)).isEqualTo(PACKAGE_COUNT);
+    }
+
+    private static long perSecond(int count, long nanos) {
+        return count * 1_000_000_000L / Math.max(1, nanos);
+    }
+}
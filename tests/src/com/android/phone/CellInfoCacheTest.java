@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.telephony.CellInfo;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit Test for CellInfoCache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CellInfoCacheTest extends TelephonyTestBase {
+    private static final String TAG = "CellInfoCacheTest";
+    private static final String CALLER_PACKAGE = "com.example.caller";
+    private static final long TTL_MILLIS = 60000;
+    private static final int CELLS_PER_PHONE = 20;
+
+    @Mock Phone mPhone0;
+    @Mock Phone mPhone1;
+    @Mock CommandsInterface mCi0;
+    @Mock CommandsInterface mCi1;
+
+    private HandlerThread mHandlerThread;
+    private CellInfoCache mCellInfoCache;
+    private Phone[] mPhones;
+    private List<CellInfo> mCellInfo0;
+    private List<CellInfo> mCellInfo1;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        mPhone0.mCi = mCi0;
+        mPhone1.mCi = mCi1;
+        doReturn(0).when(mPhone0).getPhoneId();
+        doReturn(1).when(mPhone1).getPhoneId();
+        mCellInfo0 = createCellInfo();
+        mCellInfo1 = createCellInfo();
+        doReturn(mCellInfo0).when(mPhone0).getAllCellInfo();
+        doReturn(mCellInfo1).when(mPhone1).getAllCellInfo();
+        mPhones = new Phone[] {mPhone0, mPhone1};
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mCellInfoCache = new CellInfoCache(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testReportedCellInfo_mergedAndShared() {
+        List<CellInfo> cellInfo = mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+
+        assertThat(cellInfo).hasSize(2 * CELLS_PER_PHONE);
+        assertThat(cellInfo.subList(0, CELLS_PER_PHONE)).isEqualTo(mCellInfo0);
+        assertThat(cellInfo.subList(CELLS_PER_PHONE, 2 * CELLS_PER_PHONE)).isEqualTo(mCellInfo1);
+        assertThat(mCellInfoCache.getReportedCellInfo("com.example.other", mPhones))
+                .isSameInstanceAs(cellInfo);
+    }
+
+    @Test
+    public void testReportedCellInfo_changedSourceBeforeNotification() {
+        List<CellInfo> cellInfo = mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+
+        List<CellInfo> newCellInfo1 = createCellInfo();
+        doReturn(newCellInfo1).when(mPhone1).getAllCellInfo();
+
+        List<CellInfo> afterChange = mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+        assertThat(afterChange).isNotSameInstanceAs(cellInfo);
+        assertThat(afterChange.subList(CELLS_PER_PHONE, 2 * CELLS_PER_PHONE))
+                .isEqualTo(newCellInfo1);
+    }
+
+    @Test
+    public void testCellInfoChanged_dropsCachedCellInfo() {
+        List<CellInfo> reported = mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+        AtomicInteger refreshes = new AtomicInteger();
+        mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE, TTL_MILLIS,
+                () -> refresh(refreshes));
+
+        ArgumentCaptor<Handler> handlerCaptor = ArgumentCaptor.forClass(Handler.class);
+        ArgumentCaptor<Integer> whatCaptor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Object> objCaptor = ArgumentCaptor.forClass(Object.class);
+        verify(mCi1).registerForCellInfoList(handlerCaptor.capture(), whatCaptor.capture(),
+                objCaptor.capture());
+        Handler handler = handlerCaptor.getValue();
+        handler.sendMessage(handler.obtainMessage(whatCaptor.getValue(),
+                new AsyncResult(objCaptor.getValue(), null, null)));
+        waitForHandlerAction(handler, 1000);
+
+        assertThat(mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones))
+                .isNotSameInstanceAs(reported);
+        mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE, TTL_MILLIS,
+                () -> refresh(refreshes));
+        assertThat(refreshes.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRefreshedCellInfo_reusedWithinTtl() {
+        AtomicInteger refreshes = new AtomicInteger();
+
+        List<CellInfo> cellInfo = mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE,
+                TTL_MILLIS, () -> refresh(refreshes));
+        assertThat(mCellInfoCache.getRefreshedCellInfo("com.example.other", TTL_MILLIS,
+                () -> refresh(refreshes))).isSameInstanceAs(cellInfo);
+        assertThat(refreshes.get()).isEqualTo(1);
+
+        // Without a time to live, every call requests the cell info.
+        mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE, 0, () -> refresh(refreshes));
+        mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE, 0, () -> refresh(refreshes));
+        assertThat(refreshes.get()).isEqualTo(3);
+
+        mCellInfoCache.invalidate();
+        mCellInfoCache.getRefreshedCellInfo(CALLER_PACKAGE, TTL_MILLIS,
+                () -> refresh(refreshes));
+        assertThat(refreshes.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void testCallerStats_countedAndBounded() {
+        for (int i = 0; i < 3; i++) {
+            mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+        }
+        assertThat(mCellInfoCache.getCallCount(CALLER_PACKAGE)).isEqualTo(3);
+
+        for (int i = 0; i < CellInfoCache.MAX_CALLERS; i++) {
+            mCellInfoCache.getReportedCellInfo("com.example.app" + i, mPhones);
+        }
+        // The least recent caller made room for the others.
+        assertThat(mCellInfoCache.getCallCount(CALLER_PACKAGE)).isEqualTo(0);
+        assertThat(mCellInfoCache.getCallCount("com.example.app0")).isEqualTo(1);
+    }
+
+    /**
+     * Microbenchmark of getAllCellInfo for callers targeting Q and above with two phones, through
+     * the cache and by merging the cell info of the phones into a new list on each call, as
+     * before. The latencies are logged.
+     */
+    @Test
+    public void testReportedCellInfoLatency_cacheAndCopy() {
+        final int calls = 10000;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < calls; i++) {
+            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+            for (Phone phone : mPhones) {
+                List<CellInfo> info = phone.getAllCellInfo();
+                if (info != null) cellInfos.addAll(info);
+            }
+        }
+        long copyNanos = (SystemClock.elapsedRealtimeNanos() - start) / calls;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < calls; i++) {
+            mCellInfoCache.getReportedCellInfo(CALLER_PACKAGE, mPhones);
+        }
+        long cacheNanos = (SystemClock.elapsedRealtimeNanos() - start) / calls;
+
+        Log.i(TAG, "getAllCellInfo latency: cache " + cacheNanos + " ns, copy " + copyNanos
+                + " ns");
+        assertThat(mCellInfoCache.getCallCount(CALLER_PACKAGE)).isEqualTo(calls);
+    }
+
+    private List<CellInfo> refresh(AtomicInteger refreshes) {
+        refreshes.incrementAndGet();
+        List<CellInfo> cellInfo = new ArrayList<>(mCellInfo0);
+        cellInfo.addAll(mCellInfo1);
+        return cellInfo;
+    }
+
+    private static List<CellInfo> createCellInfo() {
+        List<CellInfo> cellInfo = new ArrayList<>(CELLS_PER_PHONE);
+        for (int i = 0; i < CELLS_PER_PHONE; i++) {
+            cellInfo.add(mock(CellInfo.class));
+        }
+        return cellInfo;
+    }
+}
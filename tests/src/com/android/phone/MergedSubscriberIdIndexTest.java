@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit Test for MergedSubscriberIdIndex.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MergedSubscriberIdIndexTest {
+    private static final String TAG = "MergedSubscriberIdIndexTest";
+    private static final String PREFERENCES_NAME = "merged_subscriber_id_index_test";
+    private static final String ALPHATAG_PREFIX = "carrier_alphtag_";
+    private static final String NUMBER_PREFIX = "carrier_number_";
+    private static final String SUBSCRIBER_PREFIX = "carrier_subscriber_";
+
+    private SharedPreferences mPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        mPreferences = InstrumentationRegistry.getTargetContext().getSharedPreferences(
+                PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void testMergedSubscriberIds_sharedNumber() {
+        setLineNumber("iccid1", "imsi1", "5551234");
+        setLineNumber("iccid2", "imsi2", "5551234");
+        setLineNumber("iccid3", "imsi3", "5559876");
+        MergedSubscriberIdIndex index = createIndex();
+
+        assertThat(index.getMergedSubscriberIds("imsi2")).asList()
+                .containsExactly("imsi1", "imsi2").inOrder();
+        assertThat(index.getMergedSubscriberIds("imsi3")).asList().containsExactly("imsi3");
+        assertThat(index.getMergedSubscriberIds("imsi4")).isNull();
+        assertThat(index.getMergedSubscriberIds(null)).isNull();
+    }
+
+    @Test
+    public void testUpdate_followsWrites() {
+        setLineNumber("iccid1", "imsi1", "5551234");
+        MergedSubscriberIdIndex index = createIndex();
+
+        setLineNumber("iccid2", "imsi2", "5551234");
+        index.update("iccid2");
+        assertThat(index.getMergedSubscriberIds("imsi1")).asList()
+                .containsExactly("imsi1", "imsi2").inOrder();
+
+        setLineNumber("iccid2", "imsi2", "5559876");
+        index.update("iccid2");
+        assertThat(index.getMergedSubscriberIds("imsi1")).asList().containsExactly("imsi1");
+
+        setLineNumber("iccid1", "imsi1", null);
+        index.update("iccid1");
+        assertThat(index.getMergedSubscriberIds("imsi1")).isNull();
+        assertThat(index.getMergedSubscriberIds("imsi2")).asList().containsExactly("imsi2");
+    }
+
+    @Test
+    public void testCleared_rebuilds() {
+        setLineNumber("iccid1", "imsi1", "5551234");
+        MergedSubscriberIdIndex index = createIndex();
+
+        mPreferences.edit().clear().commit();
+        index.onSharedPreferenceChanged(mPreferences, null);
+
+        assertThat(index.getMergedSubscriberIds("imsi1")).isNull();
+    }
+
+    @Test
+    public void testMergedSubscriberIds_sameAsScan() {
+        Random random = new Random(0);
+        fillPreferences(random, 200, 40, 100);
+        MergedSubscriberIdIndex index = createIndex();
+
+        Map<String, ?> prefs = mPreferences.getAll();
+        for (int i = 0; i < 210; i++) {
+            String subscriberId = "imsi" + i;
+            assertThat(index.getMergedSubscriberIds(subscriberId))
+                    .isEqualTo(scanMergedSubscriberIds(prefs, subscriberId));
+        }
+
+        // Move some of the lines to other numbers and drop others.
+        for (int i = 0; i < 50; i++) {
+            String iccId = "iccid" + random.nextInt(200);
+            setLineNumber(iccId, "imsi" + iccId.substring(5),
+                    random.nextBoolean() ? null : "555" + random.nextInt(40));
+            index.update(iccId);
+        }
+        prefs = mPreferences.getAll();
+        for (int i = 0; i < 210; i++) {
+            String subscriberId = "imsi" + i;
+            assertThat(index.getMergedSubscriberIds(subscriberId))
+                    .isEqualTo(scanMergedSubscriberIds(prefs, subscriberId));
+        }
+    }
+
+    /**
+     * Microbenchmark of getMergedSubscriberIds with 5000 line overrides among 10000 other
+     * preferences, through the index and through a scan of all the preferences. The latencies
+     * are logged.
+     */
+    @Test
+    public void testLookupLatency_thousandsOfPreferences() {
+        final int iccIdCount = 5000;
+        final int lookups = 200;
+        fillPreferences(new Random(0), iccIdCount, 1000, 10000);
+        MergedSubscriberIdIndex index = createIndex();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < lookups; i++) {
+            scanMergedSubscriberIds(mPreferences.getAll(), "imsi" + (i * 17 % iccIdCount));
+        }
+        long scanNanos = (SystemClock.elapsedRealtimeNanos() - start) / lookups;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < lookups; i++) {
+            index.getMergedSubscriberIds("imsi" + (i * 17 % iccIdCount));
+        }
+        long indexNanos = (SystemClock.elapsedRealtimeNanos() - start) / lookups;
+
+        Log.i(TAG, "getMergedSubscriberIds latency: index " + indexNanos + " ns, scan "
+                + scanNanos + " ns");
+        assertThat(index.getMergedSubscriberIds("imsi0"))
+                .isEqualTo(scanMergedSubscriberIds(mPreferences.getAll(), "imsi0"));
+    }
+
+    private MergedSubscriberIdIndex createIndex() {
+        return new MergedSubscriberIdIndex(mPreferences, NUMBER_PREFIX, SUBSCRIBER_PREFIX);
+    }
+
+    // Writes the preferences like PhoneInterfaceManager#setLine1NumberForDisplayForSubscriber.
+    private void setLineNumber(String iccId, String subscriberId, String number) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        if (number == null) {
+            editor.remove(NUMBER_PREFIX + iccId);
+            editor.remove(SUBSCRIBER_PREFIX + iccId);
+        } else {
+            editor.putString(NUMBER_PREFIX + iccId, number);
+            editor.putString(SUBSCRIBER_PREFIX + iccId, subscriberId);
+        }
+        editor.commit();
+    }
+
+    // Each ICCID has its own subscriber ID, and the numbers are shared between ICCIDs.
+    private void fillPreferences(Random random, int iccIdCount, int numberCount,
+            int otherCount) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (int i = 0; i < iccIdCount; i++) {
+            editor.putString(ALPHATAG_PREFIX + "iccid" + i, "Line " + i);
+            if (random.nextInt(10) != 0) {
+                editor.putString(NUMBER_PREFIX + "iccid" + i, "555" + random.nextInt(numberCount));
+                editor.putString(SUBSCRIBER_PREFIX + "iccid" + i, "imsi" + i);
+            }
+        }
+        for (int i = 0; i < otherCount; i++) {
+            editor.putBoolean("other_preference_" + i, random.nextBoolean());
+        }
+        editor.commit();
+    }
+
+    // The scan that PhoneInterfaceManager#getMergedSubscriberIds did before the index.
+    private static String[] scanMergedSubscriberIds(Map<String, ?> prefs,
+            String activeSubscriberId) {
+        String mergeNumber = null;
+        for (String key : prefs.keySet()) {
+            if (key.startsWith(SUBSCRIBER_PREFIX)) {
+                final String subscriberId = (String) prefs.get(key);
+                if (activeSubscriberId.equals(subscriberId)) {
+                    final String iccId = key.substring(SUBSCRIBER_PREFIX.length());
+                    mergeNumber = (String) prefs.get(NUMBER_PREFIX + iccId);
+                    if (!TextUtils.isEmpty(mergeNumber)) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (TextUtils.isEmpty(mergeNumber)) {
+            return null;
+        }
+
+        final ArraySet<String> result = new ArraySet<>();
+        for (String key : prefs.keySet()) {
+            if (key.startsWith(NUMBER_PREFIX)) {
+                final String number = (String) prefs.get(key);
+                if (mergeNumber.equals(number)) {
+                    final String iccId = key.substring(NUMBER_PREFIX.length());
+                    final String subscriberId = (String) prefs.get(SUBSCRIBER_PREFIX + iccId);
+                    if (!TextUtils.isEmpty(subscriberId)) {
+                        result.add(subscriberId);
+                    }
+                }
+            }
+        }
+        final String[] resultArray = result.toArray(new String[result.size()]);
+        Arrays.sort(resultArray);
+        return resultArray;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcelable;
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
+import android.telephony.AccessNetworkConstants.EutranBand;
+import android.telephony.CellInfo;
+import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
+import android.telephony.RadioAccessSpecifier;
+import android.telephony.TelephonyScanManager;
+import android.util.ArraySet;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit Test for NetworkScanMultiplexer.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NetworkScanMultiplexerTest {
+    private static final String TAG = "NetworkScanMultiplexerTest";
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int UID_A = 10100;
+    private static final int UID_B = 10200;
+    private static final int UID_C = 10300;
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+    private static final String PACKAGE_C = "com.example.c";
+
+    /** Records the scans of the modem like NetworkScanRequestTracker would start them. */
+    private static class FakeScanTracker implements NetworkScanMultiplexer.ScanTracker {
+        final List<NetworkScanRequest> mStarted = new ArrayList<>();
+        final List<Integer> mStopped = new ArrayList<>();
+        Messenger mMessenger;
+
+        @Override
+        public int startNetworkScan(NetworkScanRequest request, Messenger messenger,
+                Phone phone) {
+            mStarted.add(request);
+            mMessenger = messenger;
+            return mStarted.size();
+        }
+
+        @Override
+        public void stopNetworkScan(int scanId) {
+            mStopped.add(scanId);
+        }
+    }
+
+    /** Collects the callbacks of the scans of one caller. */
+    private static class Caller {
+        final LinkedBlockingQueue<Message> mCallbacks = new LinkedBlockingQueue<>();
+        final Messenger mMessenger;
+        final Binder mBinder = new Binder();
+        int mScanId;
+
+        Caller(HandlerThread thread) {
+            mMessenger = new Messenger(new Handler(thread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    mCallbacks.add(Message.obtain(msg));
+                }
+            });
+        }
+
+        Message next() throws InterruptedException {
+            Message msg = mCallbacks.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertThat(msg).isNotNull();
+            assertThat(msg.arg2).isEqualTo(mScanId);
+            return msg;
+        }
+    }
+
+    private final FakeScanTracker mScanTracker = new FakeScanTracker();
+    private final Set<Integer> mFineLocationUids = new ArraySet<>();
+    private final Phone mPhone = mock(Phone.class);
+    private HandlerThread mHandlerThread;
+    private HandlerThread mCallerThread;
+    private NetworkScanMultiplexer mMultiplexer;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mCallerThread = new HandlerThread(TAG + "-callers");
+        mCallerThread.start();
+        doReturn(0).when(mPhone).getPhoneId();
+        mFineLocationUids.add(UID_A);
+        mFineLocationUids.add(UID_B);
+        mFineLocationUids.add(UID_C);
+        mMultiplexer = new NetworkScanMultiplexer(mHandlerThread.getLooper(), mScanTracker,
+                (uid, pid, callingPackage) -> mFineLocationUids.contains(uid));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        mCallerThread.quit();
+    }
+
+    @Test
+    public void testStaggeredCallers_shareOneScan() throws Exception {
+        Caller a = request(lteScan(EutranBand.BAND_1, EutranBand.BAND_3), UID_A, PACKAGE_A);
+        CellInfo[] first = cellInfo(2);
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_RESULTS, first);
+        assertResults(a.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, first);
+
+        // A late caller gets the results sent so far.
+        Caller b = request(lteScan(EutranBand.BAND_1), UID_B, PACKAGE_B);
+        assertResults(b.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, first);
+
+        CellInfo[] second = cellInfo(3);
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_RESULTS, second);
+        assertResults(a.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, second);
+        assertResults(b.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, second);
+
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_COMPLETE, null);
+        assertThat(a.next().what).isEqualTo(TelephonyScanManager.CALLBACK_SCAN_COMPLETE);
+        assertThat(b.next().what).isEqualTo(TelephonyScanManager.CALLBACK_SCAN_COMPLETE);
+
+        assertThat(a.mScanId).isNotEqualTo(b.mScanId);
+        assertThat(mScanTracker.mStarted).hasSize(1);
+        assertThat(mMultiplexer.getScanCount()).isEqualTo(0);
+        assertThat(mScanTracker.mStopped).isEmpty();
+    }
+
+    @Test
+    public void testUncoveredRequest_startsOwnScan() {
+        request(lteScan(EutranBand.BAND_1), UID_A, PACKAGE_A);
+        // The running scan doesn't cover band 3.
+        request(lteScan(EutranBand.BAND_1, EutranBand.BAND_3), UID_B, PACKAGE_B);
+
+        assertThat(mScanTracker.mStarted).hasSize(2);
+        assertThat(mMultiplexer.getScanCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCancellation_stopsModemScanWithLastCaller() throws Exception {
+        Caller a = request(lteScan(), UID_A, PACKAGE_A);
+        Caller b = request(lteScan(EutranBand.BAND_7), UID_B, PACKAGE_B);
+        Caller c = request(lteScan(EutranBand.BAND_1), UID_C, PACKAGE_C);
+
+        // Only the caller that got the scan id can stop it.
+        assertThat(mMultiplexer.stopNetworkScan(a.mScanId, UID_B)).isTrue();
+        assertThat(mMultiplexer.stopNetworkScan(a.mScanId, UID_A)).isTrue();
+        Message complete = a.next();
+        assertThat(complete.what).isEqualTo(TelephonyScanManager.CALLBACK_SCAN_COMPLETE);
+        assertThat(complete.arg1).isEqualTo(NetworkScan.SUCCESS);
+
+        CellInfo[] results = cellInfo(1);
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        assertResults(b.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        assertResults(c.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        assertThat(a.mCallbacks).isEmpty();
+
+        mMultiplexer.stopNetworkScan(b.mScanId, UID_B);
+        assertThat(mScanTracker.mStopped).isEmpty();
+        mMultiplexer.stopNetworkScan(c.mScanId, UID_C);
+        assertThat(mScanTracker.mStopped).containsExactly(1);
+        assertThat(mMultiplexer.getScanCount()).isEqualTo(0);
+
+        // Scan ids that the multiplexer didn't hand out are left to the tracker.
+        assertThat(mMultiplexer.stopNetworkScan(1, UID_A)).isFalse();
+    }
+
+    @Test
+    public void testModemError_endsScanForAllCallers() throws Exception {
+        Caller a = request(lteScan(), UID_A, PACKAGE_A);
+        Caller b = request(lteScan(), UID_B, PACKAGE_B);
+
+        mScanTracker.mMessenger.send(Message.obtain(null,
+                TelephonyScanManager.CALLBACK_SCAN_ERROR, NetworkScan.ERROR_MODEM_UNAVAILABLE, 1));
+
+        assertThat(a.next().arg1).isEqualTo(NetworkScan.ERROR_MODEM_UNAVAILABLE);
+        assertThat(b.next().arg1).isEqualTo(NetworkScan.ERROR_MODEM_UNAVAILABLE);
+        assertThat(mMultiplexer.stopNetworkScan(a.mScanId, UID_A)).isFalse();
+    }
+
+    @Test
+    public void testResults_filteredByLocationAccess() throws Exception {
+        mFineLocationUids.remove(UID_B);
+        Caller a = request(lteScan(), UID_A, PACKAGE_A);
+        Caller b = request(lteScan(), UID_B, PACKAGE_B);
+        Caller c = new Caller(mCallerThread);
+        c.mScanId = mMultiplexer.requestNetworkScan(true /* renounceFineLocationAccess */,
+                lteScan(), c.mMessenger, c.mBinder, mPhone, UID_C, 0, PACKAGE_C);
+
+        CellInfo[] results = cellInfo(2);
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+
+        assertResults(a.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        CellInfo[] sanitized = new CellInfo[] {results[0].sanitizeLocationInfo(),
+                results[1].sanitizeLocationInfo()};
+        assertResults(b.next(), TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS,
+                sanitized);
+        assertResults(c.next(), TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS,
+                sanitized);
+    }
+
+    @Test
+    public void testSlowLocationCheck_doesNotBlockOtherCallers() throws Exception {
+        CountDownLatch checking = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        boolean[] checkTimedOut = new boolean[1];
+        mMultiplexer = new NetworkScanMultiplexer(mHandlerThread.getLooper(), mScanTracker,
+                (uid, pid, callingPackage) -> {
+                    checking.countDown();
+                    try {
+                        checkTimedOut[0] |= !unblock.await(TIMEOUT_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Fall through
+                    }
+                    return true;
+                });
+        Caller a = request(lteScan(), UID_A, PACKAGE_A);
+        Caller b = request(lteScan(), UID_B, PACKAGE_B);
+        CellInfo[] results = cellInfo(1);
+        sendModemCallback(1, TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        assertThat(checking.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+
+        // Another caller stops its scan while the location access of a caller is checked.
+        assertThat(mMultiplexer.stopNetworkScan(b.mScanId, UID_B)).isTrue();
+        unblock.countDown();
+
+        assertResults(a.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        // The results that were being sent still come before the end of the scan.
+        assertResults(b.next(), TelephonyScanManager.CALLBACK_SCAN_RESULTS, results);
+        assertThat(b.next().what).isEqualTo(TelephonyScanManager.CALLBACK_SCAN_COMPLETE);
+        assertThat(checkTimedOut[0]).isFalse();
+    }
+
+    @Test
+    public void testCovers() {
+        assertThat(NetworkScanMultiplexer.covers(lteScan(), lteScan(EutranBand.BAND_1)))
+                .isTrue();
+        assertThat(NetworkScanMultiplexer.covers(lteScan(EutranBand.BAND_1), lteScan()))
+                .isFalse();
+
+        NetworkScanRequest periodic = new NetworkScanRequest(
+                NetworkScanRequest.SCAN_TYPE_PERIODIC, lteScan().getSpecifiers(), 10, 300, true,
+                3, null);
+        assertThat(NetworkScanMultiplexer.covers(lteScan(), periodic)).isFalse();
+        NetworkScanRequest shorter = new NetworkScanRequest(
+                NetworkScanRequest.SCAN_TYPE_ONE_SHOT, lteScan().getSpecifiers(), 10, 60, true,
+                3, null);
+        assertThat(NetworkScanMultiplexer.covers(lteScan(), shorter)).isTrue();
+        assertThat(NetworkScanMultiplexer.covers(shorter, lteScan())).isFalse();
+    }
+
+    private Caller request(NetworkScanRequest request, int uid, String callingPackage) {
+        Caller caller = new Caller(mCallerThread);
+        caller.mScanId = mMultiplexer.requestNetworkScan(false, request, caller.mMessenger,
+                caller.mBinder, mPhone, uid, 0, callingPackage);
+        return caller;
+    }
+
+    private void sendModemCallback(int modemScanId, int what, CellInfo[] results)
+            throws Exception {
+        Message msg = Message.obtain(null, what, NetworkScan.SUCCESS, modemScanId);
+        if (results != null) {
+            Bundle b = new Bundle();
+            b.putParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY, results);
+            msg.setData(b);
+        }
+        mScanTracker.mMessenger.send(msg);
+    }
+
+    private static void assertResults(Message msg, int what, CellInfo[] expected) {
+        assertThat(msg.what).isEqualTo(what);
+        Parcelable[] results = msg.getData().getParcelableArray(
+                TelephonyScanManager.SCAN_RESULT_KEY);
+        assertThat(results).asList().containsExactlyElementsIn(expected).inOrder();
+    }
+
+    private static NetworkScanRequest lteScan(int... bands) {
+        RadioAccessSpecifier[] specifiers = new RadioAccessSpecifier[] {
+                new RadioAccessSpecifier(AccessNetworkType.EUTRAN, bands, null)};
+        return new NetworkScanRequest(NetworkScanRequest.SCAN_TYPE_ONE_SHOT, specifiers, 10, 300,
+                true, 3, null);
+    }
+
+    private static CellInfo[] cellInfo(int count) {
+        CellInfo[] cellInfo = new CellInfo[count];
+        for (int i = 0; i < count; i++) {
+            cellInfo[i] = mock(CellInfo.class);
+            doReturn(mock(CellInfo.class)).when(cellInfo[i]).sanitizeLocationInfo();
+        }
+        return cellInfo;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Unit Test for RequestCoalescer.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestCoalescerTest {
+    private static final int COMMAND = 21;
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+    private static final long LONG_TTL_MILLIS = 60 * 60 * 1000;
+    private static final long MAX_JOIN_AGE_MILLIS = 5000;
+
+    private final List<RequestFuture> mSentRequests = new ArrayList<>();
+    private final Supplier<RequestFuture> mSender = () -> {
+        RequestFuture future = new RequestFuture();
+        mSentRequests.add(future);
+        return future;
+    };
+
+    @Test
+    public void testConcurrentCallers_shareOneRequest() {
+        RequestCoalescer coalescer = new RequestCoalescer(MAX_JOIN_AGE_MILLIS);
+
+        RequestFuture first = coalescer.getOrSend(COMMAND, SUB_ID, null, 0, mSender);
+        RequestFuture second = coalescer.getOrSend(COMMAND, SUB_ID, null, 0, mSender);
+        RequestFuture otherSub = coalescer.getOrSend(COMMAND, OTHER_SUB_ID, null, 0, mSender);
+        RequestFuture otherArgument = coalescer.getOrSend(COMMAND, SUB_ID, 2, 0, mSender);
+
+        assertThat(mSentRequests).hasSize(3);
+        assertThat(second).isSameInstanceAs(first);
+        mSentRequests.get(0).complete(5);
+        assertThat(first.await(0)).isEqualTo(5);
+        assertThat(second.await(0)).isEqualTo(5);
+        assertThat(otherSub.isDone()).isFalse();
+        assertThat(otherArgument.isDone()).isFalse();
+        assertThat(coalescer.getSentCount(COMMAND)).isEqualTo(3);
+        assertThat(coalescer.getJoinedCount(COMMAND)).isEqualTo(1);
+
+        // Without a cache, the next caller after completion sends a new request.
+        coalescer.getOrSend(COMMAND, SUB_ID, null, 0, mSender);
+        assertThat(mSentRequests).hasSize(4);
+    }
+
+    @Test
+    public void testRequestThatNeverCompletes_isNotJoinedOnceTooOld() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(50 /*maxJoinAgeMillis*/);
+        RequestFuture stuck = coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS,
+                mSender);
+        assertThat(coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender))
+                .isSameInstanceAs(stuck);
+
+        // The first request never completes, later callers send a new one instead of joining it.
+        Thread.sleep(100);
+        RequestFuture fresh = coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS,
+                mSender);
+        assertThat(fresh).isNotSameInstanceAs(stuck);
+        assertThat(mSentRequests).hasSize(2);
+        assertThat(coalescer.getAbandonedCount(COMMAND)).isEqualTo(1);
+        assertThat(coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender))
+                .isSameInstanceAs(fresh);
+
+        mSentRequests.get(1).complete(6);
+        assertThat(fresh.await(0)).isEqualTo(6);
+        assertThat(stuck.isDone()).isFalse();
+        // A late result of the abandoned request doesn't replace the cached one.
+        mSentRequests.get(0).complete(5);
+        assertThat(coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender)
+                .await(0)).isEqualTo(6);
+    }
+
+    @Test
+    public void testCache_servesResultUntilInvalidated() {
+        RequestCoalescer coalescer = new RequestCoalescer(MAX_JOIN_AGE_MILLIS);
+        coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender);
+        mSentRequests.get(0).complete(5);
+
+        RequestFuture cached = coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS,
+                mSender);
+
+        assertThat(mSentRequests).hasSize(1);
+        assertThat(cached.await(0)).isEqualTo(5);
+        assertThat(coalescer.getCacheHitCount(COMMAND)).isEqualTo(1);
+
+        coalescer.invalidate(COMMAND, SUB_ID);
+        coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender);
+        assertThat(mSentRequests).hasSize(2);
+    }
+
+    @Test
+    public void testCache_doesNotCacheExpiredOrExceptionResults() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(MAX_JOIN_AGE_MILLIS);
+        coalescer.getOrSend(COMMAND, SUB_ID, null, 1, mSender);
+        mSentRequests.get(0).complete(5);
+        Thread.sleep(10);
+        coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender);
+        mSentRequests.get(1).complete(new IllegalArgumentException());
+
+        coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender);
+
+        assertThat(mSentRequests).hasSize(3);
+        assertThat(coalescer.getCacheHitCount(COMMAND)).isEqualTo(0);
+    }
+
+    @Test
+    public void testInvalidate_inFlightRequestIsNotJoinedOrCached() {
+        RequestCoalescer coalescer = new RequestCoalescer(MAX_JOIN_AGE_MILLIS);
+        RequestFuture stale = coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS,
+                mSender);
+
+        coalescer.invalidate(COMMAND, SUB_ID);
+        RequestFuture fresh = coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS,
+                mSender);
+        mSentRequests.get(0).complete(5);
+        mSentRequests.get(1).complete(6);
+
+        assertThat(fresh).isNotSameInstanceAs(stale);
+        assertThat(coalescer.getOrSend(COMMAND, SUB_ID, null, LONG_TTL_MILLIS, mSender)
+                .await(0)).isEqualTo(6);
+        assertThat(mSentRequests).hasSize(2);
+
+        StringWriter writer = new StringWriter();
+        coalescer.dump(new IndentingPrintWriter(writer, "  "));
+        assertThat(writer.toString()).contains(
+                "cmd=" + COMMAND + ": sent=2 joined=0 cacheHits=1 invalidations=1");
+    }
+}
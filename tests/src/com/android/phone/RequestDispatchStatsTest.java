@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+/**
+ * Unit Test for RequestDispatchStats.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestDispatchStatsTest {
+    private static final int PHONE_ID = 1;
+    private static final int COMMAND = 7;
+    private static final int OTHER_COMMAND = 29;
+    private static final int CALLER_UID = 10123;
+
+    @Test
+    public void testQueueDepth_trackedPerTarget() {
+        RequestDispatchStats stats = new RequestDispatchStats();
+
+        stats.onRequestQueued(RequestDispatchStats.TARGET_MAIN);
+        stats.onRequestQueued(PHONE_ID);
+        stats.onRequestQueued(PHONE_ID);
+        stats.onRequestDispatched(PHONE_ID);
+
+        assertThat(stats.getQueueDepth(RequestDispatchStats.TARGET_MAIN)).isEqualTo(1);
+        assertThat(stats.getQueueDepth(PHONE_ID)).isEqualTo(1);
+        assertThat(stats.getMaxQueueDepth(PHONE_ID)).isEqualTo(2);
+
+        stats.onRequestDispatched(PHONE_ID);
+        stats.onRequestDispatched(PHONE_ID);
+        assertThat(stats.getQueueDepth(PHONE_ID)).isEqualTo(0);
+    }
+
+    @Test
+    public void testRequestCompleted_recordsLatencyHistogramPerCommand() {
+        RequestDispatchStats stats = new RequestDispatchStats();
+
+        stats.onRequestCompleted(COMMAND, CALLER_UID, 5, 0, false);
+        stats.onRequestCompleted(COMMAND, CALLER_UID, 1, 15, false);
+        stats.onRequestCompleted(COMMAND, CALLER_UID, 1, 60000, true);
+
+        assertThat(stats.getCompletedCount(COMMAND)).isEqualTo(3);
+        assertThat(stats.getMaxServiceMillis(COMMAND)).isEqualTo(60000);
+        assertThat(stats.getCompletedCount(OTHER_COMMAND)).isEqualTo(0);
+        long[] histogram = stats.getServiceHistogram(COMMAND);
+        // <= 1ms
+        assertThat(histogram[0]).isEqualTo(1);
+        // <= 20ms
+        assertThat(histogram[4]).isEqualTo(1);
+        // > 5000ms
+        assertThat(histogram[histogram.length - 1]).isEqualTo(1);
+
+        StringWriter writer = new StringWriter();
+        stats.dump(new IndentingPrintWriter(writer, "  "));
+        assertThat(writer.toString()).contains("cmd=" + COMMAND + ": count=3 timeouts=1");
+        assertThat(writer.toString()).contains("uid=" + CALLER_UID);
+    }
+
+    @Test
+    public void testSlowestRequests_keepsSlowestAndIgnoresOutOfRangeCommands() {
+        RequestDispatchStats stats = new RequestDispatchStats();
+
+        for (int i = 0; i < 2 * RequestDispatchStats.SLOWEST_REQUEST_COUNT; i++) {
+            stats.onRequestCompleted(COMMAND, CALLER_UID, 0, i, false);
+        }
+        stats.onRequestCompleted(OTHER_COMMAND, CALLER_UID, 100, 1000, false);
+        stats.onRequestCompleted(RequestDispatchStats.MAX_COMMAND, CALLER_UID, 0, 5000, false);
+
+        int[] slowest = stats.getSlowestCommands();
+        assertThat(slowest).hasLength(RequestDispatchStats.SLOWEST_REQUEST_COUNT);
+        assertThat(slowest[0]).isEqualTo(OTHER_COMMAND);
+        assertThat(slowest[1]).isEqualTo(COMMAND);
+    }
+
+    @Test
+    public void testReset_clearsLatencies() {
+        RequestDispatchStats stats = new RequestDispatchStats();
+        stats.onRequestQueued(PHONE_ID);
+        stats.onRequestQueued(PHONE_ID);
+        stats.onRequestDispatched(PHONE_ID);
+        stats.onRequestCompleted(COMMAND, CALLER_UID, 5, 20, false);
+
+        stats.reset();
+
+        assertThat(stats.getCompletedCount(COMMAND)).isEqualTo(0);
+        assertThat(stats.getSlowestCommands()).isEmpty();
+        // Requests still in the queue are kept.
+        assertThat(stats.getQueueDepth(PHONE_ID)).isEqualTo(1);
+        assertThat(stats.getMaxQueueDepth(PHONE_ID)).isEqualTo(1);
+    }
+}
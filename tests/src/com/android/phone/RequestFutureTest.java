@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit Test for RequestFuture.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestFutureTest {
+    private static final String TAG = "RequestFutureTest";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void testAwait_returnsResultOnceCompleted() {
+        RequestFuture future = new RequestFuture();
+
+        // A null result means the handler isn't done with the request yet.
+        assertThat(future.complete(null)).isFalse();
+        assertThat(future.isDone()).isFalse();
+        mHandler.post(() -> future.complete(42));
+
+        assertThat(future.await(TIMEOUT_MILLIS)).isEqualTo(42);
+        assertThat(future.complete(7)).isFalse();
+    }
+
+    @Test
+    public void testAwait_timesOut() {
+        RequestFuture future = new RequestFuture();
+
+        assertThat(future.await(10)).isNull();
+    }
+
+    @Test
+    public void testOnComplete_runsActionWithResult() {
+        RequestFuture future = new RequestFuture();
+        List<Object> results = new ArrayList<>();
+
+        future.onComplete(results::add);
+        assertThat(results).isEmpty();
+        future.complete(42);
+        assertThat(results).containsExactly(42);
+
+        // An action added after the request completed runs right away.
+        future.onComplete(results::add);
+        assertThat(results).containsExactly(42, 42);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.LocationAccessPolicy.LocationPermissionResult;
+import android.telephony.ServiceState;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit Test for ServiceStateCache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ServiceStateCacheTest extends TelephonyTestBase {
+    private static final String TAG = "ServiceStateCacheTest";
+    private static final int PHONE_ID = 0;
+    private static final int CALLER_UID = 10123;
+    private static final int CALLER_PID = 4321;
+    private static final String CALLER_PACKAGE = "com.example.caller";
+    private static final String CALLER_FEATURE_ID = "feature";
+
+    @Mock Phone mPhone;
+    @Mock PackageManager mPackageManager;
+    @Mock AppOpsManager mAppOpsManager;
+
+    private HandlerThread mHandlerThread;
+    private ServiceStateCache mServiceStateCache;
+    private ServiceState mServiceState;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        doReturn(mPackageManager).when(mContext).getPackageManager();
+        doReturn(mAppOpsManager).when(mContext).getSystemService(Context.APP_OPS_SERVICE);
+        doReturn(AppOpsManager.MODE_ALLOWED).when(mAppOpsManager).noteOpNoThrow(
+                anyString(), anyInt(), anyString(), any(), any());
+        doReturn(PackageManager.PERMISSION_GRANTED).when(mContext).checkPermission(
+                anyString(), anyInt(), anyInt());
+        mServiceState = new ServiceState();
+        mServiceState.setOperatorName("Example Carrier", "Example", "310260");
+        doReturn(PHONE_ID).when(mPhone).getPhoneId();
+        doReturn(mServiceState).when(mPhone).getServiceState();
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mServiceStateCache = new ServiceStateCache(mContext, mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testGetServiceState_sanitizesPerLocationAccess() {
+        ServiceState fine = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_FINE);
+        ServiceState coarse = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_COARSE);
+        ServiceState none = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_NONE);
+
+        assertThat(fine).isSameInstanceAs(mServiceState);
+        assertThat(coarse).isEqualTo(mServiceState.createLocationInfoSanitizedCopy(false));
+        assertThat(none).isEqualTo(mServiceState.createLocationInfoSanitizedCopy(true));
+        assertThat(none.getOperatorAlphaLong()).isNull();
+    }
+
+    @Test
+    public void testGetServiceState_reusesVariantsUntilServiceStateChanged() {
+        ServiceState none = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_NONE);
+        assertThat(mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_NONE)).isSameInstanceAs(none);
+
+        ArgumentCaptor<Handler> handlerCaptor = ArgumentCaptor.forClass(Handler.class);
+        ArgumentCaptor<Integer> whatCaptor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Object> objCaptor = ArgumentCaptor.forClass(Object.class);
+        verify(mPhone).registerForServiceStateChanged(handlerCaptor.capture(),
+                whatCaptor.capture(), objCaptor.capture());
+        Handler handler = handlerCaptor.getValue();
+        handler.sendMessage(handler.obtainMessage(whatCaptor.getValue(),
+                new AsyncResult(objCaptor.getValue(), null, null)));
+        waitForHandlerAction(handler, 1000);
+
+        ServiceState afterChange = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_NONE);
+        assertThat(afterChange).isNotSameInstanceAs(none);
+        assertThat(afterChange).isEqualTo(none);
+    }
+
+    @Test
+    public void testGetServiceState_changedSourceBeforeNotification() {
+        mServiceStateCache.getServiceState(mPhone, ServiceStateCache.LOCATION_ACCESS_COARSE);
+
+        ServiceState newServiceState = new ServiceState(mServiceState);
+        newServiceState.setOperatorName("Other Carrier", "Other", "310410");
+        doReturn(newServiceState).when(mPhone).getServiceState();
+
+        ServiceState coarse = mServiceStateCache.getServiceState(mPhone,
+                ServiceStateCache.LOCATION_ACCESS_COARSE);
+        assertThat(coarse.getOperatorAlphaLong()).isEqualTo("Other Carrier");
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_cachedUntilInvalidated() {
+        AtomicInteger checks = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            LocationPermissionResult result = getFineLocationPermissionResult(CALLER_FEATURE_ID,
+                    checks, LocationPermissionResult.ALLOWED);
+            assertThat(result).isEqualTo(LocationPermissionResult.ALLOWED);
+        }
+        assertThat(checks.get()).isEqualTo(1);
+
+        // The coarse check of the same caller is cached separately.
+        mServiceStateCache.getLocationPermissionResult(CALLER_UID, CALLER_PID, CALLER_PACKAGE,
+                CALLER_FEATURE_ID, false, () -> {
+                    checks.incrementAndGet();
+                    return LocationPermissionResult.ALLOWED;
+                });
+        assertThat(checks.get()).isEqualTo(2);
+
+        mServiceStateCache.invalidatePermissionResults(CALLER_UID);
+        LocationPermissionResult result = getFineLocationPermissionResult(CALLER_FEATURE_ID,
+                checks, LocationPermissionResult.DENIED_HARD);
+        assertThat(result).isEqualTo(LocationPermissionResult.DENIED_HARD);
+        assertThat(checks.get()).isEqualTo(3);
+
+        getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                LocationPermissionResult.ALLOWED);
+        mServiceStateCache.invalidatePermissionResults(CALLER_PACKAGE);
+        getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                LocationPermissionResult.ALLOWED);
+        assertThat(checks.get()).isEqualTo(5);
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_notesAppOpOnEveryCachedCall() {
+        AtomicInteger checks = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                    LocationPermissionResult.ALLOWED);
+        }
+
+        // The first call notes the app op in the check itself.
+        assertThat(checks.get()).isEqualTo(1);
+        verify(mAppOpsManager, times(2)).noteOpNoThrow(AppOpsManager.OPSTR_FINE_LOCATION,
+                CALLER_UID, CALLER_PACKAGE, CALLER_FEATURE_ID, null);
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_cachedPerFeatureId() {
+        AtomicInteger checks = new AtomicInteger();
+        getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                LocationPermissionResult.ALLOWED);
+        getFineLocationPermissionResult("otherFeature", checks, LocationPermissionResult.ALLOWED);
+        getFineLocationPermissionResult(null, checks, LocationPermissionResult.ALLOWED);
+
+        assertThat(checks.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_appOpDenied_checksAgain() {
+        AtomicInteger checks = new AtomicInteger();
+        getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                LocationPermissionResult.ALLOWED);
+        doReturn(AppOpsManager.MODE_IGNORED).when(mAppOpsManager).noteOpNoThrow(
+                anyString(), anyInt(), anyString(), any(), any());
+
+        LocationPermissionResult result = getFineLocationPermissionResult(CALLER_FEATURE_ID,
+                checks, LocationPermissionResult.DENIED_SOFT);
+
+        assertThat(result).isEqualTo(LocationPermissionResult.DENIED_SOFT);
+        assertThat(checks.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_withoutPermission_notCached() {
+        doReturn(PackageManager.PERMISSION_DENIED).when(mContext).checkPermission(
+                eq(Manifest.permission.ACCESS_FINE_LOCATION), anyInt(), anyInt());
+        AtomicInteger checks = new AtomicInteger();
+        // An app targeting an old SDK may be allowed without holding the permission.
+        for (int i = 0; i < 2; i++) {
+            getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                    LocationPermissionResult.ALLOWED);
+        }
+
+        assertThat(checks.get()).isEqualTo(2);
+        verify(mAppOpsManager, never()).noteOpNoThrow(anyString(), anyInt(), anyString(), any(),
+                any());
+    }
+
+    @Test
+    public void testGetLocationPermissionResult_userSwitched_checksAgain() {
+        AtomicInteger checks = new AtomicInteger();
+        getFineLocationPermissionResult(CALLER_FEATURE_ID, checks,
+                LocationPermissionResult.ALLOWED);
+
+        // The caller now belongs to a background user, which the full check denies.
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mContext).registerReceiver(receiverCaptor.capture(), filterCaptor.capture(),
+                any(), any(Handler.class));
+        assertThat(filterCaptor.getValue().hasAction(Intent.ACTION_USER_SWITCHED)).isTrue();
+        receiverCaptor.getValue().onReceive(mContext, new Intent(Intent.ACTION_USER_SWITCHED));
+        LocationPermissionResult result = getFineLocationPermissionResult(CALLER_FEATURE_ID,
+                checks, LocationPermissionResult.DENIED_HARD);
+
+        assertThat(result).isEqualTo(LocationPermissionResult.DENIED_HARD);
+        assertThat(checks.get()).isEqualTo(2);
+    }
+
+    private LocationPermissionResult getFineLocationPermissionResult(String featureId,
+            AtomicInteger checks, LocationPermissionResult result) {
+        return mServiceStateCache.getLocationPermissionResult(CALLER_UID, CALLER_PID,
+                CALLER_PACKAGE, featureId, true, () -> {
+                    checks.incrementAndGet();
+                    return result;
+                });
+    }
+
+    @Test
+    public void testConstructor_registersForPermissionChanges() {
+        verify(mPackageManager).addOnPermissionsChangeListener(any());
+        verify(mPhone, never()).registerForServiceStateChanged(any(), anyInt(), any());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static android.provider.Telephony.ServiceStateTable.DATA_NETWORK_TYPE;
+import static android.provider.Telephony.ServiceStateTable.DATA_REG_STATE;
+import static android.provider.Telephony.ServiceStateTable.VOICE_REG_STATE;
+import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionId;
+import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionIdAndField;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doReturn;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.ServiceState;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit Test for ServiceStateNotifier.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ServiceStateNotifierTest extends TelephonyTestBase {
+    private static final String TAG = "ServiceStateNotifierTest";
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+    private static final long LONG_WINDOW_MILLIS = 60 * 60 * 1000;
+    private static final int BURST_SIZE = 50;
+
+    @Mock Context mMockContext;
+
+    private HandlerThread mHandlerThread;
+    private final List<List<Uri>> mNotifiedBatches = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        MockContentResolver contentResolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Collection<Uri> uris, ContentObserver observer, int flags) {
+                synchronized (mNotifiedBatches) {
+                    mNotifiedBatches.add(new ArrayList<>(uris));
+                }
+            }
+        };
+        doReturn(contentResolver).when(mMockContext).getContentResolver();
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testFirstUpdate_notifiesAllFieldsInOneCall() {
+        ServiceStateNotifier notifier = new ServiceStateNotifier(mMockContext,
+                mHandlerThread.getLooper(), 0);
+
+        notifier.onServiceStateChanged(null, createServiceState(ServiceState.STATE_IN_SERVICE),
+                SUB_ID);
+
+        assertThat(mNotifiedBatches).hasSize(1);
+        assertThat(mNotifiedBatches.get(0)).hasSize(6);
+        assertThat(mNotifiedBatches.get(0)).contains(getUriForSubscriptionId(SUB_ID));
+        assertThat(notifier.getDeliveredCount()).isEqualTo(6);
+        assertThat(notifier.getSuppressedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNoChange_doesNotNotify() {
+        ServiceStateNotifier notifier = new ServiceStateNotifier(mMockContext,
+                mHandlerThread.getLooper(), 0);
+
+        notifier.onServiceStateChanged(createServiceState(ServiceState.STATE_IN_SERVICE),
+                createServiceState(ServiceState.STATE_IN_SERVICE), SUB_ID);
+
+        assertThat(mNotifiedBatches).isEmpty();
+        assertThat(notifier.getBatchCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFlappingBurst_coalescedPerSubId() {
+        ServiceStateNotifier notifier = new ServiceStateNotifier(mMockContext,
+                mHandlerThread.getLooper(), LONG_WINDOW_MILLIS);
+
+        // The voice registration state flaps in and out of service on one subId, while the data
+        // registration state changes once on another.
+        ServiceState oldSS = createServiceState(ServiceState.STATE_IN_SERVICE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            ServiceState newSS = createServiceState(i % 2 == 0
+                    ? ServiceState.STATE_OUT_OF_SERVICE : ServiceState.STATE_IN_SERVICE);
+            notifier.onServiceStateChanged(oldSS, newSS, SUB_ID);
+            oldSS = newSS;
+        }
+        ServiceState otherNewSS = createServiceState(ServiceState.STATE_IN_SERVICE);
+        otherNewSS.setDataRegState(ServiceState.STATE_OUT_OF_SERVICE);
+        notifier.onServiceStateChanged(createServiceState(ServiceState.STATE_IN_SERVICE),
+                otherNewSS, OTHER_SUB_ID);
+
+        assertThat(mNotifiedBatches).isEmpty();
+
+        notifier.flush(SUB_ID);
+        notifier.flush(OTHER_SUB_ID);
+
+        assertThat(mNotifiedBatches).hasSize(2);
+        assertThat(mNotifiedBatches.get(0)).containsExactly(
+                getUriForSubscriptionIdAndField(SUB_ID, VOICE_REG_STATE),
+                getUriForSubscriptionId(SUB_ID));
+        assertThat(mNotifiedBatches.get(1)).containsExactly(
+                getUriForSubscriptionIdAndField(OTHER_SUB_ID, DATA_REG_STATE),
+                getUriForSubscriptionId(OTHER_SUB_ID));
+        assertThat(notifier.getDeliveredCount()).isEqualTo(4);
+        // Every update after the first one on SUB_ID only repeated pending URIs.
+        assertThat(notifier.getSuppressedCount()).isEqualTo(2 * (BURST_SIZE - 1));
+        assertThat(notifier.getBatchCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testBurst_flushedAfterWindow() {
+        final long windowMillis = 50;
+        ServiceStateNotifier notifier = new ServiceStateNotifier(mMockContext,
+                mHandlerThread.getLooper(), windowMillis);
+
+        notifier.onServiceStateChanged(null, createServiceState(ServiceState.STATE_IN_SERVICE),
+                SUB_ID);
+        ServiceState oldSS = createServiceState(ServiceState.STATE_IN_SERVICE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            ServiceState newSS = createServiceState(ServiceState.STATE_IN_SERVICE);
+            newSS.setDataRegState(i % 2 == 0
+                    ? ServiceState.STATE_OUT_OF_SERVICE : ServiceState.STATE_IN_SERVICE);
+            notifier.onServiceStateChanged(oldSS, newSS, SUB_ID);
+            oldSS = newSS;
+        }
+        waitForHandlerActionDelayed(new Handler(mHandlerThread.getLooper()), 1000,
+                windowMillis * 2);
+
+        synchronized (mNotifiedBatches) {
+            assertThat(mNotifiedBatches).hasSize(1);
+            assertThat(mNotifiedBatches.get(0)).hasSize(6);
+            assertThat(mNotifiedBatches.get(0)).contains(
+                    getUriForSubscriptionIdAndField(SUB_ID, DATA_NETWORK_TYPE));
+        }
+        assertThat(notifier.getSuppressedCount()).isEqualTo(2 * BURST_SIZE);
+    }
+
+    private static ServiceState createServiceState(int voiceRegState) {
+        ServiceState ss = new ServiceState();
+        ss.setStateOutOfService();
+        ss.setVoiceRegState(voiceRegState);
+        ss.setDataRegState(ServiceState.STATE_IN_SERVICE);
+        return ss;
+    }
+}
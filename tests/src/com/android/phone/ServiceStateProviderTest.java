@@ -57,6 +57,7 @@ import android.database.Cursor;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.NetworkRegistrationInfo;
@@ -65,6 +66,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -416,6 +418,90 @@ public class ServiceStateProviderTest {
         verify(mAppOpsManager, never()).noteOpNoThrow(any(), anyInt(), any(), any(), any());
     }
 
+    /**
+     * Verify that a query after the ServiceState of the subId has changed returns the new values
+     * rather than the values read for the previous ServiceState.
+     */
+    @Test
+    @SmallTest
+    public void testQuery_afterServiceStateChanged_returnsNewValues() {
+        setLocationPermissions(true);
+        verifyServiceStateForSubId(getUriForSubscriptionId(0), mTestServiceState,
+                true /*hasLocation*/);
+
+        mTestServiceState = new ServiceState(mTestServiceState);
+        mTestServiceState.setVoiceRegState(ServiceState.STATE_IN_SERVICE);
+        mTestServiceState.setCdmaSystemAndNetworkId(TEST_SYSTEM_ID + 1, TEST_NETWORK_ID + 1);
+
+        verifyServiceStateForSubId(getUriForSubscriptionId(0), mTestServiceState,
+                true /*hasLocation*/);
+    }
+
+    /**
+     * Verify that a projection with a subset of the columns in a different order returns the
+     * values of the requested columns.
+     */
+    @Test
+    @SmallTest
+    public void testQuery_partialProjection() {
+        setLocationPermissions(true);
+        String[] projection = new String[]{DUPLEX_MODE, VOICE_OPERATOR_NUMERIC, VOICE_REG_STATE};
+
+        try (Cursor cursor = mContentResolver.query(getUriForSubscriptionId(1), projection, null,
+                null)) {
+            assertNotNull(cursor);
+            assertEquals(3, cursor.getColumnCount());
+            cursor.moveToFirst();
+            assertEquals(mTestServiceStateForSubId1.getDuplexMode(), cursor.getInt(0));
+            assertEquals(Cursor.FIELD_TYPE_NULL, cursor.getType(1));
+            assertEquals(mTestServiceStateForSubId1.getState(), cursor.getInt(2));
+            assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(2));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testQuery_unknownColumn_throwIllegalArgumentException() {
+        setLocationPermissions(true);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> mContentResolver.query(getUriForSubscriptionId(1),
+                        new String[]{"unknown_column"}, null, null));
+    }
+
+    /**
+     * Microbenchmark of queries with the full projection and with a single column, as issued by
+     * JobScheduler content triggers and status bar clients. The latencies are logged.
+     */
+    @Test
+    public void testQueryLatency_fullProjectionAndSingleColumn() {
+        setLocationPermissions(true);
+        final int iterations = 2000;
+        final Uri uri = getUriForSubscriptionId(1);
+        final String[] singleColumn = new String[]{DATA_NETWORK_TYPE};
+
+        long fullNanos = measureQueryNanos(uri, ServiceStateProvider.ALL_COLUMNS, iterations);
+        long singleNanos = measureQueryNanos(uri, singleColumn, iterations);
+
+        Log.i(TAG, "query latency: full projection " + fullNanos + " ns, single column "
+                + singleNanos + " ns");
+        assertTrue(fullNanos > 0 && singleNanos > 0);
+    }
+
+    // Returns the average time to query and read all columns of the projection.
+    private long measureQueryNanos(Uri uri, String[] projection, int iterations) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            try (Cursor cursor = mContentResolver.query(uri, projection, null, null)) {
+                cursor.moveToFirst();
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+    }
+
     private void verifyServiceStateWithLocationColumns(ServiceState ss) {
         // NETWORK_ID is a location-sensitive column
         try (Cursor cursor = mContentResolver.query(ServiceStateTable.CONTENT_URI,
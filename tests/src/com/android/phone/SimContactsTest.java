@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit Test for the SIM contact import of SimContacts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SimContactsTest {
+    private static final int CONTACT_COUNT = 120;
+    private static final int BATCH_SIZE = 50;
+    private static final Account ACCOUNT = new Account("user@example.com", "com.example");
+
+    @Test
+    public void testImportSimContacts_matchesPerContactImport() {
+        FakeContactsProvider perContactProvider = new FakeContactsProvider();
+        MockContentResolver perContactResolver = createResolver(perContactProvider);
+        Cursor cursor = createSimContactsCursor();
+        while (cursor.moveToNext()) {
+            assertThat(SimContacts.actuallyImportOneSimContact(cursor, perContactResolver,
+                    ACCOUNT)).isTrue();
+        }
+
+        FakeContactsProvider batchedProvider = new FakeContactsProvider();
+        List<Integer> progress = new ArrayList<>();
+        int imported = SimContacts.importSimContacts(createSimContactsCursor(),
+                createResolver(batchedProvider), ACCOUNT, BATCH_SIZE, () -> false,
+                progress::add);
+
+        assertThat(imported).isEqualTo(CONTACT_COUNT);
+        assertThat(progress).containsExactly(50, 50, 20).inOrder();
+        assertThat(perContactProvider.mTransactionCount).isEqualTo(CONTACT_COUNT);
+        assertThat(batchedProvider.mTransactionCount).isEqualTo(3);
+        assertThat(batchedProvider.mRawContacts)
+                .containsExactlyElementsIn(perContactProvider.mRawContacts).inOrder();
+        assertThat(batchedProvider.mDataRows)
+                .containsExactlyElementsIn(perContactProvider.mDataRows).inOrder();
+    }
+
+    @Test
+    public void testImportSimContacts_canceledBetweenBatches() {
+        FakeContactsProvider provider = new FakeContactsProvider();
+        List<Integer> progress = new ArrayList<>();
+        int imported = SimContacts.importSimContacts(createSimContactsCursor(),
+                createResolver(provider), ACCOUNT, BATCH_SIZE, () -> !progress.isEmpty(),
+                progress::add);
+
+        assertThat(imported).isEqualTo(BATCH_SIZE);
+        assertThat(progress).containsExactly(BATCH_SIZE);
+        assertThat(provider.mTransactionCount).isEqualTo(1);
+        assertThat(provider.mRawContacts).hasSize(BATCH_SIZE);
+    }
+
+    @Test
+    public void testImportSimContacts_rejectedContactOnlyFailsItself() {
+        FakeContactsProvider provider = new FakeContactsProvider();
+        provider.mRejectedNumber = "5551060";
+        List<Integer> progress = new ArrayList<>();
+        int imported = SimContacts.importSimContacts(createSimContactsCursor(),
+                createResolver(provider), ACCOUNT, BATCH_SIZE, () -> false, progress::add);
+
+        assertThat(imported).isEqualTo(CONTACT_COUNT - 1);
+        assertThat(progress).containsExactly(50, 50, 20).inOrder();
+        // The failed batch is retried one contact at a time and nothing is inserted twice.
+        assertThat(provider.mTransactionCount).isEqualTo(3 + 1 + BATCH_SIZE);
+        assertThat(provider.mRawContacts).hasSize(CONTACT_COUNT - 1);
+        List<Object> numbers = new ArrayList<>();
+        for (ContentValues values : provider.mDataRows) {
+            if (Phone.CONTENT_ITEM_TYPE.equals(values.getAsString(Data.MIMETYPE))) {
+                numbers.add(values.get(Phone.NUMBER));
+            }
+        }
+        assertThat(numbers).hasSize(CONTACT_COUNT - 1);
+        assertThat(numbers).containsNoDuplicates();
+        assertThat(numbers).doesNotContain(provider.mRejectedNumber);
+    }
+
+    private static MockContentResolver createResolver(FakeContactsProvider provider) {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        return resolver;
+    }
+
+    private static Cursor createSimContactsCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"name", "number", "emails"});
+        for (int i = 0; i < CONTACT_COUNT; i++) {
+            String name = i % 3 == 0 ? "Contact " + i + "/W" : "Contact " + i;
+            String emails = i % 4 == 0 ? "a" + i + "@example.com,b" + i + "@example.com" : null;
+            cursor.addRow(new Object[] {name, "555" + (1000 + i), emails});
+        }
+        return cursor;
+    }
+
+    /**
+     * Records the rows inserted by each applyBatch call and resolves their back references. Like
+     * the contacts provider, a batch is applied in a single transaction, and fails as a whole if
+     * it inserts the rejected phone number.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        int mTransactionCount;
+        String mRejectedNumber;
+        final List<ContentValues> mRawContacts = new ArrayList<>();
+        final List<ContentValues> mDataRows = new ArrayList<>();
+
+        @Override
+        public ContentProviderResult[] applyBatch(String authority,
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mTransactionCount++;
+            List<ContentValues> rawContacts = new ArrayList<>();
+            List<ContentValues> dataRows = new ArrayList<>();
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                ContentValues values = operation.resolveValueBackReferences(results, i);
+                if (RawContacts.CONTENT_URI.equals(operation.getUri())) {
+                    rawContacts.add(values);
+                    results[i] = new ContentProviderResult(ContentUris.withAppendedId(
+                            RawContacts.CONTENT_URI, mRawContacts.size() + rawContacts.size()));
+                } else {
+                    if (mRejectedNumber != null
+                            && mRejectedNumber.equals(values.getAsString(Phone.NUMBER))) {
+                        throw new OperationApplicationException("rejected " + mRejectedNumber);
+                    }
+                    dataRows.add(values);
+                    results[i] = new ContentProviderResult(ContentUris.withAppendedId(
+                            Data.CONTENT_URI, mDataRows.size() + dataRows.size()));
+                }
+            }
+            mRawContacts.addAll(rawContacts);
+            mDataRows.addAll(dataRows);
+            return results;
+        }
+    }
+}
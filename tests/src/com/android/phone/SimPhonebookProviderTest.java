@@ -29,14 +29,18 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.SimPhonebookContract;
@@ -1033,6 +1037,23 @@ public final class SimPhonebookProviderTest {
                 .containsExactlyElementsIn(unchanged);
     }
 
+    @Test
+    public void delete_writeFails_returnsZero() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "5550101");
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        doReturn(false).when(iccPhoneBook).updateAdnRecordsInEfByIndexForSubscriber(
+                eq(1), eq(IccConstants.EF_ADN), any(ContentValues.class), eq(1), any());
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, iccPhoneBook);
+
+        int result = mResolver.delete(SimRecords.getItemUri(1, ElementaryFiles.EF_ADN, 1), null);
+
+        assertThat(result).isEqualTo(0);
+        assertThat(iccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Initial", "5550101"));
+    }
+
     @Test
     public void update_indexExceedingMax_returnsZero() {
         setupSimsWithSubscriptionIds(1);
@@ -1310,6 +1331,330 @@ public final class SimPhonebookProviderTest {
         verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
     }
 
+    @Test
+    public void query_itemUriWalk_loadsEachEfOnce() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        for (int i = 0; i < 10; i++) {
+            mIccPhoneBook.addAdnRecord(1, "Name" + i, "800555010" + i);
+        }
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, iccPhoneBook);
+
+        int maxRecords;
+        try (Cursor cursor = mResolver.query(ElementaryFiles.getItemUri(1, EF_ADN),
+                new String[]{ElementaryFiles.MAX_RECORDS}, null, null)) {
+            cursor.moveToFirst();
+            maxRecords = cursor.getInt(0);
+        }
+        int nonEmptyCount = 0;
+        for (int recordNumber = 1; recordNumber <= maxRecords; recordNumber++) {
+            try (Cursor cursor = mResolver.query(SimRecords.getItemUri(1, EF_ADN, recordNumber),
+                    null, null, null)) {
+                nonEmptyCount += cursor.getCount();
+            }
+        }
+
+        assertThat(nonEmptyCount).isEqualTo(10);
+        verify(iccPhoneBook, times(1)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+        verify(iccPhoneBook, times(1)).getAdnRecordsSizeForSubscriber(1, IccConstants.EF_ADN);
+    }
+
+    @Test
+    public void query_afterWriteOutsideProvider_returnsWrittenRecordOnceNotified() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "5550101");
+        String[] projection = {SimRecords.NAME, SimRecords.PHONE_NUMBER};
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                null, null)) {
+            assertThat(cursor).hasData(new Object[][]{{"Initial", "5550101"}});
+        }
+
+        // A write through IccProvider goes straight to the SIM.
+        mIccPhoneBook.addAdnRecord(1, "Other", "5550102");
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                null, null)) {
+            assertThat(cursor).hasData(new Object[][]{{"Initial", "5550101"}});
+        }
+        getProvider().onIccRecordsChanged();
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                null, null)) {
+            assertThat(cursor).hasData(new Object[][]{
+                    {"Initial", "5550101"},
+                    {"Other", "5550102"}
+            });
+        }
+    }
+
+    @Test
+    public void writes_updateCachedRecordsInPlace() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "5550101");
+        mIccPhoneBook.addAdnRecord(1, "Deleted", "5550102");
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, iccPhoneBook);
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(2);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, "Inserted");
+        values.put(SimRecords.PHONE_NUMBER, "5550103");
+        mResolver.insert(SimRecords.getContentUri(1, EF_ADN), values);
+        values.put(SimRecords.NAME, "Updated");
+        values.put(SimRecords.PHONE_NUMBER, "5550104");
+        mResolver.update(SimRecords.getItemUri(1, EF_ADN, 1), values, null);
+        mResolver.delete(SimRecords.getItemUri(1, EF_ADN, 2), null);
+
+        String[] projection = {
+                SimRecords.RECORD_NUMBER, SimRecords.NAME, SimRecords.PHONE_NUMBER
+        };
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                null, null)) {
+            assertThat(cursor).hasData(new Object[][]{
+                    {1, "Updated", "5550104"},
+                    {3, "Inserted", "5550103"}
+            });
+        }
+        assertThat(iccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "5550104"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "Inserted", "5550103"));
+        verify(iccPhoneBook, times(1)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+    }
+
+    @Test
+    public void subscriptionsChange_reloadsRecords() {
+        // Clear invocations that happened in setUp
+        Mockito.reset(mMockSubscriptionManager);
+        doNothing().when(mMockSubscriptionManager)
+                .addOnSubscriptionsChangedListener(any(), any());
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "5550101");
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        ArgumentCaptor<SubscriptionManager.OnSubscriptionsChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(SubscriptionManager.OnSubscriptionsChangedListener.class);
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, iccPhoneBook);
+        verify(mMockSubscriptionManager).addOnSubscriptionsChangedListener(
+                any(), listenerCaptor.capture());
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(1);
+        }
+        // The SIM was changed outside of the provider.
+        iccPhoneBook.addAdnRecord(1, "Other", "5550102");
+        listenerCaptor.getValue().onSubscriptionsChanged();
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(2);
+        }
+        verify(iccPhoneBook, times(2)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+    }
+
+    @Test
+    public void bulkInsert_insertsAllRecordsWithSingleNotification() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Existing", "5550100");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SimRecords.NAME, "Name" + i);
+            values[i].put(SimRecords.PHONE_NUMBER, "555010" + (i + 1));
+        }
+        int inserted = mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN), values);
+
+        assertThat(inserted).isEqualTo(3);
+        assertThat(mIccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Existing", "5550100"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Name0", "5550101"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "Name1", "5550102"),
+                        new AdnRecord(IccConstants.EF_ADN, 4, "Name2", "5550103"));
+        verify(mockNotifier, times(1)).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void bulkInsert_invalidValues_writesNothing() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+
+        ContentValues valid = new ContentValues();
+        valid.put(SimRecords.NAME, "Valid");
+        valid.put(SimRecords.PHONE_NUMBER, "5550101");
+        ContentValues invalid = new ContentValues();
+        invalid.put(SimRecords.NAME, "Invalid");
+        // 21 digits is longer than max of 20
+        invalid.put(SimRecords.PHONE_NUMBER, "123456789012345678901");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN),
+                        new ContentValues[]{valid, invalid}));
+
+        assertThat(e).hasMessageThat().isEqualTo(SimRecords.PHONE_NUMBER + " is too long.");
+        assertThat(mIccPhoneBook.getAllValidRecords()).isEmpty();
+    }
+
+    @Test
+    public void bulkInsert_notEnoughEmptyRecords_writesNothing() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setupEfWithSizes(1, IccConstants.EF_ADN, 2, 30);
+        mIccPhoneBook.addRecord(1, IccConstants.EF_ADN, "Existing", "5550100");
+
+        ContentValues[] values = new ContentValues[2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SimRecords.NAME, "Name" + i);
+            values[i].put(SimRecords.PHONE_NUMBER, "555010" + (i + 1));
+        }
+        Uri uri = SimRecords.getContentUri(1, EF_ADN);
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> mResolver.bulkInsert(uri, values));
+
+        assertThat(e).hasMessageThat().isEqualTo(
+                uri + " is full. Please delete records to add new ones.");
+        assertThat(mIccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Existing", "5550100"));
+    }
+
+    @Test
+    public void applyBatch_partialFailure_reportsResultPerOperation() throws Exception {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "First", "5550101");
+        mIccPhoneBook.addAdnRecord(1, "Second", "5550102");
+        mIccPhoneBook.addAdnRecord(1, "Third", "5550103");
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        // Writes to the second record fail on the SIM.
+        doReturn(false).when(iccPhoneBook).updateAdnRecordsInEfByIndexForSubscriber(
+                eq(1), eq(IccConstants.EF_ADN), any(ContentValues.class), eq(2), any());
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, iccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValue(SimRecords.NAME, "Inserted")
+                .withValue(SimRecords.PHONE_NUMBER, "5550104")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(SimRecords.getItemUri(1, EF_ADN, 1))
+                .withValue(SimRecords.NAME, "Updated")
+                .withValue(SimRecords.PHONE_NUMBER, "5550105")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(SimRecords.getItemUri(1, EF_ADN, 2))
+                .withValue(SimRecords.NAME, "Failed")
+                .withValue(SimRecords.PHONE_NUMBER, "5550106")
+                .build());
+        operations.add(ContentProviderOperation.newDelete(SimRecords.getItemUri(1, EF_ADN, 3))
+                .build());
+        ContentProviderResult[] results = mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                operations);
+
+        assertThat(results).hasLength(4);
+        assertThat(results[0].uri).isEqualTo(SimRecords.getItemUri(1, EF_ADN, 4));
+        assertThat(results[1].count).isEqualTo(1);
+        assertThat(results[2].count).isEqualTo(0);
+        assertThat(results[3].count).isEqualTo(1);
+        assertThat(iccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "5550105"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Second", "5550102"),
+                        new AdnRecord(IccConstants.EF_ADN, 4, "Inserted", "5550104"));
+        verify(mockNotifier, times(1)).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+        // The failed write is reloaded from the SIM by the next query.
+        try (Cursor cursor = mResolver.query(SimRecords.getItemUri(1, EF_ADN, 2),
+                new String[]{SimRecords.NAME}, null, null)) {
+            assertThat(cursor).hasData(new Object[][]{{"Second"}});
+        }
+    }
+
+    @Test
+    public void applyBatch_unsupportedOperation_writesNothing() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValue(SimRecords.NAME, "Name")
+                .withValue(SimRecords.PHONE_NUMBER, "5550101")
+                .build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_SDN))
+                .withValue(SimRecords.NAME, "Name")
+                .withValue(SimRecords.PHONE_NUMBER, "5550102")
+                .build());
+
+        assertThrows(UnsupportedOperationException.class,
+                () -> mResolver.applyBatch(SimPhonebookContract.AUTHORITY, operations));
+        assertThat(mIccPhoneBook.getAllValidRecords()).isEmpty();
+    }
+
+    @Test
+    public void applyBatch_expectedCountMismatch_throwsOperationApplicationException() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "First", "5550101");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(SimRecords.getItemUri(1, EF_ADN, 1))
+                .withValue(SimRecords.NAME, "Updated")
+                .withValue(SimRecords.PHONE_NUMBER, "5550102")
+                .withExpectedCount(1)
+                .build());
+        // The second record is empty so nothing is deleted.
+        operations.add(ContentProviderOperation.newDelete(SimRecords.getItemUri(1, EF_ADN, 2))
+                .withExpectedCount(1)
+                .build());
+
+        assertThrows(OperationApplicationException.class,
+                () -> mResolver.applyBatch(SimPhonebookContract.AUTHORITY, operations));
+        assertThat(mIccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "5550102"));
+        verify(mockNotifier, times(1)).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void applyBatch_exceptionAllowed_reportsExceptionAndAppliesRest() throws Exception {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValue(SimRecords.NAME, "Invalid")
+                // 21 digits is longer than max of 20
+                .withValue(SimRecords.PHONE_NUMBER, "123456789012345678901")
+                .withExceptionAllowed(true)
+                .build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValue(SimRecords.NAME, "Valid")
+                .withValue(SimRecords.PHONE_NUMBER, "5550101")
+                .build());
+        ContentProviderResult[] results = mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                operations);
+
+        assertThat(results).hasLength(2);
+        assertThat(results[0].exception).isInstanceOf(IllegalArgumentException.class);
+        assertThat(results[1].uri).isEqualTo(SimRecords.getItemUri(1, EF_ADN, 1));
+        assertThat(mIccPhoneBook.getAllValidRecords()).comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Valid", "5550101"));
+    }
+
     @Test
     public void getEncodedNameLength_returnsValueIsCorrect() {
         String name = "";
@@ -1345,6 +1690,12 @@ public final class SimPhonebookProviderTest {
         }
     }
 
+    private SimPhonebookProvider getProvider() {
+        return (SimPhonebookProvider) Objects.requireNonNull(
+                mResolver.acquireContentProviderClient(SimPhonebookContract.AUTHORITY))
+                .getLocalContentProvider();
+    }
+
     public static class FakeIccPhoneBook extends IIccPhoneBook.Default {
 
         private static final int DEFAULT_RECORD_SIZE = 30;
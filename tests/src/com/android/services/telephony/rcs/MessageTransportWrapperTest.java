@@ -23,6 +23,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -58,13 +59,18 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 @RunWith(AndroidJUnit4.class)
 public class MessageTransportWrapperTest extends TelephonyTestBase {
     private static final int TEST_SUB_ID = 1;
+    private static final int TIMEOUT_MS = 5000;
 
     private static final SipMessage TEST_MESSAGE = new SipMessage(
             "INVITE sip:callee@ex.domain.com SIP/2.0",
@@ -77,6 +83,8 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
     @Mock private ISipDelegateMessageCallback mDelegateMessageCallback;
     @Mock private TransportSipMessageValidator mTransportSipSessionValidator;
     @Mock private ISipDelegate mISipDelegate;
+    @Mock private ISipDelegateMessageCallback mOtherDelegateMessageCallback;
+    @Mock private TransportSipMessageValidator mOtherTransportSipSessionValidator;
 
     // Test executor that just calls run on the Runnable provided in execute.
     private ScheduledExecutorService mExecutor = new TestExecutorService();
@@ -306,6 +314,62 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
                 SipDelegateManager.MESSAGE_FAILURE_REASON_NETWORK_NOT_AVAILABLE);
     }
 
+    @SmallTest
+    @Test
+    public void testSlowAppCallbackDoesNotDelayOtherDelegates() throws Exception {
+        ScheduledExecutorService pool = Executors.newScheduledThreadPool(2);
+        try {
+            // Each wrapper has its own ordered executor on a shared pool, as SipTransportController
+            // creates them.
+            MessageTransportWrapper slowTracker = new MessageTransportWrapper(TEST_SUB_ID,
+                    new OrderedScheduledExecutor(pool), mDelegateMessageCallback,
+                    mTransportSipSessionValidator);
+            MessageTransportWrapper tracker = new MessageTransportWrapper(TEST_SUB_ID,
+                    new OrderedScheduledExecutor(pool), mOtherDelegateMessageCallback,
+                    mOtherTransportSipSessionValidator);
+            doReturn(ValidationResult.SUCCESS).when(mTransportSipSessionValidator)
+                    .verifyIncomingMessage(any());
+            doReturn(ValidationResult.SUCCESS).when(mOtherTransportSipSessionValidator)
+                    .verifyIncomingMessage(any());
+
+            CountDownLatch unblockSlowApp = new CountDownLatch(1);
+            CountDownLatch slowAppDone = new CountDownLatch(3);
+            List<SipMessage> slowAppReceived = Collections.synchronizedList(new ArrayList<>());
+            doAnswer(it -> {
+                unblockSlowApp.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                slowAppReceived.add(it.getArgument(0));
+                slowAppDone.countDown();
+                return null;
+            }).when(mDelegateMessageCallback).onMessageReceived(any());
+            CountDownLatch otherAppReceived = new CountDownLatch(1);
+            doAnswer(it -> {
+                otherAppReceived.countDown();
+                return null;
+            }).when(mOtherDelegateMessageCallback).onMessageReceived(any());
+
+            List<SipMessage> messages = new ArrayList<>(3);
+            for (int i = 0; i < 3; i++) {
+                SipMessage m = new SipMessage("MESSAGE sip:b@ex.domain.com SIP/2.0",
+                        "Via: SIP/2.0/UDP ex.place.com;branch=z9hG4bK776asd" + i,
+                        new byte[0]);
+                messages.add(m);
+                slowTracker.getMessageCallback().onMessageReceived(m);
+            }
+            tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE);
+
+            // The other app receives its message while the slow app is blocked on the first one.
+            assertTrue(otherAppReceived.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(slowAppReceived.isEmpty());
+
+            // Once unblocked, the slow app receives its messages in the order they arrived.
+            unblockSlowApp.countDown();
+            assertTrue(slowAppDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(messages.equals(slowAppReceived));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     private MessageTransportWrapper createTestMessageTransportWrapper() {
         return new MessageTransportWrapper(TEST_SUB_ID,
                 mExecutor, mDelegateMessageCallback, mTransportSipSessionValidator);
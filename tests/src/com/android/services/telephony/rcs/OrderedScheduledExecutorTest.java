@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class OrderedScheduledExecutorTest {
+    private static final int POOL_SIZE = 4;
+    private static final int TIMEOUT_MS = 5000;
+
+    private ScheduledExecutorService mPool;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newScheduledThreadPool(POOL_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @SmallTest
+    @Test
+    public void testTasksRunInOrderPerExecutor() throws Exception {
+        final int executorCount = POOL_SIZE * 2;
+        final int taskCount = 1000;
+        List<List<Integer>> results = new ArrayList<>(executorCount);
+        List<OrderedScheduledExecutor> executors = new ArrayList<>(executorCount);
+        for (int i = 0; i < executorCount; i++) {
+            results.add(Collections.synchronizedList(new ArrayList<>(taskCount)));
+            executors.add(new OrderedScheduledExecutor(mPool));
+        }
+        CountDownLatch done = new CountDownLatch(executorCount);
+        // Interleave the tasks of every executor, so they compete for the threads of the pool.
+        for (int task = 0; task < taskCount; task++) {
+            for (int i = 0; i < executorCount; i++) {
+                List<Integer> result = results.get(i);
+                int value = task;
+                executors.get(i).execute(() -> {
+                    result.add(value);
+                    if (value == taskCount - 1) done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (List<Integer> result : results) {
+            assertEquals(taskCount, result.size());
+            for (int task = 0; task < taskCount; task++) {
+                assertEquals(task, (int) result.get(task));
+            }
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testTasksDoNotRunConcurrently() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        final int taskCount = 500;
+        int[] running = new int[1];
+        boolean[] overlapped = new boolean[1];
+        CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            executor.execute(() -> {
+                synchronized (running) {
+                    if (++running[0] > 1) overlapped[0] = true;
+                }
+                Thread.yield();
+                synchronized (running) {
+                    running[0]--;
+                }
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        synchronized (running) {
+            assertFalse(overlapped[0]);
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testSlowTaskDoesNotBlockOtherExecutors() throws Exception {
+        OrderedScheduledExecutor slowExecutor = new OrderedScheduledExecutor(mPool);
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        CountDownLatch slowTaskStarted = new CountDownLatch(1);
+        CountDownLatch unblockSlowTask = new CountDownLatch(1);
+        CountDownLatch slowExecutorDone = new CountDownLatch(1);
+        slowExecutor.execute(() -> {
+            slowTaskStarted.countDown();
+            try {
+                unblockSlowTask.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Fall through and let the next task run.
+            }
+        });
+        slowExecutor.execute(slowExecutorDone::countDown);
+        assertTrue(slowTaskStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(done::countDown);
+        }
+        // The tasks of the other executor complete while the slow task is still running.
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, slowExecutorDone.getCount());
+        assertEquals(1, slowExecutor.getQueuedTaskCount());
+
+        unblockSlowTask.countDown();
+        assertTrue(slowExecutorDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @SmallTest
+    @Test
+    public void testDelayedTaskRunsInOrderWithOtherTasks() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        List<String> result = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blockExecutor = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                blockExecutor.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Fall through
+            }
+            result.add("first");
+        });
+        ScheduledFuture<String> delayed = executor.schedule(() -> {
+            result.add("delayed");
+            return "delayed";
+        }, 10, TimeUnit.MILLISECONDS);
+        executor.execute(() -> result.add("second"));
+        // The delay elapses while the executor is blocked, the delayed task must still run after
+        // the tasks that were queued before it.
+        Thread.sleep(50);
+        blockExecutor.countDown();
+
+        assertEquals("delayed", delayed.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertThat(result).containsExactly("first", "second", "delayed").inOrder();
+    }
+
+    @SmallTest
+    @Test
+    public void testCancelDelayedTask() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        boolean[] ran = new boolean[1];
+        ScheduledFuture<?> delayed = executor.schedule(() -> ran[0] = true, 50,
+                TimeUnit.MILLISECONDS);
+        assertTrue(delayed.getDelay(TimeUnit.MILLISECONDS) > 0);
+        assertTrue(delayed.cancel(false));
+        assertTrue(delayed.isDone());
+
+        // Ensure the executor is still usable and the cancelled task never ran.
+        Thread.sleep(100);
+        executor.submit(() -> { }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertFalse(ran[0]);
+    }
+
+    @SmallTest
+    @Test
+    public void testFixedRateTaskRunsUntilCancelled() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        CountDownLatch runs = new CountDownLatch(3);
+        int[] runCount = new int[1];
+        ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(() -> {
+            runCount[0]++;
+            runs.countDown();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(runs.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(periodic.cancel(false));
+        assertTrue(periodic.isDone());
+        // Wait for a run that was already queued, then ensure no further runs happen.
+        executor.submit(() -> { }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        int cancelledRunCount = runCount[0];
+        Thread.sleep(50);
+        executor.submit(() -> { }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(cancelledRunCount, runCount[0]);
+    }
+
+    @SmallTest
+    @Test
+    public void testFixedDelayTaskRunsInOrderWithOtherTasks() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        List<String> result = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blockExecutor = new CountDownLatch(1);
+        CountDownLatch runs = new CountDownLatch(2);
+        executor.execute(() -> {
+            try {
+                blockExecutor.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Fall through
+            }
+            result.add("first");
+        });
+        ScheduledFuture<?> periodic = executor.scheduleWithFixedDelay(() -> {
+            result.add("periodic");
+            runs.countDown();
+        }, 10, 10, TimeUnit.MILLISECONDS);
+        executor.execute(() -> result.add("second"));
+        // The initial delay elapses while the executor is blocked, the first run must still come
+        // after the tasks that were queued before it.
+        Thread.sleep(50);
+        blockExecutor.countDown();
+
+        assertTrue(runs.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        periodic.cancel(false);
+        synchronized (result) {
+            assertThat(result.subList(0, 4)).containsExactly("first", "second", "periodic",
+                    "periodic").inOrder();
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testPeriodicTaskEndsWhenItThrows() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        int[] runCount = new int[1];
+        ScheduledFuture<?> periodic = executor.scheduleAtFixedRate(() -> {
+            runCount[0]++;
+            throw new IllegalStateException();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        try {
+            periodic.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+        Thread.sleep(50);
+        executor.submit(() -> { }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(1, runCount[0]);
+    }
+
+    @SmallTest
+    @Test
+    public void testShutdownCancelsPeriodicTask() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        CountDownLatch ran = new CountDownLatch(1);
+        ScheduledFuture<?> periodic = executor.scheduleWithFixedDelay(ran::countDown, 0, 10,
+                TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        try {
+            periodic.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertFalse(mPool.isShutdown());
+    }
+
+    @SmallTest
+    @Test
+    public void testShutdown() throws Exception {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        CountDownLatch blockExecutor = new CountDownLatch(1);
+        CountDownLatch queuedTaskRan = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                blockExecutor.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Fall through
+            }
+        });
+        executor.execute(queuedTaskRan::countDown);
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+        assertFalse(executor.isTerminated());
+        try {
+            executor.execute(() -> { });
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        // Tasks queued before shutdown still run and the pool is unaffected.
+        blockExecutor.countDown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, queuedTaskRan.getCount());
+        assertFalse(mPool.isShutdown());
+    }
+
+    @SmallTest
+    @Test
+    public void testPoolShutdown() {
+        OrderedScheduledExecutor executor = new OrderedScheduledExecutor(mPool);
+        mPool.shutdown();
+        try {
+            executor.execute(() -> { });
+            fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(0, executor.getQueuedTaskCount());
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING;
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.os.SystemClock;
+import android.telephony.ims.SipMessage;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.internal.telephony.metrics.RcsStats;
+import com.android.services.telephony.rcs.validator.MalformedSipMessageValidator;
+import com.android.services.telephony.rcs.validator.OutgoingTransportStateValidator;
+import com.android.services.telephony.rcs.validator.RestrictedOutgoingSipRequestValidator;
+import com.android.services.telephony.rcs.validator.RestrictedOutgoingSubscribeValidator;
+import com.android.services.telephony.rcs.validator.SipMessageValidator;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class SipMessageEnvelopeTest {
+    private static final String TAG = "SipMessageEnvelopeTest";
+    private static final int TEST_SUB_ID = 1;
+    private static final String FEATURE_TAG = "+tag";
+    private static final int SESSIONS = 200;
+    private static final int MESSAGES_PER_SESSION = 5;
+
+    @Mock
+    private RcsStats mRcsStats;
+
+    private SipSessionTracker mTracker;
+    private OutgoingTransportStateValidator mStateValidator;
+    private List<SipMessageValidator> mValidators;
+    private SipMessageValidator mValidatorChain;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTracker = new SipSessionTracker(TEST_SUB_ID, mRcsStats);
+        mStateValidator = new OutgoingTransportStateValidator(mTracker);
+        mStateValidator.open(Collections.singleton(FEATURE_TAG), Collections.emptySet());
+        mStateValidator.restrictFeatureTags(Collections.emptySet());
+        mValidators = Arrays.asList(new MalformedSipMessageValidator(),
+                new RestrictedOutgoingSipRequestValidator(),
+                new RestrictedOutgoingSubscribeValidator(), mStateValidator);
+        mValidatorChain = mValidators.get(0).andThen(mValidators.get(1))
+                .andThen(mValidators.get(2)).andThen(mValidators.get(3));
+    }
+
+    @Test
+    public void testRequest_sameAsParsingUtils() {
+        SipMessage m = generateInvite("callId1", "branch1");
+        SipMessageEnvelope envelope = new SipMessageEnvelope(m);
+
+        assertThat(envelope.isRequest()).isTrue();
+        assertThat(envelope.isResponse()).isFalse();
+        assertThat(envelope.getMethod()).isEqualTo("INVITE");
+        assertThat(envelope.isRequestMethod("invite")).isTrue();
+        assertThat(envelope.getStatusCode()).isEqualTo(SipMessageEnvelope.STATUS_CODE_NONE);
+        assertThat(envelope.getStartLineSegments()).isEqualTo(
+                SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine()));
+        assertThat(envelope.getCallId()).isEqualTo("callId1");
+        assertThat(envelope.getViaBranch()).isEqualTo("branch1");
+        assertThat(envelope.getFromTag()).isEqualTo(
+                SipMessageParsingUtils.getFromTag(m.getHeaderSection()));
+        assertThat(envelope.getToTag()).isNull();
+        assertThat(envelope.getAcceptContactFeatureTags()).isEqualTo(
+                SipMessageParsingUtils.getAcceptContactFeatureTags(m.getHeaderSection()));
+    }
+
+    @Test
+    public void testResponse_sameAsParsingUtils() {
+        SipMessage m = generateResponse("180", "Ringing", "callId1", "branch1");
+        SipMessageEnvelope envelope = new SipMessageEnvelope(m);
+
+        assertThat(envelope.isRequest()).isFalse();
+        assertThat(envelope.isResponse()).isTrue();
+        assertThat(envelope.getMethod()).isNull();
+        assertThat(envelope.getStatusCode()).isEqualTo(180);
+        assertThat(envelope.getToTag()).isEqualTo(
+                SipMessageParsingUtils.getToTag(m.getHeaderSection()));
+    }
+
+    @Test
+    public void testMalformed() {
+        SipMessageEnvelope envelope = new SipMessageEnvelope(
+                new SipMessage("INVITE", "Call-ID: callId1", new byte[0]));
+
+        assertThat(envelope.isRequest()).isFalse();
+        assertThat(envelope.isResponse()).isFalse();
+        assertThat(envelope.getMethod()).isNull();
+        assertThat(envelope.getStatusCode()).isEqualTo(SipMessageEnvelope.STATUS_CODE_NONE);
+        assertThat(mValidatorChain.validate(envelope).isValidated).isFalse();
+    }
+
+    @Test
+    public void testStartLineType_matchesParsingUtils() {
+        String[] startLines = new String[] {
+                "INVITE sip:bob@example.com SIP/2.0",
+                "MESSAGE tel:+15555550100 SIP/2.0",
+                "FOO sip:bob@example.com SIP/2.0",
+                "INVITE bob SIP/2.0",
+                "INVITE sip:bob@example.com HTTP/1.1",
+                "SIP/2.0 200 OK",
+                "SIP/2.0 180 Ringing",
+                "SIP/2.0 800 Unknown",
+                "HTTP/1.1 200 OK"
+        };
+
+        for (String startLine : startLines) {
+            SipMessageEnvelope envelope = new SipMessageEnvelope(
+                    new SipMessage(startLine, "Call-ID: callId1", new byte[0]));
+            assertWithMessage(startLine).that(envelope.isRequest())
+                    .isEqualTo(SipMessageParsingUtils.isSipRequest(startLine));
+            assertWithMessage(startLine).that(envelope.isResponse())
+                    .isEqualTo(SipMessageParsingUtils.isSipResponse(startLine));
+        }
+    }
+
+    @Test
+    public void testHeaderValues_cachedAndCaseInsensitive() {
+        SipMessageEnvelope envelope = new SipMessageEnvelope(generateSubscribe("callId1",
+                "branch1", "presence"));
+
+        List<String> events = envelope.getHeaderValues("Event");
+        assertThat(events).containsExactly("presence");
+        assertThat(envelope.getHeaderValues("event")).isSameInstanceAs(events);
+        assertThat(envelope.getHeaderValues("Allow-Events")).isEmpty();
+        assertThat(mValidatorChain.validate(envelope).isValidated).isFalse();
+        assertThat(mValidatorChain.validate(new SipMessageEnvelope(generateSubscribe("callId2",
+                "branch2", "conference"))).isValidated).isTrue();
+    }
+
+    @Test
+    public void testChainAndTracker_sameResultsWithSharedEnvelope() {
+        List<SipMessage> traffic = generateTraffic();
+
+        int sharedTracked = runTraffic(traffic, true /*shareEnvelope*/);
+        mTracker.clearAllSessions();
+        int perStageTracked = runTraffic(traffic, false /*shareEnvelope*/);
+
+        assertThat(sharedTracked).isEqualTo(SESSIONS);
+        assertThat(perStageTracked).isEqualTo(sharedTracked);
+    }
+
+    /**
+     * Microbenchmark of validating and tracking INVITE, MESSAGE and SUBSCRIBE traffic, parsing
+     * each message once into an envelope shared by all stages and parsing it again in each stage,
+     * as before. Each mode is warmed up before it is measured and the throughput is logged.
+     */
+    @Test
+    public void testValidateAndTrackThroughput_sharedAndPerStage() {
+        final int warmUpIterations = 3;
+        final int iterations = 10;
+        List<SipMessage> traffic = generateTraffic();
+
+        long[] nanos = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            boolean shareEnvelope = mode == 0;
+            for (int i = 0; i < warmUpIterations + iterations; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                runTraffic(traffic, shareEnvelope);
+                if (i >= warmUpIterations) {
+                    nanos[mode] += SystemClock.elapsedRealtimeNanos() - start;
+                }
+                mTracker.clearAllSessions();
+            }
+        }
+
+        long messages = (long) traffic.size() * iterations;
+        Log.i(TAG, "validate and track throughput: shared envelope "
+                + messages * 1000000000L / Math.max(1, nanos[0]) + " msg/s, per stage "
+                + messages * 1000000000L / Math.max(1, nanos[1]) + " msg/s");
+    }
+
+    /**
+     * Validates and tracks each message like TransportSipMessageValidator and acknowledges it
+     * right away.
+     * @return The number of dialogs tracked after all messages were processed.
+     */
+    private int runTraffic(List<SipMessage> traffic, boolean shareEnvelope) {
+        for (SipMessage m : traffic) {
+            boolean incoming = m.getStartLine().startsWith("SIP/2.0");
+            int direction = incoming ? SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING
+                    : SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
+            ValidationResult result = ValidationResult.SUCCESS;
+            if (shareEnvelope) {
+                SipMessageEnvelope envelope = new SipMessageEnvelope(m);
+                if (!incoming) result = mValidatorChain.validate(envelope);
+                if (result.isValidated) mTracker.filterSipMessage(direction, envelope);
+                recordMetrics(envelope);
+            } else {
+                if (!incoming) {
+                    for (SipMessageValidator v : mValidators) {
+                        result = v.validate(m);
+                        if (!result.isValidated) break;
+                    }
+                }
+                if (result.isValidated) mTracker.filterSipMessage(direction, m);
+                recordMetrics(new SipMessageEnvelope(m));
+            }
+            assertThat(result.isValidated).isTrue();
+            mTracker.acknowledgePendingMessage(m.getViaBranchParameter());
+        }
+        return mTracker.getTrackedDialogs().size();
+    }
+
+    private void recordMetrics(SipMessageEnvelope envelope) {
+        if (envelope.isRequest()) {
+            mRcsStats.onSipMessageRequest(envelope.getCallId(), envelope.getMethod(),
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING);
+        } else {
+            mRcsStats.onSipMessageResponse(TEST_SUB_ID, envelope.getCallId(),
+                    envelope.getStatusCode(), 0);
+        }
+    }
+
+    // Each session is an INVITE that is answered, then a few MESSAGE requests in the session and
+    // a SUBSCRIBE outside of it.
+    private static List<SipMessage> generateTraffic() {
+        List<SipMessage> traffic = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            String callId = "callId" + i;
+            traffic.add(generateInvite(callId, "inviteBranch" + i));
+            traffic.add(generateResponse("180", "Ringing", callId, "inviteBranch" + i));
+            traffic.add(generateResponse("200", "OK", callId, "inviteBranch" + i));
+            for (int j = 0; j < MESSAGES_PER_SESSION; j++) {
+                traffic.add(generateMessage(callId, "messageBranch" + i + "_" + j));
+            }
+            traffic.add(generateSubscribe("subscribeCallId" + i, "subscribeBranch" + i,
+                    "conference"));
+        }
+        return traffic;
+    }
+
+    private static SipMessage generateInvite(String callId, String branch) {
+        return new SipMessage(
+                "INVITE sip:b@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: B <sip:b@example.com>\n"
+                        + "From: A <sip:a@example.com>;tag=1928301774\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 INVITE\n"
+                        + "Contact: <sip:a@client.example.com>;" + FEATURE_TAG + "\n"
+                        + "Accept-Contact: *;" + FEATURE_TAG + "\n"
+                        + "Content-Type: application/sdp\n"
+                        + "Content-Length: 0",
+                new byte[0]);
+    }
+
+    private static SipMessage generateResponse(String statusCode, String reason, String callId,
+            String branch) {
+        return new SipMessage(
+                "SIP/2.0 " + statusCode + " " + reason,
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "To: B <sip:b@example.com>;tag=a6c85cf\n"
+                        + "From: A <sip:a@example.com>;tag=1928301774\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 INVITE\n"
+                        + "Content-Length: 0",
+                new byte[0]);
+    }
+
+    private static SipMessage generateMessage(String callId, String branch) {
+        return new SipMessage(
+                "MESSAGE sip:b@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: B <sip:b@example.com>;tag=a6c85cf\n"
+                        + "From: A <sip:a@example.com>;tag=1928301774\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 2 MESSAGE\n"
+                        + "Content-Type: message/cpim\n"
+                        + "Content-Length: 5",
+                "hello".getBytes());
+    }
+
+    private static SipMessage generateSubscribe(String callId, String branch, String event) {
+        return new SipMessage(
+                "SUBSCRIBE sip:conf@example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: <sip:conf@example.com>\n"
+                        + "From: A <sip:a@example.com>;tag=4fa3\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 SUBSCRIBE\n"
+                        + "Event: " + event + "\n"
+                        + "Expires: 600\n"
+                        + "Content-Length: 0",
+                new byte[0]);
+    }
+}
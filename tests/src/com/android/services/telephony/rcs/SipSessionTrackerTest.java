@@ -19,6 +19,7 @@ package com.android.services.telephony.rcs;
 import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
@@ -26,8 +27,10 @@ import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.verify;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.telephony.ims.SipMessage;
 import android.util.Base64;
+import android.util.Log;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -47,6 +50,7 @@ import java.util.stream.Collectors;
 
 @RunWith(AndroidJUnit4.class)
 public class SipSessionTrackerTest {
+    private static final String TAG = "SipSessionTrackerTest";
 
     private class DialogAttributes {
         public final String branchId;
@@ -98,6 +102,7 @@ public class SipSessionTrackerTest {
 
     // Keep track of the string entry so we can generate unique strings.
     private int mStringEntryCounter = 0;
+    private long mNowMillis;
     private SipSessionTracker mTrackerUT;
     private static final int TEST_SUB_ID = 1;
     private static final String TEST_INVITE_SIP_METHOD = "INVITE";
@@ -425,6 +430,250 @@ public class SipSessionTrackerTest {
         verifyContainsCallIds(mTrackerUT.getConfirmedDialogs(), attr);
     }
 
+    @Test
+    public void testThousandDialogs_indexesFollowStateChanges() {
+        final int dialogCount = 1000;
+        Set<SipDialog> earlyDialogs = mTrackerUT.getEarlyDialogs();
+        Set<SipDialog> confirmedDialogs = mTrackerUT.getConfirmedDialogs();
+        DialogAttributes[] attrs = new DialogAttributes[dialogCount];
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i] = new DialogAttributes();
+            filterMessage(generateInviteWithFeatureTag(attrs[i], featureTagFor(i)), attrs[i]);
+        }
+        // The views follow the dialogs as they change state.
+        assertEquals(dialogCount, earlyDialogs.size());
+        assertEquals(dialogCount, mTrackerUT.getDialogCount(SipDialog.STATE_EARLY));
+        assertEquals(dialogCount / 2, mTrackerUT.getCallIdsAssociatedWithFeatureTag(
+                Collections.singleton("+CHAT")).size());
+
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i].setToTag();
+            filterMessage(generateSipResponse("200", "OK", attrs[i]), attrs[i]);
+        }
+        assertTrue(earlyDialogs.isEmpty());
+        assertEquals(dialogCount, confirmedDialogs.size());
+
+        // Close every other dialog and clean up every fourth one.
+        for (int i = 0; i < dialogCount; i += 2) {
+            filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, attrs[i]), attrs[i]);
+        }
+        for (int i = 0; i < dialogCount; i += 4) {
+            mTrackerUT.cleanupSession(attrs[i].callId);
+        }
+        assertEquals(dialogCount / 2, mTrackerUT.getDialogCount(SipDialog.STATE_CONFIRMED));
+        assertEquals(dialogCount / 4, mTrackerUT.getDialogCount(SipDialog.STATE_CLOSED));
+        assertEquals(dialogCount * 3 / 4, mTrackerUT.getTrackedDialogs().size());
+        // Dialogs 0, 4, 8... were cleaned up, all of them used the chat tag.
+        Set<String> chatCallIds = mTrackerUT.getCallIdsAssociatedWithFeatureTag(
+                Collections.singleton("+chat"));
+        assertEquals(dialogCount / 4, chatCallIds.size());
+        assertFalse(chatCallIds.contains(attrs[0].callId));
+        assertTrue(chatCallIds.contains(attrs[2].callId));
+        assertEquals(dialogCount / 2, mTrackerUT.getCallIdsAssociatedWithFeatureTag(
+                Collections.singleton("+group")).size());
+
+        mTrackerUT.clearAllSessions();
+        assertTrue(confirmedDialogs.isEmpty());
+        assertTrue(mTrackerUT.getCallIdsAssociatedWithFeatureTag(
+                Collections.singleton("+group")).isEmpty());
+    }
+
+    @Test
+    public void testThousandDialogs_forksIndexedByCallId() {
+        final int dialogCount = 1000;
+        DialogAttributes[] attrs = new DialogAttributes[dialogCount];
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i] = new DialogAttributes();
+            filterMessage(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attrs[i]),
+                    attrs[i]);
+        }
+        // Each INVITE is answered by two remote endpoints, forking each dialog.
+        for (int i = 0; i < dialogCount; i++) {
+            DialogAttributes fork1 = attrs[i].fromExisting();
+            fork1.setToTag();
+            filterMessage(generateSipResponse("180", "Ringing", fork1), fork1);
+            DialogAttributes fork2 = attrs[i].fromExisting();
+            fork2.setToTag();
+            filterMessage(generateSipResponse("200", "OK", fork2), fork2);
+        }
+        assertEquals(dialogCount, mTrackerUT.getDialogCount(SipDialog.STATE_EARLY));
+        assertEquals(dialogCount, mTrackerUT.getDialogCount(SipDialog.STATE_CONFIRMED));
+
+        for (int i = 0; i < dialogCount; i++) {
+            mTrackerUT.cleanupSession(attrs[i].callId);
+        }
+        assertTrue(mTrackerUT.getTrackedDialogs().isEmpty());
+        assertEquals(0, mTrackerUT.getDialogCount(SipDialog.STATE_CLOSED));
+    }
+
+    /**
+     * Microbenchmark of the lifecycle of 1000 concurrent dialogs: the INVITE, 200 OK, BYE and
+     * cleanup of each dialog while all other dialogs are tracked. The latency of each step is
+     * logged.
+     */
+    @Test
+    public void testThousandDialogsLatency() {
+        final int dialogCount = 1000;
+        DialogAttributes[] attrs = new DialogAttributes[dialogCount];
+        SipMessage[] invites = new SipMessage[dialogCount];
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i] = new DialogAttributes();
+            invites[i] = generateInviteWithFeatureTag(attrs[i], featureTagFor(i));
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < dialogCount; i++) {
+            filterMessage(invites[i], attrs[i]);
+        }
+        long inviteNanos = (SystemClock.elapsedRealtimeNanos() - start) / dialogCount;
+
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i].setToTag();
+        }
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < dialogCount; i++) {
+            filterMessage(generateSipResponse("200", "OK", attrs[i]), attrs[i]);
+        }
+        long okNanos = (SystemClock.elapsedRealtimeNanos() - start) / dialogCount;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < dialogCount; i++) {
+            mTrackerUT.getCallIdsAssociatedWithFeatureTag(Collections.singleton("+chat"));
+            mTrackerUT.getConfirmedDialogs();
+        }
+        long queryNanos = (SystemClock.elapsedRealtimeNanos() - start) / dialogCount;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < dialogCount; i++) {
+            filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, attrs[i]), attrs[i]);
+            mTrackerUT.cleanupSession(attrs[i].callId);
+        }
+        long byeNanos = (SystemClock.elapsedRealtimeNanos() - start) / dialogCount;
+
+        Log.i(TAG, "1000 dialogs latency: invite " + inviteNanos + " ns, 200 OK " + okNanos
+                + " ns (includes message creation), query " + queryNanos + " ns, bye+cleanup "
+                + byeNanos + " ns (includes message creation)");
+        assertTrue(mTrackerUT.getTrackedDialogs().isEmpty());
+    }
+
+    private SipMessage generateInviteWithFeatureTag(DialogAttributes attr, String featureTag) {
+        SipMessage inviteRequest = generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr);
+        return new SipMessage(inviteRequest.getStartLine(),
+                inviteRequest.getHeaderSection() + "\nAccept-Contact:*;" + featureTag,
+                new byte[0]);
+    }
+
+    // Even dialogs are chats, odd dialogs are group chats.
+    private static String featureTagFor(int i) {
+        return i % 2 == 0 ? "+chat" : "+group";
+    }
+
+    @Test
+    public void testMissingAcks_evictedAfterTimeout() {
+        mTrackerUT = new SipSessionTracker(TEST_SUB_ID, mRcsStats, () -> mNowMillis);
+        DialogAttributes[] staleAttrs = new DialogAttributes[10];
+        for (int i = 0; i < staleAttrs.length; i++) {
+            staleAttrs[i] = new DialogAttributes();
+            filterWithoutAck(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                    staleAttrs[i]));
+        }
+        mNowMillis = 5000;
+        DialogAttributes[] attrs = new DialogAttributes[5];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = new DialogAttributes();
+            filterWithoutAck(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attrs[i]));
+        }
+        assertEquals(15, mTrackerUT.getPendingEventCount());
+
+        // Nothing is stale yet.
+        mNowMillis = SipSessionTracker.PENDING_EVENT_TIMEOUT_MS;
+        assertEquals(15, mTrackerUT.evictStalePendingEvents());
+        // Only the messages that were never acked before the timeout are evicted.
+        mNowMillis = SipSessionTracker.PENDING_EVENT_TIMEOUT_MS + 1;
+        assertEquals(5, mTrackerUT.evictStalePendingEvents());
+        assertEquals(10, mTrackerUT.getEvictedEventCount());
+
+        // A late ack of an evicted message has no effect.
+        mTrackerUT.acknowledgePendingMessage(staleAttrs[0].branchId);
+        assertTrue(mTrackerUT.getEarlyDialogs().isEmpty());
+        for (DialogAttributes attr : attrs) {
+            mTrackerUT.acknowledgePendingMessage(attr.branchId);
+        }
+        verifyContainsCallIds(mTrackerUT.getEarlyDialogs(), attrs);
+        assertEquals(attrs.length, mTrackerUT.getEarlyDialogs().size());
+        assertEquals(0, mTrackerUT.getPendingEventCount());
+    }
+
+    @Test
+    public void testAckStorm_pendingEventsBounded() {
+        final int dialogCount = SipSessionTracker.MAX_PENDING_EVENTS + 100;
+        DialogAttributes[] attrs = new DialogAttributes[dialogCount];
+        for (int i = 0; i < dialogCount; i++) {
+            attrs[i] = new DialogAttributes();
+            filterWithoutAck(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attrs[i]));
+        }
+        // The oldest branches made room for the newer ones.
+        assertEquals(SipSessionTracker.MAX_PENDING_EVENTS, mTrackerUT.getPendingEventCount());
+        assertEquals(100, mTrackerUT.getEvictedEventCount());
+
+        // All acks arrive at once, some of them twice and some for evicted messages.
+        for (int i = 0; i < dialogCount; i++) {
+            mTrackerUT.acknowledgePendingMessage(attrs[i].branchId);
+            mTrackerUT.acknowledgePendingMessage(attrs[i].branchId);
+        }
+        assertEquals(SipSessionTracker.MAX_PENDING_EVENTS, mTrackerUT.getEarlyDialogs().size());
+        assertFalse(mTrackerUT.getEarlyDialogs().stream().anyMatch(
+                d -> d.getCallId().equals(attrs[0].callId)));
+        verifyContainsCallIds(mTrackerUT.getEarlyDialogs(), attrs[dialogCount - 1]);
+        assertEquals(0, mTrackerUT.getPendingEventCount());
+    }
+
+    @Test
+    public void testAckStorm_singleBranchBounded() {
+        DialogAttributes attr = new DialogAttributes();
+        createConfirmedDialog(attr);
+        // The remote application keeps sending messages on the same branch without acking them.
+        final int messageCount = SipSessionTracker.MAX_PENDING_EVENTS_PER_BRANCH + 10;
+        for (int i = 0; i < messageCount; i++) {
+            filterWithoutAck(generateSipResponse("200", "OK", attr));
+        }
+        assertEquals(SipSessionTracker.MAX_PENDING_EVENTS_PER_BRANCH,
+                mTrackerUT.getPendingEventCount());
+        assertEquals(10, mTrackerUT.getEvictedEventCount());
+
+        // The kept events are applied once the branch is acked and the branch accepts new events
+        // again.
+        mTrackerUT.acknowledgePendingMessage(attr.branchId);
+        assertEquals(0, mTrackerUT.getPendingEventCount());
+        filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, attr), attr);
+        assertTrue(mTrackerUT.getConfirmedDialogs().isEmpty());
+        verifyContainsCallIds(mTrackerUT.getClosedDialogs(), attr);
+    }
+
+    @Test
+    public void testAckStorm_fullBranchKeepsCreateDialogEvent() {
+        DialogAttributes attr = new DialogAttributes();
+        filterWithoutAck(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr));
+        // The branch fills up with provisional responses before the INVITE is acked.
+        final int responseCount = SipSessionTracker.MAX_PENDING_EVENTS_PER_BRANCH + 5;
+        for (int i = 0; i < responseCount; i++) {
+            filterWithoutAck(generateSipResponse("180", "Ringing", attr));
+        }
+        assertEquals(SipSessionTracker.MAX_PENDING_EVENTS_PER_BRANCH,
+                mTrackerUT.getPendingEventCount());
+        assertEquals(responseCount - SipSessionTracker.MAX_PENDING_EVENTS_PER_BRANCH + 1,
+                mTrackerUT.getEvictedEventCount());
+
+        // The INVITE that was kept creates the dialog once the branch is acked.
+        mTrackerUT.acknowledgePendingMessage(attr.branchId);
+        assertEquals(0, mTrackerUT.getPendingEventCount());
+        verifyContainsCallIds(mTrackerUT.getEarlyDialogs(), attr);
+    }
+
+    private void filterWithoutAck(SipMessage m) {
+        mTrackerUT.filterSipMessage(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, m);
+    }
+
     private void filterMessage(SipMessage m, DialogAttributes attr) {
         mTrackerUT.filterSipMessage(
                 SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, m);
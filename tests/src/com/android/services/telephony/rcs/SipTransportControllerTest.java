@@ -19,6 +19,7 @@ package com.android.services.telephony.rcs;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -67,6 +68,7 @@ import org.mockito.Mock;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
@@ -402,6 +404,43 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         verifyDelegateRegistrationChangedEvent(1, 2 * THROTTLE_MS);
     }
 
+    @SmallTest
+    @Test
+    public void createTwoUsesSeparateExecutors() throws Exception {
+        SipTransportController controller = setupLiveTransportController(0 /*reeval*/,
+                THROTTLE_MS);
+
+        ArraySet<String> firstDelegate = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        firstDelegate.remove(ImsSignallingUtils.GROUP_CHAT_TAG);
+        DelegateRequest firstDelegateRequest = new DelegateRequest(firstDelegate);
+        SipDelegateControllerContainer c1 = injectMockDelegateController(TEST_PACKAGE_NAME,
+                firstDelegateRequest);
+        createDelegateAndVerify(controller, c1, firstDelegate, Collections.emptySet());
+
+        ArraySet<String> secondDelegate = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        secondDelegate.remove(ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG);
+        DelegateRequest secondDelegateRequest = new DelegateRequest(secondDelegate);
+        Pair<Set<String>, Set<FeatureTagState>> grantedAndDenied = getAllowedAndDeniedTagsForConfig(
+                secondDelegateRequest, SipDelegateManager.DENIED_REASON_IN_USE_BY_ANOTHER_DELEGATE,
+                firstDelegate);
+        SipDelegateControllerContainer c2 = injectMockDelegateController(TEST_PACKAGE_NAME,
+                secondDelegateRequest);
+        createDelegateAndVerify(controller, c2, grantedAndDenied.first,
+                grantedAndDenied.second, 1);
+
+        // Each SipDelegateController gets its own ordered executor, separate from the executor
+        // that the controller uses to reevaluate the delegates.
+        ArgumentCaptor<ScheduledExecutorService> executorCaptor =
+                ArgumentCaptor.forClass(ScheduledExecutorService.class);
+        verify(mMockDelegateControllerFactory, times(2)).create(anyInt(), anyInt(), any(),
+                anyString(), any(), any(), executorCaptor.capture(), any(), any());
+        List<ScheduledExecutorService> executors = executorCaptor.getAllValues();
+        assertTrue(executors.get(0) instanceof OrderedScheduledExecutor);
+        assertTrue(executors.get(1) instanceof OrderedScheduledExecutor);
+        assertNotSame(executors.get(0), executors.get(1));
+        assertNotSame(mExecutorService, executors.get(0));
+    }
+
     @SmallTest
     @Test
     public void createTwoAndTriggerRoleChange() throws Exception {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING;
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Debug;
+import android.telephony.ims.SipDelegateManager;
+import android.telephony.ims.SipMessage;
+import android.util.LocalLog;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class SipTransportEventLogTest {
+    private static final String TAG = "SipTransportEventLogTest";
+    private static final int LOG_SIZE = 4;
+
+    @Test
+    public void testDump_oldestFirstAfterWrapping() {
+        SipTransportEventLog log = new SipTransportEventLog(LOG_SIZE);
+        for (int i = 0; i < LOG_SIZE + 2; i++) {
+            log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                    new SipMessageEnvelope(generateRequest("MESSAGE", "callId" + i)),
+                    ValidationResult.SUCCESS);
+        }
+        assertThat(log.getCount()).isEqualTo(LOG_SIZE + 2);
+
+        String[] lines = dump(log).split("\n");
+        assertThat(lines[0]).contains("(" + LOG_SIZE + " of " + (LOG_SIZE + 2) + ")");
+        assertThat(lines).hasLength(LOG_SIZE + 1);
+        // The first two messages were overwritten.
+        assertThat(lines[1]).contains(Integer.toHexString("callId2".hashCode()));
+        assertThat(lines[LOG_SIZE]).contains(
+                Integer.toHexString(("callId" + (LOG_SIZE + 1)).hashCode()));
+    }
+
+    @Test
+    public void testFormatEntry() {
+        SipTransportEventLog log = new SipTransportEventLog(LOG_SIZE);
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new SipMessageEnvelope(generateRequest("invite", "callId1")),
+                ValidationResult.SUCCESS);
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                new SipMessageEnvelope(generateResponse("486", "callId1")),
+                ValidationResult.SUCCESS);
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new SipMessageEnvelope(generateRequest("FOO", "callId2")),
+                new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED,
+                        "closed"));
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new SipMessageEnvelope(new SipMessage("garbage", "Call-ID: callId3",
+                        new byte[0])),
+                new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
+                        "malformed"));
+
+        assertThat(log.formatEntry(0)).contains(" INVITE ");
+        assertThat(log.formatEntry(0)).endsWith("validated");
+        assertThat(log.formatEntry(1)).contains(" 486 ");
+        assertThat(log.formatEntry(2)).contains(" OTHER ");
+        assertThat(log.formatEntry(2)).contains("denied=");
+        assertThat(log.formatEntry(3)).contains(" INVALID ");
+    }
+
+    /**
+     * Microbenchmark of the bytes allocated to log each message that is verified: recording it in
+     * the event log, and stringifying it into a LocalLog as before. The allocations are logged.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testAllocationPerMessage_eventLogAndLocalLog() {
+        final int messages = 1000;
+        SipMessageEnvelope[] envelopes = new SipMessageEnvelope[messages];
+        for (int i = 0; i < messages; i++) {
+            envelopes[i] = new SipMessageEnvelope(i % 2 == 0
+                    ? generateRequest("MESSAGE", "callId" + i)
+                    : generateResponse("200", "callId" + i));
+            // The validators and metrics have already parsed the message.
+            envelopes[i].getMethod();
+            envelopes[i].getStatusCode();
+            envelopes[i].getCallId().hashCode();
+        }
+        SipTransportEventLog eventLog = new SipTransportEventLog(256);
+        LocalLog localLog = new LocalLog(SipTransportController.LOG_SIZE);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < messages; i++) {
+                eventLog.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                        envelopes[i], ValidationResult.SUCCESS);
+            }
+            long eventLogBytes = Debug.getThreadAllocSize() / messages;
+
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < messages; i++) {
+                localLog.log("[I] verifyOutgoingMessage: " + ValidationResult.SUCCESS
+                        + ", message=" + envelopes[i].getMessage());
+            }
+            long localLogBytes = Debug.getThreadAllocSize() / messages;
+
+            Log.i(TAG, "allocation per message: event log " + eventLogBytes + " bytes, local log "
+                    + localLogBytes + " bytes");
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertThat(eventLog.getCount()).isEqualTo(messages);
+    }
+
+    private static String dump(SipTransportEventLog log) {
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        log.dump(pw);
+        pw.flush();
+        return writer.toString();
+    }
+
+    private static SipMessage generateRequest(String method, String callId) {
+        return new SipMessage(
+                method + " sip:b@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=z9hG4bK776asdhds\n"
+                        + "To: B <sip:b@example.com>\n"
+                        + "From: A <sip:a@example.com>;tag=1928301774\n"
+                        + "Call-ID: " + callId + "\n"
+                        + "CSeq: 1 " + method,
+                "hello".getBytes());
+    }
+
+    private static SipMessage generateResponse(String statusCode, String callId) {
+        return new SipMessage(
+                "SIP/2.0 " + statusCode + " Reason",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=z9hG4bK776asdhds\n"
+                        + "To: B <sip:b@example.com>;tag=a6c85cf\n"
+                        + "From: A <sip:a@example.com>;tag=1928301774\n"
+                        + "Call-ID: " + callId,
+                new byte[0]);
+    }
+}